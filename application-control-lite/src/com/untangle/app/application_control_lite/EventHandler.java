@@ -111,6 +111,16 @@ public class EventHandler extends AbstractEventHandler
         return;
     }
 
+    /**
+     * The chunks are copied into the session's match buffer, the chunk itself is only sent along
+     * @return true
+     */
+    @Override
+    public boolean releasesTCPChunks()
+    {
+        return true;
+    }
+
     /**
      * Handle a chunk of UDP data
      * @param session - the UDP session
@@ -8,6 +8,7 @@ import java.util.List;
 import java.net.ConnectException;
 import java.nio.ByteBuffer;
 
+import com.untangle.uvm.app.RuleProfiler;
 import com.untangle.uvm.vnet.AppSession;
 import com.untangle.uvm.vnet.IPNewSessionRequest;
 import com.untangle.uvm.vnet.TCPNewSessionRequest;
@@ -39,6 +40,7 @@ public class ApplicationControlEventHandler extends AbstractEventHandler
     private final Logger logger = Logger.getLogger(getClass());
     private ApplicationControlApp app;
     private int networkPort = 0;
+    private final RuleProfiler.RuleKeyCache<ApplicationControlLogicRule> logicRuleKeys;
 
     public enum TrafficAction
     {
@@ -57,6 +59,7 @@ public class ApplicationControlEventHandler extends AbstractEventHandler
     {
         super(app);
         this.app = app;
+        this.logicRuleKeys = new RuleProfiler.RuleKeyCache<>(rule -> new RuleProfiler.RuleKey(app, "ApplicationControlLogicRule", rule.getId(), rule.getDescription()));
         this.networkPort = networkPort;
     }
 
@@ -752,11 +755,17 @@ public class ApplicationControlEventHandler extends AbstractEventHandler
 
         if (logicList == null) return null;
 
+        RuleProfiler.RuleKey[] ruleKeys = (RuleProfiler.ENABLED ? logicRuleKeys.get(logicList) : null);
+        int ruleIndex = -1;
+
         for (ApplicationControlLogicRule logicRule : logicList) {
             Boolean result;
 
+            ruleIndex++;
             if (!logicRule.getEnabled()) continue;
+            long start = (ruleKeys != null ? RuleProfiler.start() : RuleProfiler.NOT_SAMPLED);
             result = logicRule.matches(sess);
+            if (ruleKeys != null) RuleProfiler.recordRule(ruleKeys[ruleIndex], result, start);
 
             if (result == true) {
                 logger.debug("MATCHED LogicRule \"" + logicRule.getDescription() + "\"");
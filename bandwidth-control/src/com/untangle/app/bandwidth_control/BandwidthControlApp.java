@@ -18,6 +18,7 @@ import com.untangle.uvm.app.AppMetric;
 import com.untangle.uvm.vnet.Affinity;
 import com.untangle.uvm.vnet.Fitting;
 import com.untangle.uvm.vnet.PipelineConnector;
+import com.untangle.uvm.vnet.ReleaseBudget;
 import com.untangle.uvm.app.AppBase;
 
 /**
@@ -28,6 +29,9 @@ public class BandwidthControlApp extends AppBase
     public static final String STAT_PRIORITIZE = "prioritize";
     public static final String STAT_TAGGED = "tagged";
 
+    /* Sessions are released after this many data chunks/packets */
+    private static final int MAX_CHUNK_COUNT = 10;
+
     private final Logger logger = Logger.getLogger(getClass());
 
     private boolean shownExpiredWarning = false;
@@ -60,6 +64,8 @@ public class BandwidthControlApp extends AppBase
         this.addMetric(new AppMetric(STAT_TAGGED, I18nUtil.marktr("Host tagged")));
 
         this.connector = UvmContextFactory.context().pipelineFoundry().create("bandwidth", this, null, handler, Fitting.OCTET_STREAM, Fitting.OCTET_STREAM, Affinity.SERVER, 20, true);
+        /* The rules are only evaluated on the first chunks of a session */
+        this.connector.setReleaseBudget(ReleaseBudget.chunks(MAX_CHUNK_COUNT));
         this.connectors = new PipelineConnector[] { connector };
     }
 
@@ -412,6 +418,11 @@ public class BandwidthControlApp extends AppBase
         this.settings = newSettings;
         try {logger.debug("New Settings: \n" + new org.json.JSONObject(this.settings).toString(2));} catch (Exception e) {}
 
+        /**
+         * Compile the rules, the wizards change the rule list in place so this is done on every set
+         */
+        this.handler.configure(newSettings.getRules());
+
     }
 
     /**
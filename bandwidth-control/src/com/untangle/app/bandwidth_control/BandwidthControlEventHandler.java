@@ -8,6 +8,8 @@ import java.util.List;
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
 
+import com.untangle.uvm.app.CompiledRuleSet;
+import com.untangle.uvm.app.RuleProfiler;
 import com.untangle.uvm.vnet.AbstractEventHandler;
 import com.untangle.uvm.vnet.AppSession;
 import com.untangle.uvm.vnet.AppTCPSession;
@@ -29,10 +31,11 @@ public class BandwidthControlEventHandler extends AbstractEventHandler
     private static final int IP_HEADER_SIZE = 20;
     private static final int UDP_HEADER_SIZE = 8;
     
-    private final int MAX_CHUNK_COUNT = 10;
-    
     private BandwidthControlApp app;
 
+    /* The current rules compiled, recompiled when the settings are applied */
+    private volatile CompiledRuleSet<BandwidthControlRule> compiledRules = null;
+
     /**
      * Create a BandWidthControlEventHandler instance
      * @param app - the owning BandwidthControlApp
@@ -44,6 +47,15 @@ public class BandwidthControlEventHandler extends AbstractEventHandler
         this.app = app;
     }
 
+    /**
+     * Compile the rules, called each time the settings are applied
+     * @param ruleList - the current rules
+     */
+    public void configure( List<BandwidthControlRule> ruleList )
+    {
+        this.compiledRules = new CompiledRuleSet<>( ruleList, BandwidthControlRule::getEnabled, BandwidthControlRule::getConditions, rule -> new RuleProfiler.RuleKey( app, "BandwidthControlRule", rule.getRuleId(), rule.getDescription() ) );
+    }
+
     /**
      * Handle a new TCP session request event
      * @param sessionRequest
@@ -138,6 +150,16 @@ public class BandwidthControlEventHandler extends AbstractEventHandler
         return;
     }
 
+    /**
+     * The chunks are only sent along
+     * @return true
+     */
+    @Override
+    public boolean releasesTCPChunks()
+    {
+        return true;
+    }
+
     /**
      * Reprioritize all existing sessions for the specified address.
      * This is used when state changes about hosts in the host table and we
@@ -250,15 +272,6 @@ public class BandwidthControlEventHandler extends AbstractEventHandler
         if (! this.app.isLicenseValid()) 
             return;
         
-        /**
-         * If we are too deep in the session - stop running the rules
-         */
-        sessInfo.chunkCount++;
-        if (sessInfo.chunkCount > MAX_CHUNK_COUNT) {
-            sess.release();
-            return;
-        }
-        
         if ( logger.isDebugEnabled() ) {
             logger.debug( "Session Event  : " + protocol + " " +
                           sess.getClientAddr().getHostAddress() + ":" + sess.getClientPort() + " -> " +
@@ -295,7 +308,9 @@ public class BandwidthControlEventHandler extends AbstractEventHandler
      */
     private BandwidthControlRule _findFirstMatch(AppSession sess, boolean onlyPrioritizeRules)
     {
-        List<BandwidthControlRule> rules = this.app.getRules();
+        CompiledRuleSet<BandwidthControlRule> rules = this.compiledRules;
+        if ( rules == null )
+            return null;
 
         if ( logger.isDebugEnabled() ) {
             logger.debug( "Checking Rules against AppSession : " + sess.getProtocol() + " " +
@@ -303,35 +318,25 @@ public class BandwidthControlEventHandler extends AbstractEventHandler
                           sess.getServerAddr().getHostAddress() + ":" + sess.getServerPort());
         }
 
-        for ( BandwidthControlRule rule : rules ) {
-            boolean evalRule = true;
+        BandwidthControlRule rule;
+        if (onlyPrioritizeRules) {
+            /**
+             * Only check rules that set priority for reprioritization if allRules is false
+             * This is used for reprioritizing sessions and we only want to match certain rules
+             */
+            rule = rules.findMatch( sess, r -> ( r.getAction().getActionType() == BandwidthControlRuleAction.ActionType.SET_PRIORITY ||
+                                                 r.getAction().getActionType() == BandwidthControlRuleAction.ActionType.APPLY_PENALTY_PRIORITY ) );
+        } else {
+            rule = rules.findMatch( sess );
+        }
 
-            if (onlyPrioritizeRules) {
-                /**
-                 * Only check rules that set priority for reprioritization if allRules is false
-                 * This is used for reprioritizing sessions and we only want to match certain rules
-                 */
-                evalRule = ( rule.getAction().getActionType() == BandwidthControlRuleAction.ActionType.SET_PRIORITY ||
-                             rule.getAction().getActionType() == BandwidthControlRuleAction.ActionType.APPLY_PENALTY_PRIORITY );
-            }
-            
-            if (rule.getEnabled() && evalRule && rule.matches( sess )) {
-                if ( logger.isDebugEnabled() ) {
-                    logger.debug( "Matched AppSession : " + sess.getProtocol() + " " +
-                                  sess.getClientAddr().getHostAddress() + ":" + sess.getClientPort() + " -> " +
-                                  sess.getServerAddr().getHostAddress() + ":" + sess.getServerPort() + " matches " + rule.getDescription());
-                }
-                return rule; /* check no further */
-            } else {
-                if ( logger.isDebugEnabled() ) {
-                    logger.debug( "Checking Rule \"" + rule.getDescription() + "\" against AppSession : " + sess.getProtocol() + " " +
-                                  sess.getClientAddr().getHostAddress() + ":" + sess.getClientPort() + " -> " +
-                                  sess.getServerAddr().getHostAddress() + ":" + sess.getServerPort());
-                }
-            }
+        if ( rule != null && logger.isDebugEnabled() ) {
+            logger.debug( "Matched AppSession : " + sess.getProtocol() + " " +
+                          sess.getClientAddr().getHostAddress() + ":" + sess.getClientPort() + " -> " +
+                          sess.getServerAddr().getHostAddress() + ":" + sess.getServerPort() + " matches " + rule.getDescription());
         }
 
-        return null;
+        return rule;
     }
 
 }
@@ -15,15 +15,9 @@ public class BandwidthControlSessionState
      */
     public BandwidthControlSessionState()
     {
-        this.chunkCount = 0;
         this.lastPriority = -1;
     }
 
-    /**
-     * This is just a counter of the number of data chunks seen in this network
-     */
-    public int chunkCount;
-
     /**
      * This stores the last known priority set by BWC for this session
      */
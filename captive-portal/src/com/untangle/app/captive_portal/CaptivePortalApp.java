@@ -41,6 +41,8 @@ import com.untangle.uvm.vnet.Affinity;
 import com.untangle.uvm.vnet.Protocol;
 import com.untangle.uvm.vnet.Fitting;
 import com.untangle.uvm.app.AppBase;
+import com.untangle.uvm.app.CompiledRuleSet;
+import com.untangle.uvm.app.RuleProfiler;
 import com.untangle.uvm.vnet.Token;
 import com.untangle.uvm.util.I18nUtil;
 import com.untangle.uvm.servlet.UploadHandler;
@@ -90,6 +92,9 @@ public class CaptivePortalApp extends AppBase
     protected CaptivePortalUserCookieTable captureUserCookieTable = new CaptivePortalUserCookieTable();
     protected CaptivePortalUserTable captureUserTable;
     private CaptivePortalSettings captureSettings;
+
+    /* The current capture rules compiled, recompiled when the settings are applied */
+    private volatile CompiledRuleSet<CaptureRule> compiledCaptureRules = null;
     private CaptivePortalTimer captureTimer;
     private Timer timer;
 
@@ -333,6 +338,7 @@ public class CaptivePortalApp extends AppBase
     private void applyAppSettings(CaptivePortalSettings argSettings)
     {
         this.captureSettings = argSettings;
+        this.compiledCaptureRules = new CompiledRuleSet<>(argSettings.getCaptureRules(), CaptureRule::getEnabled, CaptureRule::getConditions, rule -> new RuleProfiler.RuleKey(this, "CaptureRule", rule.getRuleId(), rule.getDescription()));
     }
 
     /**
@@ -352,7 +358,7 @@ public class CaptivePortalApp extends AppBase
         // be allowed based on the active app settings
         this.killMatchingSessions(new SessionMatcher()
         {
-            List<CaptureRule> ruleList = captureSettings.getCaptureRules();
+            CompiledRuleSet<CaptureRule> ruleList = getCompiledCaptureRules();
 
             /**
              * For every session we have to check all the rules to make sure we
@@ -391,16 +397,12 @@ public class CaptivePortalApp extends AppBase
                 // if session matches any pass list return false
                 if (isSessionAllowed(clientAddr, serverAddr) != null) return (false);
 
-                // check the session against the rule list
-                for (CaptureRule rule : ruleList) {
-                    if (rule.isMatch(protocol, clientIntf, serverIntf, clientAddr, serverAddr, clientPort, serverPort)) {
-                        // on a matching rule continue if capture is false
-                        if (rule.getCapture() == false) continue;
-
-                        // capture is true so log and kill the session
-                        logger.debug("Validate killing " + clientAddr.getHostAddress().toString() + ":" + clientPort + " --> " + serverAddr.getHostAddress().toString() + ":" + serverPort);
-                        return (true);
-                    }
+                // check the session against the rule list, skipping matching rules where capture is false
+                CaptureRule rule = ruleList.findMatch(protocol, clientIntf, serverIntf, clientAddr, serverAddr, clientPort, serverPort, CaptureRule::getCapture);
+                if (rule != null) {
+                    // capture is true so log and kill the session
+                    logger.debug("Validate killing " + clientAddr.getHostAddress().toString() + ":" + clientPort + " --> " + serverAddr.getHostAddress().toString() + ":" + serverPort);
+                    return (true);
                 }
 
                 // no matches anywhere so leave the session alone
@@ -1104,16 +1106,8 @@ public class CaptivePortalApp extends AppBase
      */
     public CaptureRule checkCaptureRules(IPNewSessionRequest sessreq)
     {
-        List<CaptureRule> ruleList = captureSettings.getCaptureRules();
-
         // check the session against the rule list
-        for (CaptureRule rule : ruleList) {
-            if (rule.isMatch(sessreq.getProtocol(), sessreq.getClientIntf(), sessreq.getServerIntf(), sessreq.getOrigClientAddr(), sessreq.getNewServerAddr(), sessreq.getOrigClientPort(), sessreq.getNewServerPort())) {
-                return (rule);
-            }
-        }
-
-        return (null);
+        return getCompiledCaptureRules().findMatch(sessreq.getProtocol(), sessreq.getClientIntf(), sessreq.getServerIntf(), sessreq.getOrigClientAddr(), sessreq.getNewServerAddr(), sessreq.getOrigClientPort(), sessreq.getNewServerPort());
     }
 
     /**
@@ -1126,16 +1120,19 @@ public class CaptivePortalApp extends AppBase
      */
     public CaptureRule checkCaptureRules(AppTCPSession session)
     {
-        List<CaptureRule> ruleList = captureSettings.getCaptureRules();
-
         // check the session against the rule list
-        for (CaptureRule rule : ruleList) {
-            if (rule.isMatch(session)) {
-                return (rule);
-            }
-        }
+        return getCompiledCaptureRules().findMatch(session);
+    }
 
-        return (null);
+    /**
+     * Get the current capture rules compiled for matching. They are
+     * recompiled each time the settings are applied.
+     * 
+     * @return The compiled rules
+     */
+    private CompiledRuleSet<CaptureRule> getCompiledCaptureRules()
+    {
+        return compiledCaptureRules;
     }
 
     /**
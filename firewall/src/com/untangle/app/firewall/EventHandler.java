@@ -4,10 +4,11 @@
 package com.untangle.app.firewall;
 
 import java.util.LinkedList;
-import java.util.List;
 
 import org.apache.log4j.Logger;
 
+import com.untangle.uvm.app.CompiledRuleSet;
+import com.untangle.uvm.app.RuleProfiler;
 import com.untangle.uvm.vnet.AbstractEventHandler;
 import com.untangle.uvm.vnet.IPNewSessionRequest;
 import com.untangle.uvm.vnet.Protocol;
@@ -22,7 +23,7 @@ public class EventHandler extends AbstractEventHandler
 {
     private final Logger logger = Logger.getLogger(EventHandler.class);
 
-    private List<FirewallRule> firewallRuleList = new LinkedList<>();
+    private CompiledRuleSet<FirewallRule> firewallRules = new CompiledRuleSet<>(new LinkedList<>(), FirewallRule::getEnabled, FirewallRule::getConditions);
 
     private boolean blockSilently = true;
 
@@ -79,15 +80,10 @@ public class EventHandler extends AbstractEventHandler
         /**
          * Find the matching rule compute block/log verdicts
          */
-        for (FirewallRule rule : firewallRuleList) {
-            if (rule.isMatch(request.getProtocol(),
-                             request.getClientIntf(), request.getServerIntf(),
-                             request.getOrigClientAddr(), request.getNewServerAddr(),
-                             request.getOrigClientPort(), request.getNewServerPort())) {
-                matchedRule = rule;
-                break;
-            }
-        }
+        matchedRule = firewallRules.findMatch(request.getProtocol(),
+                                              request.getClientIntf(), request.getServerIntf(),
+                                              request.getOrigClientAddr(), request.getNewServerAddr(),
+                                              request.getOrigClientPort(), request.getNewServerPort());
         
         if (matchedRule != null) {
             block = matchedRule.getBlock();
@@ -146,7 +142,7 @@ public class EventHandler extends AbstractEventHandler
      */
     public void configure(FirewallSettings settings)
     {
-        this.firewallRuleList = settings.getRules();
+        this.firewallRules = new CompiledRuleSet<>(settings.getRules(), FirewallRule::getEnabled, FirewallRule::getConditions, rule -> new RuleProfiler.RuleKey(app, "FirewallRule", rule.getRuleId(), rule.getDescription()));
     }
 
 }
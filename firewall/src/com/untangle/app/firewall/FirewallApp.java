@@ -18,6 +18,7 @@ import com.untangle.uvm.app.AppProperties;
 import com.untangle.uvm.app.AppMetric;
 import com.untangle.uvm.util.I18nUtil;
 import com.untangle.uvm.app.AppBase;
+import com.untangle.uvm.app.CompiledRuleSet;
 import com.untangle.uvm.vnet.Affinity;
 import com.untangle.uvm.vnet.Fitting;
 import com.untangle.uvm.vnet.PipelineConnector;
@@ -38,6 +39,9 @@ public class FirewallApp extends AppBase
 
     private FirewallSettings settings = null;
 
+    /* The current rules compiled for the session matcher, recompiled by reconfigure() */
+    private volatile CompiledRuleSet<FirewallRule> sessionMatcherRules = null;
+
     /**
      * This is used to reset sessions that are blocked by firewall when they switch policy
      */
@@ -66,20 +70,17 @@ public class FirewallApp extends AppBase
                 if (handler == null)
                     return false;
 
-                FirewallRule matchedRule = null;
-                
+                CompiledRuleSet<FirewallRule> rules = sessionMatcherRules;
+                if (rules == null)
+                    return false;
+
                 /**
                  * Find the matching rule compute block/log verdicts
                  */
-                for (FirewallRule rule : settings.getRules()) {
-                    if (rule.isMatch(protocol,
-                                     clientIntf, serverIntf,
-                                     clientAddr, serverAddr,
-                                     clientPort, serverPort)) {
-                        matchedRule = rule;
-                        break;
-                    }
-                }
+                FirewallRule matchedRule = rules.findMatch(protocol,
+                                                           clientIntf, serverIntf,
+                                                           clientAddr, serverAddr,
+                                                           clientPort, serverPort);
         
                 if (matchedRule == null)
                     return false;
@@ -338,6 +339,8 @@ public class FirewallApp extends AppBase
     {
         logger.info("Reconfigure()");
 
+        sessionMatcherRules = (settings == null) ? null : new CompiledRuleSet<>(settings.getRules(), FirewallRule::getEnabled, FirewallRule::getConditions);
+
         /* check for any sessions that should be killed according to new rules */
         this.killMatchingSessions(FIREWALL_SESSION_MATCHER);
 
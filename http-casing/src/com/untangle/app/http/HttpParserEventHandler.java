@@ -511,20 +511,20 @@ public class HttpParserEventHandler extends AbstractEventHandler
                      * Attach values to session
                      */
                     if (contentType != null) {
-                        session.globalAttach( AppSession.KEY_HTTP_CONTENT_TYPE, contentType );
+                        session.globalAttach( AppSession.HTTP_CONTENT_TYPE, contentType );
                     }
                     if (contentLength != null) {
                         try {
                             Long contentLengthLong = Long.parseLong(contentLength);
-                            session.globalAttach(AppSession.KEY_HTTP_CONTENT_LENGTH, contentLengthLong );
+                            session.globalAttach(AppSession.HTTP_CONTENT_LENGTH, contentLengthLong );
                         } catch (NumberFormatException e) { /* ignore it if it doesnt parse */ }
                     }
                     if (fileName != null) {
-                        session.globalAttach(AppSession.KEY_HTTP_RESPONSE_FILE_NAME, fileName);
+                        session.globalAttach(AppSession.HTTP_RESPONSE_FILE_NAME, fileName);
                         // find the last dot to extract the file extension
                         int loc = fileName.lastIndexOf(".");
                         if (loc != -1)
-                            session.globalAttach(AppSession.KEY_HTTP_RESPONSE_FILE_EXTENSION, fileName.substring(loc + 1));
+                            session.globalAttach(AppSession.HTTP_RESPONSE_FILE_EXTENSION, fileName.substring(loc + 1));
                     }
 
                 } else {
@@ -716,12 +716,12 @@ public class HttpParserEventHandler extends AbstractEventHandler
                     if ( hostEntry != null )
                         deviceEntry = UvmContextFactory.context().deviceTable().getDevice( hostEntry.getMacAddress() );
 
-                    session.globalAttach( AppSession.KEY_HTTP_HOSTNAME, host );
-                    session.globalAttach( AppSession.KEY_HTTP_REFERER, referer );
-                    session.globalAttach( AppSession.KEY_HTTP_URI, uri );
-                    session.globalAttach( AppSession.KEY_HTTP_URL, host + uri );
-                    session.globalAttach( AppSession.KEY_HTTP_USER_AGENT, userAgent );
-                    session.globalAttach( AppSession.KEY_HTTP_REQUEST_METHOD, rmethod );
+                    session.globalAttach( AppSession.HTTP_HOSTNAME, host );
+                    session.globalAttach( AppSession.HTTP_REFERER, referer );
+                    session.globalAttach( AppSession.HTTP_URI, uri );
+                    session.globalAttach( AppSession.HTTP_URL, host + uri );
+                    session.globalAttach( AppSession.HTTP_USER_AGENT, userAgent );
+                    session.globalAttach( AppSession.HTTP_REQUEST_METHOD, rmethod );
 
                     String fpath = null;
                     String fname = null;
@@ -741,14 +741,14 @@ public class HttpParserEventHandler extends AbstractEventHandler
                         loc = fname.lastIndexOf(".");
                         if (loc != -1) fext = fname.substring(loc + 1);
 
-                        if (fpath != null) session.globalAttach(AppSession.KEY_HTTP_REQUEST_FILE_PATH, fpath);
+                        if (fpath != null) session.globalAttach(AppSession.HTTP_REQUEST_FILE_PATH, fpath);
                         // FILE_NAME can be set from earlier in the header, only overwrite if it is null
-                        if (fname != null && session.globalAttachment(AppSession.KEY_HTTP_REQUEST_FILE_NAME) == null) {
-                            session.globalAttach(AppSession.KEY_HTTP_REQUEST_FILE_NAME, fname);
+                        if (fname != null && session.globalAttachment(AppSession.HTTP_REQUEST_FILE_NAME) == null) {
+                            session.globalAttach(AppSession.HTTP_REQUEST_FILE_NAME, fname);
                         }
                         // FILE_EXTENSION can be set from earlier in the header, only overwrite if it is null
-                        if (fext != null && session.globalAttachment(AppSession.KEY_HTTP_REQUEST_FILE_EXTENSION) == null)
-                            session.globalAttach(AppSession.KEY_HTTP_REQUEST_FILE_EXTENSION, fext);
+                        if (fext != null && session.globalAttachment(AppSession.HTTP_REQUEST_FILE_EXTENSION) == null)
+                            session.globalAttach(AppSession.HTTP_REQUEST_FILE_EXTENSION, fext);
                     } catch (URISyntaxException e) {}
 
                     if ( agentString != null ) {
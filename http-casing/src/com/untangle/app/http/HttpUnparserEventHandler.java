@@ -4,7 +4,6 @@
 package com.untangle.app.http;
 
 import java.nio.ByteBuffer;
-import java.util.Iterator;
 import java.util.List;
 import java.util.LinkedList;
 import java.util.Queue;
@@ -361,21 +360,17 @@ public class HttpUnparserEventHandler extends AbstractEventHandler
             return;
         }
 
-        ByteBuffer buf;
+        ByteBuffer[] bufs;
 
         switch ( state.transferEncoding ) {
         case CLOSE_ENCODING:
         case CONTENT_LENGTH_ENCODING:
-            buf = cBuf;
+            bufs = new ByteBuffer[] { cBuf };
             break;
         case CHUNKED_ENCODING:
-            buf = ByteBuffer.allocate(cBuf.remaining() + 32);
-            String hexLen = Integer.toHexString(cBuf.remaining());
-            buf.put(hexLen.getBytes());
-            buf.put(CRLF);
-            buf.put(cBuf);
-            buf.put(CRLF);
-            buf.flip();
+            /* The chunk header, data and trailer are written together without copying the data */
+            String hexLen = Integer.toHexString(cBuf.remaining()) + "\r\n";
+            bufs = new ByteBuffer[] { ByteBuffer.wrap(hexLen.getBytes()), cBuf, ByteBuffer.wrap(CRLF) };
             break;
         default:
             throw new IllegalStateException("transferEncoding: " + state.transferEncoding);
@@ -383,11 +378,13 @@ public class HttpUnparserEventHandler extends AbstractEventHandler
 
         if ( state.outputQueue.isEmpty() ) {
             if ( clientSide )
-                session.sendDataToClient( buf );
+                session.sendDataToClient( bufs );
             else
-                session.sendDataToServer( buf );
+                session.sendDataToServer( bufs );
         } else {
-            queueOutput( session, buf );
+            for ( ByteBuffer buf : bufs ) {
+                queueOutput( session, buf );
+            }
             dequeueOutput( session );
         }
     }
@@ -447,23 +444,18 @@ public class HttpUnparserEventHandler extends AbstractEventHandler
     {
         HttpUnparserSessionState state = (HttpUnparserSessionState) session.attachment( STATE_KEY );
 
-        ByteBuffer buf = ByteBuffer.allocate( state.size );
-
-        for (Iterator<ByteBuffer> i = state.outputQueue.iterator(); i.hasNext(); ) {
-            ByteBuffer b = i.next();
-            buf.put(b);
-        }
-
-        buf.flip();
+        /* The queued buffers are sent together with a single gathering write */
+        ByteBuffer[] bufs = state.outputQueue.toArray( new ByteBuffer[state.outputQueue.size()] );
+        int size = state.size;
 
         state.size = 0;
         state.outputQueue.clear();
 
-        if ( buf.remaining() > 0 ) {
+        if ( size > 0 ) {
             if ( clientSide )
-                session.sendDataToClient( buf );
+                session.sendDataToClient( bufs );
             else
-                session.sendDataToServer( buf );
+                session.sendDataToServer( bufs );
         }
         
         return;
@@ -465,6 +465,24 @@ public class Conntrack
         return getOriginalDestinationAddress();
     }
 
+    /**
+     * getPreNatClientInt returns the pre-NAT client IPv4 address without creating an InetAddress
+     * @return the address in host byte order (a.b.c.d is 0xaabbccdd)
+     */
+    public int getPreNatClientInt()
+    {
+        return Integer.reverseBytes( (int)getLongValue( pointer.value(), FLAG_ORIG_IPV4_SRC ));
+    }
+
+    /**
+     * getPreNatServerInt returns the pre-NAT server IPv4 address without creating an InetAddress
+     * @return the address in host byte order (a.b.c.d is 0xaabbccdd)
+     */
+    public int getPreNatServerInt()
+    {
+        return Integer.reverseBytes( (int)getLongValue( pointer.value(), FLAG_ORIG_IPV4_DST ));
+    }
+
     /**
      * getPreNatClientPort
      * @return
@@ -162,6 +162,25 @@ public class NetcapUDPSession extends NetcapSession
      */
     private static native long   read( long sessionPointer, boolean isClientSide, int timeout );
 
+    /**
+     * readBatch
+     * @param sessionPointer
+     * @param isClientSide
+     * @param packetPointers - array to store the packet pointers
+     * @param lengths - array to store the size of the data in each packet
+     * @param timeout
+     * @return the number of packets read
+     */
+    private static native int    readBatch( long sessionPointer, boolean isClientSide, long[] packetPointers, int[] lengths, int timeout );
+
+    /**
+     * setPending
+     * @param sessionPointer
+     * @param isClientSide
+     * @param pending
+     */
+    private static native void   setPending( long sessionPointer, boolean isClientSide, boolean pending );
+
     /**
      * data
      * @param packetPointer
@@ -177,6 +196,13 @@ public class NetcapUDPSession extends NetcapSession
      */
     private static native int    getData( long packetPointer, byte[] buffer );
 
+    /**
+     * dataLength
+     * @param packetPointer
+     * @return the size of the data in the packet
+     */
+    private static native int    dataLength( long packetPointer );
+
     /**
      * mailboxPointer - gets a pointer to the mailbox
      * @param sessionPointer
@@ -212,6 +238,10 @@ public class NetcapUDPSession extends NetcapSession
     {
         private final boolean isClientSide;
 
+        /* Scratch arrays for batch reads and sends, the mailbox is only read by one thread */
+        private long[] batchPointers = null;
+        private int[] batchLengths = null;
+
         /**
          * UDPSessionMailbox
          * @param isClientSide
@@ -239,7 +269,72 @@ public class NetcapUDPSession extends NetcapSession
                 throw new IllegalStateException( "Packet is not UDP: " +  tmp );
             }
                 
-            return new PacketMailboxUDPPacket( packetPointer );
+            return new PacketMailboxUDPPacket( packetPointer, -1 );
+        }
+
+        /**
+         * read a batch of packets with a single call
+         * @param packets
+         * @param timeout
+         * @return the number of packets read
+         */
+        public int read( UDPPacket[] packets, int timeout )
+        {
+            ensureBatchCapacity( packets.length );
+
+            int count = NetcapUDPSession.readBatch( pointer.value(), isClientSide, batchPointers, batchLengths, timeout );
+            if ( count <= 0 ) return 0;
+
+            for ( int c = 0 ; c < count ; c++ ) {
+                CPointer packetPointer = new CPointer( batchPointers[c] );
+                UDPAttributes ipTraffic = new UDPAttributes( packetPointer );
+
+                if ( ipTraffic.getProtocol() != Netcap.IPPROTO_UDP ) {
+                    int tmp = ipTraffic.getProtocol();
+
+                    /* Must free this packet and the rest of the batch */
+                    ipTraffic.raze();
+                    for ( int d = 0 ; d < c ; d++ ) packets[d].raze();
+                    for ( int d = c + 1 ; d < count ; d++ ) new UDPAttributes( new CPointer( batchPointers[d] )).raze();
+                    setPending( false );
+
+                    throw new IllegalStateException( "Packet is not UDP: " +  tmp );
+                }
+
+                packets[c] = new PacketMailboxUDPPacket( packetPointer, batchLengths[c] );
+            }
+
+            return count;
+        }
+
+        /**
+         * pending - keep the mailbox readable while the reader is holding packets
+         * @param pending
+         */
+        public void pending( boolean pending )
+        {
+            setPending( pending );
+        }
+
+        /**
+         * setPending
+         * @param pending
+         */
+        private void setPending( boolean pending )
+        {
+            NetcapUDPSession.setPending( pointer.value(), isClientSide, pending );
+        }
+
+        /**
+         * Make sure the scratch arrays can hold <code>size</code> packets
+         * @param size
+         */
+        private void ensureBatchCapacity( int size )
+        {
+            if ( batchPointers == null || batchPointers.length < size ) {
+                batchPointers = new long[size];
+                batchLengths = new int[size];
+            }
         }
 
         /**
@@ -267,15 +362,20 @@ public class NetcapUDPSession extends NetcapSession
         {
             private final CPointer pointer;
             protected final UDPAttributes attributes;
+
+            /* Size of the data, -1 if it hasn't been retrieved */
+            private int dataLength;
             
             /**
              * PacketMailboxPacket constructor
              * @param pointer - C pointer
+             * @param dataLength - size of the data, -1 if unknown
              */
-            PacketMailboxPacket( CPointer pointer ) 
+            PacketMailboxPacket( CPointer pointer, int dataLength ) 
             {
                 this.pointer = pointer;
                 this.attributes = makeAttributes( pointer );
+                this.dataLength = dataLength;
             }
             
             /**
@@ -306,6 +406,16 @@ public class NetcapUDPSession extends NetcapSession
                 return NetcapUDPSession.getData( pointer.value(), buffer );
             }
 
+            /**
+             * dataLength gets the size of the data
+             * @return size of the data
+             */
+            public int dataLength()
+            {
+                if ( dataLength < 0 ) dataLength = NetcapUDPSession.dataLength( pointer.value());
+                return dataLength;
+            }
+
             /**
              * Send out this packet 
              */
@@ -338,10 +448,11 @@ public class NetcapUDPSession extends NetcapSession
             /**
              * PacketMailboxUDPPacket constructor
              * @param pointer - the c pointer
+             * @param dataLength - size of the data, -1 if unknown
              */
-            PacketMailboxUDPPacket( CPointer pointer )
+            PacketMailboxUDPPacket( CPointer pointer, int dataLength )
             {
-                super( pointer );
+                super( pointer, dataLength );
             }
 
             /**
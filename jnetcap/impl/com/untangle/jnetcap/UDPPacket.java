@@ -24,6 +24,12 @@ public interface UDPPacket
      */
     public int getData( byte[] buffer );
 
+    /**
+     * Retrieve the size of the data in the packet.
+     * @return size of the data.
+     */
+    public int dataLength();
+
     /**
      * Send out this packet 
      */
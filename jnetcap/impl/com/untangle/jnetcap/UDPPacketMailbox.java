@@ -21,6 +21,26 @@ public interface UDPPacketMailbox
      */
     public UDPPacket read( int timeout );
 
+    /**
+     * Read a batch of packets from the packet mailbox with a single call.
+     * This waits at most <code>timeout</code> for the first packet, the rest
+     * of the batch is only the packets that are already in the mailbox.
+     *
+     * While the reader is holding packets from the batch the mailbox stays
+     * readable, once the reader has used all of the packets it must call
+     * <code>pending( false )</code>.
+     * @param packets - array to store the packets in
+     * @param timeout - Timeout in milliseconds
+     * @return the number of packets stored in <code>packets</code>, 0 on timeout
+     */
+    public int read( UDPPacket[] packets, int timeout );
+
+    /**
+     * Indicate whether the reader is still holding packets from a batch read
+     * @param pending - true if packets from the batch haven't been used yet
+     */
+    public void pending( boolean pending );
+
     /**
      * Retrieve the value of the C pointer
      * @return - the pointer
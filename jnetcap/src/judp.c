@@ -51,6 +51,9 @@
   } while (0)
 
 
+/* Maximum number of packets in a batch read or send */
+#define _UDP_BATCH_MAX 64
+
 static void _udp_callback( jlong session_ptr, netcap_callback_action_t action );
 
 static netcap_endpoint_t* _get_pkt_endpoint( netcap_pkt_t* pkt, int req_id )
@@ -292,6 +295,72 @@ JNIEXPORT jlong JNICALL JF_UDPSession( read )
     return  UINT_TO_JLONG( pkt );
 }
 
+/*
+ * Class:     com_untangle_jnetcap_UDPSession
+ * Method:    readBatch
+ * Signature: (JZ[J[II)I
+ */
+JNIEXPORT jint JNICALL JF_UDPSession( readBatch )
+  (JNIEnv* env, jclass _class, jlong session_ptr, jboolean if_client, jlongArray _packets, jintArray _lengths, 
+   jint timeout )
+{
+    struct timeval tv;
+    jlong packets[_UDP_BATCH_MAX];
+    jint  lengths[_UDP_BATCH_MAX];
+    netcap_pkt_t *pkt = NULL;
+    mailbox_t*    mb = NULL;
+    int max;
+    int count = 0;
+    netcap_session_t* netcap_sess = (netcap_session_t*)JLONG_TO_ULONG( session_ptr );
+    if ( netcap_sess == NULL || _packets == NULL || _lengths == NULL ) return errlogargs();
+
+    if ( if_client == JNI_TRUE ) mb = &netcap_sess->cli_mb; 
+    else                         mb = &netcap_sess->srv_mb; 
+
+    max = (*env)->GetArrayLength( env, _packets );
+    if ( (*env)->GetArrayLength( env, _lengths ) < max ) max = (*env)->GetArrayLength( env, _lengths );
+    if ( max > _UDP_BATCH_MAX ) max = _UDP_BATCH_MAX;
+    if ( max <= 0 ) return errlogargs();
+    
+    if ( utime_msec_add_now( &tv, timeout ) < 0 ) {
+        return errlog( ERR_CRITICAL, "utime_msec_add_now\n" );
+    }
+
+    /* Wait for the first packet, then take whatever else is already in the mailbox */
+    if (( pkt = (netcap_pkt_t *) mailbox_utimed_get( mb, &tv )) == NULL ) return 0;
+
+    do {
+        packets[count] = UINT_TO_JLONG( pkt );
+        lengths[count] = pkt->data_len;
+        count++;
+    } while ( count < max && ( pkt = (netcap_pkt_t *) mailbox_try_get( mb )) != NULL );
+
+    /* The caller is holding the rest of the batch, keep the mailbox readable until it is done with them */
+    if ( mailbox_set_pending( mb, count > 1 ) < 0 ) errlog( ERR_CRITICAL, "mailbox_set_pending\n" );
+
+    (*env)->SetLongArrayRegion( env, _packets, 0, count, packets );
+    (*env)->SetIntArrayRegion( env, _lengths, 0, count, lengths );
+
+    return count;
+}
+
+/*
+ * Class:     com_untangle_jnetcap_UDPSession
+ * Method:    setPending
+ * Signature: (JZZ)V
+ */
+JNIEXPORT void JNICALL JF_UDPSession( setPending )
+  (JNIEnv* env, jclass _class, jlong session_ptr, jboolean if_client, jboolean pending )
+{
+    netcap_session_t* netcap_sess = (netcap_session_t*)JLONG_TO_ULONG( session_ptr );
+    if ( netcap_sess == NULL ) return (void)errlogargs();
+
+    if ( mailbox_set_pending(( if_client == JNI_TRUE ) ? &netcap_sess->cli_mb : &netcap_sess->srv_mb, 
+                             pending == JNI_TRUE ) < 0 ) {
+        errlog( ERR_CRITICAL, "mailbox_set_pending\n" );
+    }
+}
+
 /*
  * Class:     com_untangle_jnetcap_UDPSession
  * Method:    data
@@ -342,6 +411,20 @@ JNIEXPORT int JNICALL JF_UDPSession( getData )
     return pkt->data_len;
 }
 
+/*
+ * Class:     com_untangle_jnetcap_UDPSession
+ * Method:    dataLength
+ * Signature: (J)I
+ */
+JNIEXPORT jint JNICALL JF_UDPSession( dataLength )
+  (JNIEnv* env, jclass _class, jlong packet_ptr )
+{
+    netcap_pkt_t* pkt = (netcap_pkt_t*)JLONG_TO_ULONG( packet_ptr );
+    if ( pkt == NULL ) return errlogargs();
+
+    return pkt->data_len;
+}
+
 /*
  * Class:     com_untangle_jnetcap_UDPSession
  * Method:    send
@@ -0,0 +1,302 @@
+/**
+ * $Id$
+ */
+package com.untangle.jvector;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * BufferPool is a striped slab pool of byte arrays used as read buffers by the
+ * jvector sources.
+ *
+ * Buffers are grouped into power of two size classes.  The pool is split into
+ * several stripes (selected by the calling thread) so session threads rarely
+ * contend on the same lock.  A buffer handed out by the pool is owned by a
+ * single crumb, the crumb returns it when it is razed by the vectoring machine.
+ *
+ * The pool is only used when uvm.jvector.bufferpool is set.
+ */
+public class BufferPool
+{
+    /* Smallest size class is 512 bytes, largest is 64k (the maximum TCP chunk size) */
+    private static final int MIN_CLASS_SHIFT = 9;
+    private static final int MAX_CLASS_SHIFT = 16;
+    private static final int NUM_CLASSES = MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1;
+
+    /* Smaller requests are rounded up to a buffer of this size */
+    public static final int MIN_BUFFER_SIZE = 1 << MIN_CLASS_SHIFT;
+
+    /* Default number of free buffers kept per size class in each stripe */
+    private static final int DEFAULT_STRIPE_DEPTH = 64;
+
+    private static final BufferPool INSTANCE;
+
+    private final boolean enabled;
+    private final Stripe[] stripes;
+    private final int stripeMask;
+
+    private final LongAdder hits        = new LongAdder();
+    private final LongAdder misses      = new LongAdder();
+    private final LongAdder releases    = new LongAdder();
+    private final LongAdder discards    = new LongAdder();
+    private final LongAdder detaches    = new LongAdder();
+
+    /**
+     * BufferPool
+     * @param enabled - true to pool buffers, false to just allocate them
+     * @param numStripes - number of stripes, rounded up to a power of two
+     * @param depth - number of free buffers kept per size class per stripe
+     */
+    BufferPool( boolean enabled, int numStripes, int depth )
+    {
+        int n = 1;
+        while ( n < numStripes ) n <<= 1;
+
+        this.enabled = enabled;
+        this.stripes = new Stripe[n];
+        this.stripeMask = n - 1;
+
+        for ( int c = 0 ; c < n ; c++ ) stripes[c] = new Stripe( depth );
+    }
+
+    /**
+     * getInstance
+     * @return the global buffer pool
+     */
+    public static BufferPool getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * isEnabled
+     * @return true if buffers are recycled, false if every acquire allocates
+     */
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * Get a buffer that is at least <code>size</code> bytes.  The returned
+     * buffer may be larger than requested (it is rounded up to its size class).
+     * Buffers larger than the largest size class are allocated and not pooled,
+     * isPooled tells which ones have to be released.
+     * @param size - minimum size of the buffer
+     * @return the buffer
+     */
+    public byte[] acquire( int size )
+    {
+        int sizeClass = sizeClass( size );
+
+        if ( !enabled || sizeClass < 0 ) {
+            return new byte[size];
+        }
+
+        byte[] buf = stripe().pop( sizeClass );
+
+        if ( buf != null ) {
+            hits.increment();
+            return buf;
+        }
+
+        misses.increment();
+        return new byte[1 << ( sizeClass + MIN_CLASS_SHIFT )];
+    }
+
+    /**
+     * Check if a buffer returned by acquire belongs to the pool.
+     * @param buf - the buffer
+     * @return true if the buffer should be released (or detached) when it is done
+     */
+    public boolean isPooled( byte[] buf )
+    {
+        if ( !enabled || buf == null ) return false;
+
+        int sizeClass = sizeClass( buf.length );
+
+        /* Only exact size class buffers came from the pool */
+        return ( sizeClass >= 0 && buf.length == ( 1 << ( sizeClass + MIN_CLASS_SHIFT )));
+    }
+
+    /**
+     * Return a buffer previously retrieved with acquire.
+     * @param buf - the buffer, this must no longer be referenced by the caller
+     */
+    public void release( byte[] buf )
+    {
+        if ( !isPooled( buf )) return;
+
+        releases.increment();
+
+        if ( !stripe().push( sizeClass( buf.length ), buf )) discards.increment();
+    }
+
+    /**
+     * Record that a pooled buffer was handed off and will never be released.
+     */
+    public void detach()
+    {
+        if ( enabled ) detaches.increment();
+    }
+
+    /**
+     * getHits
+     * @return number of acquires satisfied by a pooled buffer
+     */
+    public long getHits()
+    {
+        return hits.sum();
+    }
+
+    /**
+     * getMisses
+     * @return number of acquires that had to allocate a buffer
+     */
+    public long getMisses()
+    {
+        return misses.sum();
+    }
+
+    /**
+     * getReleases
+     * @return number of buffers returned to the pool
+     */
+    public long getReleases()
+    {
+        return releases.sum();
+    }
+
+    /**
+     * getDiscards
+     * @return number of returned buffers dropped because the stripe was full
+     */
+    public long getDiscards()
+    {
+        return discards.sum();
+    }
+
+    /**
+     * getDetaches
+     * @return number of buffers that were handed off and never returned
+     */
+    public long getDetaches()
+    {
+        return detaches.sum();
+    }
+
+    /**
+     * getOutstanding
+     * @return number of pooled buffers currently held by crumbs
+     */
+    public long getOutstanding()
+    {
+        return hits.sum() + misses.sum() - releases.sum() - detaches.sum();
+    }
+
+    /**
+     * getFree
+     * @return number of free buffers currently held by the pool
+     */
+    public int getFree()
+    {
+        int free = 0;
+        for ( Stripe stripe : stripes ) free += stripe.size();
+        return free;
+    }
+
+    /**
+     * stripe
+     * @return the stripe for the calling thread
+     */
+    private Stripe stripe()
+    {
+        long id = Thread.currentThread().getId();
+        return stripes[(int)( id ^ ( id >>> 16 )) & stripeMask];
+    }
+
+    /**
+     * sizeClass
+     * @param size
+     * @return the index of the smallest size class that holds size, or -1 if it is too large
+     */
+    private static int sizeClass( int size )
+    {
+        if ( size <= ( 1 << MIN_CLASS_SHIFT )) return 0;
+
+        int shift = 32 - Integer.numberOfLeadingZeros( size - 1 );
+        if ( shift > MAX_CLASS_SHIFT ) return -1;
+
+        return shift - MIN_CLASS_SHIFT;
+    }
+
+    /**
+     * A stripe is a set of bounded free lists, one per size class.
+     */
+    private static class Stripe
+    {
+        private final byte[][][] free = new byte[NUM_CLASSES][][];
+        private final int[] count = new int[NUM_CLASSES];
+
+        /**
+         * Stripe
+         * @param depth
+         */
+        Stripe( int depth )
+        {
+            for ( int c = 0 ; c < NUM_CLASSES ; c++ ) free[c] = new byte[depth][];
+        }
+
+        /**
+         * pop
+         * @param sizeClass
+         * @return a free buffer or null
+         */
+        synchronized byte[] pop( int sizeClass )
+        {
+            int n = count[sizeClass];
+            if ( n == 0 ) return null;
+
+            n--;
+            byte[] buf = free[sizeClass][n];
+            free[sizeClass][n] = null;
+            count[sizeClass] = n;
+            return buf;
+        }
+
+        /**
+         * push
+         * @param sizeClass
+         * @param buf
+         * @return false if the free list is full
+         */
+        synchronized boolean push( int sizeClass, byte[] buf )
+        {
+            int n = count[sizeClass];
+            if ( n == free[sizeClass].length ) return false;
+
+            free[sizeClass][n] = buf;
+            count[sizeClass] = n + 1;
+            return true;
+        }
+
+        /**
+         * size
+         * @return number of free buffers in the stripe
+         */
+        synchronized int size()
+        {
+            int size = 0;
+            for ( int c = 0 ; c < NUM_CLASSES ; c++ ) size += count[c];
+            return size;
+        }
+    }
+
+    static
+    {
+        boolean enabled = ( System.getProperty( "uvm.jvector.bufferpool" ) != null );
+        int depth = Integer.getInteger( "uvm.jvector.bufferpool.depth", DEFAULT_STRIPE_DEPTH );
+
+        INSTANCE = new BufferPool( enabled, 2 * Runtime.getRuntime().availableProcessors(), depth );
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ * $Id$
+ */
+package com.untangle.jvector;
+
+/**
+ * CrumbRing is a single producer / single consumer ring buffer of crumbs with
+ * preallocated slots.
+ *
+ * The producer (the listener writing into an OutgoingSocketQueue) only calls
+ * add, and the consumer (the vectoring machine) only calls peek and poll.
+ * Publishing the head and tail through volatile fields is enough for a
+ * crumb written by one thread to be visible to the other, no locks are needed.
+ *
+ * addFirst and clear touch both ends of the ring, they are only used for
+ * resets and shutdowns which happen on the vectoring thread.
+ *
+ * The ring is bounded by the socket queue capacity.  It only grows if a crumb
+ * has to be added to a full ring (shutdowns and resets are always accepted),
+ * like addFirst and clear that only happens on the vectoring thread.
+ */
+class CrumbRing
+{
+    private static final int MIN_CAPACITY = 4;
+
+    private Crumb[] slots;
+    private int mask;
+
+    /* Index of the next crumb to read, only written by the consumer */
+    private volatile int head = 0;
+
+    /* Index of the next free slot, only written by the producer */
+    private volatile int tail = 0;
+
+    /**
+     * CrumbRing
+     * @param capacity - number of slots, rounded up to a power of two
+     */
+    CrumbRing( int capacity )
+    {
+        int n = MIN_CAPACITY;
+        while ( n < capacity ) n <<= 1;
+
+        this.slots = new Crumb[n];
+        this.mask = n - 1;
+    }
+
+    /**
+     * Make sure the ring has at least <code>capacity</code> slots
+     * @param capacity
+     */
+    void ensureCapacity( int capacity )
+    {
+        if ( capacity > slots.length ) grow( capacity );
+    }
+
+    /**
+     * Add a crumb to the end of the ring
+     * @param crumb
+     */
+    void add( Crumb crumb )
+    {
+        int t = tail;
+
+        if ( t - head == slots.length ) {
+            grow( slots.length << 1 );
+            t = tail;
+        }
+
+        slots[t & mask] = crumb;
+        tail = t + 1;
+    }
+
+    /**
+     * Add a crumb to the front of the ring
+     * @param crumb
+     */
+    void addFirst( Crumb crumb )
+    {
+        if ( tail - head == slots.length ) grow( slots.length << 1 );
+
+        int h = head - 1;
+        slots[h & mask] = crumb;
+        head = h;
+    }
+
+    /**
+     * peek
+     * @return the first crumb, or null if the ring is empty
+     */
+    Crumb peek()
+    {
+        int h = head;
+        if ( h == tail ) return null;
+
+        return slots[h & mask];
+    }
+
+    /**
+     * Remove the first crumb
+     * @return the first crumb, or null if the ring is empty
+     */
+    Crumb poll()
+    {
+        int h = head;
+        if ( h == tail ) return null;
+
+        Crumb crumb = slots[h & mask];
+        slots[h & mask] = null;
+        head = h + 1;
+        return crumb;
+    }
+
+    /**
+     * Remove all of the crumbs
+     */
+    void clear()
+    {
+        for ( int h = head, t = tail ; h != t ; h++ ) slots[h & mask] = null;
+        head = tail;
+    }
+
+    /**
+     * size
+     * @return the number of crumbs in the ring
+     */
+    int size()
+    {
+        return tail - head;
+    }
+
+    /**
+     * isEmpty
+     * @return true if the ring is empty
+     */
+    boolean isEmpty()
+    {
+        return head == tail;
+    }
+
+    /**
+     * Move the crumbs into a larger array
+     * @param capacity - minimum number of slots
+     */
+    private void grow( int capacity )
+    {
+        int n = slots.length;
+        while ( n < capacity ) n <<= 1;
+
+        Crumb[] newSlots = new Crumb[n];
+        int size = tail - head;
+
+        for ( int c = 0 ; c < size ; c++ ) newSlots[c] = slots[( head + c ) & mask];
+
+        this.slots = newSlots;
+        this.mask = n - 1;
+        this.head = 0;
+        this.tail = size;
+    }
+}
@@ -14,6 +14,9 @@ public class DataCrumb extends Crumb
     protected int limit;
     protected int offset;
 
+    /* True if data came from the BufferPool and should be returned when the crumb is razed */
+    private boolean pooled = false;
+
     /**
      * DataCrumb
      * @param data
@@ -29,6 +32,18 @@ public class DataCrumb extends Crumb
         offset( offset );
     }
 
+    /**
+     * DataCrumb
+     * @param data
+     * @param limit
+     * @param pooled - true if data was acquired from the BufferPool
+     */
+    protected DataCrumb( byte[] data, int limit, boolean pooled )
+    {
+        this( data, 0, limit );
+        this.pooled = pooled;
+    }
+
     /**
      * DataCrumb
      * @param data
@@ -118,10 +133,49 @@ public class DataCrumb extends Crumb
         this.offset = offset;        
     }
     
+    /**
+     * isPooled
+     * @return true if the underlying byte array is returned to the BufferPool on raze
+     */
+    public boolean isPooled()
+    {
+        return pooled;
+    }
+
+    /**
+     * Detach the underlying byte array from the BufferPool.  This must be called
+     * before the byte array is handed to code that may hold on to it after the
+     * crumb is razed.
+     */
+    public void detach()
+    {
+        if ( pooled ) {
+            pooled = false;
+            BufferPool.getInstance().detach();
+        }
+    }
+
+    /**
+     * Move the pooled byte array to another crumb of the same array, the other
+     * crumb returns it to the BufferPool when it is razed.
+     * @param crumb - the crumb that takes over the array
+     */
+    public void handOff( DataCrumb crumb )
+    {
+        if ( pooled && crumb.data == data && !crumb.pooled ) {
+            pooled = false;
+            crumb.pooled = true;
+        }
+    }
+
     /** raze */
     public void raze()
     {
-        /* Nothing to do here, C structure is freed automatically */
+        /* C structure is freed automatically, only the pooled buffer has to be returned */
+        if ( pooled ) {
+            pooled = false;
+            BufferPool.getInstance().release( data );
+        }
     }
 
     /**
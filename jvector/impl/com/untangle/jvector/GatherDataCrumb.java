@@ -0,0 +1,183 @@
+/**
+ * $Id$
+ */
+package com.untangle.jvector;
+
+/**
+ * A GatherDataCrumb is a data crumb made of several byte arrays.
+ *
+ * A TCPSink writes all of the arrays with a single gathering write (writev),
+ * so a casing that sends a header and a body as separate buffers doesn't need
+ * to copy them together or write them with separate system calls.
+ *
+ * To everything else a GatherDataCrumb looks like a regular DataCrumb where the
+ * offset and limit are positions in the concatenated data.  The arrays are only
+ * copied together if another app reads the crumb through data().
+ */
+public class GatherDataCrumb extends DataCrumb
+{
+    /* Maximum number of arrays in a crumb (must match the native writev limit) */
+    public static final int MAX_PARTS = 64;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final byte[][] parts;
+    private final int[] partOffsets;
+    private final int[] partSizes;
+    private final int count;
+    private final int size;
+
+    /* Number of bytes that have already been consumed (the offset in the concatenated data) */
+    private int consumed = 0;
+
+    /* The concatenated data, only created if something asks for it */
+    private byte[] flat = null;
+
+    /**
+     * GatherDataCrumb
+     * @param parts - the arrays, only the first <code>count</code> are used
+     * @param partOffsets - offset of the data in each array
+     * @param partSizes - number of bytes of data in each array
+     * @param count - number of arrays
+     */
+    public GatherDataCrumb( byte[][] parts, int[] partOffsets, int[] partSizes, int count )
+    {
+        super( EMPTY, 0, 0 );
+
+        if ( count <= 0 || count > MAX_PARTS || count > parts.length ||
+             count > partOffsets.length || count > partSizes.length ) {
+            throw new IllegalArgumentException( "Invalid number of arrays: " + count );
+        }
+
+        int total = 0;
+        for ( int c = 0 ; c < count ; c++ ) {
+            if ( partOffsets[c] < 0 || partSizes[c] < 0 || partOffsets[c] + partSizes[c] > parts[c].length ) {
+                throw new IllegalArgumentException( "Invalid offset(" + partOffsets[c] + ") and size(" + partSizes[c] +
+                                                    ") for an array of length " + parts[c].length );
+            }
+            total += partSizes[c];
+        }
+
+        this.parts = parts;
+        this.partOffsets = partOffsets;
+        this.partSizes = partSizes;
+        this.count = count;
+        this.size = total;
+    }
+
+    /**
+     * The data concatenated into a single array, this copies the data the first time it is called
+     * @return the data
+     */
+    public byte[] data()
+    {
+        if ( flat == null ) {
+            flat = new byte[size];
+
+            for ( int c = 0, pos = 0 ; c < count ; pos += partSizes[c++] ) {
+                System.arraycopy( parts[c], partOffsets[c], flat, pos, partSizes[c] );
+            }
+        }
+
+        return flat;
+    }
+
+    /**
+     * limit
+     * @return the total number of bytes in the crumb
+     */
+    public int limit()
+    {
+        return size;
+    }
+
+    /**
+     * offset
+     * @return the number of bytes that have been consumed
+     */
+    public int offset()
+    {
+        return consumed;
+    }
+
+    /**
+     * The limit of a GatherDataCrumb can't be changed
+     * @param limit
+     */
+    public void limit( int limit )
+    {
+        /* Called by the DataCrumb constructor */
+        if ( parts == null ) {
+            super.limit( limit );
+            return;
+        }
+
+        if ( limit != size ) {
+            throw new UnsupportedOperationException( "Unable to change the limit of a gather data crumb" );
+        }
+    }
+
+    /**
+     * Change the offset of the data crumb.
+     * @param offset - The new offset of the data crumb
+     */
+    public void offset( int offset )
+    {
+        /* Called by the DataCrumb constructor */
+        if ( parts == null ) {
+            super.offset( offset );
+            return;
+        }
+
+        if ( offset < 0 || offset > size ) {
+            throw new IllegalArgumentException( "Setting offset(" + offset + ") passed the end of the " + "data crumb(" + size + ")" );
+        }
+
+        this.consumed = offset;
+    }
+
+    /**
+     * parts
+     * @return the arrays
+     */
+    byte[][] parts()
+    {
+        return parts;
+    }
+
+    /**
+     * partOffsets
+     * @return the offset of the data in each array
+     */
+    int[] partOffsets()
+    {
+        return partOffsets;
+    }
+
+    /**
+     * partSizes
+     * @return the number of bytes of data in each array
+     */
+    int[] partSizes()
+    {
+        return partSizes;
+    }
+
+    /**
+     * count
+     * @return the number of arrays
+     */
+    int count()
+    {
+        return count;
+    }
+
+    /**
+     * advance
+     * @param amount
+     */
+    protected void advance( int amount )
+    {
+        offset( consumed + amount );
+    }
+}
@@ -3,9 +3,6 @@
  */
 package com.untangle.jvector;
 
-import java.util.LinkedList;
-import java.util.List;
-
 /**
  * IncomingSocketQueue:
  * This is not actually a queue, it is a way to hand off events(crumbs)
@@ -55,8 +52,8 @@ public class IncomingSocketQueue extends Sink
 
     private String debugString = "";
     
-    // List of listeners
-    private final List<SocketQueueListener> listenerList = new LinkedList<>();
+    // Listeners, this is copied on register (which only happens at setup)
+    private SocketQueueListener[] listeners = new SocketQueueListener[0];
 
     /**
      * IncomingSocketQueue
@@ -129,7 +126,7 @@ public class IncomingSocketQueue extends Sink
 
         this.currentCrumb = crumb;
 
-        for ( SocketQueueListener listener : this.listenerList ) {
+        for ( SocketQueueListener listener : this.listeners ) {
             listener.event( this );
 
             /* If an exception killed the thread, don't finish iterating the list */
@@ -330,7 +327,11 @@ public class IncomingSocketQueue extends Sink
      */
     public boolean registerListener( SocketQueueListener l )
     {
-        return this.listenerList.add( l );
+        SocketQueueListener[] newListeners = new SocketQueueListener[listeners.length + 1];
+        System.arraycopy( listeners, 0, newListeners, 0, listeners.length );
+        newListeners[listeners.length] = l;
+        this.listeners = newListeners;
+        return true;
     }
 
     /**
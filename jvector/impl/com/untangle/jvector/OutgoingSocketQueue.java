@@ -3,23 +3,30 @@
  */
 package com.untangle.jvector;
 
-import java.util.LinkedList;
-import java.util.List;
-
 /**
  * OutgoingSocketQueue
  */
 public class OutgoingSocketQueue extends Source
 {
     /**
-     * List of events to go out
+     * Ring of events to go out
      */
-    private final List<Crumb> eventList = new LinkedList<>();
+    private final CrumbRing eventList = new CrumbRing( 1 );
 
     /**
-     * List of listeners
+     * Listeners, this is copied on register (which only happens at setup)
      */
-    private final List<SocketQueueListener> listenerList = new LinkedList<>();
+    private SocketQueueListener[] listeners = new SocketQueueListener[0];
+
+    /**
+     * Watermark listener, null if watermarks are not used
+     */
+    private SocketQueueWatermarkListener watermarkListener = null;
+    private int lowWatermark = 0;
+    private int highWatermark = 1;
+
+    /* True once the high watermark was hit, until the queue drains to the low watermark */
+    private boolean isAboveWatermark = false;
 
     /**
      * The attachment
@@ -71,7 +78,8 @@ public class OutgoingSocketQueue extends Source
             throw new IllegalStateException( "get_event without any data in the socket queue" );
         }
 
-        Crumb crumb = eventList.remove( 0 );
+        Crumb crumb = eventList.poll();
+        checkWatermarks();
         callListenersRemove();
 
         // if ( Vector.isDebugEnabled()) {
@@ -162,6 +170,7 @@ public class OutgoingSocketQueue extends Source
 
         /* Clear all of the elements in the event list */
         this.eventList.clear();
+        checkWatermarks();
 
         /* Send a reset crumb down the line */
         if ( !isRelaySideClosed ) {
@@ -179,10 +188,11 @@ public class OutgoingSocketQueue extends Source
 
         /* Clear all of the elements in the event list */
         this.eventList.clear();
+        checkWatermarks();
 
         /* Call the shutdown hook */
 
-        for ( SocketQueueListener listener : this.listenerList ) {
+        for ( SocketQueueListener listener : this.listeners ) {
             listener.shutdownEvent( this );
         }
 
@@ -250,6 +260,35 @@ public class OutgoingSocketQueue extends Source
     public void maxEvents( int maxEvents )
     {
         this.maxEvents = maxEvents;
+        this.eventList.ensureCapacity( maxEvents );
+    }
+
+    /**
+     * Set the watermarks, <code>listener</code> is called when the number of
+     * queued events reaches <code>high</code>, and again once it drains back
+     * down to <code>low</code>.
+     * @param low - the low watermark
+     * @param high - the high watermark
+     * @param listener - the listener
+     */
+    public void setWatermarks( int low, int high, SocketQueueWatermarkListener listener )
+    {
+        if ( low < 0 || high <= low ) {
+            throw new IllegalArgumentException( "Invalid watermarks low: " + low + " high: " + high );
+        }
+
+        this.lowWatermark = low;
+        this.highWatermark = high;
+        this.watermarkListener = listener;
+    }
+
+    /**
+     * isAboveWatermark
+     * @return true if the high watermark was hit and the queue hasn't drained to the low watermark
+     */
+    public boolean isAboveWatermark()
+    {
+        return this.isAboveWatermark;
     }
 
     /**
@@ -282,7 +321,7 @@ public class OutgoingSocketQueue extends Source
         case Crumb.TYPE_RESET:
             containsShutdown = true;
             containsReset   = true;
-            eventList.add( 0, crumb );
+            eventList.addFirst( crumb );
             break;
 
         case Crumb.TYPE_SHUTDOWN:
@@ -301,6 +340,8 @@ public class OutgoingSocketQueue extends Source
             mvpollNotifyObservers();
         }
 
+        checkWatermarks();
+
         return true;
     }
 
@@ -311,7 +352,11 @@ public class OutgoingSocketQueue extends Source
      */
     public boolean registerListener( SocketQueueListener l )
     {
-        return this.listenerList.add( l );
+        SocketQueueListener[] newListeners = new SocketQueueListener[listeners.length + 1];
+        System.arraycopy( listeners, 0, newListeners, 0, listeners.length );
+        newListeners[listeners.length] = l;
+        this.listeners = newListeners;
+        return true;
     }
 
     /**
@@ -328,7 +373,7 @@ public class OutgoingSocketQueue extends Source
 
             /* If the event list is empty (shutdown already read), or the next event is
              * shutdown, return a HUP */
-            if ( eventList.isEmpty() || (eventList.get( 0 )).isShutdown()) {
+            if ( eventList.isEmpty() || eventList.peek().isShutdown()) {
                 return Vector.MVPOLLHUP;
             }
 
@@ -369,12 +414,30 @@ public class OutgoingSocketQueue extends Source
 
         /** Only call the listeners if there side is open */
         if ( !isListenersSideClosed ) {
-            for ( SocketQueueListener listener : this.listenerList ) {
+            for ( SocketQueueListener listener : this.listeners ) {
                 listener.event( OutgoingSocketQueue.this );
             }
         }
     }
 
+    /**
+     * Call the watermark listener if the queue crossed a watermark
+     */
+    private void checkWatermarks()
+    {
+        if ( watermarkListener == null ) return;
+
+        int size = eventList.size();
+
+        if ( !isAboveWatermark && size >= highWatermark ) {
+            isAboveWatermark = true;
+            watermarkListener.highWatermark( this );
+        } else if ( isAboveWatermark && size <= lowWatermark ) {
+            isAboveWatermark = false;
+            watermarkListener.lowWatermark( this );
+        }
+    }
+
     /**
      * create
      * @return
@@ -66,6 +66,22 @@ public abstract class PacketCrumb extends DataCrumb
     {
         this( packet, data, data.length );
     }
+
+    /**
+     * PacketCrumb
+     * @param packet
+     * @param data
+     * @param limit
+     * @param pooled - true if data was acquired from the BufferPool
+     */
+    protected PacketCrumb( UDPPacket packet, byte[] data, int limit, boolean pooled )
+    {
+        super( data, limit, pooled );
+
+        this.ttl     = packet.attributes().ttl();
+        this.tos     = packet.attributes().tos();
+        this.options = null;
+    }
     
     /**
      * makeCrumb
@@ -84,6 +100,32 @@ public abstract class PacketCrumb extends DataCrumb
             throw new JVectorException( "Unable to determine which crumb to create from protocol: " + protocol );
         }
     }
+
+    /**
+     * makeCrumb with the data copied into a buffer from the BufferPool
+     * @param packet
+     * @param protocol - protocol of the packet
+     * @throws JVectorException
+     * @return PacketCrumb
+     */
+    static PacketCrumb makePooledCrumb( UDPPacket packet, int protocol ) throws JVectorException
+    {
+        switch ( protocol ) {
+        case Netcap.IPPROTO_UDP:
+            BufferPool pool = BufferPool.getInstance();
+            byte[] data = pool.acquire( packet.dataLength());
+            int size = packet.getData( data );
+
+            if ( size < 0 ) {
+                pool.release( data );
+                throw new JVectorException( "Unable to retrieve the packet data" );
+            }
+
+            return new UDPPacketCrumb( packet, data, size, pool.isPooled( data ));
+        default:
+            throw new JVectorException( "Unable to determine which crumb to create from protocol: " + protocol );
+        }
+    }
     
     /**
      * type
@@ -0,0 +1,23 @@
+/**
+ * $Id$
+ */
+package com.untangle.jvector;
+
+/**
+ * Listener for the fill level of an OutgoingSocketQueue.  This is used to apply
+ * backpressure, eg. stop reading from the other side while the queue is full.
+ */
+public interface SocketQueueWatermarkListener
+{
+    /**
+     * Called when the number of queued crumbs reaches the high watermark
+     * @param out - the outgoing socket queue
+     */
+    public void highWatermark( OutgoingSocketQueue out );
+
+    /**
+     * Called when the number of queued crumbs drains back down to the low watermark
+     * @param out - the outgoing socket queue
+     */
+    public void lowWatermark( OutgoingSocketQueue out );
+}
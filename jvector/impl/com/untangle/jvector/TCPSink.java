@@ -9,6 +9,8 @@ package com.untangle.jvector;
 public class TCPSink extends Sink
 {
     static final int WRITE_RETURN_IGNORE = -3;
+    static final int SPLICE_RETURN_ERROR = -1;
+    static final int SPLICE_RETURN_WOULD_BLOCK = -4;
 
     protected SinkEndpointListener listener = null;
 
@@ -56,6 +58,8 @@ public class TCPSink extends Sink
         case Crumb.TYPE_DATA:
             if ( crumb instanceof FakeDataCrumb ) {
                 return splice( (FakeDataCrumb)crumb );
+            } else if ( crumb instanceof GatherDataCrumb ) {
+                return write( (GatherDataCrumb)crumb );
             } else {
                 return write( (DataCrumb)crumb );
             }
@@ -90,14 +94,35 @@ public class TCPSink extends Sink
 
         int numWritten = splice( this.pointer, src.pointer );
 
-        if ( numWritten == 0 ) {
-            /* XXX not sure what to do here */
+        switch ( numWritten ) {
+        case SPLICE_RETURN_WOULD_BLOCK:
+            /* The socket is full, keep the crumb and wait until it is writable */
+            return Vector.ACTION_NOTHING;
+
+        case WRITE_RETURN_IGNORE:
             return Vector.ACTION_SHUTDOWN;
+
+        case 0:
+            /* Nothing to splice, the source reads the shutdown or the next data */
+            return Vector.ACTION_DEQUEUE;
+
+        default:
+            if ( numWritten < 0 ) {
+                Vector.logError( "TCP: Unable to splice crumb" );
+                return Vector.ACTION_ERROR;
+            }
         }
-        
-        if ( src != null  && src.listener != null ) src.listener.dataEvent( src, numWritten );
+
+        if ( Vector.isDebugEnabled()) {
+            Vector.logDebug( "jvector: " + this + ": spliced " + numWritten + " bytes.");
+        }
+
+        if ( src.listener != null ) src.listener.dataEvent( src, numWritten );
         if ( listener != null ) listener.dataEvent( this, numWritten );
 
+        /* Part of the data is still in the pipe, it is written when the socket is writable */
+        if ( splicePending( this.pointer ) > 0 ) return Vector.ACTION_NOTHING;
+
         return Vector.ACTION_DEQUEUE;
     }
 
@@ -137,6 +162,42 @@ public class TCPSink extends Sink
         return Vector.ACTION_DEQUEUE;
     }
 
+    /**
+     * write all of the arrays of a gather crumb with a single writev
+     * @param crumb
+     * @return
+     */
+    protected int write( GatherDataCrumb crumb )
+    {
+        int numWritten;
+
+        int offset = crumb.offset();
+        int size = crumb.limit() - offset;
+
+        numWritten = writev( pointer, crumb.parts(), crumb.partOffsets(), crumb.partSizes(), crumb.count(), offset );
+
+        if ( Vector.isDebugEnabled()) {
+            Vector.logDebug( "jvector: " + this + ": wrote " + numWritten + " bytes from " + crumb.count() + " arrays." );
+        }
+
+        if ( numWritten < 0 ) {
+            if ( numWritten != WRITE_RETURN_IGNORE ) {
+                Vector.logError( "TCP: Unable to write crumb" );
+            }
+            return Vector.ACTION_SHUTDOWN;
+        }
+
+        /* Notify listeners that data was transmitted */
+        if ( listener != null ) listener.dataEvent( this, numWritten );
+
+        if ( numWritten < size ) {
+            crumb.advance( numWritten );
+            return Vector.ACTION_NOTHING;
+        }
+
+        return Vector.ACTION_DEQUEUE;
+    }
+
     /**
      * raze
      */
@@ -191,6 +252,18 @@ public class TCPSink extends Sink
      */
     protected static native int write( long snk_ptr, byte[] data, int offset, int size );
 
+    /**
+     * writev
+     * @param snk_ptr
+     * @param data - the arrays to write
+     * @param offsets - offset of the data in each array
+     * @param sizes - number of bytes of data in each array
+     * @param count - number of arrays
+     * @param skip - number of bytes at the start of the data that have already been written
+     * @return
+     */
+    protected static native int writev( long snk_ptr, byte[][] data, int[] offsets, int[] sizes, int count, int skip );
+
     /**
      * splice
      * @param snk_ptr
@@ -199,6 +272,13 @@ public class TCPSink extends Sink
      */
     protected static native int splice( long snk_ptr, long src_ptr );
 
+    /**
+     * splicePending
+     * @param snk_ptr
+     * @return the number of spliced bytes not written to the socket yet
+     */
+    protected static native int splicePending( long snk_ptr );
+
     /**
      * close
      * @param snk_ptr
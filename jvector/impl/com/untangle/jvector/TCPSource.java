@@ -10,10 +10,28 @@ public class TCPSource extends Source
 {
     protected SourceEndpointListener listener = null;
     
-    private static final int MAX_READ_SIZE = 8 * 1024;
+    /* Read sizes are powers of two, so a pooled buffer is never larger than the read size */
+    private static final int MIN_READ_SIZE = 1;
+    /* The adaptive read size doesn't shrink below this, unless an app asks for less */
+    private static final int MIN_ADAPTIVE_READ_SIZE = 2 * 1024;
+    private static final int DEFAULT_READ_SIZE = 8 * 1024;
+    private static final int MAX_READ_SIZE = 64 * 1024;
     private static final int READ_RESET = -1;
 
-    private boolean spliceEnabled = false;
+    /* Number of full reads in a row before the read size is doubled */
+    private static final int GROW_AFTER = 2;
+    /* Number of small reads (less than 1/8 of the read size) in a row before it is halved */
+    private static final int SHRINK_AFTER = 8;
+
+    private static final boolean ADAPTIVE_READ = (System.getProperty("uvm.tcp.adaptiveread") != null);
+
+    private volatile boolean spliceEnabled = false;
+
+    /* The current read size and its upper limit, only the read size adapts */
+    private volatile int maxReadSize = DEFAULT_READ_SIZE;
+    private int readSize = DEFAULT_READ_SIZE;
+    private int fullReads = 0;
+    private int smallReads = 0;
 
     /**
      * TCPSource
@@ -44,7 +62,89 @@ public class TCPSource extends Source
     {
         this.listener = listener;
     }
+
+    /**
+     * Enable or disable the splice optimization for this source.
+     * When enabled, data is spliced directly into the socket of a TCPSink
+     * without being copied into the JVM.
+     * @param enabled
+     */
+    public void setSpliceEnabled( boolean enabled )
+    {
+        this.spliceEnabled = enabled;
+    }
+
+    /**
+     * isSpliceEnabled
+     * @return true if the splice optimization is enabled
+     */
+    public boolean isSpliceEnabled()
+    {
+        return this.spliceEnabled;
+    }
     
+    /**
+     * Set the largest amount of data read at once, this is the largest crumb
+     * this source creates.  It is rounded down to a power of two of at most
+     * 64k, so an app that only accepts small chunks gets small reads.  When
+     * uvm.tcp.adaptiveread is set the read size grows up to this limit while
+     * the socket keeps filling the reads, otherwise it only lowers the
+     * default (8k).
+     * @param size
+     */
+    public void setMaxReadSize( int size )
+    {
+        if ( size < MIN_READ_SIZE ) size = MIN_READ_SIZE;
+        if ( size > MAX_READ_SIZE ) size = MAX_READ_SIZE;
+        this.maxReadSize = Integer.highestOneBit( size );
+    }
+
+    /**
+     * getMaxReadSize
+     * @return the largest amount of data read at once
+     */
+    public int getMaxReadSize()
+    {
+        return this.maxReadSize;
+    }
+
+    /**
+     * getReadSize
+     * @return the current read size
+     */
+    public int getReadSize()
+    {
+        return Math.min( this.readSize, this.maxReadSize );
+    }
+
+    /**
+     * Adapt the read size to the last read.  Bulk transfers fill every read,
+     * so the read size is doubled to pass fewer, larger crumbs through the
+     * pipeline.  Interactive sessions only read a few bytes at a time, so the
+     * read size shrinks back down.
+     * @param size - the read size used
+     * @param numRead - the number of bytes read
+     */
+    private void adaptReadSize( int size, int numRead )
+    {
+        if ( numRead >= size ) {
+            smallReads = 0;
+            if ( ++fullReads >= GROW_AFTER ) {
+                fullReads = 0;
+                if ( readSize < maxReadSize ) readSize = Math.min( readSize << 1, maxReadSize );
+            }
+        } else if ( numRead < ( readSize >> 3 )) {
+            fullReads = 0;
+            if ( ++smallReads >= SHRINK_AFTER ) {
+                smallReads = 0;
+                if ( readSize > MIN_ADAPTIVE_READ_SIZE ) readSize = readSize >> 1;
+            }
+        } else {
+            fullReads = 0;
+            smallReads = 0;
+        }
+    }
+
     /**
      * get_event
      * @param sink
@@ -72,17 +172,21 @@ public class TCPSource extends Source
             }
         }
 
-        int readSize;
-        if ( bytes_available > 0 && bytes_available < MAX_READ_SIZE )
-            readSize = bytes_available + 1;
-        else
-            readSize = MAX_READ_SIZE;
+        int maxSize = getReadSize();
+        int size = maxSize;
+        if ( bytes_available > 0 && bytes_available < size )
+            size = bytes_available + 1;
         
-        byte[] data = new byte[ readSize ];
+        /* The pool rounds the size up, reads smaller than its buffers get a buffer of their own */
+        BufferPool pool = BufferPool.getInstance();
+        byte[] data = ( maxSize < BufferPool.MIN_BUFFER_SIZE ) ? new byte[size] : pool.acquire( size );
         ret = read( pointer, data );
+
+        if ( ADAPTIVE_READ && ret > 0 ) adaptReadSize( size, ret );
         
         switch( ret ) {
         case READ_RESET:
+            pool.release( data );
             crumb = ResetCrumb.getInstance();
             if ( Vector.isDebugEnabled()) {
                 Vector.logDebug( "jvector: " + this + ": read reset.");
@@ -90,6 +194,7 @@ public class TCPSource extends Source
             break;
             
         case 0:
+            pool.release( data );
             crumb = ShutdownCrumb.getInstance();
             if ( Vector.isDebugEnabled()) {
                 Vector.logDebug( "jvector: " + this + ": read shutdown.");
@@ -99,7 +204,7 @@ public class TCPSource extends Source
         default:
             /* Notify listeners that data was received */
             if ( listener != null ) listener.dataEvent( this, ret );
-            crumb = new DataCrumb( data, ret );
+            crumb = new DataCrumb( data, ret, pool.isPooled( data ));
             if ( Vector.isDebugEnabled()) {
                 Vector.logDebug( "jvector: " + this + ": read " + ret + " bytes.");
             }
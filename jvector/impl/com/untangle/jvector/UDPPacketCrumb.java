@@ -61,6 +61,19 @@ public class UDPPacketCrumb extends PacketCrumb
         super( packet, data );
     }
 
+    /**
+     * Create a new UDP Packet Crumb.
+     *
+     * @param packet  - Packet to base this crumb on.
+     * @param data    - Byte array containing the data.
+     * @param limit   - Limit of the data.
+     * @param pooled  - true if data was acquired from the BufferPool
+     */
+    protected UDPPacketCrumb( UDPPacket packet, byte[] data, int limit, boolean pooled )
+    {
+        super( packet, data, limit, pooled );
+    }
+
     /**
      * type - gets the type of crumb
      * @return
@@ -75,6 +88,7 @@ public class UDPPacketCrumb extends PacketCrumb
      */
     public void raze()
     {
-        /* Do nothing, C structure is freed automatically */
+        /* C structure is freed automatically, only the pooled buffer has to be returned */
+        super.raze();
     }
 }
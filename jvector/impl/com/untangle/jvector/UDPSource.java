@@ -18,8 +18,16 @@ public class UDPSource extends Source
     
     protected static final int READ_TIMEOUT = 10;
 
+    /* Maximum number of packets taken from the mailbox with each read */
+    protected static final int BATCH_SIZE = 32;
+
     protected final UDPPacketMailbox mailbox;
 
+    /* Packets from the last batch read, batchIndex is the next packet to use */
+    private final UDPPacket[] batch = new UDPPacket[BATCH_SIZE];
+    private int batchIndex = 0;
+    private int batchCount = 0;
+
     /**
      * UDPSource
      * @param mailbox
@@ -60,20 +68,36 @@ public class UDPSource extends Source
         PacketCrumb crumb;
         UDPPacket packet;
 
-        try {
-            packet = mailbox.read( READ_TIMEOUT );
-        } catch ( EmptyStackException e ) {
-            return ShutdownCrumb.getInstance();
-        }
-        
-        if ( packet.attributes().pointer() == 0 ) {
-            Vector.logError( "No packet to receive from the mailbox" );
-            /* Return a shutdown crumb */
-            return ShutdownCrumb.getInstance();
+        /**
+         * Packets are taken from the mailbox in batches, the vector still gets one
+         * crumb per event.  The mailbox stays readable while the rest of the batch
+         * is waiting here.
+         */
+        if ( batchIndex == batchCount ) {
+            batchIndex = 0;
+
+            try {
+                batchCount = mailbox.read( batch, READ_TIMEOUT );
+            } catch ( EmptyStackException e ) {
+                batchCount = 0;
+                return ShutdownCrumb.getInstance();
+            }
+
+            if ( batchCount == 0 ) {
+                Vector.logError( "No packet to receive from the mailbox" );
+                /* Return a shutdown crumb */
+                return ShutdownCrumb.getInstance();
+            }
         }
-        
+
+        packet = batch[batchIndex];
+        batch[batchIndex++] = null;
+
+        /* That was the last packet from a batch, the mailbox is only readable if it has more packets */
+        if ( batchIndex == batchCount && batchCount > 1 ) mailbox.pending( false );
+
         try {
-            crumb = PacketCrumb.makeCrumb( packet );
+            crumb = PacketCrumb.makePooledCrumb( packet, Netcap.IPPROTO_UDP );
 
             /* Notify listeners that data was received*/
             if ( listener != null ) listener.dataEvent( this, crumb.limit());
@@ -96,6 +120,12 @@ public class UDPSource extends Source
         /* Notify the listeners that source is shutting down */
         if ( listener != null ) listener.shutdownEvent( this );
 
+        /* Drop the packets that haven't been used yet */
+        while ( batchIndex < batchCount ) {
+            batch[batchIndex].raze();
+            batch[batchIndex++] = null;
+        }
+
         return shutdown( pointer, mailbox.pointer());
     }
 
@@ -7,6 +7,8 @@ import org.apache.log4j.Logger;
 
 import java.util.ListIterator;
 import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Vector is a instance of a vector machine
@@ -26,6 +28,14 @@ public class Vector
 
     /* For telling the vectoring machine to shutdown */
     private static final int MSG_SHUTDOWN = 1;
+
+    /* For waking up the vectoring machine to run the queued tasks */
+    private static final int MSG_WAKEUP = 3;
+
+    /* These are the C return codes for vector_poll */
+    public static final int POLL_DONE     = 0;
+    public static final int POLL_CONTINUE = 1;
+    public static final int POLL_IDLE     = 2;
     
     /* Poll flags */
     protected final static int MVPOLLIN  = 0x001;
@@ -37,6 +47,11 @@ public class Vector
 
     private long vec_ptr = 0;
     private long list_ptr;
+    private int timeout = -1;
+
+    /* Tasks to run on the vectoring thread, and true while a wakeup message is in the pipe */
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean( false );
     
     /**
      * vector_create
@@ -82,6 +97,13 @@ public class Vector
      */
     private static native int   vector_send_msg ( long vecptr, int msg, long arg );
 
+    /**
+     * vector_wakeup_init
+     * @param vecptr
+     * @return
+     */
+    private native int   vector_wakeup_init ( long vecptr );
+
     /**
      * vector_set_timeout
      * @param vecptr
@@ -96,6 +118,35 @@ public class Vector
      */
     private static native int   vector ( long vecptr );
 
+    /**
+     * vector_start
+     * @param vecptr
+     * @return
+     */
+    private static native int   vector_start ( long vecptr );
+
+    /**
+     * vector_poll
+     * @param vecptr
+     * @param timeout
+     * @return
+     */
+    private static native int   vector_poll ( long vecptr, int timeout );
+
+    /**
+     * vector_stop
+     * @param vecptr
+     * @return
+     */
+    private static native int   vector_stop ( long vecptr );
+
+    /**
+     * vector_fd
+     * @param vecptr
+     * @return
+     */
+    private static native int   vector_fd ( long vecptr );
+
     /**
      * list_create
      * @param flags
@@ -166,6 +217,9 @@ public class Vector
         }
 
         vec_ptr = vector_create(list_ptr);
+
+        /* Without the wakeup hook tasks are never run, but the vector still works */
+        if ( vector_wakeup_init( vec_ptr ) < 0 ) logError( "vector_wakeup_init: failed" );
     }
 
     /**
@@ -177,6 +231,45 @@ public class Vector
         return vector(vec_ptr);
     }
 
+    /**
+     * start - setup the vectoring machine without running it.
+     * The owner must then call poll() whenever fd() is readable, and
+     * stop() if the vector must be ended before poll() returns POLL_DONE.
+     * @return 0 if success
+     */
+    public int start()
+    {
+        return vector_start(vec_ptr);
+    }
+
+    /**
+     * poll - handle all of the events that are ready without blocking
+     * @return POLL_DONE, POLL_CONTINUE or POLL_IDLE
+     */
+    public int poll()
+    {
+        return vector_poll(vec_ptr, 0);
+    }
+
+    /**
+     * stop - shutdown a started vector, this is a noop once poll() returned POLL_DONE
+     * @return 0 if success
+     */
+    public int stop()
+    {
+        return vector_stop(vec_ptr);
+    }
+
+    /**
+     * fd - the file descriptor that is readable whenever the vector has events.
+     * This is only valid between start() and POLL_DONE/stop().
+     * @return the file descriptor
+     */
+    public int fd()
+    {
+        return vector_fd(vec_ptr);
+    }
+
     /**
      * print the vector description to stdout
      * used for debugging
@@ -214,9 +307,19 @@ public class Vector
      */
     public synchronized void timeout(int msec)
     {
+        this.timeout = msec;
         vector_set_timeout(vec_ptr, msec);
     }
 
+    /**
+     * Get the vector timeout in msec
+     * @return the timeout, -1 if the vector never times out
+     */
+    public int getTimeout()
+    {
+        return this.timeout;
+    }
+
     /**
      * raze all vector resources
      */
@@ -251,6 +354,57 @@ public class Vector
         vector_send_msg( vec_ptr, MSG_SHUTDOWN, 0L );
     }
 
+    /**
+     * execute - run a task on the vectoring thread.
+     * The task is run between the events of the vector, so it is never run
+     * concurrently with the sinks and sources of this vector. Tasks are
+     * dropped if the vector finishes before they run.
+     * @param task
+     * @return false if the vector is already razed
+     */
+    public boolean execute( Runnable task )
+    {
+        tasks.add( task );
+
+        /* Only one wakeup message is needed for any number of tasks */
+        if ( !wakeupPending.compareAndSet( false, true )) return true;
+
+        synchronized ( this ) {
+            if ( vec_ptr == 0 ) {
+                /* Razed, later tasks come back here and are rejected too */
+                tasks.clear();
+                wakeupPending.set( false );
+                return false;
+            }
+
+            if ( vector_send_msg( vec_ptr, MSG_WAKEUP, 0L ) < 0 ) {
+                logWarn( "Unable to wakeup vector: " + this );
+                wakeupPending.set( false );
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * wakeup_event - called by the vectoring thread for each wakeup message
+     */
+    private void wakeup_event()
+    {
+        /* Clear the flag first so a task queued while these run sends a new wakeup */
+        wakeupPending.set( false );
+
+        Runnable task;
+        while (( task = tasks.poll()) != null ) {
+            try {
+                task.run();
+            } catch ( Exception e ) {
+                logger.error( "Exception in vector task", e );
+            }
+        }
+    }
+
     /**
      * This doesn't do anything, but it will automatically call the static method 
      * once the first time Vector is initialized
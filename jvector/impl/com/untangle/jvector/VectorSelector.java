@@ -0,0 +1,150 @@
+/**
+ * $Id$
+ */
+package com.untangle.jvector;
+
+/**
+ * VectorSelector waits on the file descriptors of many started vectors.
+ * Each vector is registered with a token (usually the session id) which is
+ * returned by select() when the vector has events ready.
+ *
+ * Only one thread may call select(), the other methods can be called from
+ * any thread.
+ */
+public class VectorSelector
+{
+    private long pointer;
+
+    /**
+     * selector_create
+     * @return
+     */
+    private static native long selector_create();
+
+    /**
+     * selector_add
+     * @param pointer
+     * @param fd
+     * @param token
+     * @param oneshot
+     * @return
+     */
+    private static native int  selector_add( long pointer, int fd, long token, boolean oneshot );
+
+    /**
+     * selector_rearm
+     * @param pointer
+     * @param fd
+     * @param token
+     * @return
+     */
+    private static native int  selector_rearm( long pointer, int fd, long token );
+
+    /**
+     * selector_remove
+     * @param pointer
+     * @param fd
+     * @return
+     */
+    private static native int  selector_remove( long pointer, int fd );
+
+    /**
+     * selector_wait
+     * @param pointer
+     * @param tokens
+     * @param timeout
+     * @return
+     */
+    private static native int  selector_wait( long pointer, long[] tokens, int timeout );
+
+    /**
+     * selector_wakeup
+     * @param pointer
+     * @return
+     */
+    private static native int  selector_wakeup( long pointer );
+
+    /**
+     * selector_raze
+     * @param pointer
+     */
+    private static native void selector_raze( long pointer );
+
+    /**
+     * VectorSelector
+     */
+    public VectorSelector()
+    {
+        Vector.load();
+        this.pointer = selector_create();
+    }
+
+    /**
+     * Start watching a vector, the vector must already be started.
+     * @param vector - the vector
+     * @param token - the value returned by select when the vector is ready
+     */
+    public void register( Vector vector, long token )
+    {
+        selector_add( pointer, vector.fd(), token, false );
+    }
+
+    /**
+     * Start watching a vector, after the vector is returned by select once it
+     * is not returned again until it is rearmed.
+     * @param vector - the vector
+     * @param token - the value returned by select when the vector is ready
+     */
+    public void registerOneShot( Vector vector, long token )
+    {
+        selector_add( pointer, vector.fd(), token, true );
+    }
+
+    /**
+     * Rearm a vector registered with registerOneShot
+     * @param vector - the vector
+     * @param token - the value returned by select when the vector is ready
+     */
+    public void rearm( Vector vector, long token )
+    {
+        selector_rearm( pointer, vector.fd(), token );
+    }
+
+    /**
+     * Stop watching a vector.  This must be called before stopping a vector
+     * early, it isn't necessary once the vector is done.
+     * @param vector - the vector
+     */
+    public void unregister( Vector vector )
+    {
+        selector_remove( pointer, vector.fd() );
+    }
+
+    /**
+     * Wait for vectors to become ready.
+     * @param tokens - array to store the tokens of the ready vectors
+     * @param timeout - time to wait in msec, -1 to wait forever
+     * @return the number of tokens stored in <code>tokens</code>
+     */
+    public int select( long[] tokens, int timeout )
+    {
+        return selector_wait( pointer, tokens, timeout );
+    }
+
+    /**
+     * Wakeup the thread blocked in select
+     */
+    public void wakeup()
+    {
+        selector_wakeup( pointer );
+    }
+
+    /**
+     * raze all selector resources
+     */
+    public synchronized void raze()
+    {
+        if ( pointer != 0 ) selector_raze( pointer );
+        pointer = 0;
+    }
+}
@@ -14,6 +14,7 @@ headerClasses = [ 'com.untangle.jvector.OutgoingSocketQueue',
   'com.untangle.jvector.IncomingSocketQueue',
   'com.untangle.jvector.Relay',
   'com.untangle.jvector.Vector',
+  'com.untangle.jvector.VectorSelector',
   'com.untangle.jvector.Sink',
   'com.untangle.jvector.Source',
   'com.untangle.jvector.TCPSink',
@@ -5,6 +5,9 @@
 #include <stdlib.h>
 #include <stdio.h>
 #include <sys/socket.h>
+#include <sys/uio.h>
+#include <errno.h>
+#include <string.h>
 #include <fcntl.h>
 #include <unistd.h>
 #include <libmvutil.h>
@@ -25,7 +28,11 @@
 
 #include "com_untangle_jvector_TCPSink.h"
 
+/* Maximum number of arrays in a single writev, must match GatherDataCrumb.MAX_PARTS */
+#define _WRITEV_MAX_PARTS 64
+
 static int _sink_get_fd( jlong pointer );
+static int _sink_write_error( int fd, int err );
 
 /*
  * Class:     TCPSink
@@ -125,6 +132,81 @@ JNIEXPORT jint JNICALL Java_com_untangle_jvector_TCPSink_write
     return number_bytes;
 }
 
+JNIEXPORT jint JNICALL Java_com_untangle_jvector_TCPSink_writev
+( JNIEnv *env, jclass _class, jlong pointer, jobjectArray _data, jintArray _offsets, jintArray _sizes, 
+  jint count, jint skip )
+{
+    jbyteArray arrays[_WRITEV_MAX_PARTS];
+    jbyte* data[_WRITEV_MAX_PARTS];
+    jint offsets[_WRITEV_MAX_PARTS];
+    jint sizes[_WRITEV_MAX_PARTS];
+    struct iovec iov[_WRITEV_MAX_PARTS];
+    int iovcnt = 0;
+    int number_bytes = -1;
+    int err = 0;
+    int fd;
+    int c;
+
+    if (( fd = _sink_get_fd( pointer )) < 0 ) return errlog( ERR_CRITICAL, "_sink_get_fd\n" );
+
+    if ( count <= 0 || count > _WRITEV_MAX_PARTS ) {
+        return jmvutil_error( JMVUTIL_ERROR_ARGS, ERR_CRITICAL, "Requested writev of %d arrays\n", count );
+    }
+
+    (*env)->GetIntArrayRegion( env, _offsets, 0, count, offsets );
+    (*env)->GetIntArrayRegion( env, _sizes, 0, count, sizes );
+    if ( (*env)->ExceptionCheck( env )) return errlog( ERR_CRITICAL, "GetIntArrayRegion\n" );
+
+    if ( (*env)->EnsureLocalCapacity( env, count ) < 0 ) return errlogmalloc();
+
+    /* Get all of the arrays first, no other JNI calls are allowed once they are pinned */
+    for ( c = 0 ; c < count ; c++ ) {
+        if (( arrays[c] = (*env)->GetObjectArrayElement( env, _data, c )) == NULL ) {
+            return jmvutil_error( JMVUTIL_ERROR_ARGS, ERR_CRITICAL, "NULL array %d\n", c );
+        }
+
+        if (( offsets[c] + sizes[c] ) > (*env)->GetArrayLength( env, arrays[c] )) {
+            return jmvutil_error( JMVUTIL_ERROR_ARGS, ERR_CRITICAL, 
+                                  "Requested %d write with a buffer of size %d\n", offsets[c] + sizes[c],
+                                  (*env)->GetArrayLength( env, arrays[c] ));
+        }
+    }
+
+    /* Pin the arrays, skipping the data that has already been written */
+    for ( c = 0 ; c < count ; c++ ) {
+        data[c] = NULL;
+
+        if ( skip >= sizes[c] ) {
+            skip -= sizes[c];
+            continue;
+        }
+
+        if (( data[c] = (*env)->GetPrimitiveArrayCritical( env, arrays[c], NULL )) == NULL ) {
+            err = ENOMEM;
+            break;
+        }
+
+        iov[iovcnt].iov_base = (char*)&data[c][offsets[c] + skip];
+        iov[iovcnt].iov_len  = sizes[c] - skip;
+        iovcnt++;
+        skip = 0;
+    }
+
+    if ( err == 0 ) {
+        if (( number_bytes = writev( fd, iov, iovcnt )) < 0 ) err = errno;
+    }
+
+    for ( c-- ; c >= 0 ; c-- ) {
+        if ( data[c] != NULL ) (*env)->ReleasePrimitiveArrayCritical( env, arrays[c], data[c], JNI_ABORT );
+    }
+
+    if ( err == ENOMEM && number_bytes < 0 ) return errlogmalloc();
+
+    if ( number_bytes < 0 ) number_bytes = _sink_write_error( fd, err );
+
+    return number_bytes;
+}
+
 JNIEXPORT jint JNICALL Java_com_untangle_jvector_TCPSink_splice
 ( JNIEnv *env, jobject _this, jlong snk_ptr, jlong src_ptr )
 {
@@ -134,98 +216,100 @@ JNIEXPORT jint JNICALL Java_com_untangle_jvector_TCPSink_splice
     int snk_fd = snk->key->data.fd;
     int src_fd = src->key->data.fd;
     int result;
+    int num_written = 0;
 
     int pipe_flags = O_NONBLOCK;
-    int splice_flags = SPLICE_F_NONBLOCK;
-    int max_write = 8192;
+    int splice_flags = SPLICE_F_NONBLOCK | SPLICE_F_MOVE;
+    int max_write = 65536;
     
     /**
-     * Splice warning.
-     * Splice is experimental. It seems to cause "weird" issues.
-     * Inconsistent performance, indefinitely blocking, etc.
-     *
-     * There are several variable in how it performs:
-     * 1) Is the pipe non-blocking?
-     * 2) Is the destination socket non-blocking?
-     * 3) The size of the write (max_write)
+     * Both sockets and the pipe stay non-blocking, this runs on the vector
+     * thread (or a shared event loop worker) and must never wait.  The bytes
+     * read into the pipe that the sink socket doesn't take stay there
+     * (pipe_bytes) and are written first on the next call, once the vector
+     * polls the sink writable again.
      */
-    // errlog( ERR_CRITICAL, "splice() usage is dangerous.\n" );
-    
     if ( snk->pipefd[0] == 0 ) {
         result = pipe2( snk->pipefd, pipe_flags );
         if ( result < 0 ) {
             perrlog("pipe");
-            if ( snk->pipefd[0] > 0 ) {
-                if ( close( snk->pipefd[0] ) < 0 )
-                    perrlog("close");
-            }
-            if ( snk->pipefd[1] > 0 ) {
-                if ( close( snk->pipefd[1] ) < 0 )
-                    perrlog("close");
-            }
-            return -1;
+            snk->pipefd[0] = 0;
+            snk->pipefd[1] = 0;
+            return com_untangle_jvector_TCPSink_SPLICE_RETURN_ERROR;
         }
+        snk->pipe_bytes = 0;
     }
 
     /**
-     * write to the pipe
+     * read from the source into the pipe, unless the pipe still holds data
      */
-    int num_bytes = splice( src_fd, NULL, snk->pipefd[1], NULL, max_write, splice_flags );
-
-    if ( num_bytes < 0 ) {
-        if ( errno == EAGAIN ) {
-            errlog(ERR_WARNING,"TCPSink: splice(tcp: %i, pipe: %i): %s\n", src_fd, snk->pipefd[1], strerror(errno));
-            usleep(1000000);
-            return 0;
-        } else {
-            return errlog(ERR_WARNING,"TCPSink: splice(tcp: %i, pipe: %i): %s\n", src_fd, snk->pipefd[1], strerror(errno));
+    if ( snk->pipe_bytes == 0 ) {
+        result = splice( src_fd, NULL, snk->pipefd[1], NULL, max_write, splice_flags );
+
+        if ( result < 0 ) {
+            switch ( errno ) {
+            case EAGAIN:
+                /* Nothing to read after all, the source polls again */
+                return 0;
+            case ECONNRESET:
+                debug( 5, "TCPSink: fd %d reset\n", src_fd );
+                return com_untangle_jvector_TCPSink_WRITE_RETURN_IGNORE;
+            default:
+                errlog( ERR_WARNING, "TCPSink: splice(tcp: %i, pipe: %i): %s\n", src_fd, snk->pipefd[1], strerror(errno) );
+                return com_untangle_jvector_TCPSink_SPLICE_RETURN_ERROR;
+            }
         }
-    }
-    if ( num_bytes == 0 ) {
-        return errlog( ERR_CRITICAL, "socket closed on splice.\n" );
-    }
 
-    int bytes_remaining = num_bytes;
+        /* 0 is the end of the stream, the next read of the source returns the shutdown */
+        if ( result == 0 ) return 0;
 
-    // temporarily set the socket to blocking
-    unet_blocking_enable( snk_fd );
+        snk->pipe_bytes = result;
+    }
 
-    while ( bytes_remaining > 0 ) {
-        result = splice( snk->pipefd[0], NULL, snk_fd, NULL, bytes_remaining, splice_flags );
+    /**
+     * write the pipe to the sink
+     */
+    while ( snk->pipe_bytes > 0 ) {
+        result = splice( snk->pipefd[0], NULL, snk_fd, NULL, snk->pipe_bytes, splice_flags );
 
         if ( result < 0 ) {
             switch ( errno ) {
             case EAGAIN:
-                errlog(ERR_WARNING,"TCPSink: splice(pipe: %i, tcp: %i, remaining: %i): %s\n", snk->pipefd[0], snk_fd, bytes_remaining, strerror(errno));
-                usleep(1000000);
-                continue;
+                debug( 5, "TCPSink: fd %d full, %i bytes left in the pipe\n", snk_fd, snk->pipe_bytes );
+                if ( num_written > 0 ) return num_written;
+                return com_untangle_jvector_TCPSink_SPLICE_RETURN_WOULD_BLOCK;
             case ECONNRESET:
-                //errlog( ERR_WARNING, "TCPSink: fd %d reset\n", snk_fd );
                 debug( 5, "TCPSink: fd %d reset\n", snk_fd );
-                bytes_remaining = 0;
-                num_bytes = -1;
-                break;
+                return com_untangle_jvector_TCPSink_WRITE_RETURN_IGNORE;
             case EPIPE:
-                //errlog( ERR_WARNING, "TCPSink: Broken pipe fd %d, resetting\n", snk_fd );
                 debug( 5, "TCPSink: Broken pipe fd %d, resetting\n", snk_fd );
-                bytes_remaining = 0;
-                num_bytes = -1;
-                break;
+                return com_untangle_jvector_TCPSink_WRITE_RETURN_IGNORE;
             default:
-                errlog(ERR_WARNING,"TCPSink: splice(pipe: %i, tcp: %i, remaining: %i): %s\n", snk->pipefd[0], snk_fd, bytes_remaining, strerror(errno));
-                bytes_remaining = 0;
-                num_bytes = -1;
-                break;
+                errlog( ERR_WARNING, "TCPSink: splice(pipe: %i, tcp: %i, remaining: %i): %s\n", snk->pipefd[0], snk_fd, snk->pipe_bytes, strerror(errno) );
+                return com_untangle_jvector_TCPSink_SPLICE_RETURN_ERROR;
             }
-        } else {
-            bytes_remaining -= result;
         }
+
+        snk->pipe_bytes -= result;
+        num_written += result;
     }
 
-    // set socket back to non-blocking
-    unet_blocking_disable( snk_fd );
-    
-    return num_bytes;
+    return num_written;
+}
+
+/*
+ * Class:     TCPSink
+ * Method:    splicePending
+ * Signature: (J)I
+ */
+JNIEXPORT jint JNICALL Java_com_untangle_jvector_TCPSink_splicePending
+( JNIEnv *env, jclass _this, jlong snk_ptr )
+{
+    jvector_sink_t* snk = (jvector_sink_t*)(uintptr_t)snk_ptr;
+
+    if ( snk == NULL ) return 0;
+
+    return snk->pipe_bytes;
 }
 
 /*
@@ -252,6 +336,7 @@ JNIEXPORT jint JNICALL Java_com_untangle_jvector_TCPSink_close
             perrlog("close");
         snk->pipefd[1] = 0;
     }
+    snk->pipe_bytes = 0;
 
     
     return 0;
@@ -323,3 +408,29 @@ static int _sink_get_fd( jlong pointer )
     
     return ((jvector_sink_t*)(uintptr_t)pointer)->key->data.fd;
 }
+
+static int _sink_write_error( int fd, int err )
+{
+    switch ( err ) {
+    case ECONNRESET:
+        /* Received a reset, let the caller know */
+        debug( 5, "TCPSink: fd %d reset\n", fd );
+        return com_untangle_jvector_TCPSink_WRITE_RETURN_IGNORE;
+
+    case EPIPE:
+        /* The corresponding source already read the reset (see write) */
+        debug( 5, "TCPSink: Broken pipe fd %d, resetting\n", fd );
+        return com_untangle_jvector_TCPSink_WRITE_RETURN_IGNORE;
+
+    case EAGAIN:
+        /* Unable to write at this time, would have blocked  */
+        debug( 5, "TCPSink: fd %d polled when unable to write data\n", fd );
+        errlog( ERR_WARNING, "TCPSink: fd %d polled when unable to write data\n", fd );
+        return 0;
+
+    default:
+        jmvutil_error( JMVUTIL_ERROR_STT, ERR_CRITICAL, "TCPSink: writev: %s\n", strerror( err ));
+        /* Doesn't matter, it will throw an error */
+        return -2;
+    }
+}
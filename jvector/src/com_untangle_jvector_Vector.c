@@ -3,6 +3,7 @@
  */
 #include <mvutil/errlog.h>
 #include <mvutil/debug.h>
+#include <jmvutil.h>
 
 #include <vector/vector.h>
 #include <vector/sink.h>
@@ -36,6 +37,50 @@
 #error MSG_SHUTDOWN
 #endif
 
+#if com_untangle_jvector_Vector_MSG_WAKEUP != _VECTOR_MSG_WAKEUP
+#error MSG_WAKEUP
+#endif
+
+#if com_untangle_jvector_Vector_POLL_DONE != VECTOR_POLL_DONE
+#error POLL_DONE
+#endif
+
+#if com_untangle_jvector_Vector_POLL_CONTINUE != VECTOR_POLL_CONTINUE
+#error POLL_CONTINUE
+#endif
+
+#if com_untangle_jvector_Vector_POLL_IDLE != VECTOR_POLL_IDLE
+#error POLL_IDLE
+#endif
+
+#define J_VECTOR_WAKEUP_EVENT     "wakeup_event"
+#define J_VECTOR_WAKEUP_EVENT_SIG "()V"
+
+static jmethodID _wakeup_event_mid = NULL;
+
+/**
+ * Called on the vectoring thread for each wakeup message, this runs the
+ * tasks queued on the java vector.
+ */
+static void _wakeup_hook ( vector_t* vec, void* arg )
+{
+    JNIEnv* env;
+
+    if ( arg == NULL || _wakeup_event_mid == NULL ) {
+        errlogargs();
+        return;
+    }
+
+    if (( env = jmvutil_get_java_env()) == NULL ) {
+        errlog( ERR_CRITICAL, "jmvutil_get_java_env\n" );
+        return;
+    }
+
+    (*env)->CallVoidMethod( env, (jobject)arg, _wakeup_event_mid );
+
+    if ( jmvutil_error_exception_clear() < 0 ) errlog( ERR_CRITICAL, "Exception calling wakeup_event\n" );
+}
+
 
 /*
  * Class:     Vector
@@ -69,7 +114,45 @@ JNIEXPORT jlong JNICALL Java_com_untangle_jvector_Vector_vector_1create
 JNIEXPORT jint JNICALL Java_com_untangle_jvector_Vector_vector_1raze
     (JNIEnv* env, jobject _this, jlong vec_ptr)
 {
-    return (uintptr_t)vector_raze((vector_t*)(uintptr_t)vec_ptr);
+    vector_t* vec = (vector_t*)(uintptr_t)vec_ptr;
+
+    if ( vec != NULL && vec->wakeup_hook_arg != NULL ) {
+        vec->wakeup_hook = NULL;
+        (*env)->DeleteGlobalRef( env, (jobject)vec->wakeup_hook_arg );
+        vec->wakeup_hook_arg = NULL;
+    }
+
+    return (uintptr_t)vector_raze(vec);
+}
+
+/*
+ * Class:     Vector
+ * Method:    vector_wakeup_init
+ * Signature: (J)I
+ */
+JNIEXPORT jint JNICALL Java_com_untangle_jvector_Vector_vector_1wakeup_1init
+    (JNIEnv* env, jobject _this, jlong vec_ptr)
+{
+    vector_t* vec = (vector_t*)(uintptr_t)vec_ptr;
+    jclass class;
+
+    if ( vec == NULL ) return errlogargs();
+
+    if ( _wakeup_event_mid == NULL ) {
+        if (( class = (*env)->GetObjectClass( env, _this )) == NULL ) return errlog( ERR_CRITICAL, "GetObjectClass\n" );
+
+        if (( _wakeup_event_mid = (*env)->GetMethodID( env, class, J_VECTOR_WAKEUP_EVENT, J_VECTOR_WAKEUP_EVENT_SIG )) == NULL ) {
+            return errlog( ERR_CRITICAL, "Unable to locate method id\n" );
+        }
+    }
+
+    if (( vec->wakeup_hook_arg = (void*)(*env)->NewGlobalRef( env, _this )) == NULL ) {
+        return errlog( ERR_CRITICAL, "NewGlobalRef\n" );
+    }
+
+    vec->wakeup_hook = _wakeup_hook;
+
+    return 0;
 }
 
 /*
@@ -138,6 +221,50 @@ JNIEXPORT jint JNICALL Java_com_untangle_jvector_Vector_vector
     return (jint)vector((vector_t*)(uintptr_t)vec_ptr);
 }
 
+/*
+ * Class:     Vector
+ * Method:    vector_start
+ * Signature: (J)I
+ */
+JNIEXPORT jint JNICALL Java_com_untangle_jvector_Vector_vector_1start
+    ( JNIEnv* env, jobject _this, jlong vec_ptr )
+{
+    return (jint)vector_start((vector_t*)(uintptr_t)vec_ptr);
+}
+
+/*
+ * Class:     Vector
+ * Method:    vector_poll
+ * Signature: (JI)I
+ */
+JNIEXPORT jint JNICALL Java_com_untangle_jvector_Vector_vector_1poll
+    ( JNIEnv* env, jobject _this, jlong vec_ptr, jint timeout )
+{
+    return (jint)vector_poll((vector_t*)(uintptr_t)vec_ptr,(int)timeout);
+}
+
+/*
+ * Class:     Vector
+ * Method:    vector_stop
+ * Signature: (J)I
+ */
+JNIEXPORT jint JNICALL Java_com_untangle_jvector_Vector_vector_1stop
+    ( JNIEnv* env, jobject _this, jlong vec_ptr )
+{
+    return (jint)vector_stop((vector_t*)(uintptr_t)vec_ptr);
+}
+
+/*
+ * Class:     Vector
+ * Method:    vector_fd
+ * Signature: (J)I
+ */
+JNIEXPORT jint JNICALL Java_com_untangle_jvector_Vector_vector_1fd
+    ( JNIEnv* env, jobject _this, jlong vec_ptr )
+{
+    return (jint)vector_fd((vector_t*)(uintptr_t)vec_ptr);
+}
+
 /*
  * Class:     Vector
  * Method:    list_create
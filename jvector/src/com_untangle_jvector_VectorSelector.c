@@ -0,0 +1,215 @@
+/**
+ * $Id$
+ */
+#include <jni.h>
+#include <stdlib.h>
+#include <string.h>
+#include <errno.h>
+#include <unistd.h>
+#include <inttypes.h>
+#include <sys/epoll.h>
+#include <sys/eventfd.h>
+#include <mvutil/errlog.h>
+#include <mvutil/debug.h>
+#include <jmvutil.h>
+
+#include "jvector.h"
+
+#include "com_untangle_jvector_VectorSelector.h"
+
+#define _MAX_EVENTS 256
+
+/* Token used for the wakeup eventfd, tokens for vectors are session ids */
+#define _WAKEUP_TOKEN ((uint64_t)-1)
+
+typedef struct
+{
+    int epfd;
+    int wake_fd;
+} _selector_t;
+
+static int _selector_ctl( JNIEnv* env, _selector_t* selector, int op, int fd, jlong token, jboolean oneshot );
+
+/*
+ * Class:     VectorSelector
+ * Method:    selector_create
+ * Signature: ()J
+ */
+JNIEXPORT jlong JNICALL Java_com_untangle_jvector_VectorSelector_selector_1create
+  ( JNIEnv* env, jclass _class )
+{
+    _selector_t* selector;
+    struct epoll_event ev;
+
+    if (( selector = calloc( 1, sizeof( _selector_t ))) == NULL ) {
+        return (uintptr_t)jmvutil_error_null( JMVUTIL_ERROR_STT, ERR_CRITICAL, "calloc\n" );
+    }
+
+    if (( selector->epfd = epoll_create1( EPOLL_CLOEXEC )) < 0 ) {
+        free( selector );
+        return (uintptr_t)jmvutil_error_null( JMVUTIL_ERROR_STT, ERR_CRITICAL, "epoll_create1: %s\n", strerror( errno ));
+    }
+
+    if (( selector->wake_fd = eventfd( 0, EFD_NONBLOCK | EFD_CLOEXEC )) < 0 ) {
+        close( selector->epfd );
+        free( selector );
+        return (uintptr_t)jmvutil_error_null( JMVUTIL_ERROR_STT, ERR_CRITICAL, "eventfd: %s\n", strerror( errno ));
+    }
+
+    memset( &ev, 0, sizeof( ev ));
+    ev.events = EPOLLIN;
+    ev.data.u64 = _WAKEUP_TOKEN;
+    if ( epoll_ctl( selector->epfd, EPOLL_CTL_ADD, selector->wake_fd, &ev ) < 0 ) {
+        close( selector->wake_fd );
+        close( selector->epfd );
+        free( selector );
+        return (uintptr_t)jmvutil_error_null( JMVUTIL_ERROR_STT, ERR_CRITICAL, "epoll_ctl: %s\n", strerror( errno ));
+    }
+
+    return (uintptr_t)selector;
+}
+
+/*
+ * Class:     VectorSelector
+ * Method:    selector_add
+ * Signature: (JIJZ)I
+ */
+JNIEXPORT jint JNICALL Java_com_untangle_jvector_VectorSelector_selector_1add
+  ( JNIEnv* env, jclass _class, jlong pointer, jint fd, jlong token, jboolean oneshot )
+{
+    return _selector_ctl( env, (_selector_t*)(uintptr_t)pointer, EPOLL_CTL_ADD, fd, token, oneshot );
+}
+
+/*
+ * Class:     VectorSelector
+ * Method:    selector_rearm
+ * Signature: (JIJ)I
+ */
+JNIEXPORT jint JNICALL Java_com_untangle_jvector_VectorSelector_selector_1rearm
+  ( JNIEnv* env, jclass _class, jlong pointer, jint fd, jlong token )
+{
+    return _selector_ctl( env, (_selector_t*)(uintptr_t)pointer, EPOLL_CTL_MOD, fd, token, JNI_TRUE );
+}
+
+/*
+ * Class:     VectorSelector
+ * Method:    selector_remove
+ * Signature: (JI)I
+ */
+JNIEXPORT jint JNICALL Java_com_untangle_jvector_VectorSelector_selector_1remove
+  ( JNIEnv* env, jclass _class, jlong pointer, jint fd )
+{
+    _selector_t* selector = (_selector_t*)(uintptr_t)pointer;
+    struct epoll_event ev;
+
+    if ( selector == NULL ) return jmvutil_error( JMVUTIL_ERROR_ARGS, ERR_CRITICAL, "NULL selector\n" );
+
+    memset( &ev, 0, sizeof( ev ));
+
+    /* The fd may already be closed (and removed) by the vector cleanup */
+    if (( epoll_ctl( selector->epfd, EPOLL_CTL_DEL, fd, &ev ) < 0 ) && ( errno != ENOENT ) && ( errno != EBADF )) {
+        return errlog( ERR_WARNING, "epoll_ctl(%d): %s\n", fd, strerror( errno ));
+    }
+
+    return 0;
+}
+
+/*
+ * Class:     VectorSelector
+ * Method:    selector_wait
+ * Signature: (J[JI)I
+ */
+JNIEXPORT jint JNICALL Java_com_untangle_jvector_VectorSelector_selector_1wait
+  ( JNIEnv* env, jclass _class, jlong pointer, jlongArray _tokens, jint timeout )
+{
+    _selector_t* selector = (_selector_t*)(uintptr_t)pointer;
+    struct epoll_event events[_MAX_EVENTS];
+    jlong tokens[_MAX_EVENTS];
+    int max_events;
+    int num_events;
+    int count = 0;
+    int c;
+    uint64_t value;
+
+    if ( selector == NULL ) return jmvutil_error( JMVUTIL_ERROR_ARGS, ERR_CRITICAL, "NULL selector\n" );
+
+    if (( max_events = (*env)->GetArrayLength( env, _tokens )) > _MAX_EVENTS ) max_events = _MAX_EVENTS;
+    if ( max_events < 1 ) return jmvutil_error( JMVUTIL_ERROR_ARGS, ERR_CRITICAL, "Empty token array\n" );
+
+    if (( num_events = epoll_wait( selector->epfd, events, max_events, timeout )) < 0 ) {
+        if ( errno == EINTR ) return 0;
+        return jmvutil_error( JMVUTIL_ERROR_STT, ERR_CRITICAL, "epoll_wait: %s\n", strerror( errno ));
+    }
+
+    for ( c = 0 ; c < num_events ; c++ ) {
+        if ( events[c].data.u64 == _WAKEUP_TOKEN ) {
+            /* Drain the wakeup counter, the caller checks its queue on every return */
+            if (( read( selector->wake_fd, &value, sizeof( value )) < 0 ) && ( errno != EAGAIN )) {
+                errlog( ERR_WARNING, "read: %s\n", strerror( errno ));
+            }
+            continue;
+        }
+
+        tokens[count++] = (jlong)events[c].data.u64;
+    }
+
+    if ( count > 0 ) (*env)->SetLongArrayRegion( env, _tokens, 0, count, tokens );
+
+    return count;
+}
+
+/*
+ * Class:     VectorSelector
+ * Method:    selector_wakeup
+ * Signature: (J)I
+ */
+JNIEXPORT jint JNICALL Java_com_untangle_jvector_VectorSelector_selector_1wakeup
+  ( JNIEnv* env, jclass _class, jlong pointer )
+{
+    _selector_t* selector = (_selector_t*)(uintptr_t)pointer;
+    uint64_t value = 1;
+
+    if ( selector == NULL ) return jmvutil_error( JMVUTIL_ERROR_ARGS, ERR_CRITICAL, "NULL selector\n" );
+
+    if ( write( selector->wake_fd, &value, sizeof( value )) < 0 ) {
+        return errlog( ERR_WARNING, "write: %s\n", strerror( errno ));
+    }
+
+    return 0;
+}
+
+/*
+ * Class:     VectorSelector
+ * Method:    selector_raze
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_com_untangle_jvector_VectorSelector_selector_1raze
+  ( JNIEnv* env, jclass _class, jlong pointer )
+{
+    _selector_t* selector = (_selector_t*)(uintptr_t)pointer;
+
+    if ( selector == NULL ) return;
+
+    if (( selector->wake_fd >= 0 ) && ( close( selector->wake_fd ) < 0 )) perrlog( "close" );
+    if (( selector->epfd >= 0 ) && ( close( selector->epfd ) < 0 )) perrlog( "close" );
+
+    free( selector );
+}
+
+static int _selector_ctl( JNIEnv* env, _selector_t* selector, int op, int fd, jlong token, jboolean oneshot )
+{
+    struct epoll_event ev;
+
+    if ( selector == NULL ) return jmvutil_error( JMVUTIL_ERROR_ARGS, ERR_CRITICAL, "NULL selector\n" );
+
+    memset( &ev, 0, sizeof( ev ));
+    ev.events = EPOLLIN;
+    if ( oneshot == JNI_TRUE ) ev.events |= EPOLLONESHOT;
+    ev.data.u64 = (uint64_t)token;
+
+    if ( epoll_ctl( selector->epfd, op, fd, &ev ) < 0 ) {
+        return jmvutil_error( JMVUTIL_ERROR_STT, ERR_CRITICAL, "epoll_ctl(%d): %s\n", fd, strerror( errno ));
+    }
+
+    return 0;
+}
@@ -262,6 +262,7 @@ int               jvector_sink_init           ( jvector_sink_t* snk, jobject thi
 
     snk->pipefd[0] = 0;
     snk->pipefd[1] = 0;
+    snk->pipe_bytes = 0;
     
     /* Create a reference for this, this could be a weak global reference which means that
      * it will automatically be garbage collected, we use a global reference and explicitly
@@ -21,6 +21,7 @@ typedef struct jvector_sink {
     jobject this;
     mvpoll_key_t* key;
     int pipefd[2]; /* used for splice */
+    int pipe_bytes; /* spliced bytes still in the pipe */
     struct {
         jmethodID send_event;
         jmethodID shutdown;
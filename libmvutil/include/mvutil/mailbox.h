@@ -45,6 +45,10 @@ void*        mailbox_utimed_get ( mailbox_t* mb, struct timeval* tv );
 int          mailbox_put (mailbox_t* mb, void* mail);
 int          mailbox_size (mailbox_t* mb);
 
+/* Update the mvpoll key for a reader that is still holding mail it took from the mailbox,
+ * the key stays readable while pending is set or the mailbox is not empty */
+int          mailbox_set_pending (mailbox_t* mb, int pending);
+
 int          mailbox_get_pollable_event (mailbox_t* mb);
 int          mailbox_clear_pollable_event (mailbox_t* mb);
 mvpoll_key_t* mailbox_get_mvpoll_src_key( mailbox_t* mb );
@@ -286,6 +286,20 @@ int          mailbox_size (mailbox_t* mb)
     //MB_UNLOCK(mb);
 }
 
+int          mailbox_set_pending (mailbox_t* mb, int pending)
+{
+    if (!mb) 
+        return errlogargs();
+
+    MB_LOCK(mb);
+
+    /* This is done under the lock so it can't overwrite the notification from a concurrent put */
+    if ( mb->mv_key != NULL ) mvpoll_key_notify_observers( mb->mv_key, ( pending || mb->size > 0 ) ? MVPOLLIN : 0 );
+
+    MB_UNLOCK(mb);
+    return 0;
+}
+
 static void*   _mailbox_timed_get ( mailbox_t* mb, struct timespec* ts )
 {
     void* mail;
@@ -8,12 +8,19 @@
 #include "relay.h"
 
 #define _VECTOR_MSG_SHUTDOWN   1
+#define _VECTOR_MSG_WAKEUP     3
 
 typedef enum {
     VECTOR_MSG_SHUTDOWN = _VECTOR_MSG_SHUTDOWN,  /* shutdown the vectoring */
-    VECTOR_MSG_NULL
+    VECTOR_MSG_NULL,
+    VECTOR_MSG_WAKEUP = _VECTOR_MSG_WAKEUP       /* call the wakeup hook on the vectoring thread */
 } vector_msg_t;
 
+/* Return codes for vector_poll */
+#define VECTOR_POLL_DONE      0  /* the vector finished and was cleaned up */
+#define VECTOR_POLL_CONTINUE  1  /* events were handled, keep polling */
+#define VECTOR_POLL_IDLE      2  /* non-blocking poll with no events ready */
+
 typedef struct vector {
 
     list_t* chain;
@@ -31,6 +38,16 @@ typedef struct vector {
     list_t compress_relays;
 
     int    max_timeout;
+
+    /* Current tick, only valid while the vector is running */
+    int    tick;
+
+    /* 1 between vector_start and vector_stop */
+    int    running;
+
+    /* Called on the vectoring thread for every VECTOR_MSG_WAKEUP */
+    void   (*wakeup_hook) ( struct vector* vec, void* arg );
+    void*  wakeup_hook_arg;
     
 } vector_t;
 
@@ -46,6 +63,17 @@ void      vector_compress ( vector_t* vec, sink_t* sink, source_t* source );
 int       vector_length ( vector_t* vec );
 
 int       vector ( vector_t* vec );
+
+/**
+ * Step interface, this is what vector() uses internally.  It allows a single
+ * thread to run many vectors by polling the file descriptor returned by
+ * vector_fd and calling vector_poll with a zero timeout when it is readable.
+ */
+int       vector_start ( vector_t* vec );
+int       vector_poll ( vector_t* vec, int timeout );
+int       vector_stop ( vector_t* vec );
+int       vector_fd ( vector_t* vec );
+
 int       vector_send_msg ( vector_t* vec, vector_msg_t msg, void* arg );
 void      vector_set_timeout ( vector_t* vec, int timeout_sec );
 
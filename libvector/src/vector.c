@@ -171,6 +171,12 @@ int       vector_raze ( vector_t* vec )
     if ( vec == NULL) {
         return errlogargs();
     }
+
+    /* A started vector that was never finished must be cleaned up first */
+    if ( vector_stop(vec) < 0 ) {
+        perrlog("vector_stop");
+        err-=4;
+    }
     
     if ( vector_destroy(vec) < 0 ) {
         perrlog("vector_destroy");
@@ -187,174 +193,236 @@ int       vector_raze ( vector_t* vec )
 
 int       vector ( vector_t* vec )
 {
-    int i,num_events;
-    int timeout = -1;
-    struct mvpoll_event events[MVPOLL_MAX_SIZE];
+    int ret;
+
+    if (vector_start(vec)<0)
+        return perrlog("vector_start");
+
+    /**
+     * loop until termination
+     */
+    while ((ret = vector_poll(vec, vec->max_timeout)) != VECTOR_POLL_DONE) {
+        if (ret < 0)
+            return perrlog("vector_poll");
+    }
+
+    return 0;
+}
+
+int       vector_start ( vector_t* vec )
+{
+    if (!vec)
+        return errlogargs();
+
+    if (vec->running)
+        return errlog(ERR_CRITICAL,"Vector already started\n");
+
     /* The ticks can't start on zero or 1 because it is used to detect shutdown's on sinks
      * and sources that occur during the same tick.  If it did start with 0, there would be a slim
      * chance that the flag snk_shutdown and tick would match, which would be somewhat confusing.
      */
-    int tick = 2;
-    
+    vec->tick = 2;
+
     if (_vector_setup(vec)<0)
         return perrlog("vector_setup");
 
+    vec->running = 1;
+
+    return 0;
+}
+
+int       vector_poll ( vector_t* vec, int timeout )
+{
+    int i,num_events;
+    struct mvpoll_event events[MVPOLL_MAX_SIZE];
+
+    if (!vec)
+        return errlogargs();
+
+    if (!vec->running)
+        return VECTOR_POLL_DONE;
+
+    vec->tick++;
+
     /**
-     * loop until termination
+     * tick should never be zero
+     * If zero from overflow, skip zero and one
      */
-    while (1) {
-        tick++;
+    if ( vec->tick == 0 )
+        vec->tick = 2;
 
-        /**
-         * tick should never be zero
-         * If zero from overflow, skip zero and one
-         */
-        if ( tick == 0 )
-            tick = 2;
+    /**
+     * Exit if no relay's remain
+     */
+    if (vec->live_relay_count<1) 
+        goto vector_out;
 
-        /**
-         * Exit if no relay's remain
-         */
-        if (vec->live_relay_count<1) 
-            break;
+    /**
+     * wait on events
+     */
+    if ((num_events = mvpoll_wait(vec->mvp,events,MVPOLL_MAX_SIZE,timeout))<0) {
+        perrlog("mvpoll_wait");
+        if (errno != EINTR) 
+            goto vector_out;
+        else
+            return VECTOR_POLL_CONTINUE;
+    }
 
-        timeout = vec->max_timeout;
+    debug(10,"VECTOR(0x%016"PRIxPTR"): ----tick---- %08d\n", (uintptr_t) vec, vec->tick );
 
+
+    if (num_events == 0) {
         /**
-         * wait on events
+         * A non-blocking poll with nothing to do is not a timeout,
+         * the caller is responsible for expiring idle vectors.
          */
-        if ((num_events = mvpoll_wait(vec->mvp,events,MVPOLL_MAX_SIZE,timeout))<0) {
-            perrlog("mvpoll_wait");
-            if (errno != EINTR) 
-                goto vector_out;
-            else
-                continue;
-        }
+        if (timeout == 0)
+            return VECTOR_POLL_IDLE;
 
-        debug(10,"VECTOR(0x%016"PRIxPTR"): ----tick---- %08d\n", (uintptr_t) vec, tick );
+        debug(9,"VECTOR(0x%016"PRIxPTR"): Session Timeout\n", (uintptr_t) vec );
+        goto vector_out;
+    }
 
+    /**
+     * handle events
+     */
+    for (i=0;i<num_events;i++) {
+        mvpoll_key_t* key = (mvpoll_key_t*)events[i].key;
+        if ( key == NULL ) {
+            errlog( ERR_WARNING, "VECTOR(0x%016"PRIxPTR"): NULL event key\n", (uintptr_t) vec );
+            goto vector_out;
+        }
 
-        if (num_events == 0) {
-            debug(9,"VECTOR(0x%016"PRIxPTR"): Session Timeout\n", (uintptr_t) vec );
+        mvpoll_keystub_t* stub = (mvpoll_keystub_t*)key->arg;
+        
+        if (!stub) {
+            errlog(ERR_WARNING,"VECTOR(0x%016"PRIxPTR"): Missing Mvpoll Stub (key:0x%016"PRIxPTR")\n", (uintptr_t) vec, (uintptr_t) events[i].key);
             goto vector_out;
         }
 
+#if VECTOR_DEBUG
+        debug(10,"VECTOR(0x%016"PRIxPTR"): -Event(%d)- (key: 0x%016"PRIxPTR") (stub: 0x%016"PRIxPTR") (mvp:0x%016"PRIxPTR") (relay:0x%016"PRIxPTR",%d) (events:0x%08x)\n",
+              (uintptr_t) vec, i,
+              (uintptr_t) events[i].key,
+              (uintptr_t) stub,
+              (uintptr_t) vec->mvp,
+              (uintptr_t) stub->relay, 
+              ( stub->relay == NULL ) ? 0 : list_length( &stub->relay->event_q ), events[i].events);
+#endif
         /**
-         * handle events
+         * Msg key event
          */
-        for (i=0;i<num_events;i++) {
-            mvpoll_key_t* key = (mvpoll_key_t*)events[i].key;
-            if ( key == NULL ) {
-                errlog( ERR_WARNING, "VECTOR(0x%016"PRIxPTR"): NULL event key\n", (uintptr_t) vec );
+        if (key == vec->msg_key) {
+            switch (_vector_handle_message(vec, events[i].events)) {
+            case VECTOR_MSG_SHUTDOWN:
                 goto vector_out;
+            case VECTOR_MSG_WAKEUP:
+            case VECTOR_MSG_NULL:
+                break;
+            case -1:
+                errlog(ERR_CRITICAL,"Failed to handle message\n");
+                break;
             }
-
-            mvpoll_keystub_t* stub = (mvpoll_keystub_t*)key->arg;
+            continue;
+        }
             
-            if (!stub) {
-                errlog(ERR_WARNING,"VECTOR(0x%016"PRIxPTR"): Missing Mvpoll Stub (key:0x%016"PRIxPTR")\n", (uintptr_t) vec, (uintptr_t) events[i].key);
-                goto vector_out;
-            }
+        /**
+         * Normal key event
+         */
+        else {
+            /* Update the key event mask */
+            key->events = events[i].events;
+
+            if ( stub->issink ) {
+                if ( !stub->relay->snk_shutdown ) {
+                    if (_vector_handle_snk_event(vec,stub->relay, events[i].events)<0) {
+                        errlog( ERR_CRITICAL, "_vector_handle_snk_event\n" );
+                        goto vector_out;
+                    }
+                    if ( stub->relay->snk_shutdown == 1 )
+                        stub->relay->snk_shutdown = vec->tick;
 
-#if VECTOR_DEBUG
-            debug(10,"VECTOR(0x%016"PRIxPTR"): -Event(%d)- (key: 0x%016"PRIxPTR") (stub: 0x%016"PRIxPTR") (mvp:0x%016"PRIxPTR") (relay:0x%016"PRIxPTR",%d) (events:0x%08x)\n",
-                  (uintptr_t) vec, i,
-                  (uintptr_t) events[i].key,
-                  (uintptr_t) stub,
-                  (uintptr_t) vec->mvp,
-                  (uintptr_t) stub->relay, 
-                  ( stub->relay == NULL ) ? 0 : list_length( &stub->relay->event_q ), events[i].events);
-#endif
-            /**
-             * Msg key event
-             */
-            if (key == vec->msg_key) {
-                switch (_vector_handle_message(vec, events[i].events)) {
-                case VECTOR_MSG_SHUTDOWN:
-                    goto vector_out;
-                case VECTOR_MSG_NULL:
-                    break;
-                case -1:
-                    errlog(ERR_CRITICAL,"Failed to handle message\n");
-                    break;
+                } else {
+                    if ( stub->relay->snk_shutdown == vec->tick ) {
+                        /* This is not an error(no vector_out), EG
+                         * one tick that contains a source and then sink, and source
+                         * event where the source receives an error which skips
+                         * the relay and places it directly into the sink.
+                         */
+                        debug( 6, "VECTOR(0x%016"PRIxPTR"): src shutdown snk with event in same tick\n", (uintptr_t) vec );
+                    } else {
+                        errlog( ERR_CRITICAL, "VECTOR(0x%016"PRIxPTR"): Mishandled Event(snk shutdown)\n", (uintptr_t) vec );
+                        goto vector_out;
+                    }
                 }
-                continue;
-            }
-                
-            /**
-             * Normal key event
-             */
-            else {
-                /* Update the key event mask */
-                key->events = events[i].events;
-
-                if ( stub->issink ) {
-                    if ( !stub->relay->snk_shutdown ) {
-                        if (_vector_handle_snk_event(vec,stub->relay, events[i].events)<0) {
-                            errlog( ERR_CRITICAL, "_vector_handle_snk_event\n" );
-                            goto vector_out;
-                        }
-                        if ( stub->relay->snk_shutdown == 1 )
-                            stub->relay->snk_shutdown = tick;
+            } else {
+                if ( !stub->relay->src_shutdown ) {
+                    if (_vector_handle_src_event(vec,stub->relay, events[i].events)<0) {
+                        errlog(ERR_WARNING,"Mishandled Event\n");
+                        goto vector_out;
+                    }
 
-                    } else {
-                        if ( stub->relay->snk_shutdown == tick ) {
-                            /* This is not an error(no vector_out), EG
-                             * one tick that contains a source and then sink, and source
-                             * event where the source receives an error which skips
-                             * the relay and places it directly into the sink.
-                             */
-                            debug( 6, "VECTOR(0x%016"PRIxPTR"): src shutdown snk with event in same tick\n", (uintptr_t) vec );
-                        } else {
-                            errlog( ERR_CRITICAL, "VECTOR(0x%016"PRIxPTR"): Mishandled Event(snk shutdown)\n", (uintptr_t) vec );
-                            goto vector_out;
-                        }
+                    /* Indicate that the sink was shutdown on this tick, if necessary */
+                    if ( stub->relay->snk_shutdown == 1 ) {
+                        stub->relay->snk_shutdown = vec->tick;
                     }
                 } else {
-                    if ( !stub->relay->src_shutdown ) {
-                        if (_vector_handle_src_event(vec,stub->relay, events[i].events)<0) {
-                            errlog(ERR_WARNING,"Mishandled Event\n");
-                            goto vector_out;
-                        }
-
-                        /* Indicate that the sink was shutdown on this tick, if necessary */
-                        if ( stub->relay->snk_shutdown == 1 ) {
-                            stub->relay->snk_shutdown = tick;
-                        }
+                    if ( stub->relay->snk_shutdown == vec->tick ) {
+                        /* This is not an error(no vector_out), EG
+                         * one tick that contains a sink and source
+                         * event that where the sink event closes the
+                         * source.
+                         */
+                        debug( 6, "VECTOR(0x%016"PRIxPTR"): snk shutdown then src event in same tick\n", (uintptr_t) vec );
                     } else {
-                        if ( stub->relay->snk_shutdown == tick ) {
-                            /* This is not an error(no vector_out), EG
-                             * one tick that contains a sink and source
-                             * event that where the sink event closes the
-                             * source.
-                             */
-                            debug( 6, "VECTOR(0x%016"PRIxPTR"): snk shutdown then src event in same tick\n", (uintptr_t) vec );
-                        } else {
-                            errlog( ERR_CRITICAL, "VECTOR(0x%016"PRIxPTR"): Mishandled Event(src shutdown)\n", (uintptr_t) vec );
-                            goto vector_out;
-                        }
+                        errlog( ERR_CRITICAL, "VECTOR(0x%016"PRIxPTR"): Mishandled Event(src shutdown)\n", (uintptr_t) vec );
+                        goto vector_out;
                     }
                 }
             }
-        } // for each event
+        }
+    } // for each event
 
-        debug(10,"VECTOR(0x%016"PRIxPTR"): ----end tick---- %08d\n", (uintptr_t) vec, tick );
-        
-        /**
-         * Check for any compression requests
-         */
-        _vector_check_for_compression( vec, events, num_events );
-        
-    } // while true
+    debug(10,"VECTOR(0x%016"PRIxPTR"): ----end tick---- %08d\n", (uintptr_t) vec, vec->tick );
+    
+    /**
+     * Check for any compression requests
+     */
+    _vector_check_for_compression( vec, events, num_events );
+
+    return VECTOR_POLL_CONTINUE;
         
 vector_out:
-    
+    if (vector_stop(vec)<0)
+        perrlog("vector_stop");
+    return VECTOR_POLL_DONE;
+}
+
+int       vector_stop ( vector_t* vec )
+{
+    if (!vec)
+        return errlogargs();
+
+    if (!vec->running)
+        return 0;
+
+    vec->running = 0;
+
     debug(10,"VECTOR(0x%016"PRIxPTR"): Shutting down...\n", (uintptr_t) vec );
     if (_vector_cleanup(vec)<0)
-        perrlog("_vector_cleanup");
+        return perrlog("_vector_cleanup");
+
     return 0;
 }
 
+int       vector_fd ( vector_t* vec )
+{
+    if (!vec || !vec->running)
+        return errlogargs();
+
+    return vec->mvp->epfd;
+}
+
 int       vector_send_msg ( vector_t* vec, vector_msg_t msg, void* arg )
 {
     char buf[sizeof(vector_msg_t)+sizeof(void*)];
@@ -675,6 +743,11 @@ static int  _vector_handle_message ( vector_t* vec, int revents )
     case VECTOR_MSG_SHUTDOWN:
         return VECTOR_MSG_SHUTDOWN;
 
+    case VECTOR_MSG_WAKEUP:
+        if ( vec->wakeup_hook )
+            vec->wakeup_hook( vec, vec->wakeup_hook_arg );
+        return VECTOR_MSG_WAKEUP;
+
     case VECTOR_MSG_NULL:
         errlog(ERR_CRITICAL,"Null Message Received\n");
         break;
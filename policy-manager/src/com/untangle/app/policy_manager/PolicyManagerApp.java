@@ -18,6 +18,8 @@ import com.untangle.uvm.app.PolicyManager.PolicyManagerResult;
 import com.untangle.uvm.app.App;
 import com.untangle.uvm.util.Pulse;
 import com.untangle.uvm.app.AppBase;
+import com.untangle.uvm.app.CompiledRuleSet;
+import com.untangle.uvm.app.RuleProfiler;
 import com.untangle.uvm.vnet.PipelineConnector;
 
 /** Implementation of the Policy Manager app */
@@ -29,6 +31,9 @@ public class PolicyManagerApp extends AppBase implements com.untangle.uvm.app.Po
     private final Pulse cleanerPulse = new Pulse("policy-manager-session-cleaner", new SessionExpirationWorker(this), 60000);
 
     private PolicyManagerSettings settings = new PolicyManagerSettings();
+
+    /* The current rules compiled, recompiled when the rule list changes */
+    private volatile CompiledRuleSet<PolicyRule> compiledRules = null;
     
     /**
      * PolicyManagerApp
@@ -95,6 +100,7 @@ public class PolicyManagerApp extends AppBase implements com.untangle.uvm.app.Po
          */
         this.settings = newSettings;
         try {logger.debug("New Settings: \n" + new org.json.JSONObject(this.settings).toString(2));} catch (Exception e) {}
+        compileRules( newSettings );
 
 
         /**
@@ -103,6 +109,15 @@ public class PolicyManagerApp extends AppBase implements com.untangle.uvm.app.Po
         UvmContextFactory.context().pipelineFoundry().clearCache();
     }
 
+    /**
+     * Compile the policy rules, called each time the settings are applied
+     * @param settings
+     */
+    private void compileRules( PolicyManagerSettings settings )
+    {
+        this.compiledRules = new CompiledRuleSet<>(settings.getRules(), PolicyRule::getEnabled, PolicyRule::getConditions, rule -> new RuleProfiler.RuleKey(this, "PolicyRule", rule.getRuleId(), rule.getDescription()));
+    }
+
     /**
      * getPolicyName gets the policy name for the speficied policy
      * @param policyId
@@ -152,15 +167,16 @@ public class PolicyManagerApp extends AppBase implements com.untangle.uvm.app.Po
         if ( !isLicenseValid() )
             return new PolicyManagerResult(1,0);
 
-        for (PolicyRule rule : this.settings.getRules()) {
-            if (rule.isMatch(protocol,
-                             clientIntf, serverIntf,
-                             clientAddr, serverAddr,
-                             clientPort, serverPort)) {
-                return new PolicyManagerResult(rule.getTargetPolicy(),rule.getRuleId());
-            }
+        CompiledRuleSet<PolicyRule> rules = this.compiledRules;
+        if (rules == null)
+            return new PolicyManagerResult(1,0);
 
-        }
+        PolicyRule rule = rules.findMatch(protocol,
+                                          clientIntf, serverIntf,
+                                          clientAddr, serverAddr,
+                                          clientPort, serverPort);
+        if (rule != null)
+            return new PolicyManagerResult(rule.getTargetPolicy(),rule.getRuleId());
 
         /* if none matched - return default policy (1) */
         return new PolicyManagerResult(1,0);
@@ -288,6 +304,7 @@ public class PolicyManagerApp extends AppBase implements com.untangle.uvm.app.Po
             
             this.settings = readSettings;
             logger.debug("Settings: " + this.settings.toJSONString());
+            compileRules( readSettings );
         }
     }
 
@@ -378,8 +378,9 @@ class SmtpServerUnparserEventHandler extends AbstractEventHandler
                 state.accumulator.dispose();
                 state.accumulator = null;
                 if ( sink != null ) 
-                    session.sendDataToServer( sink );
-                session.sendDataToServer( remainder );
+                    session.sendDataToServer( new ByteBuffer[] { sink, remainder } );
+                else
+                    session.sendDataToServer( remainder );
                 return;    
             } else {
                 if (sink != null) {
@@ -25,6 +25,7 @@ import java.util.List;
 import org.apache.log4j.Logger;
 
 import com.untangle.uvm.UvmContextFactory;
+import com.untangle.uvm.app.RuleProfiler;
 import com.untangle.uvm.vnet.AppSession;
 import com.untangle.uvm.vnet.AppTCPSession;
 import com.untangle.uvm.vnet.AbstractEventHandler;
@@ -53,6 +54,7 @@ public class SslInspectorParserEventHandler extends AbstractEventHandler
 
     private final SslInspectorApp app;
     private final boolean clientSide;
+    private final RuleProfiler.RuleKeyCache<SslInspectorRule> ruleKeys;
 
     /**
      * Constructor
@@ -67,6 +69,7 @@ public class SslInspectorParserEventHandler extends AbstractEventHandler
         super();
         this.clientSide = clientSide;
         this.app = app;
+        this.ruleKeys = new RuleProfiler.RuleKeyCache<>(rule -> new RuleProfiler.RuleKey(app, "SslInspectorRule", rule.getRuleId(), rule.getDescription()));
     }
 
     /**
@@ -635,9 +638,16 @@ public class SslInspectorParserEventHandler extends AbstractEventHandler
 
             logger.debug("Checking Rules against AppTCPSession : " + session.getProtocol() + " " + session.getClientAddr().getHostAddress() + ":" + session.getClientPort() + " -> " + session.getServerAddr().getHostAddress() + ":" + session.getServerPort());
 
+            RuleProfiler.RuleKey[] keys = (RuleProfiler.ENABLED ? ruleKeys.get(ruleList) : null);
+            int ruleIndex = -1;
+
             for (SslInspectorRule rule : ruleList) {
+                ruleIndex++;
                 if (rule.getEnabled() == false) continue;
-                if (rule.matches(session) == false) continue;
+                long start = (keys != null ? RuleProfiler.start() : RuleProfiler.NOT_SAMPLED);
+                boolean match = rule.matches(session);
+                if (keys != null) RuleProfiler.recordRule(keys[ruleIndex], match, start);
+                if (match == false) continue;
                 ruleMatch = rule;
                 logDetail = (String) session.globalAttachment(AppTCPSession.KEY_SSL_INSPECTOR_SNI_HOSTNAME);
                 break;
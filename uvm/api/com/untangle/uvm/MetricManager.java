@@ -10,4 +10,28 @@ public interface MetricManager
     org.json.JSONObject getMetricsAndStats();
 
     Long getMemTotal();
+
+    org.json.JSONObject getSessionSetupLatency();
+
+    void resetSessionSetupLatency();
+
+    org.json.JSONObject getPipelineProfile();
+
+    void resetPipelineProfile();
+
+    org.json.JSONObject getTCPReadBufferStats();
+
+    void resetTCPReadBufferStats();
+
+    org.json.JSONObject getSessionQueueStats();
+
+    void resetSessionQueueStats();
+
+    org.json.JSONObject getRuleEvaluationStats();
+
+    void resetRuleEvaluationStats();
+
+    org.json.JSONObject getRuleProfile();
+
+    void resetRuleProfile();
 }
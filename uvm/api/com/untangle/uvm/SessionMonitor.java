@@ -19,6 +19,11 @@ public interface SessionMonitor
      */
     public List<SessionMonitorEntry> getMergedSessions(long appId);
 
+    /**
+     * Documented in SessionMonitorImpl
+     */
+    public SessionMonitorPage querySessions(long appId, String host, String policy, String sortField, boolean ascending, int start, int limit);
+
     /**
      * Documented in SessionMonitorImpl
      */
@@ -202,6 +202,17 @@ public class SessionMonitorEntry implements Serializable, JSONString
     public Float getTotalKBps() {return totalKBps;}
     public void  setTotalKBps( Float totalKBps ) {this.totalKBps = totalKBps;}
 
+    /**
+     * Packets per second received from each side (UDP sessions in the UVM only)
+     */
+    private Float clientPacketsPerSec;
+    private Float serverPacketsPerSec;
+
+    public Float getClientPacketsPerSec() {return clientPacketsPerSec;}
+    public void  setClientPacketsPerSec( Float clientPacketsPerSec ) {this.clientPacketsPerSec = clientPacketsPerSec;}
+    public Float getServerPacketsPerSec() {return serverPacketsPerSec;}
+    public void  setServerPacketsPerSec( Float serverPacketsPerSec ) {this.serverPacketsPerSec = serverPacketsPerSec;}
+
     public String toString()
     {
         return getProtocol() + "| " + getPreNatClient().getHostAddress() + ":" + getPreNatClientPort() + " -> " + getPostNatServer().getHostAddress() + ":" + getPostNatServerPort();
@@ -0,0 +1,50 @@
+/**
+ * $Id$
+ */
+
+package com.untangle.uvm;
+
+import java.io.Serializable;
+import java.util.List;
+
+import org.json.JSONString;
+
+/**
+ * A page of the sessions returned by SessionMonitor.querySessions
+ */
+@SuppressWarnings("serial")
+public class SessionMonitorPage implements Serializable, JSONString
+{
+    private int totalCount;
+    private int start;
+    private List<SessionMonitorEntry> sessions;
+
+    public SessionMonitorPage() {};
+    public SessionMonitorPage(int totalCount, int start, List<SessionMonitorEntry> sessions)
+    {
+        this.totalCount = totalCount;
+        this.start = start;
+        this.sessions = sessions;
+    };
+
+    /**
+     * The number of sessions that match the query (on all pages)
+     */
+    public int getTotalCount() { return this.totalCount; }
+    public void setTotalCount(int totalCount) { this.totalCount = totalCount; }
+
+    /**
+     * The index of the first session of the page
+     */
+    public int getStart() { return this.start; }
+    public void setStart(int start) { this.start = start; }
+
+    public List<SessionMonitorEntry> getSessions() { return this.sessions; }
+    public void setSessions(List<SessionMonitorEntry> sessions) { this.sessions = sessions; }
+
+    public String toJSONString()
+    {
+        org.json.JSONObject jO = new org.json.JSONObject(this);
+        return jO.toString();
+    }
+}
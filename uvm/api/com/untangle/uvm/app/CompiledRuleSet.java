@@ -0,0 +1,612 @@
+/**
+ * $Id$
+ */
+
+package com.untangle.uvm.app;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import org.apache.log4j.Logger;
+
+import com.untangle.uvm.UvmContextFactory;
+import com.untangle.uvm.vnet.AppSession;
+
+/**
+ * A rule list compiled for first-match lookups.
+ *
+ * A rule matches when it is enabled and all of its conditions match. Instead
+ * of evaluating every condition of every rule, the protocol, interface, port
+ * and IPv4 address conditions are indexed: for each of these the index maps
+ * the value of the session to a bitset of the rules whose conditions on it
+ * match (rules without such conditions are always set). The bitsets are
+ * intersected and only the remaining conditions of the candidate rules are
+ * evaluated, in rule order, so the first matching rule is the same one the
+ * linear scan finds.
+ *
+ * Conditions that can't be indexed exactly are evaluated as before: inverted
+ * conditions, the wan/non_wan interface conditions (which depend on the
+ * network settings), non-integer numbers, IPv6 addresses and everything that
+ * isn't one of these types. When a value can't be looked up (an IPv6 address,
+ * an unknown interface) the indexed conditions on it are evaluated too.
+ *
+ * The rule list must not be changed after it is compiled, a new one is
+ * compiled when the settings change. Unless uvm.rules.compiled is set the
+ * rules are scanned linearly.
+ *
+ * When the rules have profiler keys, each rule that is evaluated is counted by
+ * the RuleProfiler (the rules skipped by the index are not evaluated).
+ *
+ * @param <T>
+ *        The rule type
+ */
+public class CompiledRuleSet<T>
+{
+    private static final Logger logger = Logger.getLogger(CompiledRuleSet.class);
+
+    private static final boolean COMPILED = (System.getProperty("uvm.rules.compiled") != null);
+
+    private static final int DIM_PROTOCOL = 0;
+    private static final int DIM_SRC_INTF = 1;
+    private static final int DIM_DST_INTF = 2;
+    private static final int DIM_SRC_PORT = 3;
+    private static final int DIM_DST_PORT = 4;
+    private static final int DIM_SRC_ADDR = 5;
+    private static final int DIM_DST_ADDR = 6;
+    private static final int DIM_COUNT = 7;
+
+    /* Conditions that are not indexed */
+    private static final int DIM_NONE = -1;
+
+    /* Protocols and interface IDs are indexed with a table of this size */
+    private static final int TABLE_SIZE = 256;
+
+    private final List<T> rules;
+
+    /* The enabled rules in order, with their conditions and the dimension each condition is indexed in */
+    private final List<T> enabledRules = new ArrayList<>();
+    private final List<RuleCondition[]> ruleConditions = new ArrayList<>();
+    private final List<int[]> ruleConditionDims = new ArrayList<>();
+    private final List<RuleProfiler.RuleKey> ruleKeys = new ArrayList<>();
+    private final boolean profiled;
+
+    /* The bitsets of the candidate rules, as long words */
+    private int words;
+    private long[] allRules;
+    private final boolean[] indexed = new boolean[DIM_COUNT];
+    private final long[][][] tables = new long[DIM_COUNT][][];
+    private final long[][] intervalStarts = new long[DIM_COUNT][];
+    private final long[][][] intervals = new long[DIM_COUNT][][];
+
+    /**
+     * Compile a rule list
+     *
+     * @param rules
+     *        The rules, in order
+     * @param enabled
+     *        Returns true if a rule is enabled
+     * @param conditions
+     *        Returns the conditions of a rule (null matches everything)
+     */
+    public CompiledRuleSet(List<T> rules, Predicate<T> enabled, Function<T, List<? extends RuleCondition>> conditions)
+    {
+        this(rules, enabled, conditions, null);
+    }
+
+    /**
+     * Compile a rule list whose evaluations are counted by the RuleProfiler
+     *
+     * @param rules
+     *        The rules, in order
+     * @param enabled
+     *        Returns true if a rule is enabled
+     * @param conditions
+     *        Returns the conditions of a rule (null matches everything)
+     * @param profileKey
+     *        Returns the profiler key of a rule, null to not count the rules
+     *        (they are not counted either when the profiler is off)
+     */
+    public CompiledRuleSet(List<T> rules, Predicate<T> enabled, Function<T, List<? extends RuleCondition>> conditions, Function<T, RuleProfiler.RuleKey> profileKey)
+    {
+        this.rules = rules;
+        this.profiled = (profileKey != null && RuleProfiler.ENABLED);
+
+        if (rules != null) {
+            for (T rule : rules) {
+                if (rule == null || !enabled.test(rule)) continue;
+
+                List<? extends RuleCondition> ruleConds = conditions.apply(rule);
+                if (ruleConds == null) {
+                    logger.warn("Null conditions - assuming true: " + rule);
+                    ruleConds = new ArrayList<>();
+                }
+
+                enabledRules.add(rule);
+                ruleConditions.add(ruleConds.toArray(new RuleCondition[ruleConds.size()]));
+                if (profiled) ruleKeys.add(profileKey.apply(rule));
+            }
+        }
+
+        if (COMPILED) compile();
+    }
+
+    /**
+     * Get the rules
+     *
+     * @return The rule list this was compiled from
+     */
+    public List<T> getRules()
+    {
+        return this.rules;
+    }
+
+    /**
+     * Find the first rule that matches a session that doesn't exist yet
+     * (RuleCondition.matches with the session attributes)
+     *
+     * @param protocol
+     * @param srcIntf
+     * @param dstIntf
+     * @param srcAddress
+     * @param dstAddress
+     * @param srcPort
+     * @param dstPort
+     * @return The first matching rule, or null
+     */
+    public T findMatch(short protocol, int srcIntf, int dstIntf, InetAddress srcAddress, InetAddress dstAddress, int srcPort, int dstPort)
+    {
+        return findMatch(protocol, srcIntf, dstIntf, srcAddress, dstAddress, srcPort, dstPort, null);
+    }
+
+    /**
+     * Find the first rule that matches a session that doesn't exist yet
+     *
+     * @param protocol
+     * @param srcIntf
+     * @param dstIntf
+     * @param srcAddress
+     * @param dstAddress
+     * @param srcPort
+     * @param dstPort
+     * @param filter
+     *        Only rules this returns true for are checked, null for all
+     * @return The first matching rule, or null
+     */
+    public T findMatch(short protocol, int srcIntf, int dstIntf, InetAddress srcAddress, InetAddress dstAddress, int srcPort, int dstPort, Predicate<T> filter)
+    {
+        boolean[] resolved = new boolean[DIM_COUNT];
+        long[] candidates = null;
+
+        if (COMPILED) {
+            candidates = lookup(protocol, srcIntf, dstIntf, srcAddress, dstAddress, srcPort, dstPort, resolved);
+        }
+
+        for (int i = nextCandidate(candidates, 0); i >= 0; i = nextCandidate(candidates, i + 1)) {
+            T rule = enabledRules.get(i);
+            if (filter != null && !filter.test(rule)) continue;
+
+            RuleCondition[] conds = ruleConditions.get(i);
+            int[] dims = (COMPILED ? ruleConditionDims.get(i) : null);
+            long start = (profiled ? RuleProfiler.start() : RuleProfiler.NOT_SAMPLED);
+            boolean match = true;
+
+            for (int c = 0; c < conds.length; c++) {
+                if (dims != null && dims[c] != DIM_NONE && resolved[dims[c]]) continue;
+                if (!conds[c].matches(protocol, srcIntf, dstIntf, srcAddress, dstAddress, srcPort, dstPort)) {
+                    match = false;
+                    break;
+                }
+            }
+
+            if (profiled) RuleProfiler.recordRule(ruleKeys.get(i), match, start);
+            if (match) return rule;
+        }
+
+        return null;
+    }
+
+    /**
+     * Find the first rule that matches a session
+     * (RuleCondition.matches with the session)
+     *
+     * @param sess
+     *        The session
+     * @return The first matching rule, or null
+     */
+    public T findMatch(AppSession sess)
+    {
+        return findMatch(sess, null);
+    }
+
+    /**
+     * Find the first rule that matches a session
+     *
+     * @param sess
+     *        The session
+     * @param filter
+     *        Only rules this returns true for are checked, null for all
+     * @return The first matching rule, or null
+     */
+    public T findMatch(AppSession sess, Predicate<T> filter)
+    {
+        boolean[] resolved = new boolean[DIM_COUNT];
+        long[] candidates = null;
+
+        /* Without a session event none of the conditions match, so they are all evaluated */
+        if (COMPILED && sess != null && sess.sessionEvent() != null) {
+            candidates = lookup(sess.getProtocol(), sess.getClientIntf(), sess.getServerIntf(), sess.getClientAddr(), sess.getServerAddr(), sess.getClientPort(), sess.getServerPort(), resolved);
+        }
+
+        for (int i = nextCandidate(candidates, 0); i >= 0; i = nextCandidate(candidates, i + 1)) {
+            T rule = enabledRules.get(i);
+            if (filter != null && !filter.test(rule)) continue;
+
+            RuleCondition[] conds = ruleConditions.get(i);
+            int[] dims = (COMPILED ? ruleConditionDims.get(i) : null);
+            long start = (profiled ? RuleProfiler.start() : RuleProfiler.NOT_SAMPLED);
+            boolean match = true;
+
+            for (int c = 0; c < conds.length; c++) {
+                if (dims != null && dims[c] != DIM_NONE && resolved[dims[c]]) continue;
+                if (!conds[c].matches(sess)) {
+                    match = false;
+                    break;
+                }
+            }
+
+            if (profiled) RuleProfiler.recordRule(ruleKeys.get(i), match, start);
+            if (match) return rule;
+        }
+
+        return null;
+    }
+
+    /**
+     * Get the next candidate rule
+     *
+     * @param candidates
+     *        The candidate bitset, null for all rules
+     * @param from
+     *        The first rule index to check
+     * @return The index of the next candidate, or -1
+     */
+    private int nextCandidate(long[] candidates, int from)
+    {
+        if (candidates == null) return (from < enabledRules.size() ? from : -1);
+
+        int word = from >> 6;
+        if (word >= words) return -1;
+
+        long bits = candidates[word] & (-1L << from);
+        while (true) {
+            if (bits != 0) return (word << 6) + Long.numberOfTrailingZeros(bits);
+            if (++word >= words) return -1;
+            bits = candidates[word];
+        }
+    }
+
+    /**
+     * Intersect the bitsets of the session attributes
+     *
+     * @param protocol
+     * @param srcIntf
+     * @param dstIntf
+     * @param srcAddress
+     * @param dstAddress
+     * @param srcPort
+     * @param dstPort
+     * @param resolved
+     *        Set to true for each attribute that was looked up, the
+     *        conditions on the other attributes must be evaluated
+     * @return The candidate rules
+     */
+    private long[] lookup(int protocol, int srcIntf, int dstIntf, InetAddress srcAddress, InetAddress dstAddress, int srcPort, int dstPort, boolean[] resolved)
+    {
+        long[] candidates = allRules.clone();
+
+        lookupTable(DIM_PROTOCOL, protocol, candidates, resolved);
+        lookupInterface(DIM_SRC_INTF, srcIntf, candidates, resolved);
+        lookupInterface(DIM_DST_INTF, dstIntf, candidates, resolved);
+        lookupInterval(DIM_SRC_PORT, srcPort, candidates, resolved);
+        lookupInterval(DIM_DST_PORT, dstPort, candidates, resolved);
+        lookupAddress(DIM_SRC_ADDR, srcAddress, candidates, resolved);
+        lookupAddress(DIM_DST_ADDR, dstAddress, candidates, resolved);
+
+        return candidates;
+    }
+
+    /**
+     * Look up a value in a table index
+     *
+     * @param dim
+     * @param value
+     * @param candidates
+     * @param resolved
+     */
+    private void lookupTable(int dim, int value, long[] candidates, boolean[] resolved)
+    {
+        if (!indexed[dim]) return;
+        if (value < 0 || value >= TABLE_SIZE) return;
+
+        and(candidates, tables[dim][value]);
+        resolved[dim] = true;
+    }
+
+    /**
+     * Look up an interface ID, only interfaces that exist are looked up
+     * (IntfMatcher doesn't match interfaces that don't)
+     *
+     * @param dim
+     * @param intf
+     * @param candidates
+     * @param resolved
+     */
+    private void lookupInterface(int dim, int intf, long[] candidates, boolean[] resolved)
+    {
+        if (!indexed[dim]) return;
+        if (UvmContextFactory.context().networkManager().findInterfaceId(intf) == null) return;
+
+        lookupTable(dim, intf, candidates, resolved);
+    }
+
+    /**
+     * Look up an IPv4 address in an interval index
+     *
+     * @param dim
+     * @param address
+     * @param candidates
+     * @param resolved
+     */
+    private void lookupAddress(int dim, InetAddress address, long[] candidates, boolean[] resolved)
+    {
+        if (!indexed[dim]) return;
+        if (!(address instanceof Inet4Address)) return;
+
+        byte[] bytes = address.getAddress();
+        long value = ((bytes[0] & 0xFFL) << 24) | ((bytes[1] & 0xFFL) << 16) | ((bytes[2] & 0xFFL) << 8) | (bytes[3] & 0xFFL);
+        lookupInterval(dim, value, candidates, resolved);
+    }
+
+    /**
+     * Look up a value in an interval index
+     *
+     * @param dim
+     * @param value
+     * @param candidates
+     * @param resolved
+     */
+    private void lookupInterval(int dim, long value, long[] candidates, boolean[] resolved)
+    {
+        if (!indexed[dim]) return;
+
+        int idx = Arrays.binarySearch(intervalStarts[dim], value);
+        if (idx < 0) idx = -idx - 2;
+
+        and(candidates, intervals[dim][idx]);
+        resolved[dim] = true;
+    }
+
+    /**
+     * Intersect a bitset with another
+     *
+     * @param bits
+     * @param other
+     */
+    private static void and(long[] bits, long[] other)
+    {
+        for (int i = 0; i < bits.length; i++)
+            bits[i] &= other[i];
+    }
+
+    /**
+     * Build the indexes
+     */
+    private void compile()
+    {
+        int count = enabledRules.size();
+        BitSet all = new BitSet(count);
+        all.set(0, count);
+        words = (count + 63) >> 6;
+        allRules = toWords(all);
+
+        /* The indexable conditions of each rule for each dimension */
+        List<List<int[]>> tableConds = new ArrayList<>();
+        List<List<Object[]>> intervalConds = new ArrayList<>();
+        for (int dim = 0; dim < DIM_COUNT; dim++) {
+            tableConds.add(new ArrayList<>());
+            intervalConds.add(new ArrayList<>());
+        }
+
+        for (int i = 0; i < count; i++) {
+            RuleCondition[] conds = ruleConditions.get(i);
+            int[] dims = new int[conds.length];
+
+            for (int c = 0; c < conds.length; c++) {
+                dims[c] = DIM_NONE;
+                try {
+                    dims[c] = classify(conds[c], i, tableConds, intervalConds);
+                } catch (Exception e) {
+                    logger.warn("Failed to index rule condition: " + conds[c], e);
+                }
+            }
+
+            ruleConditionDims.add(dims);
+        }
+
+        for (int dim = 0; dim < DIM_COUNT; dim++) {
+            if (!tableConds.get(dim).isEmpty()) buildTable(dim, all, tableConds.get(dim));
+            if (!intervalConds.get(dim).isEmpty()) buildIntervals(dim, all, intervalConds.get(dim));
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Compiled " + count + " rules: indexed " + Arrays.toString(indexed));
+        }
+    }
+
+    /**
+     * Find the dimension a condition can be indexed in and add it to the
+     * conditions of that dimension
+     *
+     * @param cond
+     *        The condition
+     * @param rule
+     *        The index of the rule
+     * @param tableConds
+     *        The table conditions of each dimension, {rule, value bits...}
+     * @param intervalConds
+     *        The interval conditions of each dimension, {rule, ranges}
+     * @return The dimension, or DIM_NONE
+     */
+    private int classify(RuleCondition cond, int rule, List<List<int[]>> tableConds, List<List<Object[]>> intervalConds)
+    {
+        RuleCondition.ConditionType type = cond.getComputedConditionType();
+        if (type == null || Boolean.TRUE.equals(cond.getInvert())) return DIM_NONE;
+
+        int dim;
+        switch (type) {
+        case PROTOCOL:
+            ProtocolMatcher protocolMatcher = cond.getProtocolMatcher();
+            if (protocolMatcher == null) return DIM_NONE;
+            int[] protocolValues = new int[TABLE_SIZE + 1];
+            protocolValues[0] = rule;
+            for (int p = 0; p < TABLE_SIZE; p++)
+                protocolValues[p + 1] = (protocolMatcher.isMatch(p) ? 1 : 0);
+            tableConds.get(DIM_PROTOCOL).add(protocolValues);
+            return DIM_PROTOCOL;
+
+        case SRC_INTF:
+        case DST_INTF:
+            dim = (type == RuleCondition.ConditionType.SRC_INTF ? DIM_SRC_INTF : DIM_DST_INTF);
+            IntfMatcher intfMatcher = cond.getIntfMatcher();
+            if (intfMatcher == null || intfMatcher.checksSettings()) return DIM_NONE;
+            int[] intfValues = new int[TABLE_SIZE + 1];
+            intfValues[0] = rule;
+            for (int intf = 0; intf < TABLE_SIZE; intf++)
+                intfValues[intf + 1] = (intfMatcher.isMatchId(intf) ? 1 : 0);
+            tableConds.get(dim).add(intfValues);
+            return dim;
+
+        case SRC_PORT:
+        case DST_PORT:
+            dim = (type == RuleCondition.ConditionType.SRC_PORT ? DIM_SRC_PORT : DIM_DST_PORT);
+            IntMatcher intMatcher = cond.getIntMatcher();
+            if (intMatcher == null) return DIM_NONE;
+            List<long[]> portRanges = intMatcher.getRanges();
+            if (portRanges == null) return DIM_NONE;
+            intervalConds.get(dim).add(new Object[] { rule, portRanges });
+            return dim;
+
+        case SRC_ADDR:
+        case DST_ADDR:
+            dim = (type == RuleCondition.ConditionType.SRC_ADDR ? DIM_SRC_ADDR : DIM_DST_ADDR);
+            IPMatcher ipMatcher = cond.getIPMatcher();
+            if (ipMatcher == null) return DIM_NONE;
+            List<long[]> addrRanges = ipMatcher.getRanges();
+            if (addrRanges == null) return DIM_NONE;
+            intervalConds.get(dim).add(new Object[] { rule, addrRanges });
+            return dim;
+
+        default:
+            return DIM_NONE;
+        }
+    }
+
+    /**
+     * Build a table index
+     *
+     * @param dim
+     *        The dimension
+     * @param all
+     *        All of the rules
+     * @param conds
+     *        The conditions, {rule, value bits...}
+     */
+    private void buildTable(int dim, BitSet all, List<int[]> conds)
+    {
+        long[][] table = new long[TABLE_SIZE][];
+
+        for (int value = 0; value < TABLE_SIZE; value++) {
+            BitSet bits = (BitSet) all.clone();
+            for (int[] cond : conds) {
+                if (cond[value + 1] == 0) bits.clear(cond[0]);
+            }
+            table[value] = toWords(bits);
+        }
+
+        tables[dim] = table;
+        indexed[dim] = true;
+    }
+
+    /**
+     * Build an interval index, the values are split in intervals at the
+     * boundaries of all of the ranges and each interval has the bitset of the
+     * rules that match it
+     *
+     * @param dim
+     *        The dimension
+     * @param all
+     *        All of the rules
+     * @param conds
+     *        The conditions, {rule, ranges}
+     */
+    @SuppressWarnings("unchecked")
+    private void buildIntervals(int dim, BitSet all, List<Object[]> conds)
+    {
+        TreeSet<Long> boundaries = new TreeSet<>();
+        boundaries.add(Long.MIN_VALUE);
+        for (Object[] cond : conds) {
+            for (long[] range : (List<long[]>) cond[1]) {
+                boundaries.add(range[0]);
+                if (range[1] < Long.MAX_VALUE) boundaries.add(range[1] + 1);
+            }
+        }
+
+        long[] starts = new long[boundaries.size()];
+        int n = 0;
+        for (Long boundary : boundaries)
+            starts[n++] = boundary;
+
+        BitSet[] bits = new BitSet[starts.length];
+        for (int i = 0; i < starts.length; i++)
+            bits[i] = (BitSet) all.clone();
+
+        for (Object[] cond : conds) {
+            int rule = (Integer) cond[0];
+            BitSet covered = new BitSet(starts.length);
+            for (long[] range : (List<long[]>) cond[1]) {
+                int from = Arrays.binarySearch(starts, range[0]);
+                int to = (range[1] < Long.MAX_VALUE ? Arrays.binarySearch(starts, range[1] + 1) : starts.length);
+                covered.set(from, to);
+            }
+            for (int i = covered.nextClearBit(0); i < starts.length; i = covered.nextClearBit(i + 1))
+                bits[i].clear(rule);
+        }
+
+        long[][] interval = new long[starts.length][];
+        for (int i = 0; i < starts.length; i++)
+            interval[i] = toWords(bits[i]);
+
+        intervalStarts[dim] = starts;
+        intervals[dim] = interval;
+        indexed[dim] = true;
+    }
+
+    /**
+     * Convert a bitset to long words
+     *
+     * @param bits
+     *        The bitset
+     * @return The words, always the size of the rule bitsets
+     */
+    private long[] toWords(BitSet bits)
+    {
+        return Arrays.copyOf(bits.toLongArray(), words);
+    }
+}
@@ -0,0 +1,403 @@
+/**
+ * $Id$
+ */
+
+package com.untangle.uvm.app;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A DFA that checks a string against all the globs of a GlobMatcher list in a
+ * single pass.
+ *
+ * Only plain globs are compiled: '*' matches any run of characters, '?' and
+ * '.' any one character (GlobUtil.globToRegex leaves the '.' a regex '.') and
+ * every other character itself. GlobUtil passes other regex syntax through,
+ * those globs stay regexes. The DFA is built up front by
+ * subset construction over the characters used in the globs, all the other
+ * characters are one class. Once every glob that is still alive only has '*'
+ * left, the string matches whatever follows, so those states are merged into
+ * one accepting state and the scan stops there.
+ *
+ * The number of states can grow exponentially with the number of '*' in the
+ * middle of globs, build() gives up past MAX_STATES and the matcher uses a
+ * GlobPrefilter instead.
+ *
+ * The regex '.' doesn't match line terminators and matches a surrogate pair as
+ * one character. Strings with those characters get UNKNOWN and are checked
+ * with the regexes.
+ */
+class GlobAutomaton
+{
+    static final int NO_MATCH = 0;
+    static final int MATCH = 1;
+    static final int UNKNOWN = 2;
+
+    /* Largest DFA built */
+    private static final int MAX_STATES = 1024;
+
+    /* Tokens of a glob, other values are literal characters */
+    private static final int TOKEN_STAR = -1;
+    private static final int TOKEN_ANY = -2;
+    private static final int TOKEN_END = -3;
+
+    /* Character classes */
+    private static final int CLASS_UNKNOWN = -1;
+    private static final int CLASS_OTHER = 0;
+
+    /* Regex syntax that isn't a plain glob (see GlobUtil.globToRegex) */
+    private static final String REGEX_CHARS = "\\^$|()[]{}+";
+
+    /* Class of each ASCII character, and of the other characters used in the globs */
+    private final int[] asciiClasses = new int[128];
+    private final Map<Character, Integer> classes = new HashMap<>();
+    private final int classCount;
+
+    /* transitions[state * classCount + class] */
+    private final int[] transitions;
+    private final boolean[] accepting;
+    private final int acceptAllState;
+    private final int deadState;
+
+    /**
+     * Constructor
+     *
+     * @param asciiClasses
+     *        The classes of the ASCII characters
+     * @param classes
+     *        The classes of the other characters
+     * @param classCount
+     *        The number of classes
+     * @param transitions
+     *        The transition table
+     * @param accepting
+     *        The accepting states
+     * @param acceptAllState
+     *        The state that accepts any string that follows
+     * @param deadState
+     *        The state that accepts nothing
+     */
+    private GlobAutomaton(int[] asciiClasses, Map<Character, Integer> classes, int classCount, int[] transitions, boolean[] accepting, int acceptAllState, int deadState)
+    {
+        System.arraycopy(asciiClasses, 0, this.asciiClasses, 0, 128);
+        this.classes.putAll(classes);
+        this.classCount = classCount;
+        this.transitions = transitions;
+        this.accepting = accepting;
+        this.acceptAllState = acceptAllState;
+        this.deadState = deadState;
+    }
+
+    /**
+     * Check if a glob can be compiled
+     *
+     * @param glob
+     *        The glob (lower case)
+     * @return True if the glob only uses '*', '?' and '.'
+     */
+    static boolean isPlainGlob(String glob)
+    {
+        for (int i = 0; i < glob.length(); i++) {
+            if (REGEX_CHARS.indexOf(glob.charAt(i)) >= 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Build the DFA of a list of plain globs
+     *
+     * @param globs
+     *        The globs (lower case)
+     * @return The DFA, or null if it would have more than MAX_STATES states
+     */
+    static GlobAutomaton build(List<String> globs)
+    {
+        /**
+         * The NFA has a state for each position in each glob (including the
+         * end), numbered one glob after another
+         */
+        int nfaSize = 0;
+        for (String glob : globs)
+            nfaSize += glob.length() + 1;
+
+        int[] tokens = new int[nfaSize];
+        boolean[] starsOnly = new boolean[nfaSize];
+        int[] starts = new int[globs.size()];
+
+        int[] asciiClasses = new int[128];
+        Map<Character, Integer> classes = new HashMap<>();
+        int classCount = 1;
+
+        int id = 0;
+        for (int g = 0; g < globs.size(); g++) {
+            String glob = globs.get(g);
+            starts[g] = id;
+            for (int i = 0; i < glob.length(); i++) {
+                char c = glob.charAt(i);
+                if (c == '*') {
+                    tokens[id + i] = TOKEN_STAR;
+                } else if (c == '?' || c == '.') {
+                    tokens[id + i] = TOKEN_ANY;
+                } else {
+                    tokens[id + i] = c;
+                    if (c < 128 && asciiClasses[c] == CLASS_OTHER) asciiClasses[c] = classCount++;
+                    else if (c >= 128 && !classes.containsKey(c)) classes.put(c, classCount++);
+                }
+            }
+            tokens[id + glob.length()] = TOKEN_END;
+
+            /* the positions that only have '*' left (and so match anything that follows) */
+            for (int i = glob.length() - 1; i >= 0 && tokens[id + i] == TOKEN_STAR; i--)
+                starsOnly[id + i] = true;
+
+            id += glob.length() + 1;
+        }
+
+        /* class of the literal of each NFA state */
+        int[] tokenClasses = new int[nfaSize];
+        for (int i = 0; i < nfaSize; i++) {
+            if (tokens[i] < 0) tokenClasses[i] = CLASS_UNKNOWN;
+            else if (tokens[i] < 128) tokenClasses[i] = asciiClasses[tokens[i]];
+            else tokenClasses[i] = classes.get((char) tokens[i]);
+        }
+
+        /**
+         * Subset construction, the DFA states are the sorted NFA states they
+         * hold. The accept-all state is {-1}, the dead state is {}.
+         */
+        int[] acceptAllSet = new int[] { -1 };
+        int[] deadSet = new int[0];
+
+        Map<StateKey, Integer> stateIds = new HashMap<>();
+        List<int[]> sets = new ArrayList<>();
+
+        BitSet startSet = new BitSet(nfaSize);
+        for (int start : starts)
+            addClosure(startSet, start, tokens);
+
+        addState(normalize(startSet, starsOnly, acceptAllSet), stateIds, sets);
+        int acceptAllState = addState(acceptAllSet, stateIds, sets);
+        int deadState = addState(deadSet, stateIds, sets);
+
+        int[] transitions = new int[64 * classCount];
+        BitSet next = new BitSet(nfaSize);
+
+        for (int state = 0; state < sets.size(); state++) {
+            int[] set = sets.get(state);
+
+            for (int cls = 0; cls < classCount; cls++) {
+                int target;
+                if (state == acceptAllState) {
+                    target = acceptAllState;
+                } else {
+                    next.clear();
+                    for (int nfaState : set) {
+                        int token = tokens[nfaState];
+                        if (token == TOKEN_STAR) addClosure(next, nfaState, tokens);
+                        else if (token == TOKEN_ANY) addClosure(next, nfaState + 1, tokens);
+                        else if (token >= 0 && tokenClasses[nfaState] == cls) addClosure(next, nfaState + 1, tokens);
+                    }
+                    target = addState(normalize(next, starsOnly, acceptAllSet), stateIds, sets);
+                    if (sets.size() > MAX_STATES) return null;
+                }
+
+                int index = state * classCount + cls;
+                if (index >= transitions.length) transitions = Arrays.copyOf(transitions, transitions.length * 2);
+                transitions[index] = target;
+            }
+        }
+
+        boolean[] accepting = new boolean[sets.size()];
+        for (int state = 0; state < sets.size(); state++) {
+            for (int nfaState : sets.get(state)) {
+                if (nfaState < 0 || tokens[nfaState] == TOKEN_END) accepting[state] = true;
+            }
+        }
+
+        return new GlobAutomaton(asciiClasses, classes, classCount, Arrays.copyOf(transitions, sets.size() * classCount), accepting, acceptAllState, deadState);
+    }
+
+    /**
+     * Check a string
+     *
+     * @param str
+     *        The string (lower case)
+     * @return MATCH, NO_MATCH or UNKNOWN if the string must be checked with
+     *         the regexes
+     */
+    int match(String str)
+    {
+        int state = 0;
+
+        for (int i = 0; i < str.length(); i++) {
+            int cls = classOf(str.charAt(i));
+            if (cls == CLASS_UNKNOWN) return UNKNOWN;
+
+            state = transitions[state * classCount + cls];
+
+            if (state == deadState) return NO_MATCH;
+            if (state == acceptAllState) {
+                /* '*' doesn't match line terminators */
+                for (int j = i + 1; j < str.length(); j++) {
+                    if (isLineTerminator(str.charAt(j))) return UNKNOWN;
+                }
+                return MATCH;
+            }
+        }
+
+        return accepting[state] ? MATCH : NO_MATCH;
+    }
+
+    /**
+     * Get the number of states
+     *
+     * @return The number of states
+     */
+    int size()
+    {
+        return accepting.length;
+    }
+
+    /**
+     * Get the class of a character
+     *
+     * @param c
+     *        The character
+     * @return The class
+     */
+    private int classOf(char c)
+    {
+        if (c < 128) {
+            if (c == '\n' || c == '\r') return CLASS_UNKNOWN;
+            return asciiClasses[c];
+        }
+        if (isLineTerminator(c) || Character.isSurrogate(c)) return CLASS_UNKNOWN;
+
+        Integer cls = classes.get(c);
+        return (cls == null) ? CLASS_OTHER : cls;
+    }
+
+    /**
+     * Check for a character the regex '.' doesn't match
+     *
+     * @param c
+     *        The character
+     * @return True if it is a line terminator
+     */
+    private static boolean isLineTerminator(char c)
+    {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    /**
+     * Add an NFA state and the states reached by '*' matching nothing
+     *
+     * @param set
+     *        The set of NFA states
+     * @param nfaState
+     *        The state to add
+     * @param tokens
+     *        The tokens of the NFA states
+     */
+    private static void addClosure(BitSet set, int nfaState, int[] tokens)
+    {
+        set.set(nfaState);
+        while (tokens[nfaState] == TOKEN_STAR)
+            set.set(++nfaState);
+    }
+
+    /**
+     * Turn a set of NFA states into a DFA state
+     *
+     * @param set
+     *        The NFA states
+     * @param starsOnly
+     *        The NFA states that only have '*' left
+     * @param acceptAllSet
+     *        The accept-all state
+     * @return The sorted NFA states
+     */
+    private static int[] normalize(BitSet set, boolean[] starsOnly, int[] acceptAllSet)
+    {
+        int[] states = new int[set.cardinality()];
+        int i = 0;
+        for (int nfaState = set.nextSetBit(0); nfaState >= 0; nfaState = set.nextSetBit(nfaState + 1)) {
+            if (starsOnly[nfaState]) return acceptAllSet;
+            states[i++] = nfaState;
+        }
+        return states;
+    }
+
+    /**
+     * Get the ID of a DFA state, adding it if it is new
+     *
+     * @param set
+     *        The NFA states
+     * @param stateIds
+     *        The IDs of the DFA states
+     * @param sets
+     *        The NFA states of each DFA state
+     * @return The ID
+     */
+    private static int addState(int[] set, Map<StateKey, Integer> stateIds, List<int[]> sets)
+    {
+        StateKey key = new StateKey(set);
+        Integer stateId = stateIds.get(key);
+        if (stateId != null) return stateId;
+
+        stateIds.put(key, sets.size());
+        sets.add(set);
+        return sets.size() - 1;
+    }
+
+    /**
+     * A set of NFA states as a hash key
+     */
+    private static class StateKey
+    {
+        private final int[] set;
+        private final int hash;
+
+        /**
+         * Constructor
+         *
+         * @param set
+         *        The sorted NFA states
+         */
+        StateKey(int[] set)
+        {
+            this.set = set;
+            this.hash = Arrays.hashCode(set);
+        }
+
+        /**
+         * hashCode
+         *
+         * @return The hash
+         */
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        /**
+         * equals
+         *
+         * @param o
+         *        The other key
+         * @return True if both have the same states
+         */
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof StateKey)) return false;
+            return Arrays.equals(set, ((StateKey) o).set);
+        }
+    }
+}
@@ -6,6 +6,7 @@ package com.untangle.uvm.app;
 
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.regex.Pattern;
 
@@ -15,11 +16,17 @@ import com.untangle.uvm.util.GlobUtil;
 
 /**
  * Glob matcher
+ *
+ * With uvm.glob.automaton set, the plain globs of a list are compiled into one
+ * GlobAutomaton so a string is checked against all of them in one pass. Lists
+ * too large for the automaton use a GlobPrefilter to pick the globs to check.
  */
 public class GlobMatcher
 {
     private static final String MARKER_SEPERATOR = ",";
 
+    private static final boolean AUTOMATON = (System.getProperty("uvm.glob.automaton") != null);
+
     private final Logger logger = Logger.getLogger(getClass());
 
     private static Map<String,GlobMatcher> MatcherCache;
@@ -61,6 +68,15 @@ public class GlobMatcher
      */
     private LinkedList<GlobMatcher> children = null;
 
+    /**
+     * if this is a list, the automaton (or prefilter) of the plain globs and
+     * the children that are not in it
+     */
+    private GlobAutomaton automaton = null;
+    private GlobPrefilter prefilter = null;
+    private GlobMatcher[] prefilterChildren = null;
+    private List<GlobMatcher> regexChildren = null;
+
     /**
      * Create a str matcher from the given string
      * 
@@ -100,6 +116,16 @@ public class GlobMatcher
             return false;
 
         case LIST:
+            if (this.automaton != null && str != null) {
+                int result = this.automaton.match(str);
+                if (result == GlobAutomaton.MATCH) return true;
+                if (result == GlobAutomaton.NO_MATCH) return isRegexChildMatch(str);
+            }
+            if (this.prefilter != null && str != null) {
+                final String lowerStr = str;
+                if (this.prefilter.match(lowerStr, i -> this.prefilterChildren[i].isMatch(lowerStr))) return true;
+                return isRegexChildMatch(str);
+            }
             for (GlobMatcher child : this.children) {
                 if (child.isMatch(str)) return true;
             }
@@ -112,6 +138,21 @@ public class GlobMatcher
         }
     }
 
+    /**
+     * Check the children of a list that are not in the automaton or prefilter
+     * 
+     * @param str
+     *        The string to check
+     * @return True if one matches
+     */
+    private boolean isRegexChildMatch(String str)
+    {
+        for (GlobMatcher child : this.regexChildren) {
+            if (child.isMatch(str)) return true;
+        }
+        return false;
+    }
+
     /**
      * Maintain cache of matchers.
      *
@@ -166,6 +207,8 @@ public class GlobMatcher
                 this.children.add(child);
             }
 
+            if (AUTOMATON) initializeAutomaton();
+
             return;
         }
 
@@ -178,4 +221,36 @@ public class GlobMatcher
 
         return;
     }
+
+    /**
+     * Compile the plain globs of a list into an automaton
+     */
+    private void initializeAutomaton()
+    {
+        List<String> globs = new LinkedList<>();
+        List<GlobMatcher> plain = new LinkedList<>();
+        List<GlobMatcher> others = new LinkedList<>();
+
+        for (GlobMatcher child : this.children) {
+            if (child.type == GlobMatcherType.SINGLE && GlobAutomaton.isPlainGlob(child.single)) {
+                globs.add(child.single);
+                plain.add(child);
+            } else {
+                others.add(child);
+            }
+        }
+        if (globs.isEmpty()) return;
+
+        this.regexChildren = others;
+
+        GlobAutomaton automaton = GlobAutomaton.build(globs);
+        if (automaton != null) {
+            this.automaton = automaton;
+            return;
+        }
+
+        logger.debug("Too many states for the automaton of " + globs.size() + " globs, using a prefilter");
+        this.prefilterChildren = plain.toArray(new GlobMatcher[plain.size()]);
+        this.prefilter = new GlobPrefilter(globs);
+    }
 }
@@ -0,0 +1,191 @@
+/**
+ * $Id$
+ */
+
+package com.untangle.uvm.app;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.IntPredicate;
+
+/**
+ * An Aho-Corasick filter for a list of plain globs (see GlobAutomaton), used
+ * when the list is too large for a DFA.
+ *
+ * Every string a glob matches contains the longest literal run of the glob, so
+ * one pass over the string with an Aho-Corasick automaton of those runs finds
+ * the few globs that can match. Only those are checked with their regex. The
+ * automaton is the size of the runs, it can't blow up like the DFA. Globs
+ * without any literal ("*", "?") are always checked.
+ */
+class GlobPrefilter
+{
+    /* The edges of each trie node, sorted by character */
+    private final char[][] edgeChars;
+    private final int[][] edgeTargets;
+
+    private final int[] failures;
+
+    /* The globs whose run ends at each node, and the next node down the failure links that has some */
+    private final int[][] outputs;
+    private final int[] outputLinks;
+
+    private final int[] alwaysChecked;
+    private final int globCount;
+
+    /**
+     * Build the filter of a list of plain globs
+     *
+     * @param globs
+     *        The globs (lower case)
+     */
+    GlobPrefilter(List<String> globs)
+    {
+        List<TreeMap<Character, Integer>> edges = new ArrayList<>();
+        List<List<Integer>> nodeOutputs = new ArrayList<>();
+        List<Integer> always = new LinkedList<>();
+
+        edges.add(new TreeMap<>());
+        nodeOutputs.add(new LinkedList<>());
+
+        for (int g = 0; g < globs.size(); g++) {
+            String run = longestLiteral(globs.get(g));
+            if (run.isEmpty()) {
+                always.add(g);
+                continue;
+            }
+
+            int node = 0;
+            for (int i = 0; i < run.length(); i++) {
+                Integer next = edges.get(node).get(run.charAt(i));
+                if (next == null) {
+                    next = edges.size();
+                    edges.add(new TreeMap<>());
+                    nodeOutputs.add(new LinkedList<>());
+                    edges.get(node).put(run.charAt(i), next);
+                }
+                node = next;
+            }
+            nodeOutputs.get(node).add(g);
+        }
+
+        int nodeCount = edges.size();
+        this.edgeChars = new char[nodeCount][];
+        this.edgeTargets = new int[nodeCount][];
+        this.outputs = new int[nodeCount][];
+        for (int node = 0; node < nodeCount; node++) {
+            TreeMap<Character, Integer> nodeEdges = edges.get(node);
+            edgeChars[node] = new char[nodeEdges.size()];
+            edgeTargets[node] = new int[nodeEdges.size()];
+            int i = 0;
+            for (Map.Entry<Character, Integer> edge : nodeEdges.entrySet()) {
+                edgeChars[node][i] = edge.getKey();
+                edgeTargets[node][i] = edge.getValue();
+                i++;
+            }
+            outputs[node] = nodeOutputs.get(node).stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        /* failure links, breadth first */
+        this.failures = new int[nodeCount];
+        this.outputLinks = new int[nodeCount];
+        Arrays.fill(outputLinks, -1);
+
+        int[] queue = new int[nodeCount];
+        int head = 0;
+        int tail = 0;
+        for (int child : edgeTargets[0])
+            queue[tail++] = child;
+
+        while (head < tail) {
+            int node = queue[head++];
+            for (int i = 0; i < edgeChars[node].length; i++) {
+                int child = edgeTargets[node][i];
+                int failure = failures[node];
+                while (failure != 0 && next(failure, edgeChars[node][i]) < 0)
+                    failure = failures[failure];
+                int target = next(failure, edgeChars[node][i]);
+                failures[child] = (target >= 0) ? target : 0;
+                outputLinks[child] = (outputs[failures[child]].length > 0) ? failures[child] : outputLinks[failures[child]];
+                queue[tail++] = child;
+            }
+        }
+
+        this.alwaysChecked = always.stream().mapToInt(Integer::intValue).toArray();
+        this.globCount = globs.size();
+    }
+
+    /**
+     * Check a string against the globs
+     *
+     * @param str
+     *        The string (lower case)
+     * @param check
+     *        Checks if the glob with an index matches the string
+     * @return True if a glob matches
+     */
+    boolean match(String str, IntPredicate check)
+    {
+        long[] checked = new long[(globCount + 63) >>> 6];
+        int node = 0;
+
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+
+            int target = next(node, c);
+            while (target < 0 && node != 0) {
+                node = failures[node];
+                target = next(node, c);
+            }
+            node = (target < 0) ? 0 : target;
+
+            for (int out = (outputs[node].length > 0) ? node : outputLinks[node]; out >= 0; out = outputLinks[out]) {
+                for (int g : outputs[out]) {
+                    if ((checked[g >>> 6] & (1L << g)) != 0) continue;
+                    checked[g >>> 6] |= 1L << g;
+                    if (check.test(g)) return true;
+                }
+            }
+        }
+
+        for (int g : alwaysChecked) {
+            if (check.test(g)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Follow a trie edge
+     *
+     * @param node
+     *        The node
+     * @param c
+     *        The character
+     * @return The target node, -1 if there is no edge
+     */
+    private int next(int node, char c)
+    {
+        int i = Arrays.binarySearch(edgeChars[node], c);
+        return (i < 0) ? -1 : edgeTargets[node][i];
+    }
+
+    /**
+     * Get the longest run of characters without wildcards of a glob
+     *
+     * @param glob
+     *        The glob
+     * @return The run
+     */
+    private static String longestLiteral(String glob)
+    {
+        String longest = "";
+        for (String run : glob.split("[*?.]+")) {
+            if (run.length() > longest.length()) longest = run;
+        }
+        return longest;
+    }
+}
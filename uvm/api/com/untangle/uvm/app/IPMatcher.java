@@ -4,13 +4,21 @@
 
 package com.untangle.uvm.app;
 
+import java.net.Inet4Address;
+import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.util.LinkedList;
+import java.util.List;
 
 import org.apache.log4j.Logger;
 
 /**
  * An interface to test for an address.
+ *
+ * IPv4 and IPv6 addresses, ranges and subnets (CIDR, or a netmask for IPv4) are
+ * supported. The entries of a list are compiled into an IPRangeMap, so a list
+ * of tens of thousands of addresses costs about the same to check as a single
+ * subnet.
  */
 public class IPMatcher
 {
@@ -21,12 +29,17 @@ public class IPMatcher
     private static final String MARKER_RANGE = "-";
     private static final String MARKER_SUBNET = "/";
     private static final String IPADDR_REGEX = "^(([0-9]|[1-9][0-9]|1[0-9]{2}|2[0-4][0-9]|25[0-5])\\.){3}([0-9]|[1-9][0-9]|1[0-9]{2}|2[0-4][0-9]|25[0-5])$";
+    /* Only checks the characters, the address is parsed by InetAddress */
+    private static final String IP6ADDR_REGEX = "^[0-9a-f:]*:[0-9a-f:.]*$";
 
     private static IPMatcher ANY_MATCHER = new IPMatcher(MARKER_ANY);
     private static IPMatcher NIL_MATCHER = new IPMatcher(MARKER_NONE);
 
     /* Number of bytes in an IPv4 address */
-    private static final int INADDRSZ = 4; /* XXX IPv6 */
+    private static final int INADDRSZ = 4;
+
+    /* Number of bits in an IPv6 address */
+    private static final int IN6ADDRBITS = 128;
 
 // THIS IS FOR ECLIPSE - @formatter:off
     
@@ -67,9 +80,10 @@ public class IPMatcher
     private IPMatcherType type = IPMatcherType.NONE;
 
     /**
-     * if this port matcher is a list of port matchers, this list stores the
-     * children
+     * if this matcher is a list of matchers, the entries that are ranges of
+     * addresses are in rangeMap and this list stores the other children
      */
+    private IPRangeMap rangeMap = null;
     private LinkedList<IPMatcher> children = null;
 
     /**
@@ -84,6 +98,13 @@ public class IPMatcher
     private long subnetNetwork = -1;
     private long subnetNetmask = -1;
 
+    /**
+     * if its an IPv6 range or subnet these store the first and last address
+     * ({high 64 bits, low 64 bits})
+     */
+    private long[] rangeMin6 = null;
+    private long[] rangeMax6 = null;
+
     /**
      * if its just an int matcher this stores the number
      */
@@ -140,10 +161,14 @@ public class IPMatcher
             return false;
 
         case RANGE:
+            if (this.rangeMin6 != null) return isMatchIPv6(address);
+            if (!(address instanceof Inet4Address)) return false;
             tmp = addrToLong(address);
             return ((this.rangeMin <= tmp) && (tmp <= this.rangeMax));
 
         case SUBNET:
+            if (this.rangeMin6 != null) return isMatchIPv6(address);
+            if (!(address instanceof Inet4Address)) return false;
             //logger.error("CHECK: " + address + " inside? " + Long.toHexString(this.subnetNetwork) + "/" + Long.toHexString(this.subnetNetmask) );
             tmp = addrToLong(address);
             boolean match = ((tmp & this.subnetNetmask) == (this.subnetNetwork & this.subnetNetmask));
@@ -151,6 +176,7 @@ public class IPMatcher
             return match;
 
         case LIST:
+            if (this.rangeMap.get(address) >= 0) return true;
             for (IPMatcher child : this.children) {
                 if (child.isMatch(address)) return true;
             }
@@ -163,6 +189,22 @@ public class IPMatcher
 
     }
 
+    /**
+     * Check an address against an IPv6 range or subnet
+     * 
+     * @param address
+     *        The address to test
+     * @return True if the address is in the range
+     */
+    private boolean isMatchIPv6(InetAddress address)
+    {
+        if (!(address instanceof Inet6Address)) return false;
+
+        long high = IPRangeMap.high(address);
+        long low = IPRangeMap.low(address);
+        return (IPRangeMap.compare(this.rangeMin6[0], this.rangeMin6[1], high, low) <= 0) && (IPRangeMap.compare(high, low, this.rangeMax6[0], this.rangeMax6[1]) <= 0);
+    }
+
     /**
      * Returns the type of this matcher This is useful outside the class in a
      * few select instances
@@ -174,6 +216,118 @@ public class IPMatcher
         return this.type;
     }
 
+    /**
+     * Get the ranges of IPv4 addresses this matcher matches, used to index rule
+     * conditions (CompiledRuleSet). IPv6 entries match no IPv4 address and
+     * aren't included.
+     * 
+     * @return A list of inclusive {min, max} ranges of addresses (as unsigned
+     *         longs), or null if the matcher can't be expressed as ranges
+     */
+    List<long[]> getRanges()
+    {
+        List<long[]> ranges = new LinkedList<>();
+
+        switch (this.type)
+        {
+
+        case ANY:
+            ranges.add(new long[] { 0, 0xFFFFFFFFL });
+            return ranges;
+
+        case NONE:
+            return ranges;
+
+        case SINGLE:
+            if (!(this.single instanceof Inet4Address)) return ranges;
+            long addr = addrToLong(this.single);
+            ranges.add(new long[] { addr, addr });
+            return ranges;
+
+        case RANGE:
+            if (this.rangeMin6 != null) return ranges;
+            if (this.rangeMin <= this.rangeMax) ranges.add(new long[] { this.rangeMin, this.rangeMax });
+            return ranges;
+
+        case SUBNET:
+            if (this.rangeMin6 != null) return ranges;
+            long hostmask = ~this.subnetNetmask & 0xFFFFFFFFL;
+            /* only contiguous netmasks are a single range */
+            if ((hostmask & (hostmask + 1)) != 0) return null;
+            long network = this.subnetNetwork & this.subnetNetmask;
+            ranges.add(new long[] { network, network | hostmask });
+            return ranges;
+
+        case LIST:
+            ranges.addAll(this.rangeMap.getIPv4Ranges());
+            for (IPMatcher child : this.children) {
+                List<long[]> childRanges = child.getRanges();
+                if (childRanges == null) return null;
+                ranges.addAll(childRanges);
+            }
+            return ranges;
+
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * Add the addresses this matcher matches to an IPRangeMap
+     * 
+     * @param map
+     *        The map
+     * @param value
+     *        The value of the addresses
+     * @return False if the matcher can't be expressed as ranges, nothing is
+     *         added then
+     */
+    boolean addRanges(IPRangeMap map, int value)
+    {
+        switch (this.type)
+        {
+
+        case ANY:
+            map.addIPv4(0, 0xFFFFFFFFL, value);
+            map.addIPv6(0, 0, -1L, -1L, value);
+            return true;
+
+        case NONE:
+            return true;
+
+        case SINGLE:
+            if (this.single instanceof Inet4Address) {
+                long addr = addrToLong(this.single);
+                map.addIPv4(addr, addr, value);
+            } else {
+                long high = IPRangeMap.high(this.single);
+                long low = IPRangeMap.low(this.single);
+                map.addIPv6(high, low, high, low, value);
+            }
+            return true;
+
+        case RANGE:
+        case SUBNET:
+            if (this.rangeMin6 != null) {
+                map.addIPv6(this.rangeMin6[0], this.rangeMin6[1], this.rangeMax6[0], this.rangeMax6[1], value);
+                return true;
+            }
+            List<long[]> ranges = getRanges();
+            if (ranges == null) return false;
+            for (long[] range : ranges)
+                map.addIPv4(range[0], range[1], value);
+            return true;
+
+        case LIST:
+            if (!this.children.isEmpty()) return false;
+            map.addAll(this.rangeMap, value);
+            return true;
+
+        default:
+            return false;
+        }
+    }
+
     /**
      * Return string representation
      * 
@@ -236,15 +390,17 @@ public class IPMatcher
         if (matcher.contains(MARKER_SEPERATOR)) {
             this.type = IPMatcherType.LIST;
 
+            this.rangeMap = new IPRangeMap();
             this.children = new LinkedList<>();
 
             String[] results = matcher.split(MARKER_SEPERATOR);
 
-            /* check each one */
+            /* check each one, only the ones that aren't ranges are kept */
             for (String childString : results) {
                 IPMatcher child = new IPMatcher(childString);
-                this.children.add(child);
+                if (!this.rangeMap.add(child, 0)) this.children.add(child);
             }
+            this.rangeMap.compile();
 
             return;
         }
@@ -279,14 +435,18 @@ public class IPMatcher
             }
 
             try {
-                if (!results[0].matches(IPADDR_REGEX)) throw new java.lang.IllegalArgumentException("Unknown IPMatcher format: \"" + matcher + "\" (invalid addr 0)");
-                if (!results[1].matches(IPADDR_REGEX)) throw new java.lang.IllegalArgumentException("Unknown IPMatcher format: \"" + matcher + "\" (invalid addr 1)");
-
-                InetAddress addrMin = InetAddress.getByName(results[0]);
-                InetAddress addrMax = InetAddress.getByName(results[1]);
-
-                this.rangeMin = addrToLong(addrMin);
-                this.rangeMax = addrToLong(addrMax);
+                InetAddress addrMin = parseAddress(results[0], matcher, "invalid addr 0");
+                InetAddress addrMax = parseAddress(results[1], matcher, "invalid addr 1");
+
+                if (addrMin instanceof Inet4Address && addrMax instanceof Inet4Address) {
+                    this.rangeMin = addrToLong(addrMin);
+                    this.rangeMax = addrToLong(addrMax);
+                } else if (addrMin instanceof Inet6Address && addrMax instanceof Inet6Address) {
+                    this.rangeMin6 = new long[] { IPRangeMap.high(addrMin), IPRangeMap.low(addrMin) };
+                    this.rangeMax6 = new long[] { IPRangeMap.high(addrMax), IPRangeMap.low(addrMax) };
+                } else {
+                    throw new java.lang.IllegalArgumentException("Unknown IPMatcher format: \"" + matcher + "\" (mixed IPv4 and IPv6)");
+                }
             } catch (java.net.UnknownHostException e) {
                 logger.warn("Unknown IPMatcher range format: \"" + matcher + "\"", e);
                 throw new java.lang.IllegalArgumentException("Unknown IPMatcher format: \"" + matcher + "\" (unknown host)", e);
@@ -312,9 +472,24 @@ public class IPMatcher
             }
 
             try {
-                if (!results[0].matches(IPADDR_REGEX)) throw new java.lang.IllegalArgumentException("Unknown IPMatcher format: \"" + matcher + "\" (invalid addr 0)");
+                InetAddress addrNetwork = parseAddress(results[0], matcher, "invalid addr 0");
+
+                /**
+                 * IPv6 subnets are always CIDR and stored as a range
+                 */
+                if (addrNetwork instanceof Inet6Address) {
+                    int prefix = Integer.parseInt(results[1]);
+                    if (prefix < 0 || prefix > IN6ADDRBITS) throw new java.lang.IllegalArgumentException("Unknown IPMatcher format: \"" + matcher + "\" (invalid prefix)");
+
+                    long maskHigh = (prefix >= 64) ? -1L : (prefix == 0 ? 0 : -1L << (64 - prefix));
+                    long maskLow = (prefix <= 64) ? 0 : (prefix == IN6ADDRBITS ? -1L : -1L << (IN6ADDRBITS - prefix));
+                    long high = IPRangeMap.high(addrNetwork);
+                    long low = IPRangeMap.low(addrNetwork);
+                    this.rangeMin6 = new long[] { high & maskHigh, low & maskLow };
+                    this.rangeMax6 = new long[] { high | ~maskHigh, low | ~maskLow };
+                    return;
+                }
 
-                InetAddress addrNetwork = InetAddress.getByName(results[0]);
                 this.subnetNetwork = addrToLong(addrNetwork);
 
                 /**
@@ -351,9 +526,7 @@ public class IPMatcher
          */
         this.type = IPMatcherType.SINGLE;
         try {
-            if (!matcher.matches(IPADDR_REGEX)) throw new java.lang.IllegalArgumentException("Unknown IPMatcher format: \"" + matcher + "\" (invalid host)");
-
-            this.single = InetAddress.getByName(matcher);
+            this.single = parseAddress(matcher, matcher, "invalid host");
         } catch (java.net.UnknownHostException e) {
             logger.warn("Unknown IPMatcher single format: \"" + matcher + "\"", e);
             throw new java.lang.IllegalArgumentException("Unknown IPMatcher format: \"" + matcher + "\" (unknown host)", e);
@@ -365,6 +538,27 @@ public class IPMatcher
         return;
     }
 
+    /**
+     * Parse an IPv4 or IPv6 address literal
+     * 
+     * @param addr
+     *        The address string
+     * @param matcher
+     *        The matcher string, for the error message
+     * @param error
+     *        The error, if the string isn't an address
+     * @return The address
+     * @throws java.net.UnknownHostException
+     *         If the string isn't a valid IPv6 address
+     */
+    private static InetAddress parseAddress(String addr, String matcher, String error) throws java.net.UnknownHostException
+    {
+        if (!addr.matches(IPADDR_REGEX) && !addr.matches(IP6ADDR_REGEX)) throw new java.lang.IllegalArgumentException("Unknown IPMatcher format: \"" + matcher + "\" (" + error + ")");
+
+        /* a literal is never looked up in DNS */
+        return InetAddress.getByName(addr);
+    }
+
     /**
      * Convert a 4-byte address to a long
      * 
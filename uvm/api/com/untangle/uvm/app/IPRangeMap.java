@@ -0,0 +1,402 @@
+/**
+ * $Id$
+ */
+
+package com.untangle.uvm.app;
+
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * A map from IPv4 and IPv6 address ranges to int values, used to look up an
+ * address in long lists of addresses, ranges and subnets (IPMatcher lists,
+ * client pass lists).
+ *
+ * Ranges are added with a value (usually the index of the list entry they came
+ * from). compile() flattens them into sorted, disjoint segments that each keep
+ * the lowest value of the ranges covering them, so get() returns the first
+ * entry that matches. get() is a binary search over the segments, which takes
+ * at most one step per address bit no matter how long the list is.
+ *
+ * The map is filled and compiled by one thread and can then be read by any
+ * number of threads.
+ */
+public class IPRangeMap
+{
+    private static final long IPV4_MAX = 0xFFFFFFFFL;
+
+    private final Table ipv4 = new Table();
+    private final Table ipv6 = new Table();
+
+    private boolean compiled = false;
+
+    /**
+     * Add the addresses matched by an IPMatcher
+     *
+     * @param matcher
+     *        The matcher
+     * @param value
+     *        The value of the addresses
+     * @return False if the matcher can't be expressed as address ranges (a
+     *         non-contiguous netmask), nothing is added in that case
+     */
+    public boolean add(IPMatcher matcher, int value)
+    {
+        if (compiled) throw new IllegalStateException("IPRangeMap already compiled");
+
+        return matcher.addRanges(this, value);
+    }
+
+    /**
+     * Sort the ranges into segments. Must be called once, after all the ranges
+     * are added and before the map is used.
+     */
+    public void compile()
+    {
+        if (compiled) return;
+
+        ipv4.compile();
+        ipv6.compile();
+        compiled = true;
+    }
+
+    /**
+     * Look up an address
+     *
+     * @param address
+     *        The address
+     * @return The lowest value of the ranges that contain the address, or -1
+     *         if none does
+     */
+    public int get(InetAddress address)
+    {
+        if (!compiled) throw new IllegalStateException("IPRangeMap not compiled");
+
+        if (address instanceof Inet4Address) return ipv4.get(0, addrToLong(address));
+        if (address instanceof Inet6Address) return ipv6.get(high(address), low(address));
+        return -1;
+    }
+
+    /**
+     * Get the number of segments in the map
+     *
+     * @return The number of segments
+     */
+    public int size()
+    {
+        return ipv4.count + ipv6.count;
+    }
+
+    /**
+     * Add a range of IPv4 addresses
+     *
+     * @param min
+     *        The first address
+     * @param max
+     *        The last address
+     * @param value
+     *        The value
+     */
+    void addIPv4(long min, long max, int value)
+    {
+        if (min > max) return;
+        ipv4.add(0, min, 0, max, value);
+    }
+
+    /**
+     * Add a range of IPv6 addresses
+     *
+     * @param minHigh
+     *        The high 64 bits of the first address
+     * @param minLow
+     *        The low 64 bits of the first address
+     * @param maxHigh
+     *        The high 64 bits of the last address
+     * @param maxLow
+     *        The low 64 bits of the last address
+     * @param value
+     *        The value
+     */
+    void addIPv6(long minHigh, long minLow, long maxHigh, long maxLow, int value)
+    {
+        if (compare(minHigh, minLow, maxHigh, maxLow) > 0) return;
+        ipv6.add(minHigh, minLow, maxHigh, maxLow, value);
+    }
+
+    /**
+     * Add the segments of a compiled map
+     *
+     * @param map
+     *        The map
+     * @param value
+     *        The value of all of its addresses
+     */
+    void addAll(IPRangeMap map, int value)
+    {
+        for (int i = 0; i < map.ipv4.count; i++)
+            ipv4.add(0, map.ipv4.startLow[i], 0, map.ipv4.endLow[i], value);
+        for (int i = 0; i < map.ipv6.count; i++)
+            ipv6.add(map.ipv6.startHigh[i], map.ipv6.startLow[i], map.ipv6.endHigh[i], map.ipv6.endLow[i], value);
+    }
+
+    /**
+     * Get the IPv4 segments of a compiled map
+     *
+     * @return A list of inclusive {min, max} ranges of addresses
+     */
+    List<long[]> getIPv4Ranges()
+    {
+        List<long[]> ranges = new LinkedList<>();
+        for (int i = 0; i < ipv4.count; i++)
+            ranges.add(new long[] { ipv4.startLow[i], ipv4.endLow[i] });
+        return ranges;
+    }
+
+    /**
+     * Convert an IPv4 address to a long
+     *
+     * @param address
+     *        The address
+     * @return The address as an unsigned 32-bit value
+     */
+    static long addrToLong(InetAddress address)
+    {
+        byte[] bytes = address.getAddress();
+        long val = 0;
+        for (int c = 0; c < 4; c++)
+            val = (val << 8) | (bytes[c] & 0xFF);
+        return val & IPV4_MAX;
+    }
+
+    /**
+     * Get the high 64 bits of an IPv6 address
+     *
+     * @param address
+     *        The address
+     * @return The high 64 bits
+     */
+    static long high(InetAddress address)
+    {
+        return bytesToLong(address.getAddress(), 0);
+    }
+
+    /**
+     * Get the low 64 bits of an IPv6 address
+     *
+     * @param address
+     *        The address
+     * @return The low 64 bits
+     */
+    static long low(InetAddress address)
+    {
+        return bytesToLong(address.getAddress(), 8);
+    }
+
+    /**
+     * Compare two 128-bit unsigned values
+     *
+     * @param high1
+     *        The high 64 bits of the first value
+     * @param low1
+     *        The low 64 bits of the first value
+     * @param high2
+     *        The high 64 bits of the second value
+     * @param low2
+     *        The low 64 bits of the second value
+     * @return Negative, zero or positive if the first value is lower, equal or
+     *         higher
+     */
+    static int compare(long high1, long low1, long high2, long low2)
+    {
+        int c = Long.compareUnsigned(high1, high2);
+        if (c != 0) return c;
+        return Long.compareUnsigned(low1, low2);
+    }
+
+    /**
+     * Read 8 bytes as a long
+     *
+     * @param bytes
+     *        The bytes
+     * @param offset
+     *        The offset of the first byte
+     * @return The long value
+     */
+    private static long bytesToLong(byte[] bytes, int offset)
+    {
+        long val = 0;
+        for (int c = offset; c < offset + 8; c++)
+            val = (val << 8) | (bytes[c] & 0xFF);
+        return val;
+    }
+
+    /**
+     * The ranges and segments of one address family. Addresses are 128-bit
+     * (IPv4 addresses only use the low bits).
+     */
+    private static class Table
+    {
+        private static final int EVENT_ADD = 0;
+        private static final int EVENT_REMOVE = 1;
+
+        /* {startHigh, startLow, endHigh, endLow, value}, freed by compile() */
+        private List<long[]> ranges = new ArrayList<>();
+
+        private long[] startHigh = new long[0];
+        private long[] startLow = new long[0];
+        private long[] endHigh = new long[0];
+        private long[] endLow = new long[0];
+        private int[] values = new int[0];
+        private int count = 0;
+
+        /**
+         * Add a range
+         *
+         * @param minHigh
+         *        The high bits of the first address
+         * @param minLow
+         *        The low bits of the first address
+         * @param maxHigh
+         *        The high bits of the last address
+         * @param maxLow
+         *        The low bits of the last address
+         * @param value
+         *        The value
+         */
+        void add(long minHigh, long minLow, long maxHigh, long maxLow, int value)
+        {
+            ranges.add(new long[] { minHigh, minLow, maxHigh, maxLow, value });
+        }
+
+        /**
+         * Sweep over the start and end of the ranges, keeping the lowest
+         * value of the ranges that are open, and write out a segment each time
+         * it changes.
+         */
+        void compile()
+        {
+            /* {high, low, type, value} */
+            List<long[]> events = new ArrayList<>(ranges.size() * 2);
+            for (long[] range : ranges) {
+                events.add(new long[] { range[0], range[1], EVENT_ADD, range[4] });
+                /* nothing ends after the last address */
+                if (range[2] == -1L && range[3] == -1L) continue;
+                long low = range[3] + 1;
+                long high = (low == 0) ? range[2] + 1 : range[2];
+                events.add(new long[] { high, low, EVENT_REMOVE, range[4] });
+            }
+            ranges = null;
+
+            events.sort((a, b) -> compare(a[0], a[1], b[0], b[1]));
+
+            PriorityQueue<Integer> open = new PriorityQueue<>();
+            HashMap<Integer, Integer> closed = new HashMap<>();
+            int size = 0;
+            int i = 0;
+
+            while (i < events.size()) {
+                long high = events.get(i)[0];
+                long low = events.get(i)[1];
+
+                for (; i < events.size() && events.get(i)[0] == high && events.get(i)[1] == low; i++) {
+                    long[] event = events.get(i);
+                    if (event[2] == EVENT_ADD) open.add((int) event[3]);
+                    else closed.merge((int) event[3], 1, Integer::sum);
+                }
+
+                /* drop the closed ranges that are at the head of the queue */
+                while (!open.isEmpty()) {
+                    Integer lowest = open.peek();
+                    Integer closedCount = closed.get(lowest);
+                    if (closedCount == null) break;
+                    open.poll();
+                    if (closedCount == 1) closed.remove(lowest);
+                    else closed.put(lowest, closedCount - 1);
+                }
+                if (open.isEmpty()) continue;
+
+                int value = open.peek();
+                long nextHigh = -1L;
+                long nextLow = -1L;
+                if (i < events.size()) {
+                    nextLow = events.get(i)[1] - 1;
+                    nextHigh = (events.get(i)[1] == 0) ? events.get(i)[0] - 1 : events.get(i)[0];
+                }
+
+                /* extend the previous segment if it ends right before this one with the same value */
+                if (size > 0 && values[size - 1] == value) {
+                    long prevLow = endLow[size - 1] + 1;
+                    long prevHigh = (prevLow == 0) ? endHigh[size - 1] + 1 : endHigh[size - 1];
+                    if (prevHigh == high && prevLow == low) {
+                        endHigh[size - 1] = nextHigh;
+                        endLow[size - 1] = nextLow;
+                        continue;
+                    }
+                }
+
+                if (size == values.length) grow(Math.max(16, size * 2));
+                startHigh[size] = high;
+                startLow[size] = low;
+                endHigh[size] = nextHigh;
+                endLow[size] = nextLow;
+                values[size] = value;
+                size++;
+            }
+
+            grow(size);
+            count = size;
+        }
+
+        /**
+         * Find the segment that contains an address
+         *
+         * @param high
+         *        The high bits of the address
+         * @param low
+         *        The low bits of the address
+         * @return The value of the segment, -1 if there is none
+         */
+        int get(long high, long low)
+        {
+            /* the last segment that starts at or before the address */
+            int lo = 0;
+            int hi = count - 1;
+            int found = -1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (compare(startHigh[mid], startLow[mid], high, low) <= 0) {
+                    found = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+
+            if (found < 0) return -1;
+            if (compare(high, low, endHigh[found], endLow[found]) > 0) return -1;
+            return values[found];
+        }
+
+        /**
+         * Resize the segment arrays
+         *
+         * @param length
+         *        The new length
+         */
+        private void grow(int length)
+        {
+            startHigh = Arrays.copyOf(startHigh, length);
+            startLow = Arrays.copyOf(startLow, length);
+            endHigh = Arrays.copyOf(endHigh, length);
+            endLow = Arrays.copyOf(endLow, length);
+            values = Arrays.copyOf(values, length);
+        }
+    }
+}
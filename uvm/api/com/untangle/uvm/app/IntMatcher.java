@@ -4,6 +4,7 @@
 package com.untangle.uvm.app;
 
 import java.util.LinkedList;
+import java.util.List;
 
 import org.apache.log4j.Logger;
 
@@ -203,6 +204,72 @@ public class IntMatcher implements java.io.Serializable
         return matcher;
     }
 
+    /**
+     * Get the ranges of numbers this matcher matches, used to index rule
+     * conditions (CompiledRuleSet)
+     * 
+     * @return A list of inclusive {min, max} ranges, or null if the matcher
+     *         uses numbers that are not integers
+     */
+    List<long[]> getRanges()
+    {
+        List<long[]> ranges = new LinkedList<>();
+
+        switch (this.type)
+        {
+
+        case ANY:
+            ranges.add(new long[] { Long.MIN_VALUE, Long.MAX_VALUE });
+            return ranges;
+
+        case NONE:
+            return ranges;
+
+        case SINGLE:
+            if (!isInteger(singleNum)) return null;
+            ranges.add(new long[] { singleNum.longValue(), singleNum.longValue() });
+            return ranges;
+
+        case GREATER_THAN:
+            if (!isInteger(singleNum)) return null;
+            if (singleNum.longValue() < Long.MAX_VALUE) ranges.add(new long[] { singleNum.longValue() + 1, Long.MAX_VALUE });
+            return ranges;
+
+        case LESS_THAN:
+            if (!isInteger(singleNum)) return null;
+            if (singleNum.longValue() > Long.MIN_VALUE) ranges.add(new long[] { Long.MIN_VALUE, singleNum.longValue() - 1 });
+            return ranges;
+
+        case RANGE:
+            if (!isInteger(rangeMin) || !isInteger(rangeMax)) return null;
+            if (rangeMin.longValue() <= rangeMax.longValue()) ranges.add(new long[] { rangeMin.longValue(), rangeMax.longValue() });
+            return ranges;
+
+        case LIST:
+            for (IntMatcher child : this.children) {
+                List<long[]> childRanges = child.getRanges();
+                if (childRanges == null) return null;
+                ranges.addAll(childRanges);
+            }
+            return ranges;
+
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * Check if a number of this matcher is an integer
+     * 
+     * @param num
+     *        The number
+     * @return True if it is an Integer or a Long
+     */
+    private static boolean isInteger(Number num)
+    {
+        return (num instanceof Integer || num instanceof Long);
+    }
+
     /**
      * Get a matcher that matches any
      * 
@@ -144,6 +144,56 @@ public class IntfMatcher
         }
     }
 
+    /**
+     * Check if this matcher depends on the interface settings (wan/non_wan),
+     * and not only on the interface ID
+     * 
+     * @return True if the settings of the interface are checked
+     */
+    boolean checksSettings()
+    {
+        switch (this.type)
+        {
+        case ANY_WAN:
+        case ANY_NON_WAN:
+            return true;
+        case LIST:
+            for (IntfMatcher child : this.children) {
+                if (child.checksSettings()) return true;
+            }
+            return false;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Return true if <param>interfaceId</param> matches this matcher, without
+     * looking up the interface. Only valid if checksSettings() is false and
+     * the interface exists.
+     * 
+     * @param interfaceId
+     *        The interface to test
+     * @return True if the <param>interfaceId</param> matches.
+     */
+    boolean isMatchId(int interfaceId)
+    {
+        switch (this.type)
+        {
+        case ANY:
+            return true;
+        case SINGLE:
+            return (singleInt == interfaceId);
+        case LIST:
+            for (IntfMatcher child : this.children) {
+                if (child.isMatchId(interfaceId)) return true;
+            }
+            return false;
+        default:
+            return false;
+        }
+    }
+
     /**
      * Return string representation
      * 
@@ -227,15 +227,21 @@ public class RuleCondition implements JSONString, Serializable
         if (!initialized)
             computeMatchers();
 
+        long start = (RuleProfiler.ENABLED ? RuleProfiler.start() : RuleProfiler.NOT_SAMPLED);
+        boolean match;
         try {
             if (this.getInvert())
-                return !_matches(sess);
+                match = !_matches(sess);
             else
-                return _matches(sess);
+                match = _matches(sess);
         } catch (Exception e) {
             logger.warn("Failed to evaluate rule condition: " + this ,e);
-            return false;
+            match = false;
         }
+
+        if (RuleProfiler.ENABLED)
+            RuleProfiler.recordCondition(this.matcherType, match, start);
+        return match;
     }
 
     /**
@@ -251,16 +257,21 @@ public class RuleCondition implements JSONString, Serializable
         if (!initialized)
             computeMatchers();
         
+        long start = (RuleProfiler.ENABLED ? RuleProfiler.start() : RuleProfiler.NOT_SAMPLED);
+        boolean match;
         try {
             if (this.getInvert())
-                return !_matches( protocol, srcIntf, dstIntf, srcAddress, dstAddress, srcPort, dstPort );
+                match = !_matches( protocol, srcIntf, dstIntf, srcAddress, dstAddress, srcPort, dstPort );
             else
-                return _matches( protocol, srcIntf, dstIntf, srcAddress, dstAddress, srcPort, dstPort );
+                match = _matches( protocol, srcIntf, dstIntf, srcAddress, dstAddress, srcPort, dstPort );
         } catch (Exception e) {
             logger.warn("Failed to evaluate rule condition: " + this ,e);
-            return false;
+            match = false;
         }
 
+        if (RuleProfiler.ENABLED)
+            RuleProfiler.recordCondition(this.matcherType, match, start);
+        return match;
     }
     
     /**
@@ -425,6 +436,45 @@ public class RuleCondition implements JSONString, Serializable
         }
     }
 
+    /**
+     * The following are used by CompiledRuleSet to index the conditions
+     * They compute the matchers first if necessary
+     */
+    ConditionType getComputedConditionType()
+    {
+        if (!initialized)
+            computeMatchers();
+        return this.matcherType;
+    }
+
+    IPMatcher getIPMatcher()
+    {
+        if (!initialized)
+            computeMatchers();
+        return this.ipMatcher;
+    }
+
+    IntMatcher getIntMatcher()
+    {
+        if (!initialized)
+            computeMatchers();
+        return this.intMatcher;
+    }
+
+    IntfMatcher getIntfMatcher()
+    {
+        if (!initialized)
+            computeMatchers();
+        return this.intfMatcher;
+    }
+
+    ProtocolMatcher getProtocolMatcher()
+    {
+        if (!initialized)
+            computeMatchers();
+        return this.protocolMatcher;
+    }
+
     private boolean _matches( AppSession sess )
     {
         String  tmpStr = null;
@@ -494,19 +544,19 @@ public class RuleCondition implements JSONString, Serializable
             return protocolMatcher.isMatch(sess.getProtocol());
 
         case HOST_HAS_NO_QUOTA:
-            hostEntry = UvmContextFactory.context().hostTable().getHostTableEntry( sess.sessionEvent().getLocalAddr() );
+            hostEntry = RuleEvaluationContext.get( sess ).getHostEntry( sess.sessionEvent().getLocalAddr() );
             if (hostEntry == null)
                 return true;
             return ( hostEntry.getQuotaSize() == 0 );
 
         case CLIENT_HAS_NO_QUOTA:
-            hostEntry = UvmContextFactory.context().hostTable().getHostTableEntry( sess.getClientAddr() );
+            hostEntry = RuleEvaluationContext.get( sess ).getHostEntry( sess.getClientAddr() );
             if (hostEntry == null)
                 return true;
             return ( hostEntry.getQuotaSize() == 0 );
 
         case SERVER_HAS_NO_QUOTA:
-            hostEntry = UvmContextFactory.context().hostTable().getHostTableEntry( sess.getServerAddr() );
+            hostEntry = RuleEvaluationContext.get( sess ).getHostEntry( sess.getServerAddr() );
             if (hostEntry == null)
                 return true;
             return ( hostEntry.getQuotaSize() == 0 );
@@ -514,31 +564,31 @@ public class RuleCondition implements JSONString, Serializable
         case USER_HAS_NO_QUOTA:
             if ( sess.user() == null )
                 return false; //no user
-            userEntry = UvmContextFactory.context().userTable().getUserTableEntry( sess.user() );
+            userEntry = RuleEvaluationContext.get( sess ).getUserEntry( sess.user() );
             if (userEntry == null)
                 return true;
             return ( userEntry.getQuotaSize() == 0 );
             
         case HOST_QUOTA_EXCEEDED:
-            return UvmContextFactory.context().hostTable().hostQuotaExceeded( sess.sessionEvent().getLocalAddr() );
+            return RuleEvaluationContext.get( sess ).hostQuotaExceeded( sess.sessionEvent().getLocalAddr() );
 
         case CLIENT_QUOTA_EXCEEDED:
-            return UvmContextFactory.context().hostTable().hostQuotaExceeded( sess.getClientAddr() );
+            return RuleEvaluationContext.get( sess ).hostQuotaExceeded( sess.getClientAddr() );
 
         case SERVER_QUOTA_EXCEEDED:
-            return UvmContextFactory.context().hostTable().hostQuotaExceeded( sess.getServerAddr() );
+            return RuleEvaluationContext.get( sess ).hostQuotaExceeded( sess.getServerAddr() );
 
         case USER_QUOTA_EXCEEDED:
             if ( sess.user() == null )
                 return false; //no user
-            return UvmContextFactory.context().userTable().userQuotaExceeded( sess.user() );
+            return RuleEvaluationContext.get( sess ).userQuotaExceeded( sess.user() );
             
         case HOST_QUOTA_ATTAINMENT:
             if ( this.intMatcher == null ) {
                 logger.warn("Invalid Int Matcher: " + this.intMatcher);
                 return false;
             }
-            tmpDouble = UvmContextFactory.context().hostTable().hostQuotaAttainment( sess.sessionEvent().getLocalAddr() );
+            tmpDouble = RuleEvaluationContext.get( sess ).hostQuotaAttainment( sess.sessionEvent().getLocalAddr() );
             if (tmpDouble == null)
                 return false;
             
@@ -549,7 +599,7 @@ public class RuleCondition implements JSONString, Serializable
                 logger.warn("Invalid Int Matcher: " + this.intMatcher);
                 return false;
             }
-            tmpDouble = UvmContextFactory.context().hostTable().hostQuotaAttainment( sess.getClientAddr() );
+            tmpDouble = RuleEvaluationContext.get( sess ).hostQuotaAttainment( sess.getClientAddr() );
             return this.intMatcher.isMatch( tmpDouble  );
 
         case SERVER_QUOTA_ATTAINMENT:
@@ -557,7 +607,7 @@ public class RuleCondition implements JSONString, Serializable
                 logger.warn("Invalid Int Matcher: " + this.intMatcher);
                 return false;
             }
-            tmpDouble = UvmContextFactory.context().hostTable().hostQuotaAttainment( sess.getServerAddr() );
+            tmpDouble = RuleEvaluationContext.get( sess ).hostQuotaAttainment( sess.getServerAddr() );
             return this.intMatcher.isMatch( tmpDouble  );
 
         case USER_QUOTA_ATTAINMENT:
@@ -567,7 +617,7 @@ public class RuleCondition implements JSONString, Serializable
             }
             if ( sess.user() == null )
                 return false; //no user
-            tmpDouble = UvmContextFactory.context().userTable().userQuotaAttainment( sess.user() );
+            tmpDouble = RuleEvaluationContext.get( sess ).userQuotaAttainment( sess.user() );
             return this.intMatcher.isMatch( tmpDouble  );
             
         case TIME_OF_DAY:
@@ -585,42 +635,42 @@ public class RuleCondition implements JSONString, Serializable
             return dayOfWeekMatcher.isMatch();
 
         case HOST_MAC:
-            hostEntry = UvmContextFactory.context().hostTable().getHostTableEntry( sess.sessionEvent().getLocalAddr() );
+            hostEntry = RuleEvaluationContext.get( sess ).getHostEntry( sess.sessionEvent().getLocalAddr() );
             if (hostEntry == null)
                 return false;
             tmpStr = hostEntry.getMacAddress();
             return globMatcher.isMatch( tmpStr );
 
         case SRC_MAC:
-            hostEntry = UvmContextFactory.context().hostTable().getHostTableEntry( sess.getClientAddr() );
+            hostEntry = RuleEvaluationContext.get( sess ).getHostEntry( sess.getClientAddr() );
             if (hostEntry == null)
                 return false;
             tmpStr = hostEntry.getMacAddress();
             return globMatcher.isMatch( tmpStr );
 
         case DST_MAC:
-            hostEntry = UvmContextFactory.context().hostTable().getHostTableEntry( sess.getServerAddr() );
+            hostEntry = RuleEvaluationContext.get( sess ).getHostEntry( sess.getServerAddr() );
             if (hostEntry == null)
                 return false;
             tmpStr = hostEntry.getMacAddress();
             return globMatcher.isMatch( tmpStr );
 
         case HOST_MAC_VENDOR:
-            hostEntry = UvmContextFactory.context().hostTable().getHostTableEntry( sess.sessionEvent().getLocalAddr() );
+            hostEntry = RuleEvaluationContext.get( sess ).getHostEntry( sess.sessionEvent().getLocalAddr() );
             if (hostEntry == null)
                 return false;
             tmpStr = hostEntry.getMacVendor();
             return globMatcher.isMatch( tmpStr );
 
         case CLIENT_MAC_VENDOR:
-            hostEntry = UvmContextFactory.context().hostTable().getHostTableEntry( sess.getClientAddr() );
+            hostEntry = RuleEvaluationContext.get( sess ).getHostEntry( sess.getClientAddr() );
             if (hostEntry == null)
                 return false;
             tmpStr = hostEntry.getMacVendor();
             return globMatcher.isMatch( tmpStr );
 
         case SERVER_MAC_VENDOR:
-            hostEntry = UvmContextFactory.context().hostTable().getHostTableEntry( sess.getServerAddr() );
+            hostEntry = RuleEvaluationContext.get( sess ).getHostEntry( sess.getServerAddr() );
             if (hostEntry == null)
                 return false;
             tmpStr = hostEntry.getMacVendor();
@@ -651,7 +701,7 @@ public class RuleCondition implements JSONString, Serializable
             return globMatcher.isMatch( tmpStr );
 
         case HTTP_URL:
-            tmpStr = (String) sess.globalAttachment(AppSession.KEY_HTTP_URL);
+            tmpStr = sess.globalAttachment(AppSession.HTTP_URL);
             if ( urlMatcher == null ) {
                 logger.warn("Invalid Url Matcher: " + this.urlMatcher);
                 return false;
@@ -659,68 +709,68 @@ public class RuleCondition implements JSONString, Serializable
             return urlMatcher.isMatch( tmpStr );
 
         case HTTP_HOST:
-            tmpStr = (String) sess.globalAttachment(AppSession.KEY_HTTP_HOSTNAME);
+            tmpStr = sess.globalAttachment(AppSession.HTTP_HOSTNAME);
             return globMatcher.isMatch( tmpStr );
 
         case HTTP_REFERER:
-            tmpStr = (String) sess.globalAttachment(AppSession.KEY_HTTP_REFERER);
+            tmpStr = sess.globalAttachment(AppSession.HTTP_REFERER);
             return globMatcher.isMatch( tmpStr );
             
         case HTTP_URI:
-            tmpStr = (String) sess.globalAttachment(AppSession.KEY_HTTP_URI);
+            tmpStr = sess.globalAttachment(AppSession.HTTP_URI);
             return globMatcher.isMatch( tmpStr );
 
         case HTTP_CONTENT_TYPE:
         case WEB_FILTER_RESPONSE_CONTENT_TYPE:
-            tmpStr = (String) sess.globalAttachment(AppSession.KEY_HTTP_CONTENT_TYPE);
+            tmpStr = sess.globalAttachment(AppSession.HTTP_CONTENT_TYPE);
             return globMatcher.isMatch( tmpStr );
             
         case HTTP_REQUEST_METHOD:            
         case WEB_FILTER_REQUEST_METHOD:            
-            tmpStr = (String) sess.globalAttachment(AppSession.KEY_HTTP_REQUEST_METHOD);
+            tmpStr = sess.globalAttachment(AppSession.HTTP_REQUEST_METHOD);
             return globMatcher.isMatch( tmpStr );
 
         case HTTP_REQUEST_FILE_PATH:
         case WEB_FILTER_REQUEST_FILE_PATH:
-            tmpStr = (String) sess.globalAttachment(AppSession.KEY_HTTP_REQUEST_FILE_PATH);
+            tmpStr = sess.globalAttachment(AppSession.HTTP_REQUEST_FILE_PATH);
             return globMatcher.isMatch( tmpStr );
 
         case HTTP_REQUEST_FILE_NAME:
         case WEB_FILTER_REQUEST_FILE_NAME:
-            tmpStr = (String) sess.globalAttachment(AppSession.KEY_HTTP_REQUEST_FILE_NAME);
+            tmpStr = sess.globalAttachment(AppSession.HTTP_REQUEST_FILE_NAME);
             return globMatcher.isMatch( tmpStr );
 
         case HTTP_REQUEST_FILE_EXTENSION:
         case WEB_FILTER_REQUEST_FILE_EXTENSION:
-            tmpStr = (String) sess.globalAttachment(AppSession.KEY_HTTP_REQUEST_FILE_EXTENSION);
+            tmpStr = sess.globalAttachment(AppSession.HTTP_REQUEST_FILE_EXTENSION);
             return globMatcher.isMatch( tmpStr );
 
         case HTTP_RESPONSE_FILE_NAME:
         case WEB_FILTER_RESPONSE_FILE_NAME:
-            tmpStr = (String) sess.globalAttachment(AppSession.KEY_HTTP_RESPONSE_FILE_NAME);
+            tmpStr = sess.globalAttachment(AppSession.HTTP_RESPONSE_FILE_NAME);
             return globMatcher.isMatch( tmpStr );
 
         case HTTP_RESPONSE_FILE_EXTENSION:
         case WEB_FILTER_RESPONSE_FILE_EXTENSION:
-            tmpStr = (String) sess.globalAttachment(AppSession.KEY_HTTP_RESPONSE_FILE_EXTENSION);
+            tmpStr = sess.globalAttachment(AppSession.HTTP_RESPONSE_FILE_EXTENSION);
             return globMatcher.isMatch( tmpStr );
 
         case HTTP_USER_AGENT_OS:
         case HTTP_USER_AGENT:
             // first check the session
-            tmpStr = (String) sess.globalAttachment(AppSession.KEY_HTTP_USER_AGENT);
+            tmpStr = sess.globalAttachment(AppSession.HTTP_USER_AGENT);
             if ( tmpStr != null ) {
                 return globMatcher.isMatch( tmpStr );
             }
             // if no session attachment, check the host
-            hostEntry = UvmContextFactory.context().hostTable().getHostTableEntry( sess.getClientAddr() );
+            hostEntry = RuleEvaluationContext.get( sess ).getHostEntry( sess.getClientAddr() );
             if (hostEntry == null)
                 return false;
             tmpStr = hostEntry.getHttpUserAgent();
             return globMatcher.isMatch( tmpStr );
 
         case HTTP_CONTENT_LENGTH:
-            tmpLong = (Long) sess.globalAttachment(AppSession.KEY_HTTP_CONTENT_LENGTH);
+            tmpLong = sess.globalAttachment(AppSession.HTTP_CONTENT_LENGTH);
             if ( tmpLong == null )
                 return false;
             if ( this.intMatcher == null ) {
@@ -763,7 +813,7 @@ public class RuleCondition implements JSONString, Serializable
             return false;
 
         case HOST_TAGGED:
-            hostEntry = UvmContextFactory.context().hostTable().getHostTableEntry( sess.sessionEvent().getLocalAddr() );
+            hostEntry = RuleEvaluationContext.get( sess ).getHostEntry( sess.sessionEvent().getLocalAddr() );
             if (hostEntry == null)
                 return false;
             for( Tag t : hostEntry.getTags() ) {
@@ -773,7 +823,7 @@ public class RuleCondition implements JSONString, Serializable
             return false;
 
         case CLIENT_TAGGED:
-            hostEntry = UvmContextFactory.context().hostTable().getHostTableEntry( sess.getClientAddr() );
+            hostEntry = RuleEvaluationContext.get( sess ).getHostEntry( sess.getClientAddr() );
             if (hostEntry == null)
                 return false;
             for( Tag t : hostEntry.getTags() ) {
@@ -783,7 +833,7 @@ public class RuleCondition implements JSONString, Serializable
             return false;
 
         case SERVER_TAGGED:
-            hostEntry = UvmContextFactory.context().hostTable().getHostTableEntry( sess.getServerAddr() );
+            hostEntry = RuleEvaluationContext.get( sess ).getHostEntry( sess.getServerAddr() );
             if (hostEntry == null)
                 return false;
             for( Tag t : hostEntry.getTags() ) {
@@ -793,7 +843,7 @@ public class RuleCondition implements JSONString, Serializable
             return false;
 
         case HOST_ENTITLED:
-            hostEntry = UvmContextFactory.context().hostTable().getHostTableEntry( sess.getClientAddr() );
+            hostEntry = RuleEvaluationContext.get( sess ).getHostEntry( sess.getClientAddr() );
             if (hostEntry == null)
                 return true;
             return hostEntry.getEntitled();
@@ -898,21 +948,21 @@ public class RuleCondition implements JSONString, Serializable
             return this.intMatcher.isMatch( tmpInt );
 
         case HOST_HOSTNAME:
-            hostEntry = UvmContextFactory.context().hostTable().getHostTableEntry( sess.sessionEvent().getLocalAddr() );
+            hostEntry = RuleEvaluationContext.get( sess ).getHostEntry( sess.sessionEvent().getLocalAddr() );
             if (hostEntry == null)
                 return false;
             tmpStr = hostEntry.getHostname();
             return globMatcher.isMatch( tmpStr );
 
         case CLIENT_HOSTNAME:
-            hostEntry = UvmContextFactory.context().hostTable().getHostTableEntry( sess.getClientAddr() );
+            hostEntry = RuleEvaluationContext.get( sess ).getHostEntry( sess.getClientAddr() );
             if (hostEntry == null)
                 return false;
             tmpStr = hostEntry.getHostname();
             return globMatcher.isMatch( tmpStr );
             
         case SERVER_HOSTNAME:
-            hostEntry = UvmContextFactory.context().hostTable().getHostTableEntry( sess.getServerAddr() );
+            hostEntry = RuleEvaluationContext.get( sess ).getHostEntry( sess.getServerAddr() );
             if (hostEntry == null)
                 return false;
             tmpStr = hostEntry.getHostname();
@@ -1014,20 +1064,20 @@ public class RuleCondition implements JSONString, Serializable
             return protocolMatcher.isMatch(protocol);
 
         case TAGGED:
-            hostEntry = UvmContextFactory.context().hostTable().getHostTableEntry( srcAddress );
+            hostEntry = RuleEvaluationContext.current().getHostEntry( srcAddress );
             if (hostEntry != null) {
                 for( Tag t : hostEntry.getTags() ) {
                     if( globMatcher.isMatch( t.getName() ) )
                         return true;
                 }
-                userEntry = UvmContextFactory.context().userTable().getUserTableEntry( hostEntry.getUsername() );
+                userEntry = RuleEvaluationContext.current().getUserEntry( hostEntry.getUsername() );
                 if ( userEntry != null ) {
                     for( Tag t : userEntry.getTags() ) {
                         if( globMatcher.isMatch( t.getName() ) )
                             return true;
                     }
                 }
-                deviceEntry = UvmContextFactory.context().deviceTable().getDevice( hostEntry.getMacVendor() );
+                deviceEntry = RuleEvaluationContext.current().getDevice( hostEntry.getMacVendor() );
                 if ( deviceEntry != null ) {
                     for( Tag t : deviceEntry.getTags() ) {
                         if( globMatcher.isMatch( t.getName() ) )
@@ -1041,7 +1091,7 @@ public class RuleCondition implements JSONString, Serializable
             tmpAddress = getLocalAddress( srcAddress, srcIntf, dstAddress, dstIntf );
             if (tmpAddress == null)
                 return false;
-            hostEntry = UvmContextFactory.context().hostTable().getHostTableEntry( tmpAddress );
+            hostEntry = RuleEvaluationContext.current().getHostEntry( tmpAddress );
             if (hostEntry == null)
                 return false;
             for( Tag t : hostEntry.getTags() ) {
@@ -1051,7 +1101,7 @@ public class RuleCondition implements JSONString, Serializable
             return false;
 
         case CLIENT_TAGGED:
-            hostEntry = UvmContextFactory.context().hostTable().getHostTableEntry( srcAddress );
+            hostEntry = RuleEvaluationContext.current().getHostEntry( srcAddress );
             if (hostEntry == null)
                 return false;
             for( Tag t : hostEntry.getTags() ) {
@@ -1061,7 +1111,7 @@ public class RuleCondition implements JSONString, Serializable
             return false;
 
         case SERVER_TAGGED:
-            hostEntry = UvmContextFactory.context().hostTable().getHostTableEntry( dstAddress );
+            hostEntry = RuleEvaluationContext.current().getHostEntry( dstAddress );
             if (hostEntry == null)
                 return false;
             for( Tag t : hostEntry.getTags() ) {
@@ -1071,13 +1121,13 @@ public class RuleCondition implements JSONString, Serializable
             return false;
 
         case HOST_ENTITLED:
-            hostEntry = UvmContextFactory.context().hostTable().getHostTableEntry( srcAddress );
+            hostEntry = RuleEvaluationContext.current().getHostEntry( srcAddress );
             if (hostEntry == null)
                 return true;
             return hostEntry.getEntitled();
 
         case USERNAME:
-            hostEntry = UvmContextFactory.context().hostTable().getHostTableEntry( srcAddress );
+            hostEntry = RuleEvaluationContext.current().getHostEntry( srcAddress );
             if (hostEntry == null)
                 return false;
             tmpStr = hostEntry.getUsername();
@@ -1089,21 +1139,21 @@ public class RuleCondition implements JSONString, Serializable
             tmpAddress = getLocalAddress( srcAddress, srcIntf, dstAddress, dstIntf );
             if (tmpAddress == null)
                 return false;
-            hostEntry = UvmContextFactory.context().hostTable().getHostTableEntry( tmpAddress );
+            hostEntry = RuleEvaluationContext.current().getHostEntry( tmpAddress );
             if (hostEntry == null)
                 return false;
             tmpStr = hostEntry.getMacAddress();
             return globMatcher.isMatch( tmpStr );
 
         case SRC_MAC:
-            hostEntry = UvmContextFactory.context().hostTable().getHostTableEntry( srcAddress );
+            hostEntry = RuleEvaluationContext.current().getHostEntry( srcAddress );
             if (hostEntry == null)
                 return false;
             tmpStr = hostEntry.getMacAddress();
             return globMatcher.isMatch( tmpStr );
 
         case DST_MAC:
-            hostEntry = UvmContextFactory.context().hostTable().getHostTableEntry( dstAddress );
+            hostEntry = RuleEvaluationContext.current().getHostEntry( dstAddress );
             if (hostEntry == null)
                 return false;
             return globMatcher.isMatch( tmpStr );
@@ -1112,21 +1162,21 @@ public class RuleCondition implements JSONString, Serializable
             tmpAddress = getLocalAddress( srcAddress, srcIntf, dstAddress, dstIntf );
             if (tmpAddress == null)
                 return false;
-            hostEntry = UvmContextFactory.context().hostTable().getHostTableEntry( tmpAddress );
+            hostEntry = RuleEvaluationContext.current().getHostEntry( tmpAddress );
             if (hostEntry == null)
                 return false;
             tmpStr = hostEntry.getMacVendor();
             return globMatcher.isMatch( tmpStr );
 
         case CLIENT_MAC_VENDOR:
-            hostEntry = UvmContextFactory.context().hostTable().getHostTableEntry( srcAddress );
+            hostEntry = RuleEvaluationContext.current().getHostEntry( srcAddress );
             if (hostEntry == null)
                 return false;
             tmpStr = hostEntry.getMacVendor();
             return globMatcher.isMatch( tmpStr );
 
         case SERVER_MAC_VENDOR:
-            hostEntry = UvmContextFactory.context().hostTable().getHostTableEntry( dstAddress );
+            hostEntry = RuleEvaluationContext.current().getHostEntry( dstAddress );
             if (hostEntry == null)
                 return false;
             tmpStr = hostEntry.getMacVendor();
@@ -1136,21 +1186,21 @@ public class RuleCondition implements JSONString, Serializable
             tmpAddress = getLocalAddress( srcAddress, srcIntf, dstAddress, dstIntf );
             if ( tmpAddress == null )
                 return false;
-            hostEntry = UvmContextFactory.context().hostTable().getHostTableEntry( tmpAddress );
+            hostEntry = RuleEvaluationContext.current().getHostEntry( tmpAddress );
             if (hostEntry == null)
                 return false;
             tmpStr = hostEntry.getHostname();
             return globMatcher.isMatch( tmpStr );
 
         case CLIENT_HOSTNAME:
-            hostEntry = UvmContextFactory.context().hostTable().getHostTableEntry( srcAddress );
+            hostEntry = RuleEvaluationContext.current().getHostEntry( srcAddress );
             if (hostEntry == null)
                 return false;
             tmpStr = hostEntry.getHostname();
             return globMatcher.isMatch( tmpStr );
             
         case SERVER_HOSTNAME:
-            hostEntry = UvmContextFactory.context().hostTable().getHostTableEntry( dstAddress );
+            hostEntry = RuleEvaluationContext.current().getHostEntry( dstAddress );
             if (hostEntry == null)
                 return false;
             tmpStr = hostEntry.getHostname();
@@ -1160,31 +1210,31 @@ public class RuleCondition implements JSONString, Serializable
             tmpAddress = getLocalAddress( srcAddress, srcIntf, dstAddress, dstIntf );
             if ( tmpAddress == null )
                 return false;
-            hostEntry = UvmContextFactory.context().hostTable().getHostTableEntry( tmpAddress );
+            hostEntry = RuleEvaluationContext.current().getHostEntry( tmpAddress );
             if (hostEntry == null)
                 return true;
             return ( hostEntry.getQuotaSize() == 0 );
 
         case CLIENT_HAS_NO_QUOTA:
-            hostEntry = UvmContextFactory.context().hostTable().getHostTableEntry( srcAddress );
+            hostEntry = RuleEvaluationContext.current().getHostEntry( srcAddress );
             if (hostEntry == null)
                 return true;
             return ( hostEntry.getQuotaSize() == 0 );
 
         case SERVER_HAS_NO_QUOTA:
-            hostEntry = UvmContextFactory.context().hostTable().getHostTableEntry( dstAddress );
+            hostEntry = RuleEvaluationContext.current().getHostEntry( dstAddress );
             if (hostEntry == null)
                 return true;
             return ( hostEntry.getQuotaSize() == 0 );
 
         case USER_HAS_NO_QUOTA:
-            hostEntry = UvmContextFactory.context().hostTable().getHostTableEntry( srcAddress );
+            hostEntry = RuleEvaluationContext.current().getHostEntry( srcAddress );
             if (hostEntry == null)
                 return false;
             tmpStr = hostEntry.getUsername();
             if ( tmpStr == null )
                 return false; //no user
-            userEntry = UvmContextFactory.context().userTable().getUserTableEntry( tmpStr );
+            userEntry = RuleEvaluationContext.current().getUserEntry( tmpStr );
             if (userEntry == null)
                 return true;
             return ( userEntry.getQuotaSize() == 0 );
@@ -1194,22 +1244,22 @@ public class RuleCondition implements JSONString, Serializable
             if ( tmpAddress == null )
                 return false;
             else
-                return UvmContextFactory.context().hostTable().hostQuotaExceeded( tmpAddress );
+                return RuleEvaluationContext.current().hostQuotaExceeded( tmpAddress );
 
         case CLIENT_QUOTA_EXCEEDED:
-            return UvmContextFactory.context().hostTable().hostQuotaExceeded( srcAddress );
+            return RuleEvaluationContext.current().hostQuotaExceeded( srcAddress );
 
         case SERVER_QUOTA_EXCEEDED:
-            return UvmContextFactory.context().hostTable().hostQuotaExceeded( dstAddress );
+            return RuleEvaluationContext.current().hostQuotaExceeded( dstAddress );
 
         case USER_QUOTA_EXCEEDED:
-            hostEntry = UvmContextFactory.context().hostTable().getHostTableEntry( srcAddress );
+            hostEntry = RuleEvaluationContext.current().getHostEntry( srcAddress );
             if (hostEntry == null)
                 return false;
             tmpStr = hostEntry.getUsername();
             if ( tmpStr == null )
                 return false; //no user
-            return UvmContextFactory.context().userTable().userQuotaExceeded( tmpStr );
+            return RuleEvaluationContext.current().userQuotaExceeded( tmpStr );
             
         case HOST_QUOTA_ATTAINMENT:
             if ( this.intMatcher == null ) {
@@ -1220,7 +1270,7 @@ public class RuleCondition implements JSONString, Serializable
             tmpAddress = getLocalAddress( srcAddress, srcIntf, dstAddress, dstIntf );
             if ( tmpAddress == null )
                 return false;
-            tmpDouble = UvmContextFactory.context().hostTable().hostQuotaAttainment( tmpAddress );
+            tmpDouble = RuleEvaluationContext.current().hostQuotaAttainment( tmpAddress );
             if ( tmpDouble == null )
                 return false;
             
@@ -1231,7 +1281,7 @@ public class RuleCondition implements JSONString, Serializable
                 logger.warn("Invalid Int Matcher: " + this.intMatcher);
                 return false;
             }
-            tmpDouble = UvmContextFactory.context().hostTable().hostQuotaAttainment( srcAddress );
+            tmpDouble = RuleEvaluationContext.current().hostQuotaAttainment( srcAddress );
             if ( tmpDouble == null )
                 return false;
             
@@ -1242,7 +1292,7 @@ public class RuleCondition implements JSONString, Serializable
                 logger.warn("Invalid Int Matcher: " + this.intMatcher);
                 return false;
             }
-            tmpDouble = UvmContextFactory.context().hostTable().hostQuotaAttainment( dstAddress );
+            tmpDouble = RuleEvaluationContext.current().hostQuotaAttainment( dstAddress );
             if ( tmpDouble == null )
                 return false;
 
@@ -1253,13 +1303,13 @@ public class RuleCondition implements JSONString, Serializable
                 logger.warn("Invalid Int Matcher: " + this.intMatcher);
                 return false;
             }
-            hostEntry = UvmContextFactory.context().hostTable().getHostTableEntry( srcAddress );
+            hostEntry = RuleEvaluationContext.current().getHostEntry( srcAddress );
             if (hostEntry == null)
                 return false;
             tmpStr = hostEntry.getUsername();
             if ( tmpStr == null )
                 return false; //no user
-            tmpDouble = UvmContextFactory.context().userTable().userQuotaAttainment( tmpStr );
+            tmpDouble = RuleEvaluationContext.current().userQuotaAttainment( tmpStr );
             if ( tmpDouble == null )
                 return false;
 
@@ -1283,7 +1333,7 @@ public class RuleCondition implements JSONString, Serializable
 
         case DIRECTORY_CONNECTOR_GROUP:
         case DIRECTORY_CONNECTOR_DOMAIN:
-            hostEntry = UvmContextFactory.context().hostTable().getHostTableEntry( srcAddress );
+            hostEntry = RuleEvaluationContext.current().getHostEntry( srcAddress );
             if ( hostEntry == null )
                 return false;
             tmpStr = hostEntry.getUsername();
@@ -1329,7 +1379,7 @@ public class RuleCondition implements JSONString, Serializable
 
         case HTTP_USER_AGENT_OS:
         case HTTP_USER_AGENT:
-            hostEntry = UvmContextFactory.context().hostTable().getHostTableEntry( srcAddress );
+            hostEntry = RuleEvaluationContext.current().getHostEntry( srcAddress );
             if (hostEntry == null)
                 return false;
             tmpStr = hostEntry.getHttpUserAgent();
@@ -1389,7 +1439,7 @@ public class RuleCondition implements JSONString, Serializable
     private String getCountry( InetAddress address, int intf )
     {
         if ( UvmContextFactory.context().networkManager().isWanInterface( intf ) ) {
-            return UvmContextFactory.context().geographyManager().getCountryCode(address.getHostAddress());
+            return RuleEvaluationContext.current().getCountryCode(address);
         } else {
             return "XL";
         }
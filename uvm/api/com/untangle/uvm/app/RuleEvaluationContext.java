@@ -0,0 +1,313 @@
+/**
+ * $Id$
+ */
+
+package com.untangle.uvm.app;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import org.apache.log4j.Logger;
+import org.json.JSONObject;
+
+import com.untangle.uvm.DeviceTableEntry;
+import com.untangle.uvm.HostTableEntry;
+import com.untangle.uvm.UserTableEntry;
+import com.untangle.uvm.UvmContextFactory;
+import com.untangle.uvm.vnet.AppSession;
+import com.untangle.uvm.vnet.AttachmentKey;
+
+/**
+ * The host, user, device, quota and country lookups of rule conditions,
+ * remembered for the rule lists of all the apps that evaluate the same session.
+ *
+ * The conditions of a session's rules (HOST_HAS_NO_QUOTA, CLIENT_TAGGED,
+ * HOST_MAC_VENDOR, USER_QUOTA_EXCEEDED...) each look up the same host and user
+ * again. With uvm.rules.context set, the first lookup is kept in a context
+ * attached to the session and the other conditions and apps reuse it. A
+ * session context only lives for SESSION_CONTEXT_MAX_AGE (a session setup, or
+ * one event) so quotas and tags changed later are seen by later evaluations.
+ * It is attached with an internal key, so it is not listed with the session
+ * attachments.
+ *
+ * The conditions checked without a session (RuleCondition.matches with
+ * addresses) use the context of the thread. The caller opens it before it
+ * evaluates the rule lists of a request and closes it after, outside of an
+ * open context every lookup goes to the tables.
+ */
+public class RuleEvaluationContext
+{
+    private static final Logger logger = Logger.getLogger(RuleEvaluationContext.class);
+
+    private static final boolean ENABLED = (System.getProperty("uvm.rules.context") != null);
+
+    /* How long a session context is used, in nanoseconds */
+    private static final long SESSION_CONTEXT_MAX_AGE = 1000L * 1000L * 1000L;
+
+    private static final AttachmentKey<RuleEvaluationContext> SESSION_CONTEXT = AttachmentKey.registerInternal("rule-evaluation-context", RuleEvaluationContext.class);
+
+    private static final ThreadLocal<RuleEvaluationContext> threadContext = new ThreadLocal<>();
+
+    /* Without uvm.rules.context every lookup goes to the tables */
+    private static final RuleEvaluationContext UNCACHED = new RuleEvaluationContext(false);
+
+    private static final LongAdder lookups = new LongAdder();
+    private static final LongAdder savedLookups = new LongAdder();
+    private static final LongAdder contexts = new LongAdder();
+
+    private final boolean cached;
+    private final long creationTime = System.nanoTime();
+
+    private final HashMap<InetAddress, HostTableEntry> hostEntries = new HashMap<>();
+    private final HashMap<String, UserTableEntry> userEntries = new HashMap<>();
+    private final HashMap<String, DeviceTableEntry> deviceEntries = new HashMap<>();
+    private final HashMap<InetAddress, Boolean> hostQuotaExceeded = new HashMap<>();
+    private final HashMap<InetAddress, Double> hostQuotaAttainment = new HashMap<>();
+    private final HashMap<String, Boolean> userQuotaExceeded = new HashMap<>();
+    private final HashMap<String, Double> userQuotaAttainment = new HashMap<>();
+    private final HashMap<InetAddress, String> countryCodes = new HashMap<>();
+
+    /**
+     * Constructor
+     *
+     * @param cached
+     *        True to remember the lookups
+     */
+    private RuleEvaluationContext(boolean cached)
+    {
+        this.cached = cached;
+        if (cached) contexts.increment();
+    }
+
+    /**
+     * Get the context of a session, a new one is attached if it has none or
+     * the one it has is too old
+     *
+     * @param sess
+     *        The session
+     * @return The context
+     */
+    public static RuleEvaluationContext get(AppSession sess)
+    {
+        if (!ENABLED || sess == null) return UNCACHED;
+
+        RuleEvaluationContext context = sess.globalAttachment(SESSION_CONTEXT);
+        if (context == null || context.isExpired()) {
+            context = new RuleEvaluationContext(true);
+            sess.globalAttach(SESSION_CONTEXT, context);
+        }
+        return context;
+    }
+
+    /**
+     * Open a new context for the current thread, for the rule lists of one
+     * request. Must be followed by close()
+     */
+    public static void open()
+    {
+        if (!ENABLED) return;
+
+        threadContext.set(new RuleEvaluationContext(true));
+    }
+
+    /**
+     * Close the context of the current thread
+     */
+    public static void close()
+    {
+        if (!ENABLED) return;
+
+        threadContext.remove();
+    }
+
+    /**
+     * Get the context of the current thread, for conditions checked without a
+     * session
+     *
+     * @return The context opened by open(), or one that doesn't remember the
+     *         lookups if none is open
+     */
+    public static RuleEvaluationContext current()
+    {
+        if (!ENABLED) return UNCACHED;
+
+        RuleEvaluationContext context = threadContext.get();
+        return (context != null) ? context : UNCACHED;
+    }
+
+    /**
+     * Get a host table entry
+     *
+     * @param address
+     *        The address of the host
+     * @return The entry or null
+     */
+    public HostTableEntry getHostEntry(InetAddress address)
+    {
+        return lookup(hostEntries, address, a -> UvmContextFactory.context().hostTable().getHostTableEntry(a));
+    }
+
+    /**
+     * Get a user table entry
+     *
+     * @param username
+     *        The username
+     * @return The entry or null
+     */
+    public UserTableEntry getUserEntry(String username)
+    {
+        return lookup(userEntries, username, u -> UvmContextFactory.context().userTable().getUserTableEntry(u));
+    }
+
+    /**
+     * Get a device table entry
+     *
+     * @param macAddress
+     *        The MAC address of the device
+     * @return The entry or null
+     */
+    public DeviceTableEntry getDevice(String macAddress)
+    {
+        return lookup(deviceEntries, macAddress, m -> UvmContextFactory.context().deviceTable().getDevice(m));
+    }
+
+    /**
+     * Check if a host has exceeded its quota
+     *
+     * @param address
+     *        The address of the host
+     * @return True if the quota is exceeded
+     */
+    public boolean hostQuotaExceeded(InetAddress address)
+    {
+        return lookup(hostQuotaExceeded, address, a -> UvmContextFactory.context().hostTable().hostQuotaExceeded(a));
+    }
+
+    /**
+     * Get the quota attainment of a host
+     *
+     * @param address
+     *        The address of the host
+     * @return The attainment
+     */
+    public double hostQuotaAttainment(InetAddress address)
+    {
+        return lookup(hostQuotaAttainment, address, a -> UvmContextFactory.context().hostTable().hostQuotaAttainment(a));
+    }
+
+    /**
+     * Check if a user has exceeded its quota
+     *
+     * @param username
+     *        The username
+     * @return True if the quota is exceeded
+     */
+    public boolean userQuotaExceeded(String username)
+    {
+        return lookup(userQuotaExceeded, username, u -> UvmContextFactory.context().userTable().userQuotaExceeded(u));
+    }
+
+    /**
+     * Get the quota attainment of a user
+     *
+     * @param username
+     *        The username
+     * @return The attainment
+     */
+    public double userQuotaAttainment(String username)
+    {
+        return lookup(userQuotaAttainment, username, u -> UvmContextFactory.context().userTable().userQuotaAttainment(u));
+    }
+
+    /**
+     * Get the country code of an address
+     *
+     * @param address
+     *        The address
+     * @return The country code
+     */
+    public String getCountryCode(InetAddress address)
+    {
+        return lookup(countryCodes, address, a -> UvmContextFactory.context().geographyManager().getCountryCode(a.getHostAddress()));
+    }
+
+    /**
+     * Get the lookup counters
+     *
+     * @return A JSON object with the lookups done, the lookups saved and the
+     *         number of contexts
+     */
+    public static JSONObject toJSON()
+    {
+        JSONObject json = new JSONObject();
+
+        try {
+            json.put("enabled", ENABLED);
+            json.put("lookups", lookups.sum());
+            json.put("savedLookups", savedLookups.sum());
+            json.put("contexts", contexts.sum());
+        } catch (Exception e) {
+            logger.warn("Error generating rule evaluation stats", e);
+        }
+
+        return json;
+    }
+
+    /**
+     * Clear the lookup counters
+     */
+    public static void reset()
+    {
+        lookups.reset();
+        savedLookups.reset();
+        contexts.reset();
+    }
+
+    /**
+     * Check if a session context is too old to be used
+     *
+     * @return True if expired
+     */
+    private boolean isExpired()
+    {
+        return System.nanoTime() - creationTime > SESSION_CONTEXT_MAX_AGE;
+    }
+
+    /**
+     * Do a lookup, or get its result if it was already done
+     *
+     * @param results
+     *        The results of this kind of lookup
+     * @param key
+     *        The key
+     * @param function
+     *        The lookup
+     * @param <K>
+     *        The key type
+     * @param <V>
+     *        The result type
+     * @return The result
+     */
+    private <K, V> V lookup(HashMap<K, V> results, K key, Function<K, V> function)
+    {
+        if (!cached) {
+            lookups.increment();
+            return function.apply(key);
+        }
+
+        /* a session context can be used by a timer thread too */
+        synchronized (this) {
+            if (results.containsKey(key)) {
+                savedLookups.increment();
+                return results.get(key);
+            }
+
+            lookups.increment();
+            V value = function.apply(key);
+            results.put(key, value);
+            return value;
+        }
+    }
+}
@@ -0,0 +1,519 @@
+/**
+ * $Id$
+ */
+
+package com.untangle.uvm.app;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import org.apache.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * The rule profiler counts how often each rule of the apps is evaluated and
+ * hits (is the first rule that matches), and how often each condition type is
+ * evaluated and how long it takes.
+ *
+ * The profiler is off unless uvm.rules.profile is set. When it is off the
+ * rules and conditions are evaluated without counting.
+ *
+ * Evaluations and hits are counted every time, the time is only measured for a
+ * sample of the evaluations (1 in uvm.rules.profile.sample, 64 by default) and
+ * the total is estimated from the mean. All the counters are LongAdders, so
+ * the apps never wait on each other to count.
+ *
+ * Rules are counted by app instance, rule type and rule ID, so the counters of
+ * a rule are kept when the settings are saved. Rules that were deleted are
+ * listed until the counters are reset.
+ */
+public class RuleProfiler
+{
+    private static final Logger logger = Logger.getLogger(RuleProfiler.class);
+
+    /* True if the rule evaluations are counted */
+    public static final boolean ENABLED = (System.getProperty("uvm.rules.profile") != null);
+
+    private static final int SAMPLE_RATE = Math.max(1, Integer.getInteger("uvm.rules.profile.sample", 64));
+
+    /* Returned by start() for evaluations that are not timed */
+    public static final long NOT_SAMPLED = Long.MIN_VALUE;
+
+    private static final Map<RuleKey, RuleCounter> ruleCounters = new ConcurrentHashMap<>();
+
+    private static final ConditionCounter[] conditionCounters = new ConditionCounter[RuleCondition.ConditionType.values().length];
+
+    static {
+        for (RuleCondition.ConditionType type : RuleCondition.ConditionType.values())
+            conditionCounters[type.ordinal()] = new ConditionCounter(type);
+    }
+
+    /**
+     * Not instantiable
+     */
+    private RuleProfiler()
+    {
+    }
+
+    /**
+     * Start an evaluation
+     *
+     * @return The start time if the evaluation should be timed, otherwise
+     *         NOT_SAMPLED
+     */
+    public static long start()
+    {
+        if (SAMPLE_RATE == 1 || ThreadLocalRandom.current().nextInt(SAMPLE_RATE) == 0) return System.nanoTime();
+        return NOT_SAMPLED;
+    }
+
+    /**
+     * Count the evaluation of a rule
+     *
+     * @param key
+     *        The rule
+     * @param hit
+     *        True if the rule matched
+     * @param start
+     *        The value returned by start()
+     */
+    public static void recordRule(RuleKey key, boolean hit, long start)
+    {
+        RuleCounter counter = ruleCounters.get(key);
+        if (counter == null) {
+            RuleCounter newCounter = new RuleCounter(key);
+            counter = ruleCounters.putIfAbsent(key, newCounter);
+            if (counter == null) counter = newCounter;
+        }
+
+        counter.record(hit, start);
+    }
+
+    /**
+     * Count the evaluation of a rule condition
+     *
+     * @param type
+     *        The condition type
+     * @param match
+     *        True if the condition matched
+     * @param start
+     *        The value returned by start()
+     */
+    static void recordCondition(RuleCondition.ConditionType type, boolean match, long start)
+    {
+        if (type == null) return;
+
+        conditionCounters[type.ordinal()].record(match, start);
+    }
+
+    /**
+     * Clear all the counters, and forget the rules
+     */
+    public static void reset()
+    {
+        ruleCounters.clear();
+        for (ConditionCounter counter : conditionCounters)
+            counter.reset();
+    }
+
+    /**
+     * Get the profiler view: the counters of each rule, by app, and the
+     * condition types by estimated evaluation time
+     *
+     * @return The profiler view
+     */
+    public static JSONObject toJSON()
+    {
+        JSONObject json = new JSONObject();
+
+        try {
+            List<RuleCounter> rules = new ArrayList<>(ruleCounters.values());
+            Collections.sort(rules, RuleCounter.BY_RULE);
+            JSONArray rulesJSON = new JSONArray();
+            for (RuleCounter counter : rules)
+                rulesJSON.put(counter.toJSON());
+
+            List<ConditionCounter> conditions = new ArrayList<>();
+            long totalConditionNanos = 0;
+            for (ConditionCounter counter : conditionCounters) {
+                if (counter.evaluations.sum() == 0) continue;
+                conditions.add(counter);
+                totalConditionNanos += counter.estimatedNanos();
+            }
+            Collections.sort(conditions, ConditionCounter.MOST_EXPENSIVE_FIRST);
+            JSONArray conditionsJSON = new JSONArray();
+            for (ConditionCounter counter : conditions)
+                conditionsJSON.put(counter.toJSON(totalConditionNanos));
+
+            json.put("enabled", ENABLED);
+            json.put("sampleRate", SAMPLE_RATE);
+            json.put("rules", rulesJSON);
+            json.put("conditions", conditionsJSON);
+        } catch (Exception e) {
+            logger.warn("Error generating rule profile", e);
+        }
+
+        return json;
+    }
+
+    /**
+     * Calculate a mean in microseconds
+     *
+     * @param nanos
+     *        The total time
+     * @param samples
+     *        The number of samples
+     * @return The mean, 0 without samples
+     */
+    private static double meanMicros(long nanos, long samples)
+    {
+        if (samples <= 0) return 0;
+        return (nanos / (double) samples) / 1000.0;
+    }
+
+    /**
+     * The identity of a rule: the app instance, rule type and rule ID. The
+     * apps keep the keys of their rules so they don't create one for each
+     * evaluation.
+     */
+    public static final class RuleKey
+    {
+        private final Long appId;
+        private final String appName;
+        private final Integer policyId;
+        private final String ruleType;
+        private final Integer ruleId;
+        private final String description;
+
+        /**
+         * Constructor
+         *
+         * @param app
+         *        The app that evaluates the rule
+         * @param ruleType
+         *        The rule type (FirewallRule, WebFilterRule...)
+         * @param ruleId
+         *        The rule ID
+         * @param description
+         *        The rule description
+         */
+        public RuleKey(App app, String ruleType, Integer ruleId, String description)
+        {
+            AppSettings appSettings = (app == null) ? null : app.getAppSettings();
+
+            this.appId = (appSettings == null) ? null : appSettings.getId();
+            this.appName = (appSettings == null) ? null : appSettings.getAppName();
+            this.policyId = (appSettings == null) ? null : appSettings.getPolicyId();
+            this.ruleType = ruleType;
+            this.ruleId = ruleId;
+            this.description = description;
+        }
+
+        /**
+         * hashCode
+         *
+         * @return The hash
+         */
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(appId, ruleType, ruleId);
+        }
+
+        /**
+         * equals, the description is not part of the identity
+         *
+         * @param o
+         *        The other key
+         * @return True if both are the same rule
+         */
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof RuleKey)) return false;
+            RuleKey other = (RuleKey) o;
+            return Objects.equals(appId, other.appId) && Objects.equals(ruleType, other.ruleType) && Objects.equals(ruleId, other.ruleId);
+        }
+    }
+
+    /**
+     * The keys of the rules of a list, built once per list and rebuilt when
+     * the settings replace the list (as CompiledRuleSet does when it is
+     * compiled)
+     *
+     * @param <T>
+     *        The rule type
+     */
+    public static final class RuleKeyCache<T>
+    {
+        private final Function<T, RuleKey> keyFunction;
+
+        /* The list the keys were built for, with its keys */
+        private volatile CachedKeys cached = null;
+
+        /**
+         * Constructor
+         *
+         * @param keyFunction
+         *        Returns the key of a rule
+         */
+        public RuleKeyCache(Function<T, RuleKey> keyFunction)
+        {
+            this.keyFunction = keyFunction;
+        }
+
+        /**
+         * Get the keys of a list of rules
+         *
+         * @param rules
+         *        The rules
+         * @return The key of each rule, in the order of the list
+         */
+        public RuleKey[] get(List<T> rules)
+        {
+            CachedKeys c = cached;
+            if (c != null && c.rules == rules && c.keys.length == rules.size()) return c.keys;
+
+            RuleKey[] keys = new RuleKey[rules.size()];
+            int i = 0;
+            for (T rule : rules)
+                keys[i++] = keyFunction.apply(rule);
+
+            cached = new CachedKeys(rules, keys);
+            return keys;
+        }
+
+        /**
+         * A list and the keys of its rules
+         */
+        private static final class CachedKeys
+        {
+            final List<?> rules;
+            final RuleKey[] keys;
+
+            /**
+             * Constructor
+             *
+             * @param rules
+             *        The rules
+             * @param keys
+             *        The keys of the rules
+             */
+            CachedKeys(List<?> rules, RuleKey[] keys)
+            {
+                this.rules = rules;
+                this.keys = keys;
+            }
+        }
+    }
+
+    /**
+     * The counters of a rule
+     */
+    private static class RuleCounter
+    {
+        static final Comparator<RuleCounter> BY_RULE = new Comparator<RuleCounter>()
+        {
+            /**
+             * Compare two rules by app, rule type and rule ID
+             *
+             * @param a
+             *        The first rule
+             * @param b
+             *        The second rule
+             * @return Negative if a comes before b
+             */
+            public int compare(RuleCounter a, RuleCounter b)
+            {
+                int c = Long.compare(a.key.appId == null ? -1 : a.key.appId, b.key.appId == null ? -1 : b.key.appId);
+                if (c != 0) return c;
+                c = String.valueOf(a.key.ruleType).compareTo(String.valueOf(b.key.ruleType));
+                if (c != 0) return c;
+                return Integer.compare(a.key.ruleId == null ? -1 : a.key.ruleId, b.key.ruleId == null ? -1 : b.key.ruleId);
+            }
+        };
+
+        final RuleKey key;
+
+        final LongAdder evaluations = new LongAdder();
+        final LongAdder hits = new LongAdder();
+        final LongAdder samples = new LongAdder();
+        final LongAdder sampledNanos = new LongAdder();
+        volatile long lastHit = 0;
+
+        /**
+         * Constructor
+         *
+         * @param key
+         *        The rule
+         */
+        RuleCounter(RuleKey key)
+        {
+            this.key = key;
+        }
+
+        /**
+         * Count an evaluation
+         *
+         * @param hit
+         *        True if the rule matched
+         * @param start
+         *        The value returned by start()
+         */
+        void record(boolean hit, long start)
+        {
+            evaluations.increment();
+            if (hit) {
+                hits.increment();
+                lastHit = System.currentTimeMillis();
+            }
+            if (start != NOT_SAMPLED) {
+                samples.increment();
+                sampledNanos.add(System.nanoTime() - start);
+            }
+        }
+
+        /**
+         * Get the counters of the rule
+         *
+         * @return The counters
+         * @throws Exception
+         */
+        JSONObject toJSON() throws Exception
+        {
+            JSONObject json = new JSONObject();
+            long evaluationCount = evaluations.sum();
+            double mean = meanMicros(sampledNanos.sum(), samples.sum());
+
+            json.put("appId", key.appId);
+            json.put("app", key.appName);
+            json.put("policyId", key.policyId);
+            json.put("ruleType", key.ruleType);
+            json.put("ruleId", key.ruleId);
+            json.put("description", key.description);
+            json.put("evaluations", evaluationCount);
+            json.put("hits", hits.sum());
+            json.put("lastHit", lastHit);
+            json.put("samples", samples.sum());
+            json.put("meanMicros", mean);
+            json.put("estimatedMillis", mean * evaluationCount / 1000.0);
+
+            return json;
+        }
+    }
+
+    /**
+     * The counters of a condition type
+     */
+    private static class ConditionCounter
+    {
+        static final Comparator<ConditionCounter> MOST_EXPENSIVE_FIRST = new Comparator<ConditionCounter>()
+        {
+            /**
+             * Compare two condition types by estimated time
+             *
+             * @param a
+             *        The first condition type
+             * @param b
+             *        The second condition type
+             * @return Negative if a took longer than b
+             */
+            public int compare(ConditionCounter a, ConditionCounter b)
+            {
+                return Long.compare(b.estimatedNanos(), a.estimatedNanos());
+            }
+        };
+
+        final RuleCondition.ConditionType type;
+
+        final LongAdder evaluations = new LongAdder();
+        final LongAdder matches = new LongAdder();
+        final LongAdder samples = new LongAdder();
+        final LongAdder sampledNanos = new LongAdder();
+
+        /**
+         * Constructor
+         *
+         * @param type
+         *        The condition type
+         */
+        ConditionCounter(RuleCondition.ConditionType type)
+        {
+            this.type = type;
+        }
+
+        /**
+         * Count an evaluation
+         *
+         * @param match
+         *        True if the condition matched
+         * @param start
+         *        The value returned by start()
+         */
+        void record(boolean match, long start)
+        {
+            evaluations.increment();
+            if (match) matches.increment();
+            if (start != NOT_SAMPLED) {
+                samples.increment();
+                sampledNanos.add(System.nanoTime() - start);
+            }
+        }
+
+        /**
+         * Clear the counters
+         */
+        void reset()
+        {
+            evaluations.reset();
+            matches.reset();
+            samples.reset();
+            sampledNanos.reset();
+        }
+
+        /**
+         * Estimate the total evaluation time from the samples
+         *
+         * @return The estimated time in nanoseconds
+         */
+        long estimatedNanos()
+        {
+            long sampleCount = samples.sum();
+            if (sampleCount <= 0) return 0;
+            return (long) ((sampledNanos.sum() / (double) sampleCount) * evaluations.sum());
+        }
+
+        /**
+         * Get the counters of the condition type
+         *
+         * @param totalNanos
+         *        The estimated time of all the condition types
+         * @return The counters
+         * @throws Exception
+         */
+        JSONObject toJSON(long totalNanos) throws Exception
+        {
+            JSONObject json = new JSONObject();
+            long estimated = estimatedNanos();
+
+            json.put("conditionType", type.name());
+            json.put("evaluations", evaluations.sum());
+            json.put("matches", matches.sum());
+            json.put("samples", samples.sum());
+            json.put("meanMicros", meanMicros(sampledNanos.sum(), samples.sum()));
+            json.put("estimatedMillis", estimated / 1000000.0);
+            json.put("percentOfTime", (totalNanos > 0) ? (estimated * 100.0 / totalNanos) : 0);
+
+            return json;
+        }
+    }
+}
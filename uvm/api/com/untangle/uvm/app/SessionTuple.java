@@ -5,22 +5,49 @@
 package com.untangle.uvm.app;
 
 import java.net.InetAddress;
+import java.net.UnknownHostException;
 
 /**
  * This is a generic 5-tuple that describes sessions
  * (Protocol, Client, Client Port, Server, Server Port)
+ *
+ * The addresses are stored as two 64-bit words each (IPv4 addresses are stored
+ * as IPv4-mapped IPv6 addresses), so hashing and comparing tuples never touches
+ * an InetAddress. Tuples created with fromIPv4 only create the InetAddress
+ * objects if something asks for them.
  */
 public class SessionTuple
 {
     public static final short PROTO_TCP = 6;
     public static final short PROTO_UDP = 17;
 
+    /* Prefix of an IPv4-mapped IPv6 address (::ffff:a.b.c.d) in the low word */
+    private static final long IPV4_MAPPED = 0x0000FFFF00000000L;
+
+    /* Flags for which addresses are set */
+    private static final byte CLIENT_ADDR_SET = 0x01;
+    private static final byte SERVER_ADDR_SET = 0x02;
+
     private short protocol = 0;
     private InetAddress clientAddr;
     private int clientPort = 0;
     private InetAddress serverAddr;
     private int serverPort = 0;
 
+    private long clientAddrHigh = 0;
+    private long clientAddrLow = 0;
+    private long serverAddrHigh = 0;
+    private long serverAddrLow = 0;
+    private byte addrFlags = 0;
+
+    /* Cached hash code, 0 if it has not been computed */
+    private int hash = 0;
+
+    /**
+     * Constructor for a tuple with no addresses
+     */
+    private SessionTuple() {}
+
     /**
      * Constructor
      * @param protocol The protocol
@@ -32,10 +59,10 @@ public class SessionTuple
     public SessionTuple( short protocol, InetAddress clientAddr, InetAddress serverAddr, int clientPort, int serverPort )
     {
         this.protocol = protocol;
-        this.clientAddr = clientAddr;
         this.clientPort = clientPort;
-        this.serverAddr = serverAddr;
         this.serverPort = serverPort;
+        setClientAddr( clientAddr );
+        setServerAddr( serverAddr );
     }
 
     /**
@@ -44,11 +71,38 @@ public class SessionTuple
      */
     public SessionTuple( SessionTuple tuple )
     {
-        this.protocol = tuple.getProtocol();
-        this.clientAddr = tuple.getClientAddr();
-        this.clientPort = tuple.getClientPort();
-        this.serverAddr = tuple.getServerAddr();
-        this.serverPort = tuple.getServerPort();
+        this.protocol = tuple.protocol;
+        this.clientAddr = tuple.clientAddr;
+        this.clientPort = tuple.clientPort;
+        this.serverAddr = tuple.serverAddr;
+        this.serverPort = tuple.serverPort;
+        this.clientAddrHigh = tuple.clientAddrHigh;
+        this.clientAddrLow = tuple.clientAddrLow;
+        this.serverAddrHigh = tuple.serverAddrHigh;
+        this.serverAddrLow = tuple.serverAddrLow;
+        this.addrFlags = tuple.addrFlags;
+        this.hash = tuple.hash;
+    }
+
+    /**
+     * Create a tuple from IPv4 addresses without creating InetAddress objects
+     * @param protocol The protocol
+     * @param clientAddr The client address (in host byte order, a.b.c.d is 0xaabbccdd)
+     * @param serverAddr The server address (in host byte order)
+     * @param clientPort The client port
+     * @param serverPort The server port
+     * @return The tuple
+     */
+    public static SessionTuple fromIPv4( short protocol, int clientAddr, int serverAddr, int clientPort, int serverPort )
+    {
+        SessionTuple tuple = new SessionTuple();
+        tuple.protocol = protocol;
+        tuple.clientPort = clientPort;
+        tuple.serverPort = serverPort;
+        tuple.clientAddrLow = IPV4_MAPPED | ( clientAddr & 0xFFFFFFFFL );
+        tuple.serverAddrLow = IPV4_MAPPED | ( serverAddr & 0xFFFFFFFFL );
+        tuple.addrFlags = CLIENT_ADDR_SET | SERVER_ADDR_SET;
+        return tuple;
     }
 
     /**
@@ -61,20 +115,40 @@ public class SessionTuple
      * Set the protocol
      * @param protocol The protocol
      */
-    public void setProtocol( short protocol ) { this.protocol = protocol; }
+    public void setProtocol( short protocol ) { this.protocol = protocol; this.hash = 0; }
 
     /**
      * Gets the Client Address of this session. </p>
      *
      * @return  the client address
      */
-    public InetAddress getClientAddr() { return this.clientAddr; }
+    public InetAddress getClientAddr()
+    {
+        if ( this.clientAddr == null && ( addrFlags & CLIENT_ADDR_SET ) != 0 )
+            this.clientAddr = toAddress( clientAddrHigh, clientAddrLow );
+        return this.clientAddr;
+    }
     
     /**
      * Set the client address
      * @param clientAddr The client address
      */
-    public void setClientAddr( InetAddress clientAddr ) { this.clientAddr = clientAddr; }
+    public void setClientAddr( InetAddress clientAddr )
+    {
+        this.clientAddr = clientAddr;
+        this.hash = 0;
+
+        if ( clientAddr == null ) {
+            this.clientAddrHigh = 0;
+            this.clientAddrLow = 0;
+            this.addrFlags &= ~CLIENT_ADDR_SET;
+        } else {
+            byte[] addr = clientAddr.getAddress();
+            this.clientAddrHigh = highWord( addr );
+            this.clientAddrLow = lowWord( addr );
+            this.addrFlags |= CLIENT_ADDR_SET;
+        }
+    }
 
     /**
      * Gets the client port for this session.</p>
@@ -86,20 +160,40 @@ public class SessionTuple
      * Set the client port
      * @param clientPort The client port
      */
-    public void setClientPort( int clientPort ) { this.clientPort = clientPort; }
+    public void setClientPort( int clientPort ) { this.clientPort = clientPort; this.hash = 0; }
 
     /**
      * Gets the Server Address of this session. </p>
      *
      * @return  the server addr.
      */
-    public InetAddress getServerAddr() { return this.serverAddr; }
+    public InetAddress getServerAddr()
+    {
+        if ( this.serverAddr == null && ( addrFlags & SERVER_ADDR_SET ) != 0 )
+            this.serverAddr = toAddress( serverAddrHigh, serverAddrLow );
+        return this.serverAddr;
+    }
     
     /**
      * Set the server address
      * @param serverAddr The server address
      */
-    public void setServerAddr( InetAddress serverAddr ) { this.serverAddr = serverAddr; }
+    public void setServerAddr( InetAddress serverAddr )
+    {
+        this.serverAddr = serverAddr;
+        this.hash = 0;
+
+        if ( serverAddr == null ) {
+            this.serverAddrHigh = 0;
+            this.serverAddrLow = 0;
+            this.addrFlags &= ~SERVER_ADDR_SET;
+        } else {
+            byte[] addr = serverAddr.getAddress();
+            this.serverAddrHigh = highWord( addr );
+            this.serverAddrLow = lowWord( addr );
+            this.addrFlags |= SERVER_ADDR_SET;
+        }
+    }
 
     /**
      * Gets the server port for this session.</p>
@@ -111,19 +205,33 @@ public class SessionTuple
      * Set the server port
      * @param serverPort The server port
      */
-    public void setServerPort( int serverPort ) { this.serverPort = serverPort; }
+    public void setServerPort( int serverPort ) { this.serverPort = serverPort; this.hash = 0; }
 
     /**
      * Get the hash code
+     * Every field is mixed in at a different position, so reversed tuples and
+     * tuples that only differ in a port (like NATed flows) get unrelated hashes.
      * @return The hash code
      */
     @Override
     public int hashCode()
     {
-        if ( clientAddr == null || serverAddr == null )
-            return protocol + clientPort + serverPort;
-        else
-            return protocol + clientAddr.hashCode() + clientPort + serverAddr.hashCode() + serverPort;
+        int h = this.hash;
+        if ( h != 0 )
+            return h;
+
+        long acc = mix( ( (long)protocol << 48 ) ^ ( (long)( clientPort & 0xFFFF ) << 16 ) ^ ( serverPort & 0xFFFF ) ^ ( (long)addrFlags << 56 ) );
+        acc = mix( acc ^ clientAddrHigh );
+        acc = mix( acc ^ clientAddrLow );
+        acc = mix( acc ^ serverAddrHigh );
+        acc = mix( acc ^ serverAddrLow );
+
+        h = (int)( acc ^ ( acc >>> 32 ));
+        if ( h == 0 )
+            h = 1;
+
+        this.hash = h;
+        return h;
     }
 
     /**
@@ -141,9 +249,9 @@ public class SessionTuple
         SessionTuple t = (SessionTuple)o;
         if ( t.protocol != this.protocol || t.clientPort != this.clientPort || t.serverPort != this.serverPort)
             return false;
-        if ( ! ( t.clientAddr == null ? this.clientAddr == null : t.clientAddr.equals(this.clientAddr) ) )
+        if ( t.clientAddrLow != this.clientAddrLow || t.serverAddrLow != this.serverAddrLow )
             return false;
-        if ( ! ( t.serverAddr == null ? this.serverAddr == null : t.serverAddr.equals(this.serverAddr) ) )
+        if ( t.clientAddrHigh != this.clientAddrHigh || t.serverAddrHigh != this.serverAddrHigh || t.addrFlags != this.addrFlags )
             return false;
         return true;
     }
@@ -167,11 +275,100 @@ public class SessionTuple
             str += "PROTO:" + protocol + " ";
             break;
         }
-        str += (clientAddr == null ? "null" : clientAddr.getHostAddress()) + ":" + clientPort;
+        InetAddress client = getClientAddr();
+        InetAddress server = getServerAddr();
+        str += (client == null ? "null" : client.getHostAddress()) + ":" + clientPort;
         str += " -> ";
-        str += (serverAddr == null ? "null" : serverAddr.getHostAddress()) + ":" + serverPort;
+        str += (server == null ? "null" : server.getHostAddress()) + ":" + serverPort;
         str += "]";
         
         return str;
     }
+
+    /**
+     * Mix the bits of a 64-bit value (the murmur3 finalizer)
+     * @param v The value
+     * @return The mixed value
+     */
+    private static long mix( long v )
+    {
+        v ^= v >>> 33;
+        v *= 0xFF51AFD7ED558CCDL;
+        v ^= v >>> 33;
+        v *= 0xC4CEB9FE1A85EC53L;
+        v ^= v >>> 33;
+        return v;
+    }
+
+    /**
+     * Get the high 64 bits of an address as an IPv6 address
+     * @param addr The address bytes (4 or 16 bytes)
+     * @return The high word
+     */
+    private static long highWord( byte[] addr )
+    {
+        if ( addr.length != 16 )
+            return 0;
+        return toLong( addr, 0 );
+    }
+
+    /**
+     * Get the low 64 bits of an address as an IPv6 address
+     * @param addr The address bytes (4 or 16 bytes)
+     * @return The low word
+     */
+    private static long lowWord( byte[] addr )
+    {
+        if ( addr.length == 16 )
+            return toLong( addr, 8 );
+
+        long v = 0;
+        for ( int c = 0 ; c < addr.length ; c++ )
+            v = ( v << 8 ) | ( addr[c] & 0xFF );
+        return IPV4_MAPPED | v;
+    }
+
+    /**
+     * Read 8 bytes as a big endian long
+     * @param addr The bytes
+     * @param offset The offset of the first byte
+     * @return The value
+     */
+    private static long toLong( byte[] addr, int offset )
+    {
+        long v = 0;
+        for ( int c = offset ; c < offset + 8 ; c++ )
+            v = ( v << 8 ) | ( addr[c] & 0xFF );
+        return v;
+    }
+
+    /**
+     * Convert address words back into an InetAddress
+     * @param high The high word
+     * @param low The low word
+     * @return The address
+     */
+    private static InetAddress toAddress( long high, long low )
+    {
+        byte[] addr;
+
+        if ( high == 0 && ( low & 0xFFFFFFFF00000000L ) == IPV4_MAPPED ) {
+            addr = new byte[4];
+            for ( int c = 0 ; c < 4 ; c++ )
+                addr[c] = (byte)( low >>> ( 24 - 8 * c ));
+        } else {
+            addr = new byte[16];
+            for ( int c = 0 ; c < 8 ; c++ ) {
+                addr[c] = (byte)( high >>> ( 56 - 8 * c ));
+                addr[c + 8] = (byte)( low >>> ( 56 - 8 * c ));
+            }
+        }
+
+        try {
+            return InetAddress.getByAddress( addr );
+        } catch ( UnknownHostException e ) {
+            /* Only thrown for an invalid length */
+            return null;
+        }
+    }
 }
@@ -5,12 +5,14 @@
 package com.untangle.uvm.util;
 
 import java.net.InetAddress;
+import java.util.LinkedList;
 import java.util.List;
 
 import org.apache.log4j.Logger;
 
 import com.untangle.uvm.app.GenericRule;
 import com.untangle.uvm.app.IPMatcher;
+import com.untangle.uvm.app.IPRangeMap;
 import com.untangle.uvm.app.UrlMatcher;
 
 /**
@@ -20,6 +22,14 @@ public class UrlMatchingUtil
 {
     private static final Logger logger = Logger.getLogger(UrlMatchingUtil.class);
 
+    /* Client lists with at least this many rules are indexed */
+    private static final int CLIENT_LIST_INDEX_MIN_SIZE = 16;
+
+    /* Number of client list indexes kept */
+    private static final int CLIENT_LIST_INDEX_CACHE_SIZE = 16;
+
+    private static volatile ClientListIndex[] clientListIndexes = new ClientListIndex[CLIENT_LIST_INDEX_CACHE_SIZE];
+
     /**
      * normalize the hostname
      * 
@@ -111,6 +121,10 @@ public class UrlMatchingUtil
     /**
      * checkClientPassList checks the clientIp against the client pass list
      * 
+     * Long lists are looked up in an index of the addresses of the rules (an
+     * IPRangeMap) that is built the first time a list is checked, short lists
+     * are checked rule by rule.
+     * 
      * @param clientIp
      *        IP of the host
      * @param rulesList
@@ -119,25 +133,16 @@ public class UrlMatchingUtil
      */
     public static GenericRule checkClientList(InetAddress clientIp, List<GenericRule> rulesList)
     {
+        if (rulesList.size() >= CLIENT_LIST_INDEX_MIN_SIZE) {
+            GenericRule rule = getClientListIndex(rulesList).find(clientIp);
+            if (rule != null) logger.debug("LOG: " + clientIp + " in client pass list");
+            return rule;
+        }
+
         for (GenericRule rule : rulesList) {
             if (rule.getEnabled() != null && !rule.getEnabled()) continue;
 
-            Object matcherO = rule.attachment();
-            IPMatcher matcher = null;
-
-            /**
-             * If the matcher is not attached to the rule, initialize a new one
-             * and attach it. Otherwise just use the matcher already initialized
-             * and attached to the rule
-             */
-            if (matcherO == null || !(matcherO instanceof IPMatcher)) {
-                matcher = new IPMatcher(rule.getString());
-                rule.attach(matcher);
-            } else {
-                matcher = (IPMatcher) matcherO;
-            }
-
-            if (matcher.isMatch(clientIp)) {
+            if (getClientMatcher(rule).isMatch(clientIp)) {
                 logger.debug("LOG: " + clientIp + " in client pass list");
                 return rule;
             }
@@ -145,4 +150,125 @@ public class UrlMatchingUtil
 
         return null;
     }
+
+    /**
+     * Get the IPMatcher of a client list rule
+     * 
+     * @param rule
+     *        The rule
+     * @return The matcher
+     */
+    private static IPMatcher getClientMatcher(GenericRule rule)
+    {
+        Object matcherO = rule.attachment();
+
+        /**
+         * If the matcher is not attached to the rule, initialize a new one and
+         * attach it. Otherwise just use the matcher already initialized and
+         * attached to the rule
+         */
+        if (matcherO == null || !(matcherO instanceof IPMatcher)) {
+            IPMatcher matcher = new IPMatcher(rule.getString());
+            rule.attach(matcher);
+            return matcher;
+        }
+
+        return (IPMatcher) matcherO;
+    }
+
+    /**
+     * Get the index of a client list, the indexes of the last few lists are
+     * kept (there is one list per app instance)
+     * 
+     * @param rulesList
+     *        The list of rules
+     * @return The index
+     */
+    private static ClientListIndex getClientListIndex(List<GenericRule> rulesList)
+    {
+        ClientListIndex[] indexes = clientListIndexes;
+        for (ClientListIndex index : indexes) {
+            if (index != null && index.rules == rulesList && index.size == rulesList.size()) return index;
+        }
+
+        ClientListIndex index = new ClientListIndex(rulesList);
+
+        synchronized (UrlMatchingUtil.class) {
+            ClientListIndex[] newIndexes = new ClientListIndex[CLIENT_LIST_INDEX_CACHE_SIZE];
+            newIndexes[0] = index;
+            int c = 1;
+            for (ClientListIndex old : clientListIndexes) {
+                if (c == newIndexes.length) break;
+                if (old != null && old.rules != rulesList) newIndexes[c++] = old;
+            }
+            clientListIndexes = newIndexes;
+        }
+
+        return index;
+    }
+
+    /**
+     * The addresses of the enabled rules of a client list, mapped to the
+     * index of the rule so the first matching rule is found
+     */
+    private static class ClientListIndex
+    {
+        private final List<GenericRule> rules;
+        private final int size;
+
+        /* copy of the rules, the settings list is a LinkedList */
+        private final GenericRule[] ruleArray;
+        private final IPRangeMap map = new IPRangeMap();
+
+        /* rules that couldn't be indexed (invalid, non-contiguous netmask) */
+        private final List<Integer> unindexed = new LinkedList<>();
+
+        /**
+         * Build the index of a list
+         * 
+         * @param rules
+         *        The list of rules
+         */
+        ClientListIndex(List<GenericRule> rules)
+        {
+            this.rules = rules;
+            this.ruleArray = rules.toArray(new GenericRule[0]);
+            this.size = ruleArray.length;
+
+            int i = 0;
+            for (GenericRule rule : ruleArray) {
+                if (rule.getEnabled() == null || rule.getEnabled()) {
+                    try {
+                        if (!map.add(getClientMatcher(rule), i)) unindexed.add(i);
+                    } catch (Exception e) {
+                        /* an invalid rule throws again when it's reached in find() */
+                        unindexed.add(i);
+                    }
+                }
+                i++;
+            }
+            map.compile();
+        }
+
+        /**
+         * Find the first rule that matches an address
+         * 
+         * @param clientIp
+         *        The address
+         * @return The rule, null if none matches
+         */
+        GenericRule find(InetAddress clientIp)
+        {
+            int match = map.get(clientIp);
+
+            for (Integer i : unindexed) {
+                if (match >= 0 && i > match) break;
+
+                GenericRule rule = ruleArray[i];
+                if (getClientMatcher(rule).isMatch(clientIp)) return rule;
+            }
+
+            return (match >= 0) ? ruleArray[match] : null;
+        }
+    }
 }
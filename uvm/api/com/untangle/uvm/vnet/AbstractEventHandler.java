@@ -175,6 +175,16 @@ public abstract class AbstractEventHandler implements SessionEventHandler
         session.sendDataToClient( data );
     }
 
+    /**
+     * releasesTCPChunks returns true if the chunk handlers never hold on to the chunk buffers
+     * default: false, subclasses that only read or send the chunks can override it
+     * @return false
+     */
+    public boolean releasesTCPChunks()
+    {
+        return false;
+    }
+
     /**
      * handleTCPClientObject handles an object from the client
      * default behavior: send to server
@@ -90,6 +90,22 @@ public interface AppSession
      */
     Object globalAttachment(String key);
 
+    /**
+     * Typed versions of attach/attachment/globalAttach/globalAttachment.
+     * These share the attachments of the string versions, but avoid the
+     * string lookup and the cast.
+     *
+     * @param key The attachment key
+     * @param ob The object to be attached; may be <tt>null</tt>
+     *
+     * @return The previously-attached object, if any, otherwise
+     *          <tt>null</tt>
+     */
+    <T> T attach(AttachmentKey<T> key, T ob);
+    <T> T attachment(AttachmentKey<T> key);
+    <T> T globalAttach(AttachmentKey<T> key, T ob);
+    <T> T globalAttachment(AttachmentKey<T> key);
+
     /**
      * <code>id</code> returns the session's unique identifier, a positive integer >= 1.
      * All sessions have a unique id assigned by Netcap.  This will eventually, of course,
@@ -130,6 +146,20 @@ public interface AppSession
     public final String KEY_HTTP_REQUEST_FILE_EXTENSION = "http-request-file-extension"; /* String */
     public final String KEY_HTTP_RESPONSE_FILE_NAME = "http-response-file-name"; /* String */
     public final String KEY_HTTP_RESPONSE_FILE_EXTENSION = "http-response-file-extension"; /* String */
+
+    public final AttachmentKey<String> HTTP_HOSTNAME = AttachmentKey.register(KEY_HTTP_HOSTNAME, String.class);
+    public final AttachmentKey<String> HTTP_REFERER = AttachmentKey.register(KEY_HTTP_REFERER, String.class);
+    public final AttachmentKey<String> HTTP_URI = AttachmentKey.register(KEY_HTTP_URI, String.class);
+    public final AttachmentKey<String> HTTP_URL = AttachmentKey.register(KEY_HTTP_URL, String.class);
+    public final AttachmentKey<String> HTTP_USER_AGENT = AttachmentKey.register(KEY_HTTP_USER_AGENT, String.class);
+    public final AttachmentKey<String> HTTP_CONTENT_TYPE = AttachmentKey.register(KEY_HTTP_CONTENT_TYPE, String.class);
+    public final AttachmentKey<Long> HTTP_CONTENT_LENGTH = AttachmentKey.register(KEY_HTTP_CONTENT_LENGTH, Long.class);
+    public final AttachmentKey<String> HTTP_REQUEST_METHOD = AttachmentKey.register(KEY_HTTP_REQUEST_METHOD, String.class);
+    public final AttachmentKey<String> HTTP_REQUEST_FILE_PATH = AttachmentKey.register(KEY_HTTP_REQUEST_FILE_PATH, String.class);
+    public final AttachmentKey<String> HTTP_REQUEST_FILE_NAME = AttachmentKey.register(KEY_HTTP_REQUEST_FILE_NAME, String.class);
+    public final AttachmentKey<String> HTTP_REQUEST_FILE_EXTENSION = AttachmentKey.register(KEY_HTTP_REQUEST_FILE_EXTENSION, String.class);
+    public final AttachmentKey<String> HTTP_RESPONSE_FILE_NAME = AttachmentKey.register(KEY_HTTP_RESPONSE_FILE_NAME, String.class);
+    public final AttachmentKey<String> HTTP_RESPONSE_FILE_EXTENSION = AttachmentKey.register(KEY_HTTP_RESPONSE_FILE_EXTENSION, String.class);
     
     public final String KEY_FTP_FILE_NAME = "ftp-file-name";  /* String */
     public final String KEY_FTP_DATA_SESSION = "ftp-data-session";  /* Boolean */
@@ -349,6 +379,12 @@ public interface AppSession
     byte clientState();
     byte serverState();
 
+    /**
+     * Get the number of data bytes queued by the app for a side that haven't
+     * been written to the outgoing socket queue yet
+     */
+    long queuedBytes(int side);
+
     void simulateClientData(ByteBuffer data);
     void simulateServerData(ByteBuffer data);
 
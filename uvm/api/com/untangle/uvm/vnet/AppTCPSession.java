@@ -96,6 +96,23 @@ public interface AppTCPSession extends AppSession
      */
     void serverReadLimit(long numBytes);
 
+    /**
+     * <code>maxInputSize</code> gives the largest chunk this app wants to be read from the
+     * client or server socket at once.  0 (the default) means the read buffer size.
+     *
+     * @return an <code>int</code> giving the size in bytes
+     */
+    int maxInputSize();
+
+    /**
+     * Sets the <code>maxInputSize</code>.  This only has an effect if it is set before the
+     * session is completed (in handleTCPNewSessionRequest, handleTCPNewSession or handleTCPComplete),
+     * that is when the socket read sizes are set.
+     *
+     * @param size an <code>int</code> giving the size in bytes, 0 for the read buffer size
+     */
+    void maxInputSize(int size);
+
     /**
      * <code>shutdownClient</code> shuts down the output to the client.  Sends a FIN to the
      * client. (This is usually done in response to receiving a FIN at the server input.)
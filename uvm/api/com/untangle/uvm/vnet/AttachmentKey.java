@@ -0,0 +1,203 @@
+/**
+ * $Id$
+ */
+package com.untangle.uvm.vnet;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A typed key for session attachments.
+ *
+ * Every attachment name is registered once and given a slot, sessions store
+ * their attachments in an array indexed by the slot. Looking up an attachment
+ * with an AttachmentKey is an array access instead of a string-keyed hash
+ * lookup, and the value doesn't need to be cast.
+ *
+ * The string attachment API uses the same slots (through forName), so a value
+ * attached with a string key can be read with the AttachmentKey of the same
+ * name and vice versa.
+ *
+ * Keys registered with registerInternal are for the UVM's own state, their
+ * attachments are not listed in the attachments of a session.
+ *
+ * @param <T> the type of the attached value
+ */
+public final class AttachmentKey<T>
+{
+    private static final ConcurrentHashMap<String, AttachmentKey<Object>> keysByName = new ConcurrentHashMap<>();
+    private static volatile String[] slotNames = new String[0];
+    private static volatile boolean[] internalSlots = new boolean[0];
+
+    private final String name;
+    private final Class<T> type;
+    private final int slot;
+
+    /**
+     * AttachmentKey
+     * @param name
+     * @param type
+     * @param slot
+     */
+    private AttachmentKey(String name, Class<T> type, int slot)
+    {
+        this.name = name;
+        this.type = type;
+        this.slot = slot;
+    }
+
+    /**
+     * Register a typed attachment key, keys should be registered once and kept in a constant
+     * @param name - the attachment name (the string key)
+     * @param type - the type of the attached value
+     * @return the key
+     */
+    public static <T> AttachmentKey<T> register(String name, Class<T> type)
+    {
+        return new AttachmentKey<>(name, type, forName(name).slot);
+    }
+
+    /**
+     * Register a typed attachment key whose attachments are not listed in the attachments of a session
+     * @param name - the attachment name (the string key)
+     * @param type - the type of the attached value
+     * @return the key
+     */
+    public static <T> AttachmentKey<T> registerInternal(String name, Class<T> type)
+    {
+        AttachmentKey<T> key = register(name, type);
+        markInternal(key.slot);
+        return key;
+    }
+
+    /**
+     * Get the untyped key for an attachment name, registering the name if it is new.
+     * This is used by the string attachment API
+     * @param name - the attachment name
+     * @return the key
+     */
+    public static AttachmentKey<Object> forName(String name)
+    {
+        AttachmentKey<Object> key = keysByName.get(name);
+        if (key != null)
+            return key;
+
+        return newSlot(name);
+    }
+
+    /**
+     * Get the untyped key for an attachment name without registering it
+     * @param name - the attachment name
+     * @return the key or null if the name has never been used
+     */
+    public static AttachmentKey<Object> lookup(String name)
+    {
+        return keysByName.get(name);
+    }
+
+    /**
+     * Get the name of a slot
+     * @param slot
+     * @return the name or null if the slot isn't registered
+     */
+    public static String slotName(int slot)
+    {
+        String[] names = slotNames;
+        if (slot < 0 || slot >= names.length)
+            return null;
+        return names[slot];
+    }
+
+    /**
+     * Check if a slot was registered with registerInternal
+     * @param slot
+     * @return true if the attachments of the slot are not listed
+     */
+    public static boolean isInternal(int slot)
+    {
+        boolean[] internal = internalSlots;
+        return slot >= 0 && slot < internal.length && internal[slot];
+    }
+
+    /**
+     * Get the number of registered slots
+     * @return the number of slots
+     */
+    public static int slotCount()
+    {
+        return slotNames.length;
+    }
+
+    /**
+     * Register a new name
+     * @param name
+     * @return the untyped key for the name
+     */
+    private static synchronized AttachmentKey<Object> newSlot(String name)
+    {
+        AttachmentKey<Object> key = keysByName.get(name);
+        if (key != null)
+            return key;
+
+        String[] names = slotNames;
+        String[] newNames = Arrays.copyOf(names, names.length + 1);
+        newNames[names.length] = name;
+
+        key = new AttachmentKey<>(name, Object.class, names.length);
+
+        /* Publish the name before the key so the slot always has a name */
+        slotNames = newNames;
+        keysByName.put(name, key);
+
+        return key;
+    }
+
+    /**
+     * Mark a slot as internal
+     * @param slot
+     */
+    private static synchronized void markInternal(int slot)
+    {
+        boolean[] internal = Arrays.copyOf(internalSlots, Math.max(internalSlots.length, slot + 1));
+        internal[slot] = true;
+        internalSlots = internal;
+    }
+
+    /**
+     * name
+     * @return the attachment name
+     */
+    public String name()
+    {
+        return name;
+    }
+
+    /**
+     * slot
+     * @return the slot of the attachment in a session
+     */
+    public int slot()
+    {
+        return slot;
+    }
+
+    /**
+     * Cast an attached value to the type of this key
+     * @param value
+     * @return the value
+     */
+    public T cast(Object value)
+    {
+        return type.cast(value);
+    }
+
+    /**
+     * toString
+     * @return the name
+     */
+    @Override
+    public String toString()
+    {
+        return name;
+    }
+}
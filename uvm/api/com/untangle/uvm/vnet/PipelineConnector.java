@@ -45,6 +45,14 @@ public interface PipelineConnector
     boolean isEnabled();
 
     void setEnabled( boolean enabled );
+
+    /**
+     * The release budget of this connector, sessions are released from this
+     * connector once they go over the budget. null (the default) means no budget.
+     */
+    ReleaseBudget getReleaseBudget();
+
+    void setReleaseBudget( ReleaseBudget budget );
 }
 
 
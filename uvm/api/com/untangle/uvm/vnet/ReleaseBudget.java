@@ -0,0 +1,99 @@
+/**
+ * $Id$
+ */
+package com.untangle.uvm.vnet;
+
+/**
+ * A release budget says how much of a session an app wants to see.
+ *
+ * Once a session has passed more data chunks (TCP chunks or UDP packets),
+ * more bytes, or has lasted longer than the budget of a PipelineConnector,
+ * the dispatcher releases the session from that connector (which also removes
+ * the app from the session's vector). A limit of 0 means no limit.
+ *
+ * This replaces apps counting chunks and calling release() themselves.
+ */
+public class ReleaseBudget
+{
+    private final long maxChunks;
+    private final long maxBytes;
+    private final long maxMillis;
+
+    /**
+     * ReleaseBudget constructor
+     * @param maxChunks - the number of data chunks/packets, 0 for no limit
+     * @param maxBytes - the number of bytes in both directions, 0 for no limit
+     * @param maxMillis - the session age in milliseconds, 0 for no limit
+     */
+    public ReleaseBudget( long maxChunks, long maxBytes, long maxMillis )
+    {
+        if ( maxChunks < 0 || maxBytes < 0 || maxMillis < 0 )
+            throw new IllegalArgumentException( "Invalid release budget: " + maxChunks + " chunks, " + maxBytes + " bytes, " + maxMillis + " ms" );
+
+        this.maxChunks = maxChunks;
+        this.maxBytes = maxBytes;
+        this.maxMillis = maxMillis;
+    }
+
+    /**
+     * Budget for a number of data chunks/packets
+     * @param maxChunks
+     * @return the budget
+     */
+    public static ReleaseBudget chunks( long maxChunks )
+    {
+        return new ReleaseBudget( maxChunks, 0, 0 );
+    }
+
+    /**
+     * getMaxChunks
+     * @return the number of data chunks/packets, 0 for no limit
+     */
+    public long getMaxChunks()
+    {
+        return maxChunks;
+    }
+
+    /**
+     * getMaxBytes
+     * @return the number of bytes, 0 for no limit
+     */
+    public long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    /**
+     * getMaxMillis
+     * @return the session age in milliseconds, 0 for no limit
+     */
+    public long getMaxMillis()
+    {
+        return maxMillis;
+    }
+
+    /**
+     * Check if a session is over the budget
+     * @param chunks - the data chunks/packets the session has passed
+     * @param bytes - the bytes the session has passed
+     * @param millis - the age of the session
+     * @return true if any of the limits has been reached
+     */
+    public boolean isSpent( long chunks, long bytes, long millis )
+    {
+        if ( maxChunks > 0 && chunks >= maxChunks ) return true;
+        if ( maxBytes > 0 && bytes >= maxBytes ) return true;
+        if ( maxMillis > 0 && millis >= maxMillis ) return true;
+        return false;
+    }
+
+    /**
+     * toString
+     * @return string
+     */
+    @Override
+    public String toString()
+    {
+        return "ReleaseBudget[chunks: " + maxChunks + " bytes: " + maxBytes + " ms: " + maxMillis + "]";
+    }
+}
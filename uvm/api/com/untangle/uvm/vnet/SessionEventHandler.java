@@ -61,6 +61,17 @@ public interface SessionEventHandler extends java.util.EventListener
      */
     void handleTCPServerChunk( AppTCPSession session, ByteBuffer data );
 
+    /**
+     * Returns true if the handler never holds on to the ByteBuffer passed to
+     * handleTCPClientChunk/handleTCPServerChunk (or its backing array) after
+     * it returns, other than by sending it to the other side or by giving it
+     * back with setClientBuffer/setServerBuffer.
+     *
+     * The session can then reuse the buffer for the next read instead of
+     * allocating a new one.
+     */
+    boolean releasesTCPChunks();
+
     /**
      * Called an object arrives from the client side
      */
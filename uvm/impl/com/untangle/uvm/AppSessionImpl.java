@@ -9,7 +9,6 @@ import java.text.DateFormat;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.HashMap;
 import java.nio.ByteBuffer;
 
 import org.apache.log4j.Logger;
@@ -19,9 +18,11 @@ import static com.untangle.uvm.Dispatcher.SESSION_ID_MDC_KEY;
 
 import com.untangle.uvm.Tag;
 import com.untangle.uvm.vnet.AppSession;
+import com.untangle.uvm.vnet.AttachmentKey;
 import com.untangle.uvm.app.SessionEvent;
 import com.untangle.uvm.vnet.IPStreamer;
 import com.untangle.jnetcap.NetcapSession;
+import com.untangle.jnetcap.NetcapTCPSession;
 import com.untangle.jnetcap.NetcapUDPSession;
 import com.untangle.jvector.Crumb;
 import com.untangle.jvector.DataCrumb;
@@ -30,6 +31,7 @@ import com.untangle.jvector.ShutdownCrumb;
 import com.untangle.jvector.IncomingSocketQueue;
 import com.untangle.jvector.OutgoingSocketQueue;
 import com.untangle.jvector.SocketQueueListener;
+import com.untangle.jvector.SocketQueueWatermarkListener;
 import com.untangle.jvector.Vector;
 
 /**
@@ -58,6 +60,23 @@ public abstract class AppSessionImpl implements AppSession
 
     private static DateFormat formatter = new AbsoluteTimeDateFormat();
 
+    /**
+     * Number of crumbs that can be queued in each outgoing socket queue.
+     * Reading from the other side stops once an outgoing queue is full and
+     * resumes once it drains to half full (or empty for the default of 1)
+     */
+    private static final int OUTGOING_QUEUE_CAPACITY = Math.max(1, Integer.getInteger("uvm.session.queue.capacity", 1));
+
+    /**
+     * Watermarks (in bytes) of the write queues. Reading from the other side
+     * pauses once a write queue holds high watermark bytes and resumes once it
+     * drains to the low watermark. A high watermark of 0 (the default) pauses
+     * reading as soon as anything is queued. A queued streamer always pauses
+     * reading, its size isn't known.
+     */
+    static final int WRITE_QUEUE_HIGH_WATERMARK = Math.max(0, Integer.getInteger("uvm.session.writequeue.high", 0));
+    static final int WRITE_QUEUE_LOW_WATERMARK = Math.max(0, Math.min(WRITE_QUEUE_HIGH_WATERMARK, Integer.getInteger("uvm.session.writequeue.low", WRITE_QUEUE_HIGH_WATERMARK / 4)));
+
     protected final Dispatcher dispatcher;
 
     /**
@@ -69,6 +88,20 @@ public abstract class AppSessionImpl implements AppSession
     //generics array creation not supported java6 || java7
     protected final List<Object>[] writeQueue = new ArrayList[] { null, null };
 
+    /* Data bytes and streamers in each write queue, and if the queue is over its watermark */
+    protected final long[] queuedBytes = new long[] { 0, 0 };
+    private final int[] queuedStreamers = new int[] { 0, 0 };
+    private final boolean[] writeQueuePaused = new boolean[] { false, false };
+
+    /* Data chunks/packets and bytes counted against the release budget of the pipeline connector */
+    protected long budgetChunks = 0;
+    protected long budgetBytes = 0;
+
+    /* The scheduled timer, and the generation that tells a stale timer from the current one */
+    private volatile SessionTimerWheel.Timeout timer = null;
+    private volatile long timerGeneration = 0;
+    private final Object timerLock = new Object();
+
     protected int maxInputSize = 0;
     protected int maxOutputSize = 0;
 
@@ -89,8 +122,8 @@ public abstract class AppSessionImpl implements AppSession
 
     protected final SessionEvent sessionEvent;
 
-    protected HashMap<String, Object> stringAttachments = new HashMap<>();
-    private static final String NO_KEY_VALUE = "NOKEY";
+    protected final SessionAttachments attachments = new SessionAttachments();
+    private static final AttachmentKey<Object> NO_KEY = AttachmentKey.forName("NOKEY");
 
     /**
      * Constructor
@@ -146,12 +179,17 @@ public abstract class AppSessionImpl implements AppSession
         this.newServerAddr = request.getNewServerAddr();
 
         if (isVectored) {
-            SocketQueueListener sqListener = new SessionSocketQueueListener();
+            SessionSocketQueueListener sqListener = new SessionSocketQueueListener();
 
             clientIncomingSocketQueue.registerListener(sqListener);
             clientOutgoingSocketQueue.registerListener(sqListener);
             serverIncomingSocketQueue.registerListener(sqListener);
             serverOutgoingSocketQueue.registerListener(sqListener);
+
+            clientOutgoingSocketQueue.maxEvents(OUTGOING_QUEUE_CAPACITY);
+            serverOutgoingSocketQueue.maxEvents(OUTGOING_QUEUE_CAPACITY);
+            clientOutgoingSocketQueue.setWatermarks(OUTGOING_QUEUE_CAPACITY / 2, OUTGOING_QUEUE_CAPACITY, sqListener);
+            serverOutgoingSocketQueue.setWatermarks(OUTGOING_QUEUE_CAPACITY / 2, OUTGOING_QUEUE_CAPACITY, sqListener);
         }
     }
 
@@ -174,7 +212,7 @@ public abstract class AppSessionImpl implements AppSession
      */
     public Object attach(Object ob)
     {
-        return attach(NO_KEY_VALUE, ob);
+        return attachments.put(NO_KEY.slot(), ob);
     }
 
     /**
@@ -184,7 +222,7 @@ public abstract class AppSessionImpl implements AppSession
      */
     public Object attachment()
     {
-        return attachment(NO_KEY_VALUE);
+        return attachments.get(NO_KEY.slot());
     }
 
     /**
@@ -198,7 +236,7 @@ public abstract class AppSessionImpl implements AppSession
      */
     public Object attach(String key, Object ob)
     {
-        return this.stringAttachments.put(key, ob);
+        return attachments.put(AttachmentKey.forName(key).slot(), ob);
     }
 
     /**
@@ -210,7 +248,35 @@ public abstract class AppSessionImpl implements AppSession
      */
     public Object attachment(String key)
     {
-        return this.stringAttachments.get(key);
+        AttachmentKey<Object> attachmentKey = AttachmentKey.lookup(key);
+        if (attachmentKey == null) return null;
+        return attachments.get(attachmentKey.slot());
+    }
+
+    /**
+     * Attach a typed object to the session
+     * 
+     * @param key
+     *        The key
+     * @param ob
+     *        The object
+     * @return The previous object
+     */
+    public <T> T attach(AttachmentKey<T> key, T ob)
+    {
+        return key.cast(attachments.put(key.slot(), ob));
+    }
+
+    /**
+     * Get a typed object attached to the session
+     * 
+     * @param key
+     *        The key
+     * @return The object
+     */
+    public <T> T attachment(AttachmentKey<T> key)
+    {
+        return key.cast(attachments.get(key.slot()));
     }
 
     /**
@@ -239,10 +305,36 @@ public abstract class AppSessionImpl implements AppSession
         return this.sessionGlobalState().attachment(key);
     }
 
+    /**
+     * Attach a typed object to the global session
+     * 
+     * @param key
+     *        The key
+     * @param ob
+     *        The object
+     * @return The previous object
+     */
+    public <T> T globalAttach(AttachmentKey<T> key, T ob)
+    {
+        return key.cast(this.sessionGlobalState().attach(key, ob));
+    }
+
+    /**
+     * Get a typed object attached to the global session
+     * 
+     * @param key
+     *        The key
+     * @return The object
+     */
+    public <T> T globalAttachment(AttachmentKey<T> key)
+    {
+        return key.cast(this.sessionGlobalState().attachment(key));
+    }
+
     /**
      * Get all of the global attachments
      * 
-     * @return The map of attachments
+     * @return A copy of the attachments by name
      */
     public Map<String, Object> getAttachments()
     {
@@ -399,13 +491,10 @@ public abstract class AppSessionImpl implements AppSession
         return sessionGlobalState.clientSideListener().getTxChunks();
     }
 
-    /*
-     * These are not really useable without a little bit of tweaking to the
-     * vector machine
-     */
-
     /**
-     * Get the maximum input size.
+     * Get the maximum input size. For TCP this caps the read size of the
+     * socket feeding this session (see NetcapTCPHook), 0 means the read
+     * buffer size.
      * 
      * @return The value
      */
@@ -681,6 +770,15 @@ public abstract class AppSessionImpl implements AppSession
         if (length == 2 && this.netcapSession() != null && this.netcapSession() instanceof NetcapUDPSession) {
             sessionGlobalState.netcapHook().releaseToBypass();
         }
+
+        /**
+         * For TCP the session can't be bypassed, but the data no longer has
+         * to be copied into the JVM, so splice it between the two sockets.
+         * The byte counts are still updated by the side listeners.
+         */
+        if (length == 2 && this.netcapSession() != null && this.netcapSession() instanceof NetcapTCPSession) {
+            sessionGlobalState.netcapHook().releaseToSplice();
+        }
     }
 
     /**
@@ -702,7 +800,13 @@ public abstract class AppSessionImpl implements AppSession
     public void scheduleTimer(long delay)
     {
         if (delay < 0) throw new IllegalArgumentException("Delay must be non-negative");
-        // mpipe.scheduleTimer(this, delay);
+
+        final long generation;
+        synchronized (timerLock) {
+            if (timer != null) timer.cancel();
+            generation = ++timerGeneration;
+            timer = SessionTimerWheel.getInstance().schedule(() -> timerExpired(generation), delay);
+        }
     }
 
     /**
@@ -710,7 +814,68 @@ public abstract class AppSessionImpl implements AppSession
      */
     public void cancelTimer()
     {
-        // mpipe.cancelTimer(this);
+        if (timer == null) return;
+
+        synchronized (timerLock) {
+            if (timer != null) timer.cancel();
+            timer = null;
+            timerGeneration++;
+        }
+    }
+
+    /**
+     * Called on the timer wheel thread when the timer expires, this hands the
+     * timer event to the vectoring thread of the session so the handler is
+     * never called concurrently with the other events of the session
+     * 
+     * @param generation
+     *        The generation of the timer
+     */
+    private void timerExpired(final long generation)
+    {
+        if (generation != timerGeneration) return;
+
+        NetcapHook hook = sessionGlobalState.netcapHook();
+        Vector vector = (hook == null ? null : hook.getVector());
+
+        if (vector == null || !vector.execute(() -> timerEvent(generation))) {
+            if (logger.isDebugEnabled()) logger.debug("Dropping timer for finished session " + id());
+        }
+    }
+
+    /**
+     * Deliver the timer event, this runs on the vectoring thread
+     * 
+     * @param generation
+     *        The generation of the timer
+     */
+    private void timerEvent(long generation)
+    {
+        synchronized (timerLock) {
+            /* The timer was canceled or rescheduled after it expired */
+            if (generation != timerGeneration) return;
+            timer = null;
+        }
+
+        try {
+            UvmContextImpl.getInstance().loggingManager().setLoggingApp(pipelineConnector().app().getAppSettings().getId());
+            MDC.put(SESSION_ID_MDC_KEY, idForMDC());
+
+            dispatcher.dispatchTimer(this);
+
+            /* Write what the handler sent, like after a read or write event */
+            doWrite(CLIENT, clientOutgoingSocketQueue());
+            doWrite(SERVER, serverOutgoingSocketQueue());
+            refreshSocketQueueState();
+        } catch (Exception x) {
+            logger.warn("Exception in timer", x);
+            killSession();
+        } catch (OutOfMemoryError x) {
+            UvmContextImpl.getInstance().fatalError("SessionHandler", x);
+        } finally {
+            UvmContextImpl.getInstance().loggingManager().setLoggingUvm();
+            MDC.remove(SESSION_ID_MDC_KEY);
+        }
     }
 
     /**
@@ -819,6 +984,60 @@ public abstract class AppSessionImpl implements AppSession
             writeQueue[side] = queue;
         }
         queue.add(obj);
+
+        if (obj instanceof DataCrumb) {
+            int size = ((DataCrumb) obj).limit();
+            queuedBytes[side] += size;
+            SessionQueueStats.queued(size);
+            SessionQueueStats.sessionQueued(queuedBytes[CLIENT] + queuedBytes[SERVER]);
+        } else if (obj instanceof IPStreamer) {
+            queuedStreamers[side]++;
+        }
+    }
+
+    /**
+     * Get the number of data bytes in a write queue
+     * 
+     * @param side
+     *        The side
+     * @return The number of bytes queued to be written to that side
+     */
+    public long queuedBytes(int side)
+    {
+        return queuedBytes[side];
+    }
+
+    /**
+     * Check if a write queue is over its watermark, reading from the other
+     * side is paused while it is. This goes over at the high watermark and
+     * only comes back at the low watermark.
+     * 
+     * @param side
+     *        The side of the write queue
+     * @return True if reading from the other side should be paused
+     */
+    private boolean isWriteQueueAboveWatermark(int side)
+    {
+        boolean paused;
+
+        if (writeQueue[side] == null) paused = false;
+        else if (WRITE_QUEUE_HIGH_WATERMARK == 0 || queuedStreamers[side] > 0) paused = true;
+        else if (writeQueuePaused[side]) paused = queuedBytes[side] > WRITE_QUEUE_LOW_WATERMARK;
+        else paused = queuedBytes[side] >= WRITE_QUEUE_HIGH_WATERMARK;
+
+        if (paused && !writeQueuePaused[side]) SessionQueueStats.paused();
+        writeQueuePaused[side] = paused;
+        return paused;
+    }
+
+    /**
+     * Forget all of the queued bytes, used when the session is closed
+     */
+    private void clearQueuedBytes()
+    {
+        SessionQueueStats.queued(-(queuedBytes[CLIENT] + queuedBytes[SERVER]));
+        queuedBytes[CLIENT] = 0;
+        queuedBytes[SERVER] = 0;
     }
 
     /**
@@ -867,6 +1086,12 @@ public abstract class AppSessionImpl implements AppSession
             queue.remove(0);
             if (queue.size() == 0) writeQueue[side] = null;
 
+            if (crumb instanceof DataCrumb) {
+                int size = ((DataCrumb) crumb).limit();
+                queuedBytes[side] -= size;
+                SessionQueueStats.queued(-size);
+            }
+
             return crumb;
         } else if (result instanceof IPStreamer) {
             IPStreamer streamer = (IPStreamer) result;
@@ -884,6 +1109,7 @@ public abstract class AppSessionImpl implements AppSession
             // remove the streamer from the write queue
             queue.remove(0);
             if (queue.size() == 0) writeQueue[side] = null;
+            queuedStreamers[side]--;
 
             return null;
         } else {
@@ -1152,8 +1378,8 @@ public abstract class AppSessionImpl implements AppSession
         MDC.put(SESSION_ID_MDC_KEY, idForMDC());
         try {
             assert out != null;
-            if (!out.isEmpty()) {
-                logger.warn("writeEvent to non empty outgoing queue on: " + sideName);
+            if (out.isFull()) {
+                logger.warn("writeEvent to full outgoing queue on: " + sideName);
                 return;
             }
 
@@ -1239,12 +1465,12 @@ public abstract class AppSessionImpl implements AppSession
                 logger.debug("read(" + sideName + ") in: " + in);
             }
 
-            if (ourout == null || (writeQueue[1 - side] == null && ourout.isEmpty())) {
+            if (ourout == null || (!isWriteQueueAboveWatermark(1 - side) && !ourout.isAboveWatermark())) {
                 handleRead(side, in);
                 doWrite(side, otherout);
                 doWrite(1 - side, ourout);
             } else {
-                logger.error("Illegal State: read(" + sideName + ") in: " + in + " ourout: " + ourout + " writequeue: " + writeQueue[1 - side] + " empty:" + ourout.isEmpty());
+                logger.error("Illegal State: read(" + sideName + ") in: " + in + " ourout: " + ourout + " writequeue: " + writeQueue[1 - side] + " queued bytes: " + queuedBytes[1 - side] + " empty:" + ourout.isEmpty() + " above watermark:" + ourout.isAboveWatermark());
             }
 
             refreshSocketQueueState();
@@ -1506,6 +1732,7 @@ public abstract class AppSessionImpl implements AppSession
     protected void closeFinal()
     {
         cancelTimer();
+        clearQueuedBytes();
 
         dispatcher.removeSession(this);
     }
@@ -1525,13 +1752,13 @@ public abstract class AppSessionImpl implements AppSession
         // changing, as changing the state calls notifymvpoll() every
         // time.
         if (sout != null && !sout.isEnabled()) sout.enable();
-        if (sout == null || (sout.isEmpty() && writeQueue[SERVER] == null)) {
+        if (sout == null || (!sout.isAboveWatermark() && !isWriteQueueAboveWatermark(SERVER))) {
             if (cin != null && !cin.isEnabled()) cin.enable();
         } else {
             if (cin != null && cin.isEnabled()) cin.disable();
         }
         if (cout != null && !cout.isEnabled()) cout.enable();
-        if (cout == null || (cout.isEmpty() && writeQueue[CLIENT] == null)) {
+        if (cout == null || (!cout.isAboveWatermark() && !isWriteQueueAboveWatermark(CLIENT))) {
             if (sin != null && !sin.isEnabled()) sin.enable();
         } else {
             if (sin != null && sin.isEnabled()) sin.disable();
@@ -1549,7 +1776,7 @@ public abstract class AppSessionImpl implements AppSession
      */
     private boolean doWrite(int side, OutgoingSocketQueue out)
     {
-        if (out == null || !out.isEmpty()) // no room
+        if (out == null || out.isFull()) // no room
             return false;
 
         if (writeQueue[side] == null) // nothing to write
@@ -1632,7 +1859,7 @@ public abstract class AppSessionImpl implements AppSession
     /**
      * Class to represent a session socket queue listener
      */
-    private class SessionSocketQueueListener implements SocketQueueListener
+    private class SessionSocketQueueListener implements SocketQueueListener, SocketQueueWatermarkListener
     {
         /**
          * Constructor
@@ -1678,13 +1905,13 @@ public abstract class AppSessionImpl implements AppSession
             /**
              * This is called every time a crumb is removed from the outgoing
              * socket queue (what it considers 'writable', but the TAPI defines
-             * writable as empty) So, we drop all these writable events unless
-             * it is empty. That converts the socketqueue's definition of
-             * writable to the TAPI's You are at no risk of spinning because
-             * this is only called when something is actually removed from the
-             * SocketQueue
+             * writable as drained to the low watermark, which is empty by default)
+             * So, we drop all these writable events until it has drained. That
+             * converts the socketqueue's definition of writable to the TAPI's
+             * You are at no risk of spinning because this is only called when
+             * something is actually removed from the SocketQueue
              **/
-            if (!out.isEmpty()) return;
+            if (out.isAboveWatermark()) return;
 
             if (out == serverOutgoingSocketQueue) {
                 if (logger.isDebugEnabled()) {
@@ -1722,6 +1949,30 @@ public abstract class AppSessionImpl implements AppSession
             }
         }
 
+        /**
+         * The outgoing socket queue is full, stop reading from the other side
+         * 
+         * @param out
+         *        The outgoing socket queue
+         */
+        public void highWatermark(OutgoingSocketQueue out)
+        {
+            if (logger.isDebugEnabled()) logger.debug("High watermark: " + out + " " + sessionGlobalState);
+            refreshSocketQueueState();
+        }
+
+        /**
+         * The outgoing socket queue has drained, resume reading from the other side
+         * 
+         * @param out
+         *        The outgoing socket queue
+         */
+        public void lowWatermark(OutgoingSocketQueue out)
+        {
+            if (logger.isDebugEnabled()) logger.debug("Low watermark: " + out + " " + sessionGlobalState);
+            refreshSocketQueueState();
+        }
+
         /**
          * This occurs when the outgoing socket queue is shutdown
          * 
@@ -11,6 +11,7 @@ import java.util.List;
 
 import com.untangle.jvector.Crumb;
 import com.untangle.jvector.DataCrumb;
+import com.untangle.jvector.GatherDataCrumb;
 import com.untangle.jvector.ObjectCrumb;
 import com.untangle.jvector.IncomingSocketQueue;
 import com.untangle.jvector.OutgoingSocketQueue;
@@ -37,6 +38,24 @@ public class AppTCPSessionImpl extends AppSessionImpl implements AppTCPSession
     protected boolean[] lineBuffering = new boolean[] { false, false };
     protected ByteBuffer[] readBuf = new ByteBuffer[] { null, null };
 
+    /**
+     * Read buffers kept for the next read of each side. These are only used
+     * when the handler releases its chunks (SessionEventHandler.releasesTCPChunks)
+     */
+    protected ByteBuffer[] spareReadBuf = new ByteBuffer[] { null, null };
+
+    /**
+     * The array of the chunk being handled when it goes back to the pool or
+     * is the spare read buffer afterwards: the pooled crumb it came from (null
+     * for the spare), the first crumb that sent it on, and if the handler kept
+     * it some other way
+     */
+    private byte[] lentArray = null;
+    private int lentSide = CLIENT;
+    private DataCrumb lentCrumb = null;
+    private DataCrumb lentForward = null;
+    private boolean lentRetained = false;
+
     /**
      * Constructor
      * 
@@ -392,8 +411,26 @@ public class AppTCPSessionImpl extends AppSessionImpl implements AppTCPSession
     public void sendData(int side, ByteBuffer[] bufs2send)
     {
         if (bufs2send == null || bufs2send.length == 0) return;
-        for (int i = 0; i < bufs2send.length; i++)
-            sendData(side, bufs2send[i]);
+
+        /**
+         * Gather the buffers into as few crumbs as possible, the TCPSink
+         * writes all of the buffers in a crumb with a single writev
+         */
+        DataCrumb[] parts = new DataCrumb[Math.min(bufs2send.length, GatherDataCrumb.MAX_PARTS)];
+        int count = 0;
+
+        for (int i = 0; i < bufs2send.length; i++) {
+            DataCrumb crumb = createDataCrumb(bufs2send[i]);
+            if (crumb == null) continue;
+
+            parts[count++] = crumb;
+            if (count == parts.length) {
+                addToWriteQueue(side, gatherDataCrumbs(parts, count));
+                count = 0;
+            }
+        }
+
+        if (count > 0) addToWriteQueue(side, gatherDataCrumbs(parts, count));
     }
 
     /**
@@ -642,6 +679,8 @@ public class AppTCPSessionImpl extends AppSessionImpl implements AppTCPSession
             {
             case Crumb.TYPE_SHUTDOWN:
                 logger.debug("read FIN");
+                // The data end handler may keep the read buffer
+                if (readBuf[side] != null && spareReadBuf[side] != null && sameArray(readBuf[side], spareReadBuf[side].array())) spareReadBuf[side] = null;
                 sendFINEvent(side, readBuf[side]);
                 in.read();
                 readBuf[side] = null;
@@ -744,6 +783,8 @@ public class AppTCPSessionImpl extends AppSessionImpl implements AppTCPSession
         int dcoffset = dc.offset();
         int dcsize = dclimit - dcoffset;
         boolean lineMode = lineBuffering[side];
+        boolean recycle = dispatcher.releasesTCPChunks(this);
+        DataCrumb pooledCrumb = null;
 
         if (dcoffset >= dclimit) {
             logger.warn("Zero length TCP crumb read");
@@ -756,8 +797,7 @@ public class AppTCPSessionImpl extends AppSessionImpl implements AppTCPSession
                 else if (dccap < readLimit[side]) logger.debug("Creating readbuf because dccap = " + dccap + " but readLimit = " + readLimit[side]);
                 else if (lineMode) logger.debug("Creating readbuf because lineMode");
             }
-            readBuf[side] = ByteBuffer.allocate((int) readBufferSize[side]);
-            readBuf[side].limit((int) readLimit[side]);
+            readBuf[side] = newReadBuffer(side, recycle);
         }
         if (readBuf[side] != null) {
             logger.debug("putting into existing readbuf");
@@ -785,11 +825,21 @@ public class AppTCPSessionImpl extends AppSessionImpl implements AppTCPSession
                 if (logger.isDebugEnabled()) logger.debug("Leaving " + (dcsize - i) + " bytes in the " + sideName + " incoming queue");
             } else {
                 in.read(); // Consume the crumb
+                // The data has been copied, the crumb's buffer can go back to the pool
+                dc.raze();
                 if (logger.isDebugEnabled()) logger.debug("Removing incoming crumb for " + sideName);
             }
         } else {
             in.read(); // Consume the crumb
             logger.debug("using jvector buf as new readbuf");
+            if (recycle && dc.isPooled()) {
+                // Lend the buffer to the handler, it goes back to the pool afterwards unless it was kept
+                pooledCrumb = dc;
+            } else {
+                // The app may hold on to the buffer, it can't go back to the pool
+                if (dc.isPooled()) TCPReadBufferStats.pooledDetached(dccap);
+                dc.detach();
+            }
             readBuf[side] = ByteBuffer.wrap(dcdata, 0, dcsize);
             readBuf[side].position(dcsize);
             readBuf[side].limit((int) readLimit[side]); //TODO: check the safety of this conversion
@@ -803,23 +853,150 @@ public class AppTCPSessionImpl extends AppSessionImpl implements AppTCPSession
         // We have received bytes.  Give them to the user.
 
         // We duplicate the buffer so that the event handler can mess up
-        // the position/mark/limit as desired.
-        ByteBuffer userBuf = readBuf[side].duplicate();
+        // the position/mark/limit as desired. A handler that releases its
+        // chunks doesn't keep the buffer, so it can have the buffer itself.
+        ByteBuffer userBuf = (recycle ? readBuf[side] : readBuf[side].duplicate());
         userBuf.flip();
+        TCPReadBufferStats.read(userBuf.remaining());
 
         // automatically clear readBuf before calling app
         readBuf[side] = null;
 
-        if (side == CLIENT) {
-            dispatcher.dispatchTCPClientChunk(this, userBuf);
-        } else {
-            dispatcher.dispatchTCPServerChunk(this, userBuf);
+        if (pooledCrumb != null || (spareReadBuf[side] != null && userBuf.hasArray() && spareReadBuf[side].array() == userBuf.array())) {
+            lentArray = userBuf.array();
+            lentSide = side;
+            lentCrumb = pooledCrumb;
+        }
+
+        try {
+            if (side == CLIENT) {
+                dispatcher.dispatchTCPClientChunk(this, userBuf);
+            } else {
+                dispatcher.dispatchTCPServerChunk(this, userBuf);
+            }
+        } finally {
+            returnLentBuffer();
         }
 
         return;
 
     }
 
+    /**
+     * Get a buffer to copy a read into, reusing the spare buffer of the side
+     * when the handler releases its chunks. The spare buffer is replaced when
+     * the read buffer size changes.
+     * 
+     * @param side
+     *        The side
+     * @param recycle
+     *        True if the handler releases its chunks
+     * @return The buffer, with its limit set to the read limit
+     */
+    private ByteBuffer newReadBuffer(int side, boolean recycle)
+    {
+        int size = (int) readBufferSize[side];
+        ByteBuffer buf = spareReadBuf[side];
+
+        if (recycle && buf != null && buf.capacity() == size) {
+            buf.clear();
+            TCPReadBufferStats.reused();
+        } else {
+            buf = ByteBuffer.allocate(size);
+            TCPReadBufferStats.allocated(size);
+            spareReadBuf[side] = (recycle ? buf : null);
+        }
+
+        buf.limit((int) readLimit[side]);
+        return buf;
+    }
+
+    /**
+     * Take back the buffer of a chunk after the handler returned. A buffer
+     * the handler kept (given back with setBuffer, or sent on more than once)
+     * is detached from the pool or stops being the spare buffer. A buffer sent
+     * on once is returned by the outgoing crumb when it is written, otherwise
+     * a pooled buffer goes back to the pool.
+     */
+    private void returnLentBuffer()
+    {
+        byte[] array = lentArray;
+        int side = lentSide;
+        DataCrumb pooledCrumb = lentCrumb;
+        DataCrumb forward = lentForward;
+        boolean retained = lentRetained;
+        lentArray = null;
+        lentCrumb = null;
+        lentForward = null;
+        lentRetained = false;
+
+        if (array == null) return;
+
+        if (sameArray(readBuf[CLIENT], array) || sameArray(readBuf[SERVER], array)) retained = true;
+
+        if (retained) {
+            if (pooledCrumb != null) {
+                TCPReadBufferStats.pooledDetached(array.length);
+                pooledCrumb.detach();
+            }
+            if (forward != null) forward.detach();
+            if (spareReadBuf[side] != null && spareReadBuf[side].array() == array) spareReadBuf[side] = null;
+        } else if (forward == null && pooledCrumb != null) {
+            TCPReadBufferStats.pooledReturned();
+            pooledCrumb.raze();
+        }
+    }
+
+    /**
+     * Create the crumb that sends on the array of the chunk being handled.
+     * The first crumb takes over the array, it returns it to the pool (or as
+     * the spare read buffer) once it is written. An array sent on twice is
+     * kept by the crumbs.
+     * 
+     * @param array
+     *        The array
+     * @param offset
+     *        The offset of the data
+     * @param limit
+     *        The end of the data
+     * @return The crumb
+     */
+    private DataCrumb forwardLentArray(byte[] array, int offset, int limit)
+    {
+        if (lentForward != null || lentRetained) {
+            if (lentForward != null) lentForward.detach();
+            lentForward = null;
+            lentRetained = true;
+            return new DataCrumb(array, offset, limit);
+        }
+
+        DataCrumb crumb;
+        if (lentCrumb != null) {
+            crumb = new DataCrumb(array, offset, limit);
+            lentCrumb.handOff(crumb);
+        } else {
+            /* The spare is in use until the crumb is written */
+            crumb = new SpareDataCrumb(lentSide, array, offset, limit);
+            spareReadBuf[lentSide] = null;
+        }
+        lentForward = crumb;
+        return crumb;
+    }
+
+    /**
+     * Check if a buffer is backed by an array
+     * 
+     * @param buf
+     *        The buffer (may be null)
+     * @param array
+     *        The array
+     * @return True if buf is backed by array
+     */
+    private static boolean sameArray(ByteBuffer buf, byte[] array)
+    {
+        return buf != null && buf.hasArray() && buf.array() == array;
+    }
+
     /**
      * Get the id for MDC
      * 
@@ -845,6 +1022,8 @@ public class AppTCPSessionImpl extends AppSessionImpl implements AppTCPSession
 
         readBuf[CLIENT] = null;
         readBuf[SERVER] = null;
+        spareReadBuf[CLIENT] = null;
+        spareReadBuf[SERVER] = null;
         super.closeFinal();
     }
 
@@ -923,6 +1102,8 @@ public class AppTCPSessionImpl extends AppSessionImpl implements AppTCPSession
         if (buf.hasArray()) {
             array = buf.array();
             offset += buf.arrayOffset();
+            // The outgoing crumb takes over the array of the chunk being handled
+            if (array == lentArray) return forwardLentArray(array, offset, offset + size);
         } else {
             logger.warn("out-of-heap byte buffer, had to copy");
             array = new byte[buf.remaining()];
@@ -933,4 +1114,88 @@ public class AppTCPSessionImpl extends AppSessionImpl implements AppTCPSession
         DataCrumb crumb = new DataCrumb(array, offset, offset + size);
         return crumb;
     }
+
+    /**
+     * Combine data crumbs into a single crumb
+     * 
+     * @param parts
+     *        The crumbs
+     * @param count
+     *        The number of crumbs in parts
+     * @return The crumb
+     */
+    private DataCrumb gatherDataCrumbs(DataCrumb[] parts, int count)
+    {
+        if (count == 1) return parts[0];
+
+        // The parts are never razed, they can't return their arrays
+        for (int i = 0; i < count; i++) {
+            if (parts[i] == lentForward) lentRetained = true;
+            parts[i].detach();
+        }
+
+        byte[][] arrays = new byte[count][];
+        int[] offsets = new int[count];
+        int[] sizes = new int[count];
+
+        for (int i = 0; i < count; i++) {
+            arrays[i] = parts[i].data();
+            offsets[i] = parts[i].offset();
+            sizes[i] = parts[i].limit() - parts[i].offset();
+        }
+
+        return new GatherDataCrumb(arrays, offsets, sizes, count);
+    }
+
+    /**
+     * A crumb that sends on the spare read buffer of a side, the buffer is
+     * the spare again once the crumb is written (razed). The crumb doesn't
+     * claim to be pooled, so an app that reads it detaches it rather than
+     * lending it on.
+     */
+    private class SpareDataCrumb extends DataCrumb
+    {
+        private final int side;
+        private boolean owned = true;
+
+        /**
+         * Constructor
+         * 
+         * @param side
+         *        The side of the spare buffer
+         * @param array
+         *        The array of the spare buffer
+         * @param offset
+         *        The offset of the data
+         * @param limit
+         *        The end of the data
+         */
+        SpareDataCrumb(int side, byte[] array, int offset, int limit)
+        {
+            super(array, offset, limit);
+            this.side = side;
+        }
+
+        /**
+         * The array is kept by someone else, it can't be the spare again
+         */
+        @Override
+        public void detach()
+        {
+            owned = false;
+        }
+
+        /**
+         * Make the array the spare buffer again, if the side needs one of its
+         * size
+         */
+        @Override
+        public void raze()
+        {
+            if (!owned) return;
+            owned = false;
+
+            if (spareReadBuf[side] == null && data.length == readBufferSize[side]) spareReadBuf[side] = ByteBuffer.wrap(data);
+        }
+    }
 }
@@ -408,6 +408,8 @@ public class AppUDPSessionImpl extends AppSessionImpl implements AppUDPSession
             assert false;
             pbuf = null;
         } else {
+            // The app may hold on to the buffer, it can't go back to the pool
+            pc.detach();
             pbuf = ByteBuffer.wrap(pcdata, 0, pcsize);
             numRead = pcsize;
         }
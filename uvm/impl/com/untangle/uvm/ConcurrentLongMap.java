@@ -0,0 +1,438 @@
+/**
+ * $Id$
+ */
+
+package com.untangle.uvm;
+
+import java.util.Collection;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A concurrent map from primitive long keys to values.
+ *
+ * The map is split into stripes (selected by the hash of the key), each
+ * stripe is an open addressing table with linear probing guarded by its own
+ * lock. Lookups are usually lock free (an optimistic read that is validated
+ * after the probe), and updates only lock the stripe of the key, so threads
+ * working on different sessions rarely contend. Keys are not boxed.
+ *
+ * Null values are not supported, an empty slot is a slot with a null value.
+ *
+ * @param <V>
+ *        The value type
+ */
+class ConcurrentLongMap<V>
+{
+    private static final int DEFAULT_STRIPES = 64;
+    private static final int MIN_STRIPE_CAPACITY = 16;
+
+    private final Stripe<V>[] stripes;
+    private final int stripeShift;
+
+    /**
+     * Create a map with the default number of stripes
+     */
+    ConcurrentLongMap()
+    {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * Create a map
+     *
+     * @param numStripes
+     *        The number of stripes, rounded up to a power of two
+     */
+    @SuppressWarnings("unchecked")
+    ConcurrentLongMap(int numStripes)
+    {
+        int n = 1;
+        while (n < numStripes)
+            n <<= 1;
+
+        this.stripes = (Stripe<V>[]) new Stripe<?>[n];
+        this.stripeShift = 32 - Integer.numberOfTrailingZeros(n);
+
+        for (int i = 0; i < n; i++)
+            stripes[i] = new Stripe<>();
+    }
+
+    /**
+     * Get the value for a key
+     *
+     * @param key
+     *        The key
+     * @return The value, or null if the key isn't in the map
+     */
+    V get(long key)
+    {
+        int hash = hash(key);
+        return stripeFor(hash).get(key, hash);
+    }
+
+    /**
+     * Add a value to the map
+     *
+     * @param key
+     *        The key
+     * @param value
+     *        The value
+     * @return The previous value for the key, or null if there wasn't one
+     */
+    V put(long key, V value)
+    {
+        if (value == null) throw new NullPointerException("Null values are not supported");
+
+        int hash = hash(key);
+        return stripeFor(hash).put(key, hash, value, false);
+    }
+
+    /**
+     * Add a value to the map if the key isn't already in the map
+     *
+     * @param key
+     *        The key
+     * @param value
+     *        The value
+     * @return The current value for the key, or null if value was added
+     */
+    V putIfAbsent(long key, V value)
+    {
+        if (value == null) throw new NullPointerException("Null values are not supported");
+
+        int hash = hash(key);
+        return stripeFor(hash).put(key, hash, value, true);
+    }
+
+    /**
+     * Remove a key from the map
+     *
+     * @param key
+     *        The key
+     * @return The value that was removed, or null if the key wasn't in the
+     *         map
+     */
+    V remove(long key)
+    {
+        int hash = hash(key);
+        return stripeFor(hash).remove(key, hash, null);
+    }
+
+    /**
+     * Remove a key from the map only if it is mapped to value
+     *
+     * @param key
+     *        The key
+     * @param value
+     *        The expected value
+     * @return True if the key was removed
+     */
+    boolean remove(long key, V value)
+    {
+        int hash = hash(key);
+        return stripeFor(hash).remove(key, hash, value) != null;
+    }
+
+    /**
+     * Get the number of entries. This is not an atomic snapshot when
+     * the map is being modified.
+     *
+     * @return The number of entries
+     */
+    int size()
+    {
+        int size = 0;
+        for (Stripe<V> stripe : stripes)
+            size += stripe.size;
+        return size;
+    }
+
+    /**
+     * isEmpty
+     *
+     * @return True if the map has no entries
+     */
+    boolean isEmpty()
+    {
+        for (Stripe<V> stripe : stripes)
+            if (stripe.size != 0) return false;
+        return true;
+    }
+
+    /**
+     * Copy the values into a collection. Only one stripe is locked at a time,
+     * so this is weakly consistent: it never blocks updates to the other
+     * stripes and may or may not include values added or removed while it
+     * runs.
+     *
+     * @param values
+     *        The collection to add the values to
+     * @return The collection
+     */
+    <C extends Collection<? super V>> C values(C values)
+    {
+        for (Stripe<V> stripe : stripes)
+            stripe.values(values);
+        return values;
+    }
+
+    /**
+     * Get the stripe for a hash
+     *
+     * @param hash
+     *        The hash
+     * @return The stripe
+     */
+    private Stripe<V> stripeFor(int hash)
+    {
+        return stripes[hash >>> stripeShift];
+    }
+
+    /**
+     * Mix all of the bits of the key into an int. The stripe uses the high
+     * bits and the slot uses the low bits.
+     *
+     * @param key
+     *        The key
+     * @return The hash
+     */
+    private static int hash(long key)
+    {
+        long h = key * 0x9E3779B97F4A7C15L;
+        h ^= (h >>> 32);
+        return (int) (h ^ (h >>> 16));
+    }
+
+    /**
+     * An open addressing table guarded by its own lock
+     *
+     * @param <V>
+     *        The value type
+     */
+    private static class Stripe<V>
+    {
+        private final StampedLock lock = new StampedLock();
+
+        private long[] keys = new long[MIN_STRIPE_CAPACITY];
+        private Object[] values = new Object[MIN_STRIPE_CAPACITY];
+        private volatile int size = 0;
+
+        /**
+         * Get the value for a key, first without locking
+         *
+         * @param key
+         *        The key
+         * @param hash
+         *        The hash of the key
+         * @return The value or null
+         */
+        V get(long key, int hash)
+        {
+            long stamp = lock.tryOptimisticRead();
+
+            if (stamp != 0) {
+                V value = find(keys, values, key, hash);
+                if (lock.validate(stamp)) return value;
+            }
+
+            stamp = lock.readLock();
+            try {
+                return find(keys, values, key, hash);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        /**
+         * Add a value
+         *
+         * @param key
+         *        The key
+         * @param hash
+         *        The hash of the key
+         * @param value
+         *        The value
+         * @param onlyIfAbsent
+         *        If true an existing value is not replaced
+         * @return The previous value or null
+         */
+        @SuppressWarnings("unchecked")
+        V put(long key, int hash, V value, boolean onlyIfAbsent)
+        {
+            long stamp = lock.writeLock();
+            try {
+                int mask = values.length - 1;
+                int i = hash & mask;
+
+                while (values[i] != null) {
+                    if (keys[i] == key) {
+                        V old = (V) values[i];
+                        if (!onlyIfAbsent) values[i] = value;
+                        return old;
+                    }
+                    i = (i + 1) & mask;
+                }
+
+                keys[i] = key;
+                values[i] = value;
+                size = size + 1;
+
+                /* Keep the load factor under 1/2 */
+                if (size * 2 > values.length) resize();
+
+                return null;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        /**
+         * Remove a key
+         *
+         * @param key
+         *        The key
+         * @param hash
+         *        The hash of the key
+         * @param expected
+         *        If non-null the key is only removed if it maps to this
+         *        value
+         * @return The removed value or null
+         */
+        @SuppressWarnings("unchecked")
+        V remove(long key, int hash, Object expected)
+        {
+            long stamp = lock.writeLock();
+            try {
+                int mask = values.length - 1;
+                int i = hash & mask;
+
+                while (values[i] != null) {
+                    if (keys[i] == key) {
+                        V old = (V) values[i];
+                        if (expected != null && expected != old) return null;
+
+                        deleteSlot(i, mask);
+                        size = size - 1;
+                        return old;
+                    }
+                    i = (i + 1) & mask;
+                }
+
+                return null;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        /**
+         * Add all of the values to a collection
+         *
+         * @param out
+         *        The collection
+         */
+        @SuppressWarnings("unchecked")
+        void values(Collection<? super V> out)
+        {
+            if (size == 0) return;
+
+            long stamp = lock.readLock();
+            try {
+                for (Object value : values) {
+                    if (value != null) out.add((V) value);
+                }
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        /**
+         * Empty a slot, shifting back the entries after it so every entry
+         * can still be reached from its home slot. Must hold the write
+         * lock.
+         *
+         * @param i
+         *        The slot
+         * @param mask
+         *        The table mask
+         */
+        private void deleteSlot(int i, int mask)
+        {
+            int j = i;
+
+            while (true) {
+                j = (j + 1) & mask;
+                if (values[j] == null) break;
+
+                int home = hash(keys[j]) & mask;
+
+                /* Move the entry at j back to i unless its home slot is cyclically in (i, j] */
+                if ((i <= j) ? (i < home && home <= j) : (i < home || home <= j)) continue;
+
+                keys[i] = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+
+            values[i] = null;
+            keys[i] = 0;
+        }
+
+        /**
+         * Double the size of the table. Must hold the write lock.
+         */
+        private void resize()
+        {
+            long[] oldKeys = keys;
+            Object[] oldValues = values;
+            long[] newKeys = new long[oldValues.length * 2];
+            Object[] newValues = new Object[oldValues.length * 2];
+            int mask = newValues.length - 1;
+
+            for (int c = 0; c < oldValues.length; c++) {
+                if (oldValues[c] == null) continue;
+
+                int i = hash(oldKeys[c]) & mask;
+                while (newValues[i] != null)
+                    i = (i + 1) & mask;
+
+                newKeys[i] = oldKeys[c];
+                newValues[i] = oldValues[c];
+            }
+
+            this.keys = newKeys;
+            this.values = newValues;
+        }
+
+        /**
+         * Probe for a key. This may run without the lock, so it only reads
+         * each array once and gives up after one pass over the table.
+         *
+         * @param keys
+         *        The keys
+         * @param values
+         *        The values
+         * @param key
+         *        The key
+         * @param hash
+         *        The hash of the key
+         * @return The value or null
+         */
+        @SuppressWarnings("unchecked")
+        private static <V> V find(long[] keys, Object[] values, long key, int hash)
+        {
+            /* The arrays may be from different tables during a resize, the read is validated after */
+            int length = Math.min(keys.length, values.length);
+            int mask = length - 1;
+            int i = hash & mask;
+
+            for (int probes = 0; probes < length; probes++) {
+                Object value = values[i];
+                if (value == null) return null;
+                if (keys[i] == key) return (V) value;
+                i = (i + 1) & mask;
+            }
+
+            return null;
+        }
+    }
+}
@@ -4,12 +4,14 @@
 
 package com.untangle.uvm;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Date;
 import java.util.Calendar;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
 import java.net.InetAddress;
 
 import org.apache.log4j.Logger;
@@ -23,6 +25,19 @@ import com.untangle.uvm.util.Pulse;
  * Class to do periodic monitoring and maintenance on the internal conntrack
  * table.
  * 
+ * By default every pulse dumps the whole conntrack table and diffs it against
+ * a new map of the previous dump. When uvm.conntrack.incremental is set the
+ * entries are kept in a table keyed by the conntrack ID that is updated in
+ * place: conntrack new events (from NetcapConntrackHook) add entries, destroy
+ * events do the final accounting and remove them, and the pulse dump only
+ * updates the counters of the existing entries. The dump is also the
+ * consistency check, entries it finds that we missed the new event for are
+ * added, and entries that are gone but we missed the destroy event for are
+ * removed.
+ *
+ * The hooks run on the netcap conntrack event thread and must not wait for a
+ * pulse, so the incremental tables are concurrent and only each entry is
+ * locked while it is accounted (by a destroy event or by the pulse).
  */
 public class ConntrackMonitorImpl
 {
@@ -32,7 +47,11 @@ public class ConntrackMonitorImpl
     private static final long LIFETIME_MS = (long) 1000 * 60 * 3; // 2 minutes (amount of time to keep complete sessions in table)
     private static final Logger logger = Logger.getLogger(ConntrackMonitorImpl.class);
 
-    private static ConntrackMonitorImpl INSTANCE = null;
+    private static final boolean INCREMENTAL = (System.getProperty("uvm.conntrack.incremental") != null);
+
+    private static volatile ConntrackMonitorImpl INSTANCE = null;
+
+    private final ConntrackPulse conntrackPulse = new ConntrackPulse();
 
     private final Pulse mainPulse;
 
@@ -41,12 +60,18 @@ public class ConntrackMonitorImpl
     private LinkedHashMap<SessionTuple, ConntrackEntryState> conntrackEntries = new LinkedHashMap<>();
     private LinkedHashMap<SessionTuple, DeadTcpSessionState> deadTcpSessions = new LinkedHashMap<>();
 
+    /* The incremental mode tables, the entries by conntrack ID and by tuple (for lookupTuple) */
+    private final ConcurrentLongMap<ConntrackEntryState> conntrackEntriesById = new ConcurrentLongMap<>();
+    private final ConcurrentHashMap<SessionTuple, ConntrackEntryState> conntrackEntriesByTuple = new ConcurrentHashMap<>();
+    private final ArrayList<ConntrackEntryState> sweepEntries = new ArrayList<>();
+    private volatile long pulseCount = 0;
+
     /**
      * Constructor
      */
     private ConntrackMonitorImpl()
     {
-        this.mainPulse = new Pulse("conntrack-monitor", new ConntrackPulse(), CONNTRACK_PULSE_FREQUENCY_MS, calculateInitialDelay());
+        this.mainPulse = new Pulse("conntrack-monitor", conntrackPulse, CONNTRACK_PULSE_FREQUENCY_MS, calculateInitialDelay());
         this.mainPulse.start();
 
         this.deadTcpSessionsCleaner = new Pulse("conntrack-dead-tcp-table-cleaner", new TcpCompletedSessionsCleaner(), CLEANER_PULSE_FREQUENCY);
@@ -75,11 +100,206 @@ public class ConntrackMonitorImpl
     public ConntrackEntryState lookupTuple(SessionTuple sessionTuple)
     {
         if (sessionTuple == null) return null;
+        if (INCREMENTAL) return conntrackEntriesByTuple.get(sessionTuple);
         synchronized (ConntrackMonitorImpl.INSTANCE) {
             return conntrackEntries.get(sessionTuple);
         }
     }
 
+    /**
+     * Handle a conntrack new event, this only tracks the entry. The session ID
+     * is resolved later, usually the session isn't in the session table yet.
+     * 
+     * @param conntrack
+     *        The conntrack of the event
+     */
+    protected static void conntrackNew(Conntrack conntrack)
+    {
+        ConntrackMonitorImpl monitor = INSTANCE;
+        if (!INCREMENTAL || monitor == null) return;
+
+        ConntrackEntryState state = monitor.newEntry(conntrack);
+        ConntrackEntryState old = monitor.conntrackEntriesById.putIfAbsent(state.conntrackKey, state);
+
+        if (old != null) {
+            /* The pulse found it in a dump first */
+            if (old.sessionStartTime == state.sessionStartTime) return;
+
+            /* The ID was reused before the pulse removed the old entry */
+            monitor.conntrackEntriesById.put(state.conntrackKey, state);
+            monitor.conntrackEntriesByTuple.remove(old.tuple, old);
+        }
+
+        monitor.conntrackEntriesByTuple.put(state.tuple, state);
+    }
+
+    /**
+     * Handle a conntrack destroy event, this accounts the bytes since the
+     * last pulse and marks the entry destroyed. The entry is removed at the
+     * end of the next pulse, so a dump that was taken before it was destroyed
+     * doesn't add it again.
+     * 
+     * @param conntrack
+     *        The conntrack of the event
+     */
+    protected static void conntrackDestroyed(Conntrack conntrack)
+    {
+        ConntrackMonitorImpl monitor = INSTANCE;
+        if (!INCREMENTAL || monitor == null) return;
+
+        boolean logBypassed = UvmContextFactory.context().networkManager().getNetworkSettings().getLogBypassedSessions();
+
+        long key = conntrackKey(conntrack);
+        ConntrackEntryState state = monitor.conntrackEntriesById.get(key);
+
+        /**
+         * An entry we never saw (it started before the hook and ended before
+         * the first pulse) is accounted from zero. It is added to the table
+         * already destroyed, so a dump taken before the destroy skips it and
+         * the sweep removes it.
+         */
+        if (state == null) {
+            ConntrackEntryState newState = monitor.newEntry(conntrack);
+            state = monitor.conntrackEntriesById.putIfAbsent(key, newState);
+            if (state == null) state = newState;
+        }
+
+        if (state.sessionStartTime != conntrack.getTimeStampStart()) {
+            ConntrackEntryState newState = monitor.newEntry(conntrack);
+
+            /* We missed the destroy of the old entry, this one replaces it */
+            if (conntrack.getTimeStampStart() > state.sessionStartTime) {
+                monitor.conntrackEntriesById.put(key, newState);
+                monitor.conntrackEntriesByTuple.remove(state.tuple, state);
+            }
+
+            state = newState;
+        }
+
+        synchronized (state) {
+            if (state.destroyed) return;
+
+            state.destroyed = true;
+            monitor.conntrackEntriesByTuple.remove(state.tuple, state);
+
+            if (monitor.resolveSessionId(state, logBypassed)) {
+                monitor.conntrackPulse.doAccounting(conntrack, state, "DESTROY", state.tuple);
+            }
+
+            if (state.tuple.getProtocol() == 6) monitor.removeDeadTcpSession(state.tuple);
+        }
+    }
+
+    /**
+     * Get the key of a conntrack in the ID table
+     * 
+     * @param conntrack
+     *        The conntrack
+     * @return The key
+     */
+    private static long conntrackKey(Conntrack conntrack)
+    {
+        return conntrack.getConntrackId() & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Get the tuple of a conntrack
+     * 
+     * @param conntrack
+     *        The conntrack
+     * @return The pre-NAT tuple
+     */
+    private SessionTuple tupleOf(Conntrack conntrack)
+    {
+        return SessionTuple.fromIPv4(conntrack.getProtocol(), conntrack.getPreNatClientInt(), conntrack.getPreNatServerInt(), conntrack.getPreNatClientPort(), conntrack.getPreNatServerPort());
+    }
+
+    /**
+     * Create an entry for the incremental tables. The conntrack of an event
+     * exists before the event, so any dump of a later pulse has it.
+     * 
+     * @param conntrack
+     *        The conntrack
+     * @return The new entry
+     */
+    private ConntrackEntryState newEntry(Conntrack conntrack)
+    {
+        ConntrackEntryState state = new ConntrackEntryState(0, tupleOf(conntrack), conntrack.getTimeStampStart());
+        state.conntrackKey = conntrackKey(conntrack);
+        state.createdPulse = pulseCount;
+        return state;
+    }
+
+    /**
+     * Remove an entry from the incremental tables
+     * 
+     * @param state
+     *        The entry
+     */
+    private void removeEntry(ConntrackEntryState state)
+    {
+        conntrackEntriesById.remove(state.conntrackKey, state);
+        conntrackEntriesByTuple.remove(state.tuple, state);
+    }
+
+    /**
+     * Find the session ID of an entry if it isn't known yet
+     * 
+     * @param state
+     *        The entry
+     * @param logBypassed
+     *        True if bypassed sessions are logged
+     * @return True if the session ID is known and the entry should be
+     *         accounted
+     */
+    private boolean resolveSessionId(ConntrackEntryState state, boolean logBypassed)
+    {
+        if (state.sessionId != 0) return true;
+
+        Long sid = NetcapConntrackHook.getInstance().lookupSessionId(state.tuple);
+        if (sid != null) {
+            if (!logBypassed) return false;
+            state.sessionId = sid;
+            return true;
+        }
+
+        SessionGlobalState session = SessionTableImpl.getInstance().lookupTuple(state.tuple);
+        if (session != null) {
+            state.sessionId = session.id();
+            return true;
+        }
+
+        DeadTcpSessionState deadSession;
+        synchronized (deadTcpSessions) {
+            deadSession = deadTcpSessions.get(state.tuple);
+        }
+        if (deadSession != null) {
+            state.sessionId = deadSession.sessionId;
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Remove a session from the dead TCP session table once its conntrack is
+     * gone
+     * 
+     * @param tuple
+     *        The tuple of the session
+     */
+    private void removeDeadTcpSession(SessionTuple tuple)
+    {
+        DeadTcpSessionState deadSession;
+        synchronized (deadTcpSessions) {
+            deadSession = deadTcpSessions.remove(tuple);
+        }
+        if (logger.isDebugEnabled()) {
+            if (deadSession != null) logger.debug("Removed session from deadTcpSessions: " + tuple);
+            else logger.debug("Failed to remove session from deadTcpSessions: " + tuple);
+        }
+    }
+
     /**
      * Stop the monitor
      */
@@ -238,6 +458,98 @@ public class ConntrackMonitorImpl
          * Periodic run function
          */
         public void run()
+        {
+            if (INCREMENTAL) runIncremental();
+            else runFull();
+        }
+
+        /**
+         * Update the counters of the incremental table from a conntrack dump
+         * and check it against the dump
+         */
+        private void runIncremental()
+        {
+            long pulse;
+            int missedNew = 0;
+            int missedDestroy = 0;
+
+            /**
+             * Start the pulse before the dump, entries added by new events
+             * from now on may not be in the dump and must not be swept
+             */
+            pulse = ++pulseCount;
+
+            List<Conntrack> dumpEntries = com.untangle.jnetcap.Netcap.getInstance().getConntrackDump();
+            boolean logBypassed = UvmContextFactory.context().networkManager().getNetworkSettings().getLogBypassedSessions();
+
+            for (Conntrack conntrack : dumpEntries) {
+                try {
+                    long key = conntrackKey(conntrack);
+                    ConntrackEntryState state = conntrackEntriesById.get(key);
+                    String action = "UPDATE ";
+
+                    if (state != null && state.sessionStartTime != conntrack.getTimeStampStart()) {
+                        /* The dump was taken before the entry was replaced with a newer one */
+                        if (conntrack.getTimeStampStart() < state.sessionStartTime) continue;
+
+                        /* We missed the destroy of the old entry and the new of this one */
+                        removeEntry(state);
+                        state = null;
+                    }
+
+                    if (state == null) {
+                        ConntrackEntryState newState = newEntry(conntrack);
+                        state = conntrackEntriesById.putIfAbsent(key, newState);
+
+                        /* Unless the new event was handled in the meantime */
+                        if (state == null) {
+                            state = newState;
+                            conntrackEntriesByTuple.put(state.tuple, state);
+                            action = "NEW    ";
+                            missedNew++;
+                        }
+                    }
+
+                    synchronized (state) {
+                        if (state.destroyed) continue;
+
+                        state.seenPulse = pulse;
+
+                        if (!resolveSessionId(state, logBypassed)) continue;
+
+                        doAccounting(conntrack, state, action + "dump", state.tuple);
+                    }
+                } finally {
+                    // free the conntrack
+                    conntrack.raze();
+                }
+            }
+
+            /**
+             * Remove the destroyed entries, and the entries that are gone from
+             * the dump (we missed their destroy event)
+             */
+            conntrackEntriesById.values(sweepEntries);
+            for (ConntrackEntryState state : sweepEntries) {
+                if (state.destroyed) {
+                    removeEntry(state);
+                } else if (state.seenPulse < pulse && state.createdPulse < pulse) {
+                    removeEntry(state);
+                    if (state.tuple.getProtocol() == 6) removeDeadTcpSession(state.tuple);
+                    missedDestroy++;
+                }
+            }
+            sweepEntries.clear();
+
+            if (missedNew > 0 || missedDestroy > 0) {
+                logger.info("Conntrack consistency check: " + missedNew + " missed new events, " + missedDestroy + " missed destroy events, " + conntrackEntriesById.size() + " entries");
+            }
+        }
+
+        /**
+         * Rebuild the table from a conntrack dump
+         */
+        private void runFull()
         {
             LinkedHashMap<SessionTuple, ConntrackEntryState> oldConntrackEntries = conntrackEntries;
             LinkedHashMap<SessionTuple, ConntrackEntryState> newConntrackEntries = new LinkedHashMap<>(conntrackEntries.size() * 2);
@@ -250,7 +562,7 @@ public class ConntrackMonitorImpl
                 for (Conntrack conntrack : dumpEntries) {
                     try {
                         long sessionId = 0;
-                        SessionTuple tuple = new SessionTuple(conntrack.getProtocol(), conntrack.getPreNatClient(), conntrack.getPreNatServer(), conntrack.getPreNatClientPort(), conntrack.getPreNatServerPort());
+                        SessionTuple tuple = SessionTuple.fromIPv4(conntrack.getProtocol(), conntrack.getPreNatClientInt(), conntrack.getPreNatServerInt(), conntrack.getPreNatClientPort(), conntrack.getPreNatServerPort());
                         /**
                          * Lookup the session from the previous conntrack
                          * entries
@@ -438,6 +750,12 @@ public class ConntrackMonitorImpl
         protected float s2cRateBps = 0.0f;
         protected float totalRateBps = 0.0f;
 
+        /* Only used by the incremental mode, the counters are updated holding the entry lock */
+        protected long conntrackKey;
+        protected long createdPulse;
+        protected long seenPulse;
+        protected volatile boolean destroyed = false;
+
         /**
          * Constructor
          * 
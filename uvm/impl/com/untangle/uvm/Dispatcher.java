@@ -25,6 +25,7 @@ import com.untangle.uvm.vnet.AppSession;
 import com.untangle.uvm.vnet.AppTCPSession;
 import com.untangle.uvm.vnet.AppUDPSession;
 import com.untangle.uvm.vnet.IPPacketHeader;
+import com.untangle.uvm.vnet.ReleaseBudget;
 import com.untangle.uvm.vnet.SessionEventHandler;
 import com.untangle.uvm.vnet.TCPNewSessionRequest;
 import com.untangle.uvm.vnet.UDPNewSessionRequest;
@@ -44,6 +45,7 @@ public class Dispatcher
 
     private final PipelineConnectorImpl pipelineConnector;
     private final AppBase app;
+    private final PipelineProfiler.Profile profile;
 
     private static final String STAT_LIVE_SESSIONS = "live-sessions";
     private static final String STAT_TCP_LIVE_SESSIONS = "tcp-live-sessions";
@@ -56,6 +58,7 @@ public class Dispatcher
     private static final String STAT_UDP_SESSION_REQUESTS = "udp-session-requests";
 
     private SessionEventHandler sessionEventListener;
+    private boolean listenerReleasesTCPChunks = false;
 
     /**
      * We need a single global <code>releasedHandler</code> for all sessions
@@ -88,6 +91,7 @@ public class Dispatcher
         this.sessionEventListener = null;
         this.releasedHandler = new ReleasedEventHandler(app);
         this.liveSessions = new ConcurrentHashMap<>();
+        this.profile = PipelineProfiler.getProfile(pipelineConnector);
 
         this.app.addMetric(new AppMetric(STAT_LIVE_SESSIONS, I18nUtil.marktr("Current Sessions")));
         this.app.addMetric(new AppMetric(STAT_TCP_LIVE_SESSIONS, I18nUtil.marktr("Current TCP Sessions")));
@@ -243,6 +247,21 @@ public class Dispatcher
     protected void setSessionEventHandler(SessionEventHandler listener)
     {
         sessionEventListener = listener;
+        listenerReleasesTCPChunks = (listener != null && listener.releasesTCPChunks());
+    }
+
+    /**
+     * Check if the handler that will get the chunks of a session never holds
+     * on to the chunk buffers, so the session can reuse them
+     * 
+     * @param session
+     *        The session
+     * @return True if the chunk buffers can be reused
+     */
+    boolean releasesTCPChunks(AppTCPSessionImpl session)
+    {
+        if (sessionEventListener == null || session.released()) return releasedHandler.releasesTCPChunks();
+        return listenerReleasesTCPChunks;
     }
 
     /**
@@ -341,6 +360,60 @@ public class Dispatcher
         else sessionEventListener.handleUDPNewSession(session);
     }
 
+    /**
+     * Count an event in the pipeline profiler, and start timing it if it is
+     * sampled
+     * 
+     * @param size
+     *        The number of bytes in the event
+     * @return The start time, or 0 if the event is not sampled
+     */
+    private long profileStart(int size)
+    {
+        profile.count(size);
+        return PipelineProfiler.sample() ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Record the handler time of a sampled event in the pipeline profiler
+     * 
+     * @param session
+     *        The session
+     * @param start
+     *        The start time from profileStart
+     * @param size
+     *        The number of bytes in the event
+     */
+    private void profileEnd(AppSessionImpl session, long start, int size)
+    {
+        if (start != 0) profile.record(session.id(), System.nanoTime() - start, size);
+    }
+
+    /**
+     * Count a data chunk/packet against the release budget of the pipeline
+     * connector, once the budget is spent the session is released (which
+     * removes this app from the vector)
+     * 
+     * @param session
+     *        The session
+     * @param size
+     *        The number of bytes in the event
+     */
+    private void spendReleaseBudget(AppSessionImpl session, int size)
+    {
+        ReleaseBudget budget = pipelineConnector.getReleaseBudget();
+        if (budget == null || session.released()) return;
+
+        session.budgetChunks++;
+        session.budgetBytes += size;
+        long age = (budget.getMaxMillis() > 0 ? System.currentTimeMillis() - session.sessionGlobalState().getCreationTime() : 0);
+
+        if (budget.isSpent(session.budgetChunks, session.budgetBytes, age)) {
+            if (logger.isDebugEnabled()) logger.debug("Release budget spent (" + session.budgetChunks + " chunks, " + session.budgetBytes + " bytes, " + age + " ms), releasing session " + session.id() + " from " + pipelineConnector.getName());
+            session.release();
+        }
+    }
+
     /**
      * Dispatch TCP client data
      * 
@@ -351,12 +424,16 @@ public class Dispatcher
      */
     void dispatchTCPClientChunk(AppTCPSessionImpl session, ByteBuffer data)
     {
-        elog(Level.DEBUG, "TCPClientChunk", session.id(), data.remaining());
+        int size = data.remaining();
+        elog(Level.DEBUG, "TCPClientChunk", session.id(), size);
+        long start = profileStart(size);
         if (sessionEventListener == null || session.released()) {
             releasedHandler.handleTCPClientChunk(session, data);
         } else {
             sessionEventListener.handleTCPClientChunk(session, data);
         }
+        profileEnd(session, start, size);
+        spendReleaseBudget(session, size);
     }
 
     /**
@@ -369,12 +446,16 @@ public class Dispatcher
      */
     void dispatchTCPServerChunk(AppTCPSessionImpl session, ByteBuffer data)
     {
-        elog(Level.DEBUG, "TCPServerChunk", session.id(), data.remaining());
+        int size = data.remaining();
+        elog(Level.DEBUG, "TCPServerChunk", session.id(), size);
+        long start = profileStart(size);
         if (sessionEventListener == null || session.released()) {
             releasedHandler.handleTCPServerChunk(session, data);
         } else {
             sessionEventListener.handleTCPServerChunk(session, data);
         }
+        profileEnd(session, start, size);
+        spendReleaseBudget(session, size);
     }
 
     /**
@@ -388,11 +469,14 @@ public class Dispatcher
     void dispatchTCPClientObject(AppTCPSessionImpl session, Object obj)
     {
         elog(Level.DEBUG, "TCPClientObject", session.id());
+        int size = 0;
+        long start = profileStart(size);
         if (sessionEventListener == null || session.released()) {
             releasedHandler.handleTCPClientObject(session, obj);
         } else {
             sessionEventListener.handleTCPClientObject(session, obj);
         }
+        profileEnd(session, start, size);
     }
 
     /**
@@ -406,11 +490,14 @@ public class Dispatcher
     void dispatchTCPServerObject(AppTCPSessionImpl session, Object obj)
     {
         elog(Level.DEBUG, "TCPServerObject", session.id());
+        int size = 0;
+        long start = profileStart(size);
         if (sessionEventListener == null || session.released()) {
             releasedHandler.handleTCPServerObject(session, obj);
         } else {
             sessionEventListener.handleTCPServerObject(session, obj);
         }
+        profileEnd(session, start, size);
     }
 
     /**
@@ -457,12 +544,16 @@ public class Dispatcher
      */
     void dispatchUDPClientPacket(AppUDPSessionImpl session, ByteBuffer data, IPPacketHeader header)
     {
-        elog(Level.DEBUG, "UDPClientPacket", session.id(), data.remaining());
+        int size = data.remaining();
+        elog(Level.DEBUG, "UDPClientPacket", session.id(), size);
+        long start = profileStart(size);
         if (sessionEventListener == null || session.released()) {
             releasedHandler.handleUDPClientPacket(session, data, header);
         } else {
             sessionEventListener.handleUDPClientPacket(session, data, header);
         }
+        profileEnd(session, start, size);
+        spendReleaseBudget(session, size);
     }
 
     /**
@@ -477,12 +568,16 @@ public class Dispatcher
      */
     void dispatchUDPServerPacket(AppUDPSessionImpl session, ByteBuffer data, IPPacketHeader header)
     {
-        elog(Level.DEBUG, "UDPServerPacket", session.id(), data.remaining());
+        int size = data.remaining();
+        elog(Level.DEBUG, "UDPServerPacket", session.id(), size);
+        long start = profileStart(size);
         if (sessionEventListener == null || session.released()) {
             releasedHandler.handleUDPServerPacket(session, data, header);
         } else {
             sessionEventListener.handleUDPServerPacket(session, data, header);
         }
+        profileEnd(session, start, size);
+        spendReleaseBudget(session, size);
     }
 
     /**
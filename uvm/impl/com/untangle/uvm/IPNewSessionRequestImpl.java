@@ -4,13 +4,12 @@
 
 package com.untangle.uvm;
 
-import java.util.HashMap;
-import java.util.Map;
 import java.net.InetAddress;
 
 import com.untangle.jnetcap.NetcapSession;
 import com.untangle.jnetcap.Endpoints;
 import com.untangle.uvm.app.SessionEvent;
+import com.untangle.uvm.vnet.AttachmentKey;
 import com.untangle.uvm.vnet.IPNewSessionRequest;
 
 /**
@@ -56,8 +55,8 @@ public abstract class IPNewSessionRequestImpl implements IPNewSessionRequest
     protected byte state = REQUESTED; /* REQUESTED, REJECTED, RELEASED */
     protected byte rejectCode = REJECTED;
 
-    protected HashMap<String, Object> stringAttachments = new HashMap<>();
-    private static final String NO_KEY_VALUE = "NOKEY";
+    protected final SessionAttachments attachments = new SessionAttachments();
+    private static final AttachmentKey<Object> NO_KEY = AttachmentKey.forName("NOKEY");
 
     /**
      * 
@@ -452,7 +451,7 @@ public abstract class IPNewSessionRequestImpl implements IPNewSessionRequest
      */
     public Object attach(Object ob)
     {
-        return attach(NO_KEY_VALUE, ob);
+        return attachments.put(NO_KEY.slot(), ob);
     }
 
     /**
@@ -462,7 +461,7 @@ public abstract class IPNewSessionRequestImpl implements IPNewSessionRequest
      */
     public Object attachment()
     {
-        return attachment(NO_KEY_VALUE);
+        return attachments.get(NO_KEY.slot());
     }
 
     /**
@@ -476,7 +475,7 @@ public abstract class IPNewSessionRequestImpl implements IPNewSessionRequest
      */
     public Object attach(String key, Object ob)
     {
-        return this.stringAttachments.put(key, ob);
+        return attachments.put(AttachmentKey.forName(key).slot(), ob);
     }
 
     /**
@@ -488,7 +487,9 @@ public abstract class IPNewSessionRequestImpl implements IPNewSessionRequest
      */
     public Object attachment(String key)
     {
-        return this.stringAttachments.get(key);
+        AttachmentKey<Object> attachmentKey = AttachmentKey.lookup(key);
+        if (attachmentKey == null) return null;
+        return attachments.get(attachmentKey.slot());
     }
 
     /**
@@ -499,9 +500,7 @@ public abstract class IPNewSessionRequestImpl implements IPNewSessionRequest
      */
     public void copyAttachments(AppSessionImpl session)
     {
-        for (Map.Entry<String, Object> entry : stringAttachments.entrySet()) {
-            session.attach(entry.getKey(), entry.getValue());
-        }
+        attachments.copyTo(session.attachments);
     }
 
     /**
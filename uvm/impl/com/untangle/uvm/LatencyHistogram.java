@@ -0,0 +1,181 @@
+/**
+ * $Id$
+ */
+
+package com.untangle.uvm;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock free histogram of latencies in nanoseconds.
+ *
+ * Values are counted in log-linear buckets (like HdrHistogram): every power of
+ * two is split into 16 linear buckets, so any recorded value is reported within
+ * about 6% of its real value. Recording a value is a couple of atomic
+ * increments, so it is cheap enough to leave on for every session.
+ *
+ * Reading the histogram while values are being recorded gives a snapshot that
+ * may be missing the values recorded during the read.
+ */
+public class LatencyHistogram
+{
+    /* Values below this are counted exactly */
+    private static final int LINEAR_BUCKETS = 32;
+
+    /* Number of buckets each power of two above LINEAR_BUCKETS is split into */
+    private static final int SUB_BUCKETS = 16;
+
+    /* Enough buckets for any positive long */
+    private static final int NUM_BUCKETS = LINEAR_BUCKETS + (63 - 5) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+    private final LongAdder totalCount = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong(0);
+
+    /**
+     * Record a latency
+     *
+     * @param nanos
+     *        The latency in nanoseconds, negative values are counted as 0
+     */
+    public void record(long nanos)
+    {
+        if (nanos < 0) nanos = 0;
+
+        counts.incrementAndGet(bucketIndex(nanos));
+        totalCount.increment();
+        totalNanos.add(nanos);
+
+        long max = maxNanos.get();
+        while (nanos > max) {
+            if (maxNanos.compareAndSet(max, nanos)) break;
+            max = maxNanos.get();
+        }
+    }
+
+    /**
+     * Clear all of the recorded values
+     */
+    public void reset()
+    {
+        for (int i = 0; i < NUM_BUCKETS; i++)
+            counts.set(i, 0);
+        totalCount.reset();
+        totalNanos.reset();
+        maxNanos.set(0);
+    }
+
+    /**
+     * Get the number of recorded values
+     *
+     * @return The count
+     */
+    public long getCount()
+    {
+        return totalCount.sum();
+    }
+
+    /**
+     * Get the mean of the recorded values
+     *
+     * @return The mean in nanoseconds, 0 if nothing was recorded
+     */
+    public long getMeanNanos()
+    {
+        long count = totalCount.sum();
+        if (count == 0) return 0;
+        return totalNanos.sum() / count;
+    }
+
+    /**
+     * Get the largest recorded value
+     *
+     * @return The max in nanoseconds
+     */
+    public long getMaxNanos()
+    {
+        return maxNanos.get();
+    }
+
+    /**
+     * Get the values at several percentiles with a single pass over the
+     * buckets
+     *
+     * @param percentiles
+     *        The percentiles (0 - 100) in increasing order
+     * @return The value at each percentile in nanoseconds (the highest value
+     *         of the bucket it falls in)
+     */
+    public long[] getValuesAtPercentiles(double... percentiles)
+    {
+        long[] snapshot = new long[NUM_BUCKETS];
+        long total = 0;
+
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+
+        long[] values = new long[percentiles.length];
+        if (total == 0) return values;
+
+        long max = maxNanos.get();
+        long cumulative = 0;
+        int bucket = 0;
+
+        for (int p = 0; p < percentiles.length; p++) {
+            long target = (long) Math.ceil(percentiles[p] / 100.0 * total);
+            if (target < 1) target = 1;
+
+            while (bucket < NUM_BUCKETS - 1 && cumulative + snapshot[bucket] < target) {
+                cumulative += snapshot[bucket];
+                bucket++;
+            }
+
+            values[p] = Math.min(highestValueInBucket(bucket), max);
+        }
+
+        return values;
+    }
+
+    /**
+     * Get the bucket for a value
+     *
+     * @param value
+     *        The value (not negative)
+     * @return The bucket index
+     */
+    private static int bucketIndex(long value)
+    {
+        if (value < LINEAR_BUCKETS) return (int) value;
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - 4;
+        int sub = (int) (value >>> shift) - SUB_BUCKETS;
+
+        return LINEAR_BUCKETS + (shift - 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Get the highest value counted in a bucket
+     *
+     * @param index
+     *        The bucket index
+     * @return The highest value
+     */
+    private static long highestValueInBucket(int index)
+    {
+        if (index < LINEAR_BUCKETS) return index;
+
+        int k = index - LINEAR_BUCKETS;
+        int shift = k / SUB_BUCKETS + 1;
+        long sub = (k % SUB_BUCKETS) + SUB_BUCKETS;
+
+        long next = (sub + 1) << shift;
+        if (next <= 0) return Long.MAX_VALUE;
+        return next - 1;
+    }
+}
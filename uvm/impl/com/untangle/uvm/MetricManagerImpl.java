@@ -29,7 +29,10 @@ import com.untangle.uvm.network.InterfaceSettings;
 import com.untangle.uvm.app.App;
 import com.untangle.uvm.app.SessionTuple;
 import com.untangle.uvm.app.AppMetric;
+import com.untangle.uvm.app.RuleEvaluationContext;
+import com.untangle.uvm.app.RuleProfiler;
 import com.untangle.uvm.util.Pulse;
+import com.untangle.jvector.BufferPool;
 
 /**
  * Class to check, track, manage, and control system metrics... or something
@@ -125,6 +128,119 @@ public class MetricManagerImpl implements MetricManager
         return json;
     }
 
+    /**
+     * Get the latency of each phase of new session setup (count, mean, max
+     * and percentiles in microseconds)
+     * 
+     * @return Latency stats for each phase
+     */
+    public org.json.JSONObject getSessionSetupLatency()
+    {
+        return SessionSetupLatency.toJSON();
+    }
+
+    /**
+     * Clear the session setup latency stats
+     */
+    public void resetSessionSetupLatency()
+    {
+        SessionSetupLatency.reset();
+    }
+
+    /**
+     * Get the pipeline profiler view: the chunk handler time and bytes of
+     * each app, the totals of each policy, and the slowest sessions
+     * 
+     * @return The pipeline profile
+     */
+    public org.json.JSONObject getPipelineProfile()
+    {
+        return PipelineProfiler.toJSON();
+    }
+
+    /**
+     * Clear the pipeline profiler stats
+     */
+    public void resetPipelineProfile()
+    {
+        PipelineProfiler.reset();
+    }
+
+    /**
+     * Get the TCP read buffer counters: the bytes handed to the apps and the
+     * bytes allocated for read buffers
+     * 
+     * @return The read buffer stats
+     */
+    public org.json.JSONObject getTCPReadBufferStats()
+    {
+        return TCPReadBufferStats.toJSON();
+    }
+
+    /**
+     * Clear the TCP read buffer counters
+     */
+    public void resetTCPReadBufferStats()
+    {
+        TCPReadBufferStats.reset();
+    }
+
+    /**
+     * Get the session write queue counters
+     * 
+     * @return The write queue stats
+     */
+    public org.json.JSONObject getSessionQueueStats()
+    {
+        return SessionQueueStats.toJSON();
+    }
+
+    /**
+     * Clear the session write queue counters
+     */
+    public void resetSessionQueueStats()
+    {
+        SessionQueueStats.reset();
+    }
+
+    /**
+     * Get the rule evaluation lookup counters: the host/user/device lookups
+     * done by rule conditions and the ones saved by the evaluation contexts
+     * 
+     * @return The rule evaluation stats
+     */
+    public org.json.JSONObject getRuleEvaluationStats()
+    {
+        return RuleEvaluationContext.toJSON();
+    }
+
+    /**
+     * Clear the rule evaluation lookup counters
+     */
+    public void resetRuleEvaluationStats()
+    {
+        RuleEvaluationContext.reset();
+    }
+
+    /**
+     * Get the rule profiler view: the evaluations and hits of each rule of
+     * each app, and the evaluation time of each condition type
+     * 
+     * @return The rule profile
+     */
+    public org.json.JSONObject getRuleProfile()
+    {
+        return RuleProfiler.toJSON();
+    }
+
+    /**
+     * Clear the rule profiler counters
+     */
+    public void resetRuleProfile()
+    {
+        RuleProfiler.reset();
+    }
+
     /**
      * Get metrics for an app
      * 
@@ -433,6 +549,22 @@ public class MetricManagerImpl implements MetricManager
         m.put("maxActiveHosts", UvmContextFactory.context().hostTable().getMaxActiveSize());
         m.put("knownDevices", UvmContextFactory.context().deviceTable().size());
 
+        m.put("uvmPlatformThreadSessions", NetcapHook.getPlatformThreadSessionCount());
+        if (SessionEventLoop.isEnabled())
+            m.put("uvmEventLoopSessions", SessionEventLoop.getInstance().getSessionCount());
+        if (VirtualSessionRunner.isEnabled())
+            m.put("uvmVirtualThreadSessions", VirtualSessionRunner.getInstance().getSessionCount());
+
+        BufferPool pool = BufferPool.getInstance();
+        if (pool.isEnabled()) {
+            m.put("bufferPoolHits", pool.getHits());
+            m.put("bufferPoolMisses", pool.getMisses());
+            m.put("bufferPoolOutstanding", pool.getOutstanding());
+            m.put("bufferPoolDetached", pool.getDetaches());
+            m.put("bufferPoolDiscarded", pool.getDiscards());
+            m.put("bufferPoolFree", pool.getFree());
+        }
+
         long currentTime = System.currentTimeMillis();
 
         BufferedReader br = null;
@@ -87,15 +87,21 @@ public class NetcapConntrackHook implements NetcapCallback
         Conntrack ct = new Conntrack(conntrackPtr);
 
         try {
+            // the conntrack monitor tracks all entries (before the session ID of a bypassed session is removed below)
+            if ( type == CONNTRACK_TYPE_NEW )
+                ConntrackMonitorImpl.conntrackNew( ct );
+            else if ( type == CONNTRACK_TYPE_END )
+                ConntrackMonitorImpl.conntrackDestroyed( ct );
+
             int mark = ct.getMark();
             int clientIntf = ct.getClientIntf();
             int serverIntf = ct.getServerIntf();
             int protocol = ct.getProtocol();
-            SessionTuple tuple = new SessionTuple( ct.getProtocol(),
-                                                           ct.getPreNatClient(),
-                                                           ct.getPreNatServer(),
-                                                           ct.getPreNatClientPort(),
-                                                           ct.getPreNatServerPort() );
+            SessionTuple tuple = SessionTuple.fromIPv4( ct.getProtocol(),
+                                                        ct.getPreNatClientInt(),
+                                                        ct.getPreNatServerInt(),
+                                                        ct.getPreNatClientPort(),
+                                                        ct.getPreNatServerPort() );
 
             boolean logEvent = UvmContextFactory.context().networkManager().getNetworkSettings().getLogBypassedSessions();
             
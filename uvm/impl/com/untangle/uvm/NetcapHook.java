@@ -8,6 +8,7 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.net.InetAddress;
 
 import org.apache.log4j.Logger;
@@ -26,6 +27,7 @@ import com.untangle.uvm.app.SessionEvent;
 import com.untangle.uvm.app.SessionNatEvent;
 import com.untangle.uvm.app.SessionStatsEvent;
 import com.untangle.uvm.app.PolicyManager;
+import com.untangle.uvm.app.RuleEvaluationContext;
 import com.untangle.uvm.network.InterfaceSettings;
 
 /**
@@ -44,6 +46,9 @@ public abstract class NetcapHook implements Runnable
 
     private static final SessionTableImpl sessionTable = SessionTableImpl.getInstance();
 
+    /* Number of sessions currently vectoring on their own platform thread */
+    private static final AtomicInteger platformThreadSessions = new AtomicInteger( 0 );
+
     /**
      * List of all of the apps( PipelineConnectorImpls )
      */
@@ -85,12 +90,21 @@ public abstract class NetcapHook implements Runnable
         return this.vector;
     }
     
+    /**
+     * getPlatformThreadSessionCount
+     * @return the number of sessions currently vectoring on their own platform thread
+     */
+    public static int getPlatformThreadSessionCount()
+    {
+        return platformThreadSessions.get();
+    }
+
     /**
      * Thread hook
      */
     public final void run()
     {
-        long start = 0;
+        long start = System.nanoTime();
         SessionEvent sessionEvent = null;
         
         try {
@@ -112,6 +126,12 @@ public abstract class NetcapHook implements Runnable
                 logger.debug( "New thread for session id: " + sessionId + " " + sessionGlobalState );
             }
 
+            if ( SessionEventLoop.isEnabled() && SessionEventLoop.getInstance().isFull() ) {
+                logger.warn( "Hit event loop session limit: " + netcapSession + ". Killing session." );
+                raze();
+                return;
+            }
+
             if (serverIntf < InterfaceSettings.MIN_INTERFACE_ID || serverIntf > InterfaceSettings.MAX_INTERFACE_ID) {
                 logger.warn( "Unknown destination interface: " + netcapSession + ". Killing session." );
                 raze();
@@ -144,6 +164,7 @@ public abstract class NetcapHook implements Runnable
             UserTableEntry userEntry = null;
             String username = null;
             String hostname = null;
+            long phaseStart = System.nanoTime();
             
             /**
              * Find Host Table Entry
@@ -180,6 +201,8 @@ public abstract class NetcapHook implements Runnable
                 }
             }
 
+            phaseStart = SessionSetupLatency.record( SessionSetupLatency.Phase.HOST_TABLE, phaseStart );
+
             /**
              * Find Device Table Entry
              */
@@ -227,8 +250,12 @@ public abstract class NetcapHook implements Runnable
             if ( hostname == null || hostname.length() == 0 ) {
                 hostname = SessionEvent.determineBestHostname( clientAddr, clientIntf, serverAddr, serverIntf );
             }
+            phaseStart = SessionSetupLatency.record( SessionSetupLatency.Phase.DEVICE_USER, phaseStart );
             
 
+            /* The policy rules and the request rules of the apps share one rule evaluation context */
+            RuleEvaluationContext.open();
+
             /**
              * Determine the policy to process this session
              */
@@ -245,9 +272,11 @@ public abstract class NetcapHook implements Runnable
                 this.policyId = 1; /* Default Policy */
             if ( this.policyRuleId == null )
                 this.policyRuleId = 0; /* No rule */
+            phaseStart = SessionSetupLatency.record( SessionSetupLatency.Phase.POLICY, phaseStart );
 
             pipelineConnectors = pipelineFoundry.weld( sessionGlobalState.id(), clientSide, policyId, entitled );
             sessionGlobalState.setPipelineConnectorImpls(pipelineConnectors);
+            phaseStart = SessionSetupLatency.record( SessionSetupLatency.Phase.WELD, phaseStart );
 
             /* Create the sessionEvent early so they can be available at request time. */
             sessionEvent =  new SessionEvent( );
@@ -278,6 +307,7 @@ public abstract class NetcapHook implements Runnable
                 sessionEvent.setLocalAddr( clientSide.getClientAddr() );
                 sessionEvent.setRemoteAddr( serverSide.getServerAddr() );
             }
+            phaseStart = SessionSetupLatency.record( SessionSetupLatency.Phase.SESSION_EVENT, phaseStart );
 
             // lookup the country, latitude, and longitude for WAN clients
             if ( UvmContextFactory.context().networkManager().isWanInterface( clientIntf ) ) {
@@ -306,6 +336,7 @@ public abstract class NetcapHook implements Runnable
             } else {
                 sessionEvent.setServerCountry("XL");
             }
+            phaseStart = SessionSetupLatency.record( SessionSetupLatency.Phase.GEO, phaseStart );
 
             sessionGlobalState.setSessionEvent( sessionEvent );
 
@@ -317,9 +348,12 @@ public abstract class NetcapHook implements Runnable
 
             /* log the session event */
             UvmContextFactory.context().logEvent( sessionEvent );
+            phaseStart = SessionSetupLatency.record( SessionSetupLatency.Phase.LOG_EVENT, phaseStart );
 
             /* Initialize all of the apps, sending the request events to each in turn */
             initializeAppSessions( sessionEvent );
+            RuleEvaluationContext.close();
+            phaseStart = SessionSetupLatency.record( SessionSetupLatency.Phase.APP_REQUESTS, phaseStart );
 
             int tupleHashCodeNew =
                 sessionEvent.getSClientAddr().hashCode() + 
@@ -353,6 +387,7 @@ public abstract class NetcapHook implements Runnable
 
             /* Connect to the client */
             clientActionCompleted = connectClientIfNecessary();
+            SessionSetupLatency.record( SessionSetupLatency.Phase.CONNECT, phaseStart );
 
             /* Remove all non-vectored sessions, it is non-efficient
              * to iterate the session list twice, but the list is
@@ -384,12 +419,17 @@ public abstract class NetcapHook implements Runnable
                     /* Build the pipeline */
                     buildPipeline();
 
+                    /* Limit the read sizes of the sockets to what the apps accept */
+                    limitReadSizes();
+
                     /* Insert the vector */
                     sessionTable.put( sessionId, sessionGlobalState );
 
                     /* Set the timeout for the vectoring machine */
                     vector.timeout( timeout() );
 
+                    SessionSetupLatency.record( SessionSetupLatency.Phase.TOTAL, start );
+
                     if ( logger.isDebugEnabled()) {
                         logger.debug( "Starting vectoring for session " + sessionGlobalState );
                     }
@@ -401,9 +441,36 @@ public abstract class NetcapHook implements Runnable
                     if ( vector.length() == 2 && sessionGlobalState.getProtocol() == 17 ) {
                         releaseToBypass();
                     }
+
+                    /**
+                     * Likewise if this is TCP and no apps are interested, the data
+                     * can be spliced between the client and server sockets.
+                     */
+                    if ( vector.length() == 2 && sessionGlobalState.getProtocol() == 6 ) {
+                        releaseToSplice();
+                    }
                     
                     //vector.print();
-                    vector.vector();
+                    if ( SessionEventLoop.isEnabled() ) {
+                        /* Hand the vector to the event loop, it finishes the session when the vector is done */
+                        vector.start();
+                        SessionEventLoop.getInstance().register( this );
+                        return;
+                    }
+
+                    if ( VirtualSessionRunner.isEnabled() ) {
+                        /* Continue on a virtual thread, it finishes the session when the vector is done */
+                        vector.start();
+                        VirtualSessionRunner.getInstance().start( this );
+                        return;
+                    }
+
+                    platformThreadSessions.incrementAndGet();
+                    try {
+                        vector.vector();
+                    } finally {
+                        platformThreadSessions.decrementAndGet();
+                    }
 
                     /* Call the raze method for each session */
                 } catch ( Exception e ) {
@@ -416,6 +483,8 @@ public abstract class NetcapHook implements Runnable
                 logger.debug( "Session rejected, skipping vectoring: " + sessionGlobalState );
             }
         } catch ( Exception e ) {
+            RuleEvaluationContext.close();
+
             String message = e.getMessage();
             if ( message == null )
                 message = ""; // some exceptions have null message
@@ -434,6 +503,26 @@ public abstract class NetcapHook implements Runnable
             }
         }
 
+        finish( sessionEvent );
+    }
+
+    /**
+     * Called by the session event loop once the vector started by run() is done
+     */
+    protected void vectorFinished()
+    {
+        if ( logger.isDebugEnabled())
+            logger.debug( "Finished vectoring for session: " + sessionGlobalState );
+
+        finish( sessionGlobalState.getSessionEvent() );
+    }
+
+    /**
+     * Log the session stats, remove the session and release all of its resources
+     * @param sessionEvent - the session event, or null if the session never got that far
+     */
+    private void finish( SessionEvent sessionEvent )
+    {
         sessionGlobalState.setEndTime( System.currentTimeMillis() );
         if ( sessionEvent != null )
             logSessionStatsEvent( sessionEvent );
@@ -998,4 +1087,21 @@ public abstract class NetcapHook implements Runnable
      */
     protected abstract void releaseToBypass();
 
+    /**
+     * Splice the rest of this session in the kernel once no apps are
+     * looking at the data.  Only supported in TCP, the default does nothing.
+     */
+    protected void releaseToSplice()
+    {
+    }
+
+    /**
+     * Limit the read sizes of the client and server sockets to what the
+     * apps reading from them accept.  Called once the pipeline is built.
+     * Only used in TCP, the default does nothing.
+     */
+    protected void limitReadSizes()
+    {
+    }
+
 }
@@ -15,6 +15,7 @@ import com.untangle.jvector.Source;
 import com.untangle.jvector.TCPSink;
 import com.untangle.jvector.TCPSource;
 import com.untangle.uvm.app.SessionEvent;
+import com.untangle.uvm.vnet.AppSession;
 import com.untangle.uvm.vnet.AppTCPSession;
 
 /**
@@ -25,6 +26,9 @@ public class NetcapTCPHook implements NetcapCallback
     private static NetcapTCPHook INSTANCE;
     private final Logger logger = Logger.getLogger(getClass());
 
+    /* Splice sessions once no apps are looking at the data (enable with uvm.tcp.splice.auto) */
+    private static final boolean SPLICE_AUTO = ( System.getProperty( "uvm.tcp.splice.auto" ) != null );
+
     /**
      * Get the NetcapTCPHook singleton
      * @return NetcapTCPHook
@@ -87,6 +91,10 @@ public class NetcapTCPHook implements NetcapCallback
         protected final TCPSideListener clientSideListener = new TCPSideListener();
         protected final TCPSideListener serverSideListener = new TCPSideListener();
 
+        /* The sources reading from the client and server sockets, used to enable splicing */
+        protected TCPSource clientTCPSource = null;
+        protected TCPSource serverTCPSource = null;
+
         /**
          * TCPNetcapHook
          * @param id
@@ -268,7 +276,8 @@ public class NetcapTCPHook implements NetcapCallback
          */
         protected Source makeClientSource()
         {
-            return new TCPSource( netcapTCPSession.clientSide().fd(), clientSideListener );
+            clientTCPSource = new TCPSource( netcapTCPSession.clientSide().fd(), clientSideListener );
+            return clientTCPSource;
         }
 
         /**
@@ -281,7 +290,8 @@ public class NetcapTCPHook implements NetcapCallback
                 throw new IllegalStateException( "Requesting server source for an uncompleted connection" );
             }
 
-            return new TCPSource( netcapTCPSession.serverSide().fd(), serverSideListener );
+            serverTCPSource = new TCPSource( netcapTCPSession.serverSide().fd(), serverSideListener );
+            return serverTCPSource;
         }
 
         /**
@@ -363,7 +373,62 @@ public class NetcapTCPHook implements NetcapCallback
         {
             logger.warn("releaseToBypass() not supported for TCP.", new Exception());
         }
+
+        /**
+         * releaseToSplice - splice the data between the client and server sockets
+         * instead of copying it into the JVM.  This is called once the pipeline is
+         * passive (no apps or all of the apps have released the session).
+         * The sources only splice when their sink is the other socket, and the side
+         * listeners are still notified of the spliced bytes so the session stats are unchanged.
+         */
+        @Override
+        protected void releaseToSplice()
+        {
+            if ( !SPLICE_AUTO ) return;
+
+            if ( logger.isDebugEnabled()) logger.debug( "Splicing session: " + sessionGlobalState );
+
+            if ( clientTCPSource != null ) clientTCPSource.setSpliceEnabled( true );
+            if ( serverTCPSource != null ) serverTCPSource.setSpliceEnabled( true );
+        }
         
+        /**
+         * limitReadSizes - the client socket is read by the first app and the
+         * server socket by the last app, each socket is read in chunks of up to
+         * the maxInputSize (or the read buffer size) of that app, so the
+         * chunks don't have to be split and copied.  Without apps the whole
+         * maximum chunk size can be read at once.
+         */
+        @Override
+        protected void limitReadSizes()
+        {
+            AppSessionImpl first = sessionList.isEmpty() ? null : sessionList.get( 0 );
+            AppSessionImpl last = sessionList.isEmpty() ? null : sessionList.get( sessionList.size() - 1 );
+
+            if ( clientTCPSource != null ) clientTCPSource.setMaxReadSize( maxReadSize( first, AppSession.CLIENT ));
+            if ( serverTCPSource != null ) serverTCPSource.setMaxReadSize( maxReadSize( last, AppSession.SERVER ));
+        }
+
+        /**
+         * maxReadSize - get the largest chunk an app accepts from one side
+         * @param session - the app session, or null if there are no apps
+         * @param side - the side
+         * @return the size in bytes
+         */
+        private int maxReadSize( AppSessionImpl session, int side )
+        {
+            if ( session == null || !( session instanceof AppTCPSessionImpl ))
+                return AppTCPSession.TCP_MAX_CHUNK_SIZE;
+
+            AppTCPSessionImpl tcpSession = (AppTCPSessionImpl)session;
+            int size = ( side == AppSession.CLIENT ) ? tcpSession.clientReadBufferSize() : tcpSession.serverReadBufferSize();
+
+            if ( tcpSession.maxInputSize() > 0 && tcpSession.maxInputSize() < size )
+                size = tcpSession.maxInputSize();
+
+            return size;
+        }
+
         /**
          * TCPSideListener
          */
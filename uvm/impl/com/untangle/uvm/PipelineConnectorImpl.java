@@ -13,6 +13,7 @@ import com.untangle.uvm.app.AppProperties;
 import com.untangle.uvm.vnet.PipelineConnector;
 import com.untangle.uvm.vnet.AppSession;
 import com.untangle.uvm.vnet.Fitting;
+import com.untangle.uvm.vnet.ReleaseBudget;
 import com.untangle.uvm.vnet.Subscription;
 import com.untangle.uvm.vnet.Affinity;
 import com.untangle.uvm.vnet.SessionEventHandler;
@@ -29,6 +30,8 @@ public class PipelineConnectorImpl implements PipelineConnector
 
     private boolean enabled = true;
 
+    private volatile ReleaseBudget releaseBudget = null;
+
     private final Dispatcher dispatcher;
     private final String name;
     private final App app;
@@ -104,6 +107,33 @@ public class PipelineConnectorImpl implements PipelineConnector
             dispatcher.setSessionEventHandler( listener );
     }
     
+    /**
+     * getSubscription
+     * @return the subscription (null if subscribed to all sessions)
+     */
+    public Subscription getSubscription()
+    {
+        return subscription;
+    }
+
+    /**
+     * getReleaseBudget
+     * @return the release budget (null if there is no budget)
+     */
+    public ReleaseBudget getReleaseBudget()
+    {
+        return releaseBudget;
+    }
+
+    /**
+     * setReleaseBudget - sessions are released from this connector by the dispatcher once they go over the budget
+     * @param budget - the budget, null for no budget
+     */
+    public void setReleaseBudget( ReleaseBudget budget )
+    {
+        this.releaseBudget = budget;
+    }
+
     /**
      * isEnabled
      * @return enabled
@@ -265,6 +295,8 @@ public class PipelineConnectorImpl implements PipelineConnector
 
         /* Remove all of the active sessions */
         activeSessions.clear();
+
+        PipelineProfiler.removeProfile(this);
     }
 
 
@@ -4,6 +4,7 @@
 package com.untangle.uvm;
 
 import java.net.InetSocketAddress;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Collections;
 import java.util.HashMap;
@@ -20,7 +21,10 @@ import com.untangle.uvm.app.SessionTuple;
 import com.untangle.uvm.app.App;
 import com.untangle.uvm.app.AppSettings;
 import com.untangle.uvm.app.PolicyManager;
+import com.untangle.uvm.app.IPMaskedAddress;
+import com.untangle.uvm.app.PortRange;
 import com.untangle.uvm.vnet.Affinity;
+import com.untangle.uvm.vnet.Protocol;
 import com.untangle.uvm.vnet.Subscription;
 
 import com.untangle.uvm.vnet.Fitting;
@@ -63,10 +67,11 @@ public class PipelineFoundryImpl implements PipelineFoundry
     private final Map<InetSocketAddress, Fitting> fittingHints = new ConcurrentHashMap<>();
 
     /**
-     * This stores a map from policyId to a cache for that policy storing the list of netcap connectors for various fitting types
+     * This stores a map from policyId to the compiled pipeline templates for that policy.
+     * The map and the templates are never modified once published, adding a template
+     * publishes a new copy (under the lock) so weld() can read them without locking.
      */
-    private static final Map<Integer, Map<Fitting, List<PipelineConnectorImpl>>> pipelineFoundryCache = new HashMap<>();
-    private static final Map<Integer, Map<Fitting, List<PipelineConnectorImpl>>> pipelineNonPremiumFoundryCache = new HashMap<>();
+    private volatile Map<Integer, PolicyTemplates> pipelineTemplates = Collections.emptyMap();
     
     /**
      * Private constructor to ensure singleton
@@ -85,6 +90,7 @@ public class PipelineFoundryImpl implements PipelineFoundry
     /**
      * "weld" is builds a list of all the interested pipelineAgents for a given session
      * It does so based on the given policyId and all the apps/apps given subscriptions.
+     * The pipelines are precompiled into templates, so this only allocates the result.
      * @param sessionId
      * @param sessionTuple
      * @param policyId
@@ -93,80 +99,81 @@ public class PipelineFoundryImpl implements PipelineFoundry
      */
     public List<PipelineConnectorImpl> weld( Long sessionId, SessionTuple sessionTuple, Integer policyId, boolean includePremium )
     {
-        Long t0 = System.nanoTime();
-        List<PipelineConnectorImpl> pipelineConnectorList = new LinkedList<>();
-        List<Fitting> fittings = new LinkedList<>();
+        long t0 = System.nanoTime();
+        short protocol = sessionTuple.getProtocol();
 
         /**
          * Check fittingHints for hints
          */
-        InetSocketAddress socketAddress = new InetSocketAddress( sessionTuple.getServerAddr(), sessionTuple.getServerPort() );
-        if ( fittingHints.containsKey( socketAddress )) {
-            Fitting hint = fittingHints.remove( socketAddress );
-            if ( hint != null )
-                fittings.add( 0, hint );
+        Fitting hint = null;
+        if ( ! fittingHints.isEmpty() ) {
+            InetSocketAddress socketAddress = new InetSocketAddress( sessionTuple.getServerAddr(), sessionTuple.getServerPort() );
+            hint = fittingHints.remove( socketAddress );
         }
 
         /**
          * Check for known ports and set fitting type accordingly
          */
-        if ( sessionTuple.getProtocol() == SessionTuple.PROTO_TCP ) {
+        Fitting portFitting = null;
+        if ( protocol == SessionTuple.PROTO_TCP ) {
             switch ( sessionTuple.getServerPort() ) {
             case 21:
-                if ( ! fittings.contains( Fitting.FTP_CTL_STREAM ) ) fittings.add( Fitting.FTP_CTL_STREAM );
+                portFitting = Fitting.FTP_CTL_STREAM;
                 break;
             case 25:
-                if ( ! fittings.contains( Fitting.SMTP_STREAM ) ) fittings.add( Fitting.SMTP_STREAM );
+                portFitting = Fitting.SMTP_STREAM;
                 break;
             case 80:
-                if ( ! fittings.contains( Fitting.HTTP_STREAM ) )  fittings.add( Fitting.HTTP_STREAM );
+                portFitting = Fitting.HTTP_STREAM;
                 break;
             case 443:
-                if ( ! fittings.contains( Fitting.HTTPS_STREAM ) ) fittings.add( Fitting.HTTPS_STREAM );
+                portFitting = Fitting.HTTPS_STREAM;
                 break;
             default:
                 break;
             }
         }
+        if ( portFitting == hint ) portFitting = null;
 
         /**
          * All sessions are OCTET stream, add it if it isn't already there
          */
-        if ( ! fittings.contains( Fitting.OCTET_STREAM ) ) fittings.add( Fitting.OCTET_STREAM );
+        Fitting octetFitting = ( hint == Fitting.OCTET_STREAM ? null : Fitting.OCTET_STREAM );
 
         long ct0 = System.nanoTime();
-        for ( Fitting fitting : fittings ) {
-            List<PipelineConnectorImpl> acList = weldPipeline( sessionTuple, policyId, fitting, includePremium );
-            pipelineConnectorList.addAll( acList );
-        }
+        PipelineTemplate hintTemplate = ( hint == null ? null : template( policyId, hint, protocol, includePremium ) );
+        PipelineTemplate portTemplate = ( portFitting == null ? null : template( policyId, portFitting, protocol, includePremium ) );
+        PipelineTemplate octetTemplate = ( octetFitting == null ? null : template( policyId, octetFitting, protocol, includePremium ) );
         long ct1 = System.nanoTime();
 
         /**
-         * We now have a list of given pipelineConnectors for that policyId & fitting,
+         * We now have the pipelineConnectors for that policyId & fittings,
          * However, not all pipelineConnectors are interested in this traffic
-         * We now iterate through each and remove ones that are not interested
+         * Count the interested ones, then copy them into the result
          */
         long ft0 = System.nanoTime();
-        String appList = "apps: [ ";
-        for (Iterator<PipelineConnectorImpl> i = pipelineConnectorList.iterator(); i.hasNext();) {
-            PipelineConnectorImpl pipelineConnector = i.next();
-
-            /**
-             * Check that this netcap connector actually is interested in this session
-             */
-            if ( ! pipelineConnector.matches(sessionTuple) ) {
-                // remove from pipelineConnectorList
-                i.remove(); 
-            } else {
-                // keep in pipelineConnectorList
-                appList += pipelineConnector.getName() + " ";
-            }
-        }
-        appList += "]";
+        int count = 0;
+        if ( hintTemplate != null ) count += hintTemplate.count( sessionTuple );
+        if ( portTemplate != null ) count += portTemplate.count( sessionTuple );
+        if ( octetTemplate != null ) count += octetTemplate.count( sessionTuple );
+
+        PipelineConnectorImpl[] result = new PipelineConnectorImpl[count];
+        int pos = 0;
+        if ( hintTemplate != null ) pos = hintTemplate.copy( sessionTuple, result, pos );
+        if ( portTemplate != null ) pos = portTemplate.copy( sessionTuple, result, pos );
+        if ( octetTemplate != null ) pos = octetTemplate.copy( sessionTuple, result, pos );
+
+        /* A connector was disabled between the passes */
+        if ( pos < count ) result = Arrays.copyOf( result, pos );
         long ft1 = System.nanoTime();
 
-        Long t1 = System.nanoTime();
         if (logger.isDebugEnabled()) {
+            String appList = "apps: [ ";
+            for ( PipelineConnectorImpl pipelineConnector : result )
+                appList += pipelineConnector.getName() + " ";
+            appList += "]";
+
+            long t1 = System.nanoTime();
             logger.debug("session_id: " + sessionId +
                          " policyId: " + policyId + " " +
                          appList );
@@ -176,7 +183,7 @@ public class PipelineFoundryImpl implements PipelineFoundry
                          " filter time: " + (ft1 - ft0));
         }
 
-        return pipelineConnectorList;
+        return Arrays.asList( result );
     }
 
     /**
@@ -261,77 +268,69 @@ public class PipelineFoundryImpl implements PipelineFoundry
     public synchronized void clearCache()
     {
         logger.debug("Clearing Pipeline Foundry cache...");
-        pipelineFoundryCache.clear();
-        pipelineNonPremiumFoundryCache.clear();
+        pipelineTemplates = Collections.emptyMap();
     }
 
     /**
-     * This creates a full pipeline for the given policyId and fitting.
-     * It also maintains a cache to memoize results
-     * @param sessionTuple
+     * Get the pipeline template for the given policyId, fitting, protocol and premium.
+     * Templates are compiled the first time they are used
      * @param policyId
      * @param fitting
+     * @param protocol
      * @param includePremium
-     * @return list
+     * @return template
      */
-    private List<PipelineConnectorImpl> weldPipeline( SessionTuple sessionTuple, Integer policyId, Fitting fitting, boolean includePremium )
+    private PipelineTemplate template( Integer policyId, Fitting fitting, short protocol, boolean includePremium )
     {
-        List<PipelineConnectorImpl> pipelineConnectorList = null;
-        Map<Integer, Map<Fitting, List<PipelineConnectorImpl>>> cache;
+        PolicyTemplates policyTemplates = pipelineTemplates.get( policyId );
 
-        if (includePremium)
-            cache = pipelineFoundryCache;
-        else
-            cache = pipelineNonPremiumFoundryCache;
-        /**
-         * Check if there is a cache for this policy. First time is without the lock
-         */
-        Map<Fitting, List<PipelineConnectorImpl>> fittingCache = cache.get(policyId);
+        if ( policyTemplates != null ) {
+            PipelineTemplate template = policyTemplates.get( fitting, protocol, includePremium );
+            if ( template != null ) return template;
+        }
 
-        /**
-         * If there is a cache, check if the acList exists for this fitting
-         */
-        if ( fittingCache != null ) {
-            pipelineConnectorList = fittingCache.get( fitting );
-        }
-
-        if ( pipelineConnectorList == null ) {
-            synchronized (this) {
-                /* Check if there is a cache again, after grabbing the lock */
-                fittingCache = cache.get( policyId );
-
-                if ( fittingCache == null ) {
-                    /* Cache doesn't exist, create a new empty cache for this policy */
-                    fittingCache = new HashMap<>();
-                    cache.put( policyId, fittingCache );
-                } else {
-                    /* Cache exists, get the acList for this fitting */
-                    pipelineConnectorList = fittingCache.get( fitting );
-                }
+        return compileTemplate( policyId, fitting, protocol, includePremium );
+    }
 
-                /**
-                 * No previously stored result was found in the cache
-                 * We now need to calculate the correct result from scratch
-                 */
-                if ( pipelineConnectorList == null ) {
+    /**
+     * This creates a full pipeline for the given policyId and fitting, and compiles
+     * it into a template for the protocol and publishes it.
+     * @param policyId
+     * @param fitting
+     * @param protocol
+     * @param includePremium
+     * @return template
+     */
+    private synchronized PipelineTemplate compileTemplate( Integer policyId, Fitting fitting, short protocol, boolean includePremium )
+    {
+        /* Check again after grabbing the lock */
+        PolicyTemplates policyTemplates = pipelineTemplates.get( policyId );
+        if ( policyTemplates != null ) {
+            PipelineTemplate template = policyTemplates.get( fitting, protocol, includePremium );
+            if ( template != null ) return template;
+        }
 
-                    pipelineConnectorList = new LinkedList<>();
+        List<PipelineConnectorImpl> pipelineConnectorList = new LinkedList<>();
+        List<PipelineConnectorImpl> availablePipelineConnectorsApps = new LinkedList<>( this.pipelineConnectors );
 
-                    List<PipelineConnectorImpl> availablePipelineConnectorsApps = new LinkedList<>( this.pipelineConnectors );
+        removeUnnecessaryPipelineConnectors( policyId, availablePipelineConnectorsApps, includePremium );
+        printPipelineConnectorList( "available connectors: ", availablePipelineConnectorsApps );
 
-                    removeUnnecessaryPipelineConnectors( policyId, availablePipelineConnectorsApps, includePremium );
-                    printPipelineConnectorList( "available connectors: ", availablePipelineConnectorsApps );
+        addPipelineConnectors( pipelineConnectorList,
+                               availablePipelineConnectorsApps,
+                               fitting, policyId );
 
-                    addPipelineConnectors( pipelineConnectorList,
-                                           availablePipelineConnectorsApps,
-                                           fitting, policyId );
+        PipelineTemplate template = new PipelineTemplate( pipelineConnectorList, protocol );
 
-                    fittingCache.put( fitting, pipelineConnectorList );
-                }
-            }
-        }
+        /* Publish copies, the current ones may be in use by weld() */
+        PolicyTemplates newPolicyTemplates = ( policyTemplates == null ? new PolicyTemplates() : policyTemplates.copy() );
+        newPolicyTemplates.set( fitting, protocol, includePremium, template );
 
-        return pipelineConnectorList;
+        Map<Integer, PolicyTemplates> newPipelineTemplates = new HashMap<>( pipelineTemplates );
+        newPipelineTemplates.put( policyId, newPolicyTemplates );
+        pipelineTemplates = newPipelineTemplates;
+
+        return template;
     }
 
     /**
@@ -651,6 +650,181 @@ public class PipelineFoundryImpl implements PipelineFoundry
         }
     }
 
+    /**
+     * A precompiled pipeline for a policy, fitting, protocol and premium.
+     * Connectors whose subscription can never match the protocol are left out,
+     * and connectors whose subscription matches every session of the protocol
+     * don't have a matcher.
+     */
+    private static class PipelineTemplate
+    {
+        private final PipelineConnectorImpl[] connectors;
+        private final Subscription[] matchers;
+
+        /**
+         * PipelineTemplate
+         * @param pipelineConnectorList - the full pipeline for the fitting
+         * @param protocol - the protocol of the sessions using this template
+         */
+        PipelineTemplate( List<PipelineConnectorImpl> pipelineConnectorList, short protocol )
+        {
+            List<PipelineConnectorImpl> connectorList = new LinkedList<>();
+            List<Subscription> matcherList = new LinkedList<>();
+
+            for ( PipelineConnectorImpl pipelineConnector : pipelineConnectorList ) {
+                Subscription subscription = pipelineConnector.getSubscription();
+
+                if ( subscription == null ) {
+                    connectorList.add( pipelineConnector );
+                    matcherList.add( null );
+                    continue;
+                }
+
+                /* Unsupported protocols never match a subscription */
+                if ( protocol == SessionTuple.PROTO_TCP && subscription.getProtocol() != Protocol.TCP )
+                    continue;
+                if ( protocol == SessionTuple.PROTO_UDP && subscription.getProtocol() != Protocol.UDP )
+                    continue;
+                if ( protocol != SessionTuple.PROTO_TCP && protocol != SessionTuple.PROTO_UDP )
+                    continue;
+
+                boolean matchesAll = ( IPMaskedAddress.anyAddr.equals( subscription.getClientAddress() ) &&
+                                       IPMaskedAddress.anyAddr.equals( subscription.getServerAddress() ) &&
+                                       PortRange.ANY.equals( subscription.getClientRange() ) &&
+                                       PortRange.ANY.equals( subscription.getServerRange() ) );
+
+                connectorList.add( pipelineConnector );
+                matcherList.add( matchesAll ? null : subscription );
+            }
+
+            this.connectors = connectorList.toArray( new PipelineConnectorImpl[connectorList.size()] );
+            this.matchers = matcherList.toArray( new Subscription[matcherList.size()] );
+        }
+
+        /**
+         * Test if a connector in the template is interested in a session
+         * @param i - the index of the connector
+         * @param sessionTuple
+         * @return true if interested
+         */
+        private boolean matches( int i, SessionTuple sessionTuple )
+        {
+            if ( ! connectors[i].isEnabled() )
+                return false;
+
+            return ( matchers[i] == null || matchers[i].matches( sessionTuple ) );
+        }
+
+        /**
+         * Count the connectors interested in a session
+         * @param sessionTuple
+         * @return count
+         */
+        int count( SessionTuple sessionTuple )
+        {
+            int count = 0;
+            for ( int i = 0 ; i < connectors.length ; i++ ) {
+                if ( matches( i, sessionTuple ) ) count++;
+            }
+            return count;
+        }
+
+        /**
+         * Copy the connectors interested in a session to an array
+         * @param sessionTuple
+         * @param result - the array
+         * @param pos - the position in the array to start at
+         * @return the position after the last connector copied
+         */
+        int copy( SessionTuple sessionTuple, PipelineConnectorImpl[] result, int pos )
+        {
+            for ( int i = 0 ; i < connectors.length && pos < result.length ; i++ ) {
+                if ( matches( i, sessionTuple ) ) result[pos++] = connectors[i];
+            }
+            return pos;
+        }
+    }
+
+    /**
+     * The pipeline templates for a policy, indexed by premium, protocol and fitting
+     */
+    private static class PolicyTemplates
+    {
+        private static final int NUM_PROTOCOLS = 3; /* TCP, UDP, other */
+        private static final int NUM_FITTINGS = Fitting.values().length;
+
+        private final PipelineTemplate[] templates;
+
+        /**
+         * PolicyTemplates
+         */
+        PolicyTemplates()
+        {
+            this.templates = new PipelineTemplate[2 * NUM_PROTOCOLS * NUM_FITTINGS];
+        }
+
+        /**
+         * PolicyTemplates
+         * @param templates
+         */
+        private PolicyTemplates( PipelineTemplate[] templates )
+        {
+            this.templates = templates;
+        }
+
+        /**
+         * copy
+         * @return a copy of the templates
+         */
+        PolicyTemplates copy()
+        {
+            return new PolicyTemplates( templates.clone() );
+        }
+
+        /**
+         * get
+         * @param fitting
+         * @param protocol
+         * @param includePremium
+         * @return the template or null if it hasn't been compiled
+         */
+        PipelineTemplate get( Fitting fitting, short protocol, boolean includePremium )
+        {
+            return templates[index( fitting, protocol, includePremium )];
+        }
+
+        /**
+         * set - only used before the templates are published
+         * @param fitting
+         * @param protocol
+         * @param includePremium
+         * @param template
+         */
+        void set( Fitting fitting, short protocol, boolean includePremium, PipelineTemplate template )
+        {
+            templates[index( fitting, protocol, includePremium )] = template;
+        }
+
+        /**
+         * index
+         * @param fitting
+         * @param protocol
+         * @param includePremium
+         * @return the index of the template
+         */
+        private static int index( Fitting fitting, short protocol, boolean includePremium )
+        {
+            int protocolIndex;
+            switch ( protocol ) {
+            case SessionTuple.PROTO_TCP: protocolIndex = 0; break;
+            case SessionTuple.PROTO_UDP: protocolIndex = 1; break;
+            default: protocolIndex = 2; break;
+            }
+
+            return ( ( includePremium ? 1 : 0 ) * NUM_PROTOCOLS + protocolIndex ) * NUM_FITTINGS + fitting.ordinal();
+        }
+    }
+
     /**
      * PipelineConnectorComparator sorts the PipelienConnectors into the correct order
      * to process a session
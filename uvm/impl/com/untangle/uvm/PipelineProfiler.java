@@ -0,0 +1,414 @@
+/**
+ * $Id$
+ */
+
+package com.untangle.uvm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.untangle.uvm.app.AppBase;
+
+/**
+ * The pipeline profiler tracks how long each app (PipelineConnector) spends
+ * handling the chunks and packets of its sessions, and how many bytes it
+ * processed.
+ *
+ * Chunks and bytes are counted for every event, the handler time is only
+ * measured for a sample of the events (1 in uvm.pipeline.profiler.sample, 16
+ * by default) so the profiler is cheap enough to leave on. The slowest sampled
+ * events of each app are kept with their session IDs.
+ */
+public class PipelineProfiler
+{
+    private static final Logger logger = Logger.getLogger(PipelineProfiler.class);
+
+    private static final int SAMPLE_RATE = Math.max(1, Integer.getInteger("uvm.pipeline.profiler.sample", 16));
+
+    /* Number of slowest sessions kept per app and returned overall */
+    private static final int TOP_SESSIONS = 10;
+
+    private static final Map<PipelineConnectorImpl, Profile> profiles = new ConcurrentHashMap<>();
+
+    /**
+     * Not instantiable
+     */
+    private PipelineProfiler()
+    {
+    }
+
+    /**
+     * Get the profile for a pipeline connector, creating it if necessary
+     *
+     * @param pipelineConnector
+     *        The pipeline connector
+     * @return The profile
+     */
+    public static Profile getProfile(PipelineConnectorImpl pipelineConnector)
+    {
+        return profiles.computeIfAbsent(pipelineConnector, Profile::new);
+    }
+
+    /**
+     * Stop tracking a pipeline connector
+     *
+     * @param pipelineConnector
+     *        The pipeline connector
+     */
+    public static void removeProfile(PipelineConnectorImpl pipelineConnector)
+    {
+        profiles.remove(pipelineConnector);
+    }
+
+    /**
+     * Decide if an event should be timed
+     *
+     * @return True if the event should be timed
+     */
+    public static boolean sample()
+    {
+        return SAMPLE_RATE == 1 || ThreadLocalRandom.current().nextInt(SAMPLE_RATE) == 0;
+    }
+
+    /**
+     * Clear all of the profiles
+     */
+    public static void reset()
+    {
+        for (Profile profile : profiles.values())
+            profile.reset();
+    }
+
+    /**
+     * Get the profiler view: the stats of each app, the totals of each policy,
+     * and the slowest sessions
+     *
+     * @return The profiler view
+     */
+    public static JSONObject toJSON()
+    {
+        JSONObject json = new JSONObject();
+
+        try {
+            JSONArray apps = new JSONArray();
+            Map<String, long[]> policyTotals = new HashMap<>();
+            List<SlowSession> slowest = new ArrayList<>();
+
+            for (Profile profile : profiles.values()) {
+                apps.put(profile.toJSON());
+
+                String policy = profile.getPolicyName();
+                long[] totals = policyTotals.get(policy);
+                if (totals == null) {
+                    totals = new long[3];
+                    policyTotals.put(policy, totals);
+                }
+                totals[0] += profile.chunks.sum();
+                totals[1] += profile.bytes.sum();
+                totals[2] += profile.estimatedHandlerNanos();
+
+                slowest.addAll(profile.getSlowSessions());
+            }
+
+            JSONObject policies = new JSONObject();
+            for (Map.Entry<String, long[]> entry : policyTotals.entrySet()) {
+                long[] totals = entry.getValue();
+                JSONObject policy = new JSONObject();
+                policy.put("chunks", totals[0]);
+                policy.put("bytes", totals[1]);
+                policy.put("handlerMillis", totals[2] / 1000000.0);
+                policy.put("throughputMBps", throughput(totals[1], totals[2]));
+                policies.put(entry.getKey(), policy);
+            }
+
+            Collections.sort(slowest, SlowSession.SLOWEST_FIRST);
+            JSONArray sessions = new JSONArray();
+            for (int i = 0; i < slowest.size() && i < TOP_SESSIONS; i++)
+                sessions.put(slowest.get(i).toJSON());
+
+            json.put("sampleRate", SAMPLE_RATE);
+            json.put("apps", apps);
+            json.put("policies", policies);
+            json.put("slowestSessions", sessions);
+        } catch (Exception e) {
+            logger.warn("Error generating pipeline profile", e);
+        }
+
+        return json;
+    }
+
+    /**
+     * Calculate the throughput of the handlers
+     *
+     * @param bytes
+     *        The bytes processed
+     * @param nanos
+     *        The time spent processing them
+     * @return The throughput in MB/s, 0 if unknown
+     */
+    private static double throughput(long bytes, long nanos)
+    {
+        if (nanos <= 0) return 0;
+        return (bytes / 1000000.0) / (nanos / 1000000000.0);
+    }
+
+    /**
+     * The profile of a single pipeline connector
+     */
+    public static class Profile
+    {
+        private final PipelineConnectorImpl pipelineConnector;
+
+        private final LongAdder chunks = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final LatencyHistogram handlerTime = new LatencyHistogram();
+
+        /* Slowest sampled events, sorted slowest first. Only locked to add a new entry */
+        private final SlowSession[] slowSessions = new SlowSession[TOP_SESSIONS];
+        private int slowSessionCount = 0;
+        private volatile long slowSessionThreshold = 0;
+
+        /**
+         * Constructor
+         *
+         * @param pipelineConnector
+         *        The pipeline connector
+         */
+        private Profile(PipelineConnectorImpl pipelineConnector)
+        {
+            this.pipelineConnector = pipelineConnector;
+        }
+
+        /**
+         * Count an event
+         *
+         * @param size
+         *        The number of bytes in the event
+         */
+        public void count(int size)
+        {
+            chunks.increment();
+            if (size > 0) bytes.add(size);
+        }
+
+        /**
+         * Record the handler time of a sampled event
+         *
+         * @param sessionId
+         *        The session ID
+         * @param nanos
+         *        The time spent in the handler
+         * @param size
+         *        The number of bytes in the event
+         */
+        public void record(long sessionId, long nanos, int size)
+        {
+            handlerTime.record(nanos);
+
+            if (nanos <= slowSessionThreshold) return;
+
+            synchronized (slowSessions) {
+                /* Update the existing entry for this session */
+                for (int i = 0; i < slowSessionCount; i++) {
+                    if (slowSessions[i].sessionId == sessionId) {
+                        if (nanos <= slowSessions[i].nanos) return;
+                        slowSessions[i] = new SlowSession(this, sessionId, nanos, size);
+                        sortSlowSessions();
+                        return;
+                    }
+                }
+
+                if (slowSessionCount < TOP_SESSIONS) {
+                    slowSessions[slowSessionCount++] = new SlowSession(this, sessionId, nanos, size);
+                } else if (nanos > slowSessions[TOP_SESSIONS - 1].nanos) {
+                    slowSessions[TOP_SESSIONS - 1] = new SlowSession(this, sessionId, nanos, size);
+                } else {
+                    return;
+                }
+
+                sortSlowSessions();
+            }
+        }
+
+        /**
+         * Sort the slowest sessions and update the threshold for new entries.
+         * Must hold the slowSessions lock.
+         */
+        private void sortSlowSessions()
+        {
+            Arrays.sort(slowSessions, 0, slowSessionCount, SlowSession.SLOWEST_FIRST);
+            if (slowSessionCount == TOP_SESSIONS) slowSessionThreshold = slowSessions[TOP_SESSIONS - 1].nanos;
+        }
+
+        /**
+         * Clear the profile
+         */
+        void reset()
+        {
+            chunks.reset();
+            bytes.reset();
+            handlerTime.reset();
+
+            synchronized (slowSessions) {
+                Arrays.fill(slowSessions, null);
+                slowSessionCount = 0;
+                slowSessionThreshold = 0;
+            }
+        }
+
+        /**
+         * Get the slowest sessions
+         *
+         * @return A copy of the slowest sessions
+         */
+        List<SlowSession> getSlowSessions()
+        {
+            synchronized (slowSessions) {
+                return new ArrayList<>(Arrays.asList(slowSessions).subList(0, slowSessionCount));
+            }
+        }
+
+        /**
+         * Estimate the total time spent in the handler from the samples
+         *
+         * @return The estimated time in nanoseconds
+         */
+        long estimatedHandlerNanos()
+        {
+            return handlerTime.getMeanNanos() * chunks.sum();
+        }
+
+        /**
+         * Get the name of the app
+         *
+         * @return The app name
+         */
+        String getAppName()
+        {
+            AppBase app = (AppBase) pipelineConnector.app();
+            if (app == null || app.getAppProperties() == null) return pipelineConnector.getName();
+            return app.getAppProperties().getName();
+        }
+
+        /**
+         * Get the name of the policy of the app
+         *
+         * @return The policy ID, or "none" for services
+         */
+        String getPolicyName()
+        {
+            AppBase app = (AppBase) pipelineConnector.app();
+            Integer policyId = (app == null || app.getAppSettings() == null) ? null : app.getAppSettings().getPolicyId();
+            return (policyId == null ? "none" : policyId.toString());
+        }
+
+        /**
+         * Get the stats of the app
+         *
+         * @return The stats
+         * @throws Exception
+         */
+        JSONObject toJSON() throws Exception
+        {
+            JSONObject json = new JSONObject();
+            long[] values = handlerTime.getValuesAtPercentiles(50, 90, 99);
+            long chunkCount = chunks.sum();
+            long byteCount = bytes.sum();
+
+            json.put("app", getAppName());
+            json.put("connector", pipelineConnector.getName());
+            json.put("policyId", getPolicyName());
+            json.put("chunks", chunkCount);
+            json.put("bytes", byteCount);
+            json.put("samples", handlerTime.getCount());
+            json.put("meanMicros", handlerTime.getMeanNanos() / 1000.0);
+            json.put("p50Micros", values[0] / 1000.0);
+            json.put("p90Micros", values[1] / 1000.0);
+            json.put("p99Micros", values[2] / 1000.0);
+            json.put("maxMicros", handlerTime.getMaxNanos() / 1000.0);
+            json.put("throughputMBps", throughput(byteCount, estimatedHandlerNanos()));
+
+            return json;
+        }
+    }
+
+    /**
+     * A slow event
+     */
+    private static class SlowSession
+    {
+        static final Comparator<SlowSession> SLOWEST_FIRST = new Comparator<SlowSession>()
+        {
+            /**
+             * Compare two slow sessions
+             *
+             * @param a
+             *        The first session
+             * @param b
+             *        The second session
+             * @return Negative if a is slower than b
+             */
+            public int compare(SlowSession a, SlowSession b)
+            {
+                return Long.compare(b.nanos, a.nanos);
+            }
+        };
+
+        final Profile profile;
+        final long sessionId;
+        final long nanos;
+        final int size;
+        final long timeStamp;
+
+        /**
+         * Constructor
+         *
+         * @param profile
+         *        The profile of the app
+         * @param sessionId
+         *        The session ID
+         * @param nanos
+         *        The handler time
+         * @param size
+         *        The number of bytes in the event
+         */
+        SlowSession(Profile profile, long sessionId, long nanos, int size)
+        {
+            this.profile = profile;
+            this.sessionId = sessionId;
+            this.nanos = nanos;
+            this.size = size;
+            this.timeStamp = System.currentTimeMillis();
+        }
+
+        /**
+         * Get the JSON representation
+         *
+         * @return The JSON object
+         * @throws Exception
+         */
+        JSONObject toJSON() throws Exception
+        {
+            JSONObject json = new JSONObject();
+            json.put("sessionId", sessionId);
+            json.put("app", profile.getAppName());
+            json.put("policyId", profile.getPolicyName());
+            json.put("handlerMicros", nanos / 1000.0);
+            json.put("bytes", size);
+            json.put("timeStamp", timeStamp);
+            return json;
+        }
+    }
+}
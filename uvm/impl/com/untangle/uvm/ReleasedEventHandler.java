@@ -24,4 +24,15 @@ class ReleasedEventHandler extends AbstractEventHandler
     {
         super(app);
     }
+
+    /**
+     * The default handlers only send the chunks along
+     * 
+     * @return true
+     */
+    @Override
+    public boolean releasesTCPChunks()
+    {
+        return true;
+    }
 }
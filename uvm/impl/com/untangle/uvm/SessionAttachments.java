@@ -0,0 +1,99 @@
+/**
+ * $Id$
+ */
+
+package com.untangle.uvm;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.untangle.uvm.vnet.AttachmentKey;
+
+/**
+ * The attachments of a session, stored in an array indexed by the slot of
+ * their AttachmentKey.
+ *
+ * The array is only allocated on the first attach and only grows to the
+ * highest slot used, so sessions without attachments cost nothing. Like the
+ * HashMap it replaces this is not synchronized, a session's attachments are
+ * only changed by the threads handling that session.
+ */
+class SessionAttachments
+{
+    private static final Object[] EMPTY = new Object[0];
+
+    private Object[] values = EMPTY;
+
+    /**
+     * Attach a value
+     *
+     * @param slot
+     *        The slot of the key
+     * @param value
+     *        The value, null removes the attachment
+     * @return The previous value, or null
+     */
+    Object put(int slot, Object value)
+    {
+        Object[] current = values;
+
+        if (slot >= current.length) {
+            if (value == null) return null;
+            current = Arrays.copyOf(current, Math.max(slot + 1, AttachmentKey.slotCount()));
+            values = current;
+        }
+
+        Object old = current[slot];
+        current[slot] = value;
+        return old;
+    }
+
+    /**
+     * Get a value
+     *
+     * @param slot
+     *        The slot of the key
+     * @return The value, or null
+     */
+    Object get(int slot)
+    {
+        Object[] current = values;
+        if (slot >= current.length) return null;
+        return current[slot];
+    }
+
+    /**
+     * Copy all of the attachments into another set of attachments
+     *
+     * @param other
+     *        The attachments to copy into
+     */
+    void copyTo(SessionAttachments other)
+    {
+        Object[] current = values;
+        for (int slot = 0; slot < current.length; slot++) {
+            if (current[slot] != null) other.put(slot, current[slot]);
+        }
+    }
+
+    /**
+     * Get a map of the attachments by name. This is a copy, changing it
+     * doesn't change the attachments. The internal attachments of the UVM
+     * (see AttachmentKey.registerInternal) are not included.
+     *
+     * @return The map
+     */
+    Map<String, Object> toMap()
+    {
+        Object[] current = values;
+        Map<String, Object> map = new HashMap<>();
+
+        for (int slot = 0; slot < current.length; slot++) {
+            Object value = current[slot];
+            if (value != null && !AttachmentKey.isInternal(slot)) map.put(AttachmentKey.slotName(slot), value);
+        }
+
+        return map;
+    }
+}
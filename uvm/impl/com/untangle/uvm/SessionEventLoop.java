@@ -0,0 +1,293 @@
+/**
+ * $Id$
+ */
+package com.untangle.uvm;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.untangle.jvector.Vector;
+import com.untangle.jvector.VectorSelector;
+
+/**
+ * SessionEventLoop runs the vectors of many sessions on a fixed set of worker threads.
+ *
+ * Normally each session thread blocks in Vector.vector() until the session is done.
+ * When uvm.session.eventloop is set the session thread only sets up the session, then
+ * hands the started vector to the worker that owns the session (selected by session id).
+ * All of the events for a session are handled on the same worker, so the
+ * SessionEventHandler callbacks for a session are still never called concurrently.
+ */
+public class SessionEventLoop
+{
+    private static final Logger logger = Logger.getLogger( SessionEventLoop.class );
+
+    private static final boolean ENABLED = ( System.getProperty( "uvm.session.eventloop" ) != null );
+
+    /* Maximum number of ready vectors handled per select */
+    private static final int MAX_READY = 256;
+
+    /* How often (in msec) the workers check for vectors that have timed out */
+    private static final int EXPIRE_INTERVAL = 250;
+
+    private static SessionEventLoop INSTANCE = null;
+
+    private final Worker[] workers;
+    private final AtomicInteger sessionCount = new AtomicInteger( 0 );
+    private final int sessionLimit;
+
+    /**
+     * SessionEventLoop
+     * @param numWorkers - number of worker threads
+     * @param sessionLimit - maximum number of sessions, 0 for no limit
+     */
+    private SessionEventLoop( int numWorkers, int sessionLimit )
+    {
+        this.sessionLimit = sessionLimit;
+        this.workers = new Worker[numWorkers];
+
+        for ( int c = 0 ; c < numWorkers ; c++ ) {
+            workers[c] = new Worker();
+            UvmContextFactory.context().newThread( workers[c], "SessionEventLoop-" + c ).start();
+        }
+
+        logger.info( "Started " + numWorkers + " session event loop workers (session limit: " + sessionLimit + ")" );
+    }
+
+    /**
+     * isEnabled
+     * @return true if sessions should be run on the event loop
+     */
+    public static boolean isEnabled()
+    {
+        return ENABLED;
+    }
+
+    /**
+     * Get the SessionEventLoop singleton, the workers are started on first use
+     * @return SessionEventLoop
+     */
+    public static synchronized SessionEventLoop getInstance()
+    {
+        if ( INSTANCE == null ) {
+            int numWorkers = Integer.getInteger( "uvm.session.eventloop.threads", Runtime.getRuntime().availableProcessors());
+            int sessionLimit = Integer.getInteger( "netcap.sessionlimit", 0 );
+
+            INSTANCE = new SessionEventLoop( Math.max( 1, numWorkers ), sessionLimit );
+        }
+
+        return INSTANCE;
+    }
+
+    /**
+     * Hand a session to the event loop, the vector must already be started.
+     * The worker calls NetcapHook.vectorFinished() once the vector is done.
+     * @param hook - the hook of the session
+     */
+    public void register( NetcapHook hook )
+    {
+        long sessionId = hook.sessionGlobalState.id();
+
+        sessionCount.incrementAndGet();
+        workers[Math.floorMod( Long.hashCode( sessionId ), workers.length )].add( hook );
+    }
+
+    /**
+     * getSessionCount
+     * @return the number of sessions currently running on the event loop
+     */
+    public int getSessionCount()
+    {
+        return sessionCount.get();
+    }
+
+    /**
+     * isFull
+     * @return true if the event loop is at the session limit
+     */
+    public boolean isFull()
+    {
+        return ( sessionLimit > 0 && sessionCount.get() >= sessionLimit );
+    }
+
+    /**
+     * A worker owns a selector and all of the sessions registered with it.
+     */
+    private class Worker implements Runnable
+    {
+        private final VectorSelector selector = new VectorSelector();
+        private final ConcurrentLinkedQueue<NetcapHook> pending = new ConcurrentLinkedQueue<>();
+        private final Map<Long,Entry> sessions = new HashMap<>();
+        private final long[] ready = new long[MAX_READY];
+
+        private long nextExpireCheck = 0;
+
+        /**
+         * Queue a session for this worker
+         * @param hook
+         */
+        void add( NetcapHook hook )
+        {
+            pending.add( hook );
+            selector.wakeup();
+        }
+
+        /**
+         * Worker loop
+         */
+        public void run()
+        {
+            Thread.currentThread().setContextClassLoader( getClass().getClassLoader() );
+
+            while ( true ) {
+                try {
+                    addPending();
+
+                    int count = selector.select( ready, sessions.isEmpty() ? -1 : EXPIRE_INTERVAL );
+                    long now = System.currentTimeMillis();
+
+                    for ( int c = 0 ; c < count ; c++ ) {
+                        Entry entry = sessions.get( ready[c] );
+                        if ( entry != null ) poll( entry, now );
+                    }
+
+                    if ( now >= nextExpireCheck ) {
+                        expire( now );
+                        nextExpireCheck = now + EXPIRE_INTERVAL;
+                    }
+                } catch ( Exception e ) {
+                    logger.error( "Exception in session event loop", e );
+                }
+            }
+        }
+
+        /**
+         * Register all of the queued sessions with the selector
+         */
+        private void addPending()
+        {
+            NetcapHook hook;
+
+            while (( hook = pending.poll()) != null ) {
+                Entry entry = new Entry( hook, System.currentTimeMillis());
+
+                try {
+                    selector.register( hook.getVector(), entry.sessionId );
+                    sessions.put( entry.sessionId, entry );
+                } catch ( Exception e ) {
+                    logger.warn( "Unable to register session " + entry.sessionId + " with the event loop", e );
+                    finish( entry );
+                }
+            }
+        }
+
+        /**
+         * Handle the ready events of a session
+         * @param entry
+         * @param now
+         */
+        private void poll( Entry entry, long now )
+        {
+            int ret;
+
+            try {
+                ret = entry.vector.poll();
+            } catch ( Exception e ) {
+                logger.error( "Exception inside netcap hook: " + entry.hook.sessionGlobalState, e );
+                unregister( entry );
+                entry.vector.stop();
+                ret = Vector.POLL_DONE;
+            }
+
+            switch ( ret ) {
+            case Vector.POLL_CONTINUE:
+                entry.lastActivity = now;
+                break;
+            case Vector.POLL_IDLE:
+                break;
+            default:
+                /* The vector already cleaned up (and closed its fd) */
+                sessions.remove( entry.sessionId );
+                finish( entry );
+            }
+        }
+
+        /**
+         * Stop all of the sessions that have been idle longer than their vector timeout
+         * @param now
+         */
+        private void expire( long now )
+        {
+            for ( Iterator<Entry> iter = sessions.values().iterator() ; iter.hasNext() ; ) {
+                Entry entry = iter.next();
+                int timeout = entry.vector.getTimeout();
+
+                if ( timeout < 0 || now - entry.lastActivity < timeout ) continue;
+
+                if ( logger.isDebugEnabled()) logger.debug( "Session timeout: " + entry.hook.sessionGlobalState );
+
+                iter.remove();
+                unregister( entry );
+                entry.vector.stop();
+                finish( entry );
+            }
+        }
+
+        /**
+         * Remove a running vector from the selector
+         * @param entry
+         */
+        private void unregister( Entry entry )
+        {
+            try {
+                selector.unregister( entry.vector );
+            } catch ( Exception e ) {
+                logger.warn( "Unable to unregister session " + entry.sessionId, e );
+            }
+        }
+
+        /**
+         * Finish a session whose vector is done
+         * @param entry
+         */
+        private void finish( Entry entry )
+        {
+            sessionCount.decrementAndGet();
+
+            try {
+                entry.hook.vectorFinished();
+            } catch ( Exception e ) {
+                logger.error( "Exception finishing session " + entry.sessionId, e );
+            }
+        }
+    }
+
+    /**
+     * A session running on a worker
+     */
+    private static class Entry
+    {
+        final NetcapHook hook;
+        final Vector vector;
+        final long sessionId;
+        long lastActivity;
+
+        /**
+         * Entry
+         * @param hook
+         * @param now
+         */
+        Entry( NetcapHook hook, long now )
+        {
+            this.hook = hook;
+            this.vector = hook.getVector();
+            this.sessionId = hook.sessionGlobalState.id();
+            this.lastActivity = now;
+        }
+    }
+}
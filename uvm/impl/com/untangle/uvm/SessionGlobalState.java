@@ -17,6 +17,7 @@ import com.untangle.jnetcap.NetcapTCPSession;
 import com.untangle.jnetcap.NetcapUDPSession;
 import com.untangle.uvm.app.SessionEvent;
 import com.untangle.uvm.app.SessionTuple;
+import com.untangle.uvm.vnet.AttachmentKey;
 
 /**
  * This stores the global system-wide state for a given session
@@ -55,7 +56,7 @@ public class SessionGlobalState
      * This is the global list of attachments for this session
      * It is used by various parts of the platform and apps to store metadata about the session
      */
-    protected HashMap<String,Object> stringAttachments;
+    protected final SessionAttachments attachments = new SessionAttachments();
 
     /**
      * Stores a list of the original agents/pipelinespecs processing this session
@@ -84,8 +85,6 @@ public class SessionGlobalState
 
         this.clientSideListener = clientSideListener;
         this.serverSideListener = serverSideListener;
-
-        this.stringAttachments = new HashMap<>();
     }
 
     /**
@@ -491,8 +490,20 @@ public class SessionGlobalState
      */
     public Object attach(String key, Object attachment)
     {
-        logger.debug("globalAttach( " + key + " , " + attachment + " )");
-        return this.stringAttachments.put(key,attachment);
+        return attach(AttachmentKey.forName(key), attachment);
+    }
+
+    /**
+     * Attach an object with the specified typed key
+     * @param key
+     * @param attachment
+     * @return the previous attachment for this key
+     */
+    public Object attach(AttachmentKey<?> key, Object attachment)
+    {
+        if (logger.isDebugEnabled())
+            logger.debug("globalAttach( " + key + " , " + attachment + " )");
+        return this.attachments.put(key.slot(), attachment);
     }
 
     /**
@@ -502,16 +513,29 @@ public class SessionGlobalState
      */
     public Object attachment(String key)
     {
-        return this.stringAttachments.get(key);
+        AttachmentKey<Object> attachmentKey = AttachmentKey.lookup(key);
+        if (attachmentKey == null)
+            return null;
+        return this.attachments.get(attachmentKey.slot());
+    }
+
+    /**
+     * Get an attachment for the specified typed key
+     * @param key
+     * @return the obj (or null)
+     */
+    public Object attachment(AttachmentKey<?> key)
+    {
+        return this.attachments.get(key.slot());
     }
 
     /**
-     * getAttachments returns all attachments
+     * getAttachments returns a copy of all attachments
      * @return map of the string to objects
      */
     public Map<String,Object> getAttachments()
     {
-        return this.stringAttachments;
+        return this.attachments.toMap();
     }
 
     /**
@@ -5,9 +5,14 @@ package com.untangle.uvm;
 
 import java.util.List;
 import java.util.Map;
-import java.util.LinkedList;
-import java.util.Iterator;
+import java.util.Set;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import java.net.InetAddress;
 import java.io.BufferedReader;
 import java.io.FileReader;
@@ -19,6 +24,7 @@ import com.untangle.uvm.SessionMonitor;
 import com.untangle.uvm.UvmContext;
 import com.untangle.uvm.UvmContextFactory;
 import com.untangle.uvm.SessionMonitorEntry;
+import com.untangle.uvm.SessionMonitorPage;
 import com.untangle.uvm.app.App;
 import com.untangle.uvm.app.SessionTuple;
 import com.untangle.uvm.vnet.AppSession;
@@ -37,6 +43,8 @@ public class SessionMonitorImpl implements SessionMonitor
     public static final short PROTO_TCP = 6;
     public static final short PROTO_UDP = 17;
 
+    private static final int CONNTRACK_READ_BUFFER_SIZE = 64 * 1024;
+
     private static ExecManager execManager = null;
 
     UvmContext uvmContext;
@@ -71,175 +79,328 @@ public class SessionMonitorImpl implements SessionMonitor
      */
     public List<SessionMonitorEntry> getMergedSessions(long appId)
     {
-        List<SessionMonitorEntry> sessions = this._getConntrackSessionMonitorEntrys();
-        List<AppSession> appSessions = null;;
+        List<SessionMonitorEntry> sessions = new ArrayList<>();
+        Set<Long> appSessionIds = _getAppSessionIds(appId);
+
+        _streamMergedSessions( session -> {
+            if ( appSessionIds == null || appSessionIds.contains(session.getSessionId()) )
+                sessions.add(session);
+        });
+
+        return sessions;
+    }
+
+    /**
+     * This returns one page of the merged sessions (see getMergedSessions)
+     * Only the sessions that match the filters are counted, and only the rows of the page
+     * are kept while the conntrack table is read, so the UI can fetch just the rows it displays
+     * @param appId - only list sessions being processed by this app, 0 for all sessions
+     * @param host - only list sessions where the hostname contains this or where a client/server address starts with this, null for all
+     * @param policy - only list sessions in this policy ID, null for all
+     * @param sortField - totalKBps, clientKBps, serverKBps, creationTime, sessionId, hostname, username or policy, null for conntrack order
+     * @param ascending - the sort direction
+     * @param start - the index of the first row of the page
+     * @param limit - the number of rows of the page, 0 for all rows
+     * @return the page
+     */
+    public SessionMonitorPage querySessions(long appId, String host, String policy, String sortField, boolean ascending, int start, int limit)
+    {
+        if ( start < 0 || limit < 0 )
+            throw new IllegalArgumentException("Invalid page: " + start + " " + limit);
+
+        Set<Long> appSessionIds = _getAppSessionIds(appId);
+        String hostFilter = ( host == null || host.length() == 0 ) ? null : host.toLowerCase();
+        String policyFilter = ( policy == null || policy.length() == 0 ) ? null : policy;
+        Comparator<SessionMonitorEntry> order = _getSessionComparator(sortField, ascending);
+        int keep = ( limit == 0 ? Integer.MAX_VALUE : (int) Math.min( (long) start + limit, Integer.MAX_VALUE ));
+        int[] totalCount = new int[1];
 
+        /**
+         * Unsorted, the first rows are kept
+         * Sorted, the rows are kept in a heap in reverse order, so the head is the row that drops out next
+         */
+        List<SessionMonitorEntry> unsorted = new ArrayList<>();
+        PriorityQueue<SessionMonitorEntry> heap = ( order == null ? null : new PriorityQueue<>(11, order.reversed()) );
+
+        _streamMergedSessions( session -> {
+            if ( appSessionIds != null && !appSessionIds.contains(session.getSessionId()) )
+                return;
+            if ( policyFilter != null && !policyFilter.equals(session.getPolicy()) )
+                return;
+            if ( hostFilter != null && !_matchesHost(session, hostFilter) )
+                return;
+
+            totalCount[0]++;
+            if ( heap == null ) {
+                if ( unsorted.size() < keep )
+                    unsorted.add(session);
+            } else if ( heap.size() < keep ) {
+                heap.add(session);
+            } else if ( order.compare(session, heap.peek()) < 0 ) {
+                heap.poll();
+                heap.add(session);
+            }
+        });
+
+        List<SessionMonitorEntry> rows = unsorted;
+        if ( heap != null ) {
+            rows = new ArrayList<>(heap);
+            rows.sort(order);
+        }
+
+        List<SessionMonitorEntry> page = new ArrayList<>();
+        if ( start < rows.size() )
+            page.addAll(rows.subList(start, rows.size()));
+
+        return new SessionMonitorPage(totalCount[0], start, page);
+    }
+
+    /**
+     * Get the IDs of the live sessions of an app
+     * @param appId
+     * @return the session IDs, or null if appId is 0 or the app doesn't exist
+     */
+    private Set<Long> _getAppSessionIds(long appId)
+    {
         App app = null;
         if (appId > 0)
             app = UvmContextFactory.context().appManager().app(appId);
-        if (app != null)
-            appSessions = app.liveAppSessions();
+        if (app == null)
+            return null;
 
-        for (Iterator<SessionMonitorEntry> i = sessions.iterator(); i.hasNext(); ) {
-            SessionMonitorEntry session = i.next();
+        Set<Long> sessionIds = new HashSet<>();
+        for (AppSession appSession : app.liveAppSessions())
+            sessionIds.add(appSession.getSessionId());
+        return sessionIds;
+    }
 
-            session.setPolicy("");
-            if (session.getClientIntf() == null || session.getClientIntf() == 0 ) {
-                session.setClientIntf(Integer.valueOf(-1));
-            }
-            if ( session.getServerIntf() == null || session.getServerIntf() == 0 ) {
-                session.setServerIntf(Integer.valueOf(-1));
-            }
-            if ( session.getHostname() == null || session.getHostname().length() == 0 ) {
-                session.setHostname( SessionEvent.determineBestHostname( session.getPreNatClient(), session.getClientIntf(), session.getPostNatServer(), session.getServerIntf() ) );
-            }
-            session.setPriority(session.getQosPriority());
-
-            SessionTuple tuple = _makeTuple( session );
-            // find corresponding session in UVM
-            SessionGlobalState sessionState = SessionTableImpl.getInstance().lookupTuple(tuple);
-            ConntrackMonitorImpl.ConntrackEntryState conntrackState = ConntrackMonitorImpl.getInstance().lookupTuple(tuple);
-
-            if ( logger.isDebugEnabled() )
-                logger.debug("Lookup session table (" + tuple + ") -> " + sessionState);
-            if ( logger.isDebugEnabled() )
-                logger.debug("Lookup conntrack table (" + tuple + ") -> " + conntrackState);
-
-            if ( conntrackState != null ) {
-                session.setClientKBps( conntrackState.c2sRateBps/1000.0f );
-                session.setServerKBps( conntrackState.s2cRateBps/1000.0f );
-                session.setTotalKBps( conntrackState.totalRateBps/1000.0f );
-            }
+    /**
+     * Get the comparator for a sort field
+     * @param sortField
+     * @param ascending
+     * @return the comparator, or null for no sorting
+     */
+    private Comparator<SessionMonitorEntry> _getSessionComparator(String sortField, boolean ascending)
+    {
+        if ( sortField == null || sortField.length() == 0 )
+            return null;
 
-            if ( sessionState != null ) {
-                try {
-                    int priority = sessionState.netcapSession().clientQosMark();
-                    com.untangle.uvm.app.SessionTuple clientSide = sessionState.netcapHook().getClientSide();
-                    com.untangle.uvm.app.SessionTuple serverSide = sessionState.netcapHook().getServerSide();
-
-                    NetcapHook hook = sessionState.netcapHook();
-                    if (hook == null)
-                        continue;
-
-                    Integer policyId = hook.getPolicyId();
-                    if (policyId == null)
-                        session.setPolicy("");
-                    else
-                        session.setPolicy(policyId.toString());
-
-                    session.setSessionId(sessionState.id());
-                    session.setCreationTime(sessionState.getCreationTime());
-                    session.setPipeline(sessionState.getPipelineDescription());
-                    session.setBypassed(Boolean.FALSE);
-                    session.setClientIntf(new Integer(sessionState.getClientIntf()));
-                    session.setServerIntf(new Integer(sessionState.getServerIntf()));
-                    session.setHostname(sessionState.getSessionEvent().getHostname());
-                    session.setUsername(sessionState.getSessionEvent().getUsername());
-
-                    session.setClientCountry(sessionState.getSessionEvent().getClientCountry());
-                    session.setClientLatitude(sessionState.getSessionEvent().getClientLatitude());
-                    session.setClientLongitude(sessionState.getSessionEvent().getClientLongitude());
-
-                    session.setServerCountry(sessionState.getSessionEvent().getServerCountry());
-                    session.setServerLatitude(sessionState.getSessionEvent().getServerLatitude());
-                    session.setServerLongitude(sessionState.getSessionEvent().getServerLongitude());
-
-                    session.setTags(sessionState.getTags());
-                    session.setTagsString(sessionState.getTagsString());
-
-                    /**
-                     * The conntrack entry shows that this session has been redirect to the local host
-                     * We need to overwrite that with the correct info
-                     */
-                    session.setPostNatClient(serverSide.getClientAddr());
-                    session.setPostNatServer(serverSide.getServerAddr());
-                    session.setPostNatClientPort(serverSide.getClientPort());
-                    session.setPostNatServerPort(serverSide.getServerPort());
-
-                    /**
-                     * Only have one priority per session
-                     * Assume both client and server are the same
-                     */
-                    if (priority != 0)
-                        session.setPriority(priority);
-
-                    session.setAttachments(sessionState.getAttachments());
-                } catch (Exception e) {
-                    logger.warn("Exception while searching for session",e);
-                }
-            }
-            // else sessionState == null (no UVM session found)
-            else {
-                if ( session.getMark() != null ) {
-                    Integer mark = session.getMark();
-                    // if session was not explicitly bypassed hide it, but yet its not at layer 7, hide it.
-                    // This is so we don't show sessions that have been blocked or died at layer 7, but still exist in conntrack
-                    // Doing so is confusing because it would show up as "bypassed" when its actually already been blocked.
-                    if ((mark & 0x01000000) == 0) {
-                        logger.debug("Removing session from view (not scanned but no bypass mark): " + session);
-                        i.remove();
-                        continue;
-                    }
-                }
+        Comparator<SessionMonitorEntry> order;
+        switch ( sortField ) {
+        case "totalKBps":
+            order = Comparator.comparing(SessionMonitorEntry::getTotalKBps, Comparator.nullsFirst(Comparator.naturalOrder()));
+            break;
+        case "clientKBps":
+            order = Comparator.comparing(SessionMonitorEntry::getClientKBps, Comparator.nullsFirst(Comparator.naturalOrder()));
+            break;
+        case "serverKBps":
+            order = Comparator.comparing(SessionMonitorEntry::getServerKBps, Comparator.nullsFirst(Comparator.naturalOrder()));
+            break;
+        case "creationTime":
+            order = Comparator.comparing(SessionMonitorEntry::getCreationTime, Comparator.nullsFirst(Comparator.naturalOrder()));
+            break;
+        case "sessionId":
+            order = Comparator.comparing(SessionMonitorEntry::getSessionId, Comparator.nullsFirst(Comparator.naturalOrder()));
+            break;
+        case "hostname":
+            order = Comparator.comparing(SessionMonitorEntry::getHostname, Comparator.nullsFirst(String.CASE_INSENSITIVE_ORDER));
+            break;
+        case "username":
+            order = Comparator.comparing(SessionMonitorEntry::getUsername, Comparator.nullsFirst(String.CASE_INSENSITIVE_ORDER));
+            break;
+        case "policy":
+            order = Comparator.comparing(SessionMonitorEntry::getPolicy, Comparator.nullsFirst(Comparator.naturalOrder()));
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown sort field: " + sortField);
+        }
 
-                // if its not being scanned by the UVM it must be bypassed
-                // this is set from the mark, setting this manually should not be required
-                // session.setBypassed(Boolean.TRUE);
-            }
+        return ( ascending ? order : order.reversed() );
+    }
 
-            if ( UvmContextFactory.context().networkManager().isWanInterface( session.getClientIntf() ) ) {
-                session.setLocalAddr( session.getPostNatServer() );
-                session.setRemoteAddr( session.getPreNatClient() );
-            } else {
-                session.setLocalAddr( session.getPreNatClient() );
-                session.setRemoteAddr( session.getPostNatServer() );
-            }
+    /**
+     * Check if a session matches the host filter
+     * @param session
+     * @param host - the filter (lower case)
+     * @return true if the hostname contains the filter or a client/server address starts with it
+     */
+    private boolean _matchesHost(SessionMonitorEntry session, String host)
+    {
+        if ( session.getHostname() != null && session.getHostname().toLowerCase().contains(host) )
+            return true;
 
-            /**
-             * Ignore sessions to 192.0.2.200
-             */
-            if ( "192.0.2.200".equals( session.getPostNatServer().getHostAddress() ) ) {
-                logger.debug("Removing session from view (internal session to 192.0.2.200): " + session);
-                i.remove();
-                continue;
-            }
+        InetAddress[] addrs = { session.getPreNatClient(), session.getPreNatServer(), session.getPostNatClient(), session.getPostNatServer() };
+        for ( InetAddress addr : addrs ) {
+            if ( addr != null && addr.getHostAddress().startsWith(host) )
+                return true;
         }
+        return false;
+    }
 
-        /**
-         * Update some additional fields
-         */
-        for (SessionMonitorEntry entry : sessions) {
-            entry.setNatted(Boolean.FALSE);
-            entry.setPortForwarded(Boolean.FALSE);
+    /**
+     * Read the conntrack table and hand each merged session to the consumer
+     * The sessions are merged one at a time as each line is parsed, without building a list of the whole table
+     * @param consumer
+     */
+    private void _streamMergedSessions(Consumer<SessionMonitorEntry> consumer)
+    {
+        parseProcNetIpConntrack( (session, tuple) -> {
+            if ( _mergeSession(session, tuple) )
+                consumer.accept(session);
+        });
+    }
 
-            if (! entry.getPreNatClient().equals(entry.getPostNatClient())) {
-                entry.setNatted(Boolean.TRUE);
+    /**
+     * Merge a conntrack session with the UVM information (the session table and the conntrack monitor)
+     * @param session - the session from conntrack
+     * @param tuple - the tuple of the session
+     * @return false if the session should not be shown
+     */
+    private boolean _mergeSession(SessionMonitorEntry session, SessionTuple tuple)
+    {
+        session.setPolicy("");
+        if (session.getClientIntf() == null || session.getClientIntf() == 0 ) {
+            session.setClientIntf(Integer.valueOf(-1));
+        }
+        if ( session.getServerIntf() == null || session.getServerIntf() == 0 ) {
+            session.setServerIntf(Integer.valueOf(-1));
+        }
+        if ( session.getHostname() == null || session.getHostname().length() == 0 ) {
+            session.setHostname( SessionEvent.determineBestHostname( session.getPreNatClient(), session.getClientIntf(), session.getPostNatServer(), session.getServerIntf() ) );
+        }
+        session.setPriority(session.getQosPriority());
+
+        // find corresponding session in UVM
+        SessionGlobalState sessionState = SessionTableImpl.getInstance().lookupTuple(tuple);
+        ConntrackMonitorImpl.ConntrackEntryState conntrackState = ConntrackMonitorImpl.getInstance().lookupTuple(tuple);
+
+        if ( logger.isDebugEnabled() )
+            logger.debug("Lookup session table (" + tuple + ") -> " + sessionState);
+        if ( logger.isDebugEnabled() )
+            logger.debug("Lookup conntrack table (" + tuple + ") -> " + conntrackState);
+
+        if ( conntrackState != null ) {
+            session.setClientKBps( conntrackState.c2sRateBps/1000.0f );
+            session.setServerKBps( conntrackState.s2cRateBps/1000.0f );
+            session.setTotalKBps( conntrackState.totalRateBps/1000.0f );
+        }
+
+        if ( sessionState != null ) {
+            try {
+                int priority = sessionState.netcapSession().clientQosMark();
+                com.untangle.uvm.app.SessionTuple clientSide = sessionState.netcapHook().getClientSide();
+                com.untangle.uvm.app.SessionTuple serverSide = sessionState.netcapHook().getServerSide();
+
+                NetcapHook hook = sessionState.netcapHook();
+                if (hook == null)
+                    return _updateNatted(session);
+
+                Integer policyId = hook.getPolicyId();
+                if (policyId == null)
+                    session.setPolicy("");
+                else
+                    session.setPolicy(policyId.toString());
+
+                session.setSessionId(sessionState.id());
+                session.setCreationTime(sessionState.getCreationTime());
+                session.setPipeline(sessionState.getPipelineDescription());
+                session.setBypassed(Boolean.FALSE);
+                session.setClientIntf(new Integer(sessionState.getClientIntf()));
+                session.setServerIntf(new Integer(sessionState.getServerIntf()));
+                session.setHostname(sessionState.getSessionEvent().getHostname());
+                session.setUsername(sessionState.getSessionEvent().getUsername());
+
+                session.setClientCountry(sessionState.getSessionEvent().getClientCountry());
+                session.setClientLatitude(sessionState.getSessionEvent().getClientLatitude());
+                session.setClientLongitude(sessionState.getSessionEvent().getClientLongitude());
+
+                session.setServerCountry(sessionState.getSessionEvent().getServerCountry());
+                session.setServerLatitude(sessionState.getSessionEvent().getServerLatitude());
+                session.setServerLongitude(sessionState.getSessionEvent().getServerLongitude());
+
+                session.setTags(sessionState.getTags());
+                session.setTagsString(sessionState.getTagsString());
+
+                /**
+                 * The conntrack entry shows that this session has been redirect to the local host
+                 * We need to overwrite that with the correct info
+                 */
+                session.setPostNatClient(serverSide.getClientAddr());
+                session.setPostNatServer(serverSide.getServerAddr());
+                session.setPostNatClientPort(serverSide.getClientPort());
+                session.setPostNatServerPort(serverSide.getServerPort());
+
+                /**
+                 * Only have one priority per session
+                 * Assume both client and server are the same
+                 */
+                if (priority != 0)
+                    session.setPriority(priority);
+
+                session.setAttachments(sessionState.getAttachments());
+
+                if (sessionState.getProtocol() == 17) {
+                    session.setClientPacketsPerSec(sessionState.clientSideListener().getRxChunkRate());
+                    session.setServerPacketsPerSec(sessionState.serverSideListener().getRxChunkRate());
+                }
+            } catch (Exception e) {
+                logger.warn("Exception while searching for session",e);
             }
-            if (! entry.getPreNatServer().equals(entry.getPostNatServer())) {
-                entry.setPortForwarded(Boolean.TRUE);
+        }
+        // else sessionState == null (no UVM session found)
+        else {
+            if ( session.getMark() != null ) {
+                Integer mark = session.getMark();
+                // if session was not explicitly bypassed hide it, but yet its not at layer 7, hide it.
+                // This is so we don't show sessions that have been blocked or died at layer 7, but still exist in conntrack
+                // Doing so is confusing because it would show up as "bypassed" when its actually already been blocked.
+                if ((mark & 0x01000000) == 0) {
+                    logger.debug("Removing session from view (not scanned but no bypass mark): " + session);
+                    return false;
+                }
             }
+
+            // if its not being scanned by the UVM it must be bypassed
+            // this is set from the mark, setting this manually should not be required
+            // session.setBypassed(Boolean.TRUE);
+        }
+
+        if ( UvmContextFactory.context().networkManager().isWanInterface( session.getClientIntf() ) ) {
+            session.setLocalAddr( session.getPostNatServer() );
+            session.setRemoteAddr( session.getPreNatClient() );
+        } else {
+            session.setLocalAddr( session.getPreNatClient() );
+            session.setRemoteAddr( session.getPostNatServer() );
         }
 
         /**
-         * If a appId was specified remove all sessions not being touched by that appId
+         * Ignore sessions to 192.0.2.200
          */
-        if ( appSessions != null ) {
-            for (Iterator<SessionMonitorEntry> i = sessions.iterator(); i.hasNext(); ) {
-                SessionMonitorEntry entry = i.next();
-                Long sessionId = entry.getSessionId();
-                boolean found = false;
-                for (AppSession ns : appSessions) {
-                    if ( sessionId != null && sessionId == ns.getSessionId() ) {
-                        found = true;
-                        break;
-                    }
-                }
-                if (!found)
-                    i.remove();
-            }
+        if ( "192.0.2.200".equals( session.getPostNatServer().getHostAddress() ) ) {
+            logger.debug("Removing session from view (internal session to 192.0.2.200): " + session);
+            return false;
         }
 
-        return sessions;
+        return _updateNatted(session);
+    }
+
+    /**
+     * Update the natted and port forwarded fields of a session
+     * @param session
+     * @return true
+     */
+    private boolean _updateNatted(SessionMonitorEntry session)
+    {
+        session.setNatted(Boolean.FALSE);
+        session.setPortForwarded(Boolean.FALSE);
+
+        if (! session.getPreNatClient().equals(session.getPostNatClient())) {
+            session.setNatted(Boolean.TRUE);
+        }
+        if (! session.getPreNatServer().equals(session.getPostNatServer())) {
+            session.setPortForwarded(Boolean.TRUE);
+        }
+        return true;
     }
 
     /**
@@ -354,199 +515,187 @@ public class SessionMonitorImpl implements SessionMonitor
         }
     }
 
-    /**
-     * This returns a list of descriptors for all sessions in the conntrack table
-     * @return list
-     */
-    private List<SessionMonitorEntry> _getConntrackSessionMonitorEntrys()
-    {
-        return parseProcNetIpConntrack();
-    }
-
-    /**
-     * Make a SessionTuple
-     * @param protocolStr
-     * @param clientIntf
-     * @param serverIntf
-     * @param preNatClient
-     * @param preNatServer
-     * @param preNatClientPort
-     * @param preNatServerPort
-     * @return SessionTuple
-     */
-    private SessionTuple _makeTuple( String protocolStr, int clientIntf, int serverIntf, InetAddress preNatClient, InetAddress preNatServer, int preNatClientPort, int preNatServerPort )
-    {
-        short protocol;
-        if ( "TCP".equals(protocolStr) )
-            protocol = PROTO_TCP;
-        else if ( "UDP".equals(protocolStr) )
-            protocol = PROTO_UDP;
-        else {
-            logger.warn("Unknown protocol: " + protocolStr);
-            protocol = 0;
-        }
-        return new SessionTuple( protocol, preNatClient, preNatServer, preNatClientPort, preNatServerPort );
-    }
-
-    /**
-     * Make a tuple from a SessionMonitorEntry
-     * @param session
-     * @return SessionTuple
-     */
-    private SessionTuple _makeTuple( SessionMonitorEntry session )
-    {
-        short protocol;
-        if ( "TCP".equals(session.getProtocol()) )
-            protocol = PROTO_TCP;
-        else if ( "UDP".equals(session.getProtocol()) )
-            protocol = PROTO_UDP;
-        else {
-            logger.warn("Unknown protocol: " + session.getProtocol());
-            protocol = 0;
-        }
-        return new SessionTuple( protocol,
-                                     session.getPreNatClient(),
-                                     session.getPreNatServer(),
-                                     session.getPreNatClientPort(),
-                                     session.getPreNatServerPort() );
-    }
-
-    /**
-     * makeTuple copies a tuple
-     * @param tuple
-     * @return SessionTuple
-     */
-    private SessionTuple _makeTuple( SessionTuple tuple )
-    {
-        return new SessionTuple( tuple );
-    }
-
     /**
      * Parse proc/net/nf_conntrack
-     * and return a list of SessionMonitorEntry
-     * @return the list of sessions with the conntrack information
+     * and hand each session with the conntrack information and its tuple to the consumer
+     * The lines are parsed as they are read, so the whole table is never held in memory
+     * @param consumer
      */
-    private List<SessionMonitorEntry> parseProcNetIpConntrack()
+    private void parseProcNetIpConntrack( BiConsumer<SessionMonitorEntry, SessionTuple> consumer )
     {
-        BufferedReader br = null;
         String line;
-        LinkedList<SessionMonitorEntry> list = new LinkedList<>();
         String conntrackFilename;
         if ( Files.exists(Paths.get("/proc/net/ip_conntrack")) )
             conntrackFilename = "/proc/net/ip_conntrack";
         else
             conntrackFilename = "/proc/net/nf_conntrack";
 
-        try {
-            br = new BufferedReader(new FileReader(conntrackFilename));
+        // if using the new nf_conntrack, skip the first two fields
+        int skipFields = ( "/proc/net/nf_conntrack".equals(conntrackFilename) ? 2 : 0 );
+
+        try ( BufferedReader br = new BufferedReader(new FileReader(conntrackFilename), CONNTRACK_READ_BUFFER_SIZE) ) {
             while ((line = br.readLine()) != null) {
+                SessionMonitorEntry newEntry;
                 try {
                     if ( logger.isDebugEnabled() )
                         logger.debug("parseProcNetIpConntrack line: " + line);
-                    String[] parts = line.split("\\s+");
-                    SessionMonitorEntry newEntry = new SessionMonitorEntry();
-
-                    // if using the new nf_conntrack, remove first two fields
-                    if ( conntrackFilename == "/proc/net/nf_conntrack" ) {
-                        String[] newArray=new String[parts.length];
-                        System.arraycopy(parts,2,newArray,0,parts.length-2);
-                        parts = newArray;
-                    }
+                    newEntry = _parseConntrackLine( line, skipFields );
+                } catch ( Exception lineException ) {
+                    logger.warn("Failed to parse /proc/net/ip_conntrack line: " + line, lineException);
+                    continue;
+                }
+                if ( newEntry == null )
+                    continue;
 
-                    if ( parts.length < 10 ) {
-                        logger.warn("Too few parts: " + line);
-                        continue;
-                    }
+                short protocol = ( "TCP".equals(newEntry.getProtocol()) ? PROTO_TCP : PROTO_UDP );
+                consumer.accept( newEntry, new SessionTuple( protocol, newEntry.getPreNatClient(), newEntry.getPreNatServer(), newEntry.getPreNatClientPort(), newEntry.getPreNatServerPort() ) );
+            }
+        } catch (Exception e) {
+            logger.warn("Failed to parse /proc/net/ip_conntrack",e);
+        }
+    }
 
-                    // part[0] is either "udp" or "tcp"
-                    if ( !"udp".equals(parts[0]) && !"tcp".equals(parts[0]) ) {
-                        if ( logger.isDebugEnabled() )
-                            logger.debug("parseProcNetIpConntrack skip line: " + line);
-                        continue;
-                    }
-                    if ( line.contains("127.0.0.1") ) {
-                        if ( logger.isDebugEnabled() )
-                            logger.debug("parseProcNetIpConntrack ignore line: " + line);
-                        continue;
-                    }
+    /**
+     * Parse one line of proc/net/nf_conntrack
+     * The fields are scanned in place, only the values that are used are copied out of the line
+     * @param line
+     * @param skipFields - the number of leading fields to skip
+     * @return the session, or null if the line is skipped
+     * @throws Exception
+     */
+    private SessionMonitorEntry _parseConntrackLine( String line, int skipFields ) throws Exception
+    {
+        int length = line.length();
+        int fieldCount = 0;
+        int src_count = 0;
+        int dst_count = 0;
+        int sport_count = 0;
+        int dport_count = 0;
+        SessionMonitorEntry newEntry = null;
+
+        for ( int pos = 0 ; pos < length ; ) {
+            // find the next field
+            while ( pos < length && Character.isWhitespace(line.charAt(pos)) )
+                pos++;
+            if ( pos >= length )
+                break;
+            int end = pos;
+            int equals = -1;
+            int equalsCount = 0;
+            while ( end < length && !Character.isWhitespace(line.charAt(end)) ) {
+                if ( line.charAt(end) == '=' ) {
+                    equals = end;
+                    equalsCount++;
+                }
+                end++;
+            }
 
-                    newEntry.setProtocol(parts[0].toUpperCase());
-
-                    int src_count = 0;
-                    int dst_count = 0;
-                    int sport_count = 0;
-                    int dport_count = 0;
-                    for ( int i = 0 ; i < parts.length ; i++ ) {
-                        String part = parts[i];
-                        if ( part == null )
-                            continue;
-                        String[] subparts = part.split("=");
-                        if ( subparts.length != 2 )
-                            continue;
-
-                        if ( logger.isDebugEnabled() )
-                            logger.debug("parseProcNetIpConntrack part: " + part);
-                        String varname = subparts[0];
-                        String varval = subparts[1];
-
-                        switch ( varname ) {
-                        case "src":
-                            if ( src_count == 0 )
-                                newEntry.setPreNatClient( InetAddress.getByName( varval ) ); // request src is pre nat client
-                            else
-                                newEntry.setPostNatServer( InetAddress.getByName( varval ) ); // reply src is post nat server
-                            src_count++;
-                            break;
-                        case "dst":
-                            if ( dst_count == 0 )
-                                newEntry.setPreNatServer( InetAddress.getByName( varval ) ); // request dst is pre nat server
-                            else
-                                newEntry.setPostNatClient( InetAddress.getByName( varval ) ); // reply dst is pre nat client
-                            dst_count++;
-                            break;
-                        case "sport":
-                            if ( sport_count == 0 )
-                                newEntry.setPreNatClientPort( Integer.parseInt( varval ) ); // request sport is pre nat client port
-                            else
-                                newEntry.setPostNatServerPort( Integer.parseInt( varval ) ); // reply sport is post nat server port
-                            sport_count++;
-                            break;
-                        case "dport":
-                            if ( dport_count == 0 )
-                                newEntry.setPreNatServerPort( Integer.parseInt( varval ) ); // request dport is pre nat server port
-                            else
-                                newEntry.setPostNatClientPort( Integer.parseInt( varval ) ); // reply dport is post nat client port
-                            dport_count++;
-                            break;
-                        case "mark":
-                            int mark = Integer.parseInt( varval );
-                            newEntry.setMark( mark );
-                            newEntry.setBypassed( ((mark & 0x01000000) != 0) );
-                            newEntry.setQosPriority( (mark & 0x000F0000) >> 16 );
-                            newEntry.setClientIntf( (mark & 0x000000FF) );
-                            newEntry.setServerIntf( (mark & 0x0000FF00) >> 8 );
-                            break;
-                        default:
-                            if ( logger.isDebugEnabled() )
-                                logger.debug("parseProcNetIpConntrack skip part: " + part);
-                            break;
-                        }
-                    }
+            int field = fieldCount++ - skipFields;
+            int start = pos;
+            pos = end;
 
-                    list.add(newEntry);
+            if ( field < 0 )
+                continue;
 
-                } catch ( Exception lineException ) {
-                    logger.warn("Failed to parse /proc/net/ip_conntrack line: " + line, lineException);
+            // field 0 is either "udp" or "tcp"
+            if ( field == 0 ) {
+                boolean udp = line.regionMatches( start, "udp", 0, 3 ) && end - start == 3;
+                boolean tcp = line.regionMatches( start, "tcp", 0, 3 ) && end - start == 3;
+                if ( !udp && !tcp ) {
+                    if ( logger.isDebugEnabled() )
+                        logger.debug("parseProcNetIpConntrack skip line: " + line);
+                    return null;
                 }
+                if ( line.contains("127.0.0.1") ) {
+                    if ( logger.isDebugEnabled() )
+                        logger.debug("parseProcNetIpConntrack ignore line: " + line);
+                    return null;
+                }
+                newEntry = new SessionMonitorEntry();
+                newEntry.setProtocol( udp ? "UDP" : "TCP" );
+                continue;
             }
-        } catch (Exception e) {
-            logger.warn("Failed to parse /proc/net/ip_conntrack",e);
-        } finally {
-            if ( br != null ) {
-                try {br.close();} catch(Exception ex) {}
+
+            if ( equalsCount != 1 || equals == start || equals == end - 1 )
+                continue;
+
+            int keyLength = equals - start;
+            int valueStart = equals + 1;
+
+            if ( keyLength == 3 && line.regionMatches( start, "src", 0, 3 ) ) {
+                if ( src_count == 0 )
+                    newEntry.setPreNatClient( _parseAddress( line, valueStart, end ) ); // request src is pre nat client
+                else
+                    newEntry.setPostNatServer( _parseAddress( line, valueStart, end ) ); // reply src is post nat server
+                src_count++;
+            } else if ( keyLength == 3 && line.regionMatches( start, "dst", 0, 3 ) ) {
+                if ( dst_count == 0 )
+                    newEntry.setPreNatServer( _parseAddress( line, valueStart, end ) ); // request dst is pre nat server
+                else
+                    newEntry.setPostNatClient( _parseAddress( line, valueStart, end ) ); // reply dst is pre nat client
+                dst_count++;
+            } else if ( keyLength == 5 && line.regionMatches( start, "sport", 0, 5 ) ) {
+                if ( sport_count == 0 )
+                    newEntry.setPreNatClientPort( Integer.parseInt( line.substring( valueStart, end ) ) ); // request sport is pre nat client port
+                else
+                    newEntry.setPostNatServerPort( Integer.parseInt( line.substring( valueStart, end ) ) ); // reply sport is post nat server port
+                sport_count++;
+            } else if ( keyLength == 5 && line.regionMatches( start, "dport", 0, 5 ) ) {
+                if ( dport_count == 0 )
+                    newEntry.setPreNatServerPort( Integer.parseInt( line.substring( valueStart, end ) ) ); // request dport is pre nat server port
+                else
+                    newEntry.setPostNatClientPort( Integer.parseInt( line.substring( valueStart, end ) ) ); // reply dport is post nat client port
+                dport_count++;
+            } else if ( keyLength == 4 && line.regionMatches( start, "mark", 0, 4 ) ) {
+                int mark = Integer.parseInt( line.substring( valueStart, end ) );
+                newEntry.setMark( mark );
+                newEntry.setBypassed( ((mark & 0x01000000) != 0) );
+                newEntry.setQosPriority( (mark & 0x000F0000) >> 16 );
+                newEntry.setClientIntf( (mark & 0x000000FF) );
+                newEntry.setServerIntf( (mark & 0x0000FF00) >> 8 );
+            }
+        }
+
+        if ( fieldCount < 10 ) {
+            logger.warn("Too few parts: " + line);
+            return null;
+        }
+
+        return newEntry;
+    }
+
+    /**
+     * Parse an address in a conntrack line
+     * IPv4 addresses are parsed directly, anything else goes through InetAddress
+     * @param line
+     * @param start
+     * @param end
+     * @return the address
+     * @throws Exception
+     */
+    private InetAddress _parseAddress( String line, int start, int end ) throws Exception
+    {
+        byte[] addr = new byte[4];
+        int octet = 0;
+        int value = -1;
+
+        for ( int i = start ; i < end ; i++ ) {
+            char c = line.charAt(i);
+            if ( c >= '0' && c <= '9' ) {
+                value = ( value < 0 ? 0 : value * 10 ) + ( c - '0' );
+                if ( value > 255 )
+                    return InetAddress.getByName( line.substring( start, end ) );
+            } else if ( c == '.' && value >= 0 && octet < 3 ) {
+                addr[octet++] = (byte) value;
+                value = -1;
+            } else {
+                return InetAddress.getByName( line.substring( start, end ) );
             }
         }
+        if ( octet != 3 || value < 0 )
+            return InetAddress.getByName( line.substring( start, end ) );
 
-        return list;
+        addr[3] = (byte) value;
+        return InetAddress.getByAddress( addr );
     }
 }
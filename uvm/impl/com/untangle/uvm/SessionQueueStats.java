@@ -0,0 +1,100 @@
+/**
+ * $Id$
+ */
+
+package com.untangle.uvm;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+import org.json.JSONObject;
+
+/**
+ * Counters for the write queues of the app sessions (AppSessionImpl).
+ *
+ * The write queues hold the data the apps have sent that doesn't fit in the
+ * outgoing socket queues yet. These show how many bytes are queued right now
+ * over all of the sessions, the most any single session has queued, and how
+ * often a write queue went over its high watermark and paused reading from
+ * the other side.
+ */
+public class SessionQueueStats
+{
+    private static final Logger logger = Logger.getLogger(SessionQueueStats.class);
+
+    private static final LongAdder queuedBytes = new LongAdder();
+    private static final AtomicLong maxSessionQueuedBytes = new AtomicLong();
+    private static final LongAdder pauses = new LongAdder();
+
+    /**
+     * Not instantiable
+     */
+    private SessionQueueStats()
+    {
+    }
+
+    /**
+     * Count bytes added to or removed from a write queue
+     *
+     * @param bytes
+     *        The number of bytes, negative when removed
+     */
+    static void queued(long bytes)
+    {
+        queuedBytes.add(bytes);
+    }
+
+    /**
+     * Record the number of bytes queued by a session
+     *
+     * @param bytes
+     *        The bytes queued by the session (both sides)
+     */
+    static void sessionQueued(long bytes)
+    {
+        long max = maxSessionQueuedBytes.get();
+        while (bytes > max && !maxSessionQueuedBytes.compareAndSet(max, bytes))
+            max = maxSessionQueuedBytes.get();
+    }
+
+    /**
+     * Count a write queue going over its high watermark
+     */
+    static void paused()
+    {
+        pauses.increment();
+    }
+
+    /**
+     * Clear the counters. The bytes queued right now are not cleared, they
+     * are still in the queues.
+     */
+    public static void reset()
+    {
+        maxSessionQueuedBytes.set(0);
+        pauses.reset();
+    }
+
+    /**
+     * Get the counters
+     *
+     * @return A JSON object with the counters and the watermarks
+     */
+    public static JSONObject toJSON()
+    {
+        JSONObject json = new JSONObject();
+
+        try {
+            json.put("queuedBytes", queuedBytes.sum());
+            json.put("maxSessionQueuedBytes", maxSessionQueuedBytes.get());
+            json.put("pauses", pauses.sum());
+            json.put("highWatermark", AppSessionImpl.WRITE_QUEUE_HIGH_WATERMARK);
+            json.put("lowWatermark", AppSessionImpl.WRITE_QUEUE_LOW_WATERMARK);
+        } catch (Exception e) {
+            logger.warn("Error generating session queue stats", e);
+        }
+
+        return json;
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * $Id$
+ */
+
+package com.untangle.uvm;
+
+import org.apache.log4j.Logger;
+import org.json.JSONObject;
+
+/**
+ * Latency histograms for each phase of setting up a new session in NetcapHook.
+ *
+ * NetcapHook records the time spent in each phase for every session. The
+ * histograms are always on, and are exposed through the MetricManager.
+ */
+public class SessionSetupLatency
+{
+    /**
+     * The phases of setting up a session
+     */
+    public enum Phase
+    {
+        HOST_TABLE("hostTable"), /* get/create the host table entry */
+        DEVICE_USER("deviceUser"), /* device and user table lookups, hostname */
+        POLICY("policy"), /* PolicyManager.findPolicyId */
+        WELD("weld"), /* PipelineFoundry.weld */
+        SESSION_EVENT("sessionEvent"), /* SessionEvent construction */
+        GEO("geo"), /* geography lookups */
+        LOG_EVENT("logEvent"), /* logging the session event */
+        APP_REQUESTS("appRequests"), /* new session requests to the apps */
+        CONNECT("connect"), /* connecting the server and client */
+        TOTAL("total"); /* from the session thread starting until vectoring starts */
+
+        private final String name;
+
+        /**
+         * Constructor
+         *
+         * @param name
+         *        The name used in the JSON stats
+         */
+        private Phase(String name)
+        {
+            this.name = name;
+        }
+
+        /**
+         * Get the name
+         *
+         * @return The name used in the JSON stats
+         */
+        public String getName()
+        {
+            return name;
+        }
+    }
+
+    private static final Logger logger = Logger.getLogger(SessionSetupLatency.class);
+
+    private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+    private static final String[] PERCENTILE_NAMES = { "p50", "p90", "p99", "p999" };
+
+    private static final LatencyHistogram[] histograms = new LatencyHistogram[Phase.values().length];
+
+    static {
+        for (int i = 0; i < histograms.length; i++)
+            histograms[i] = new LatencyHistogram();
+    }
+
+    /**
+     * Not instantiable
+     */
+    private SessionSetupLatency()
+    {
+    }
+
+    /**
+     * Record the time since start for a phase
+     *
+     * @param phase
+     *        The phase
+     * @param start
+     *        The System.nanoTime() when the phase started
+     * @return The current System.nanoTime(), the start of the next phase
+     */
+    public static long record(Phase phase, long start)
+    {
+        long now = System.nanoTime();
+        histograms[phase.ordinal()].record(now - start);
+        return now;
+    }
+
+    /**
+     * Clear all of the histograms
+     */
+    public static void reset()
+    {
+        for (LatencyHistogram histogram : histograms)
+            histogram.reset();
+    }
+
+    /**
+     * Get the count, mean, max and percentiles of each phase in microseconds
+     *
+     * @return A JSON object with an entry for each phase
+     */
+    public static JSONObject toJSON()
+    {
+        JSONObject json = new JSONObject();
+
+        try {
+            for (Phase phase : Phase.values()) {
+                LatencyHistogram histogram = histograms[phase.ordinal()];
+                JSONObject stats = new JSONObject();
+                long[] values = histogram.getValuesAtPercentiles(PERCENTILES);
+
+                stats.put("count", histogram.getCount());
+                stats.put("meanMicros", toMicros(histogram.getMeanNanos()));
+                for (int i = 0; i < PERCENTILES.length; i++)
+                    stats.put(PERCENTILE_NAMES[i] + "Micros", toMicros(values[i]));
+                stats.put("maxMicros", toMicros(histogram.getMaxNanos()));
+
+                json.put(phase.getName(), stats);
+            }
+        } catch (Exception e) {
+            logger.warn("Error generating session setup latency object", e);
+        }
+
+        return json;
+    }
+
+    /**
+     * Convert nanoseconds to microseconds
+     *
+     * @param nanos
+     *        The nanoseconds
+     * @return The microseconds
+     */
+    private static double toMicros(long nanos)
+    {
+        return nanos / 1000.0;
+    }
+}
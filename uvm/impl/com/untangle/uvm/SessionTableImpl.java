@@ -4,12 +4,11 @@
 
 package com.untangle.uvm;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.LinkedList;
 import java.net.InetAddress;
-import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
 
@@ -24,6 +23,13 @@ import com.untangle.uvm.vnet.PipelineConnector;
 /**
  * This table stores a global list of all currently active sessions being
  * vectored
+ *
+ * Every session is added and removed by its own thread, so the table does not
+ * use a global lock. Sessions are stored by ID in a striped map keyed by the
+ * primitive session ID, and the tuple and port indexes are concurrent maps.
+ * The thread that removes a session from the ID map owns the removal and
+ * removes it from the other indexes. Snapshots (getSessions, shutdownMatches)
+ * are weakly consistent and never block sessions from being added.
  */
 public class SessionTableImpl
 {
@@ -33,9 +39,9 @@ public class SessionTableImpl
 
     private static final SessionTableImpl INSTANCE = new SessionTableImpl();
 
-    private final Map<Long, SessionGlobalState> sessionTableById = new HashMap<>();
-    private final Map<SessionTuple, SessionGlobalState> sessionTableByTuple = new HashMap<>();
-    private final Map<NatPortAvailabilityKey, SessionGlobalState> tcpPortAvailabilityMap = new HashMap<>();
+    private final ConcurrentLongMap<SessionGlobalState> sessionTableById = new ConcurrentLongMap<>();
+    private final ConcurrentHashMap<SessionTuple, SessionGlobalState> sessionTableByTuple = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<NatPortAvailabilityKey, SessionGlobalState> tcpPortAvailabilityMap = new ConcurrentHashMap<>();
 
     /**
      * Singleton
@@ -49,7 +55,7 @@ public class SessionTableImpl
      * 
      * @return The instance
      */
-    public synchronized static SessionTableImpl getInstance()
+    public static SessionTableImpl getInstance()
     {
         return INSTANCE;
     }
@@ -92,7 +98,7 @@ public class SessionTableImpl
      *        The session
      * @return - True if the item did not already exist
      */
-    protected synchronized boolean put(long sessionId, SessionGlobalState session)
+    protected boolean put(long sessionId, SessionGlobalState session)
     {
         boolean inserted = (sessionTableById.put(sessionId, session) == null);
 
@@ -101,11 +107,9 @@ public class SessionTableImpl
                 int port = session.netcapSession().serverSide().client().port();
                 InetAddress addr = session.netcapSession().serverSide().client().host();
                 NatPortAvailabilityKey key = new NatPortAvailabilityKey(addr, port);
-                if (tcpPortAvailabilityMap.get(key) != null) {
+                if (tcpPortAvailabilityMap.putIfAbsent(key, session) != null) {
                     logger.warn("Collision value in port availability map: " + addr.getHostAddress() + ":" + port);
                     // just continue, not much can be done about it here.
-                } else {
-                    tcpPortAvailabilityMap.put(key, session);
                 }
             }
 
@@ -130,39 +134,27 @@ public class SessionTableImpl
      *        The session ID to remove
      * @return - returns the session if it was removed, null if not found
      */
-    protected synchronized SessionGlobalState remove(long sessionId)
+    protected SessionGlobalState remove(long sessionId)
     {
-        SessionGlobalState session = sessionTableById.get(sessionId);
+        SessionGlobalState session = sessionTableById.remove(sessionId);
         if (session == null) {
             return null;
         }
 
-        boolean removed = (sessionTableById.remove(sessionId) != null);
-
-        if (removed) {
-
 // THIS IS FOR ECLIPSE - @formatter:off            
-            SessionTuple tupleKey = new SessionTuple( session.getProtocol(),
-                                                      session.netcapSession().clientSide().client().host(),
-                                                      session.netcapSession().clientSide().server().host(),
-                                                      session.netcapSession().clientSide().client().port(),
-                                                      session.netcapSession().clientSide().server().port());
+        SessionTuple tupleKey = new SessionTuple( session.getProtocol(),
+                                                  session.netcapSession().clientSide().client().host(),
+                                                  session.netcapSession().clientSide().server().host(),
+                                                  session.netcapSession().clientSide().client().port(),
+                                                  session.netcapSession().clientSide().server().port());
 // THIS IS FOR ECLIPSE - @formatter:on
 
-            if (sessionTableByTuple.remove(tupleKey) == null) {
-                logger.warn("Missing value in tuple map: " + tupleKey);
-            }
-
-            if (session.getProtocol() == PROTO_TCP) {
-                int port = session.netcapSession().serverSide().client().port();
-                InetAddress addr = session.netcapSession().serverSide().client().host();
-                NatPortAvailabilityKey key = new NatPortAvailabilityKey(addr, port);
-                if (tcpPortAvailabilityMap.remove(key) == null) {
-                    logger.warn("Missing value in port availability map: " + addr.getHostAddress() + ":" + port);
-                }
-            }
+        if (!sessionTableByTuple.remove(tupleKey, session)) {
+            logger.warn("Missing value in tuple map: " + tupleKey);
         }
 
+        removePort(session);
+
         return session;
     }
 
@@ -185,7 +177,7 @@ public class SessionTableImpl
      *        The server port
      * @return the session if it was removed, null if not found
      */
-    protected synchronized SessionGlobalState remove(short protocol, int clientIntf, int serverIntf, InetAddress clientAddr, InetAddress serverAddr, int clientPort, int serverPort)
+    protected SessionGlobalState remove(short protocol, int clientIntf, int serverIntf, InetAddress clientAddr, InetAddress serverAddr, int clientPort, int serverPort)
     {
         SessionTuple tupleKey = new SessionTuple(protocol, clientAddr, serverAddr, clientPort, serverPort);
         SessionGlobalState session = sessionTableByTuple.get(tupleKey);
@@ -193,34 +185,43 @@ public class SessionTableImpl
             return null;
         }
 
-        boolean removed = (sessionTableByTuple.remove(tupleKey) != null);
-
-        if (removed) {
-            if (sessionTableById.remove(session.id()) == null) {
-                logger.warn("Missing value in session ID map: " + session.id());
-            }
-
-            if (session.getProtocol() == PROTO_TCP) {
-                int port = session.netcapSession().serverSide().client().port();
-                InetAddress addr = session.netcapSession().serverSide().client().host();
-                NatPortAvailabilityKey key = new NatPortAvailabilityKey(addr, port);
-                if (tcpPortAvailabilityMap.remove(key) == null) {
-                    logger.warn("Missing value in port availability map: " + addr.getHostAddress() + ":" + port);
-                }
-            }
-        } else {
+        /* The session may be removed by its own thread at the same time, whoever removes the ID owns the removal */
+        if (!sessionTableById.remove(session.id(), session)) {
             logger.warn("Failed to remove session: " + tupleKey);
+            return null;
         }
 
+        sessionTableByTuple.remove(tupleKey, session);
+
+        removePort(session);
+
         return session;
     }
 
+    /**
+     * Remove a TCP session from the port availability map
+     * 
+     * @param session
+     *        The session
+     */
+    private void removePort(SessionGlobalState session)
+    {
+        if (session.getProtocol() != PROTO_TCP) return;
+
+        int port = session.netcapSession().serverSide().client().port();
+        InetAddress addr = session.netcapSession().serverSide().client().host();
+        NatPortAvailabilityKey key = new NatPortAvailabilityKey(addr, port);
+        if (!tcpPortAvailabilityMap.remove(key, session)) {
+            logger.warn("Missing value in port availability map: " + addr.getHostAddress() + ":" + port);
+        }
+    }
+
     /**
      * Get the number of sessions remaining
      * 
      * @return The number of sessions remaining
      */
-    protected synchronized int count()
+    protected int count()
     {
         return sessionTableById.size();
     }
@@ -232,11 +233,11 @@ public class SessionTableImpl
      *        The protocol
      * @return The count
      */
-    protected synchronized int count(short protocol)
+    protected int count(short protocol)
     {
         int count = 0;
 
-        for (SessionGlobalState state : sessionTableById.values()) {
+        for (SessionGlobalState state : sessionTableById.values(new ArrayList<SessionGlobalState>(sessionTableById.size()))) {
             if (state.getProtocol() == protocol) count++;
         }
 
@@ -253,10 +254,10 @@ public class SessionTableImpl
      *        The port
      * @return True if free, false if used
      */
-    protected synchronized boolean isTcpPortUsed(InetAddress addr, int port)
+    protected boolean isTcpPortUsed(InetAddress addr, int port)
     {
         NatPortAvailabilityKey key = new NatPortAvailabilityKey(addr, port);
-        if (tcpPortAvailabilityMap.get(key) != null) return true;
+        if (tcpPortAvailabilityMap.containsKey(key)) return true;
         else return false;
     }
 
@@ -266,12 +267,11 @@ public class SessionTableImpl
      * @return True if vectors were killed, false if no active vectors were
      *         found
      */
-    public synchronized boolean shutdownActive()
+    public boolean shutdownActive()
     {
         boolean foundActive = false;
 
-        for (Iterator<SessionGlobalState> iter = sessionTableById.values().iterator(); iter.hasNext();) {
-            SessionGlobalState sess = iter.next();
+        for (SessionGlobalState sess : getSessions()) {
             Vector vector = sess.netcapHook().getVector();
             if (vector != null) {
                 foundActive = true;
@@ -287,13 +287,15 @@ public class SessionTableImpl
     }
 
     /**
-     * Returns a new list of all sessions
+     * Returns a new list of all sessions. This is a weakly consistent
+     * snapshot, sessions added or removed while the list is being built may or
+     * may not be included.
      * 
      * @return A list of all sessions
      */
-    public synchronized List<SessionGlobalState> getSessions()
+    public List<SessionGlobalState> getSessions()
     {
-        return new LinkedList<>(this.sessionTableById.values());
+        return sessionTableById.values(new ArrayList<SessionGlobalState>(sessionTableById.size() + 16));
     }
 
     /**
@@ -317,7 +319,6 @@ public class SessionTableImpl
      * @param connector
      *        The connector
      */
-    @SuppressWarnings("unchecked")
     protected void shutdownMatches(SessionMatcher matcher, PipelineConnector connector)
     {
         if (matcher == null) {
@@ -334,17 +335,9 @@ public class SessionTableImpl
         /**
          * Iterate through all sessions and reset matching sessions
          */
-        Object[] array;
-        synchronized (this) {
-            array = sessionTableById.entrySet().toArray();
-        }
-        int i;
-        for (i = 0; i < array.length; i++) {
-            Map.Entry<Long, SessionGlobalState> e = (Map.Entry<Long, SessionGlobalState>) array[i];
+        for (SessionGlobalState session : getSessions()) {
             boolean isMatch;
 
-            SessionGlobalState session = e.getValue();
-            Long sessionId = e.getKey();
             NetcapHook netcapHook = session.netcapHook();
 
             /**
@@ -421,7 +414,7 @@ public class SessionTableImpl
     /**
      * Class for managing NAT port availability
      */
-    private class NatPortAvailabilityKey
+    private static class NatPortAvailabilityKey
     {
         public InetAddress addr;
         public int port;
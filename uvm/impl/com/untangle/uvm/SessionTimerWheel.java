@@ -0,0 +1,314 @@
+/**
+ * $Id$
+ */
+
+package com.untangle.uvm;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A hashed timing wheel for the session timers (AppSession.scheduleTimer).
+ *
+ * The wheel is an array of buckets, one for each tick (uvm.session.timer.tick
+ * msec, 100 by default). A timer is put in the bucket of the tick it expires
+ * on, with the number of turns of the wheel left before it does. Scheduling and
+ * canceling a timer are a queue add, the wheel thread moves new timers into
+ * their bucket and unlinks canceled ones, so hundreds of thousands of timers
+ * cost the same per operation as a few. Timers fire on the tick after their
+ * deadline, never before.
+ *
+ * The tasks are run on the wheel thread and must only hand the work off (the
+ * sessions run it on their own vectoring thread).
+ */
+public class SessionTimerWheel implements Runnable
+{
+    private static final Logger logger = Logger.getLogger(SessionTimerWheel.class);
+
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(Math.max(1, Integer.getInteger("uvm.session.timer.tick", 100)));
+
+    /* Number of buckets, must be a power of two */
+    private static final int WHEEL_SIZE = 512;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+    /* Maximum number of new timers moved into the wheel on each tick */
+    private static final int MAX_TRANSFER = 100000;
+
+    private static SessionTimerWheel INSTANCE = null;
+
+    private final Bucket[] wheel = new Bucket[WHEEL_SIZE];
+    private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Timeout> canceled = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger(0);
+    private final long startTime = System.nanoTime();
+
+    private long tick = 0;
+
+    /**
+     * Constructor
+     */
+    private SessionTimerWheel()
+    {
+        for (int i = 0; i < WHEEL_SIZE; i++)
+            wheel[i] = new Bucket();
+    }
+
+    /**
+     * Get the SessionTimerWheel singleton, the wheel thread is started on
+     * first use
+     *
+     * @return The timer wheel
+     */
+    public static synchronized SessionTimerWheel getInstance()
+    {
+        if (INSTANCE == null) {
+            INSTANCE = new SessionTimerWheel();
+            UvmContextFactory.context().newThread(INSTANCE, "SessionTimerWheel").start();
+        }
+
+        return INSTANCE;
+    }
+
+    /**
+     * Schedule a task
+     *
+     * @param task
+     *        The task, run on the wheel thread
+     * @param delay
+     *        The delay in milliseconds
+     * @return The timeout, used to cancel the task
+     */
+    public Timeout schedule(Runnable task, long delay)
+    {
+        if (delay < 0) throw new IllegalArgumentException("Delay must be non-negative");
+
+        Timeout timeout = new Timeout(task, System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(delay));
+        pending.incrementAndGet();
+        added.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Get the number of timers that are scheduled
+     *
+     * @return The number of timers
+     */
+    public int size()
+    {
+        return pending.get();
+    }
+
+    /**
+     * Wheel thread
+     */
+    public void run()
+    {
+        while (true) {
+            try {
+                long deadline = waitForNextTick();
+                Bucket bucket = wheel[(int) (tick & WHEEL_MASK)];
+
+                removeCanceled();
+                transferAdded();
+                bucket.expire(deadline);
+
+                tick++;
+            } catch (InterruptedException e) {
+                logger.warn("Session timer wheel interrupted");
+                return;
+            } catch (Exception e) {
+                logger.error("Exception in session timer wheel", e);
+            }
+        }
+    }
+
+    /**
+     * Sleep until the end of the current tick
+     *
+     * @return The end of the tick, relative to the start time
+     * @throws InterruptedException
+     */
+    private long waitForNextTick() throws InterruptedException
+    {
+        long deadline = TICK_NANOS * (tick + 1);
+
+        while (true) {
+            long sleepNanos = deadline - (System.nanoTime() - startTime);
+            if (sleepNanos <= 0) return deadline;
+
+            TimeUnit.NANOSECONDS.sleep(sleepNanos);
+        }
+    }
+
+    /**
+     * Move the new timers into their buckets
+     */
+    private void transferAdded()
+    {
+        for (int i = 0; i < MAX_TRANSFER; i++) {
+            Timeout timeout = added.poll();
+            if (timeout == null) return;
+
+            if (timeout.state.get() != Timeout.ST_SCHEDULED) continue;
+
+            long expireTick = timeout.deadline / TICK_NANOS;
+            timeout.remainingRounds = (expireTick - tick) / WHEEL_SIZE;
+
+            /* A timer that is already due goes in the current bucket */
+            long bucketTick = Math.max(expireTick, tick);
+            wheel[(int) (bucketTick & WHEEL_MASK)].add(timeout);
+        }
+    }
+
+    /**
+     * Unlink the canceled timers from their buckets
+     */
+    private void removeCanceled()
+    {
+        Timeout timeout;
+        while ((timeout = canceled.poll()) != null) {
+            /* A timer that wasn't transfered yet is skipped by transferAdded */
+            if (timeout.bucket != null) timeout.bucket.remove(timeout);
+        }
+    }
+
+    /**
+     * A bucket of the wheel, a doubly linked list of timeouts only used by
+     * the wheel thread
+     */
+    private class Bucket
+    {
+        private Timeout head = null;
+        private Timeout tail = null;
+
+        /**
+         * Add a timeout
+         *
+         * @param timeout
+         *        The timeout
+         */
+        void add(Timeout timeout)
+        {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        /**
+         * Remove a timeout
+         *
+         * @param timeout
+         *        The timeout
+         * @return The next timeout in the bucket
+         */
+        Timeout remove(Timeout timeout)
+        {
+            Timeout next = timeout.next;
+
+            if (timeout.prev != null) timeout.prev.next = next;
+            if (next != null) next.prev = timeout.prev;
+            if (timeout == head) head = next;
+            if (timeout == tail) tail = timeout.prev;
+
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+            return next;
+        }
+
+        /**
+         * Run the timeouts due in this turn of the wheel
+         *
+         * @param deadline
+         *        The end of the current tick
+         */
+        void expire(long deadline)
+        {
+            Timeout timeout = head;
+
+            while (timeout != null) {
+                if (timeout.remainingRounds <= 0) {
+                    Timeout next = remove(timeout);
+                    if (timeout.deadline > deadline) logger.warn("Timer deadline " + timeout.deadline + " after tick deadline " + deadline);
+                    timeout.expire();
+                    timeout = next;
+                } else {
+                    timeout.remainingRounds--;
+                    timeout = timeout.next;
+                }
+            }
+        }
+    }
+
+    /**
+     * A scheduled task
+     */
+    public class Timeout
+    {
+        private static final int ST_SCHEDULED = 0;
+        private static final int ST_CANCELED = 1;
+        private static final int ST_EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(ST_SCHEDULED);
+
+        /* Only used by the wheel thread */
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+
+        /**
+         * Constructor
+         *
+         * @param task
+         *        The task
+         * @param deadline
+         *        The deadline, relative to the start time of the wheel
+         */
+        private Timeout(Runnable task, long deadline)
+        {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancel the timeout, this does nothing if the task already ran
+         *
+         * @return True if the timeout was canceled
+         */
+        public boolean cancel()
+        {
+            if (!state.compareAndSet(ST_SCHEDULED, ST_CANCELED)) return false;
+
+            pending.decrementAndGet();
+            canceled.add(this);
+            return true;
+        }
+
+        /**
+         * Run the task
+         */
+        private void expire()
+        {
+            if (!state.compareAndSet(ST_SCHEDULED, ST_EXPIRED)) return;
+
+            pending.decrementAndGet();
+
+            try {
+                task.run();
+            } catch (Exception e) {
+                logger.warn("Exception in session timer", e);
+            }
+        }
+    }
+}
@@ -22,6 +22,14 @@ public class SideListener implements SinkEndpointListener, SourceEndpointListene
     protected boolean isSourceShutdown = false;
     protected boolean isSinkShutdown   = false;
 
+    /* The received chunks per second are sampled when read, at most once per interval (in msec) */
+    private static final long RATE_SAMPLE_INTERVAL = 1000;
+
+    /* Last rate sample, used to compute the received chunks per second */
+    private long rateTime = System.currentTimeMillis();
+    private long rateChunks = 0;
+    private float rxChunkRate = 0.0f;
+
     /**
      * SideListener constructor
      */
@@ -103,6 +111,29 @@ public class SideListener implements SinkEndpointListener, SourceEndpointListene
         return this.txChunks;
     }
     
+    /**
+     * Get the number of chunks (packets for UDP) received per second since
+     * the last sample.  A new sample is taken if the last one is at least
+     * RATE_SAMPLE_INTERVAL old, so the rate doesn't depend on how often (or
+     * by how many) it is read.
+     * @return chunks per second
+     */
+    public synchronized float getRxChunkRate()
+    {
+        long now = System.currentTimeMillis();
+        long elapsed = now - this.rateTime;
+
+        if ( elapsed >= RATE_SAMPLE_INTERVAL ) {
+            long chunks = this.rxChunks;
+
+            this.rxChunkRate = (( chunks - this.rateChunks ) * 1000.0f ) / elapsed;
+            this.rateChunks = chunks;
+            this.rateTime = now;
+        }
+
+        return this.rxChunkRate;
+    }
+
     /**
      * isShutdown returns true if is shutdown or false otherwise
      * @return bool
@@ -0,0 +1,134 @@
+/**
+ * $Id$
+ */
+
+package com.untangle.uvm;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+import org.json.JSONObject;
+
+/**
+ * Counters for the read buffers of the TCP sessions (AppTCPSessionImpl).
+ *
+ * These show how many bytes are allocated for read buffers for every byte
+ * handed to the apps, both for buffers allocated by the sessions and for
+ * pooled jvector buffers that had to be given away (detached) because the
+ * app may keep them.
+ */
+public class TCPReadBufferStats
+{
+    private static final Logger logger = Logger.getLogger(TCPReadBufferStats.class);
+
+    private static final LongAdder readBytes = new LongAdder();
+    private static final LongAdder allocatedBuffers = new LongAdder();
+    private static final LongAdder allocatedBytes = new LongAdder();
+    private static final LongAdder reusedBuffers = new LongAdder();
+    private static final LongAdder pooledReturned = new LongAdder();
+    private static final LongAdder pooledDetached = new LongAdder();
+    private static final LongAdder pooledDetachedBytes = new LongAdder();
+
+    /**
+     * Not instantiable
+     */
+    private TCPReadBufferStats()
+    {
+    }
+
+    /**
+     * Count the bytes handed to an app
+     *
+     * @param bytes
+     *        The number of bytes
+     */
+    static void read(int bytes)
+    {
+        readBytes.add(bytes);
+    }
+
+    /**
+     * Count a newly allocated read buffer
+     *
+     * @param bytes
+     *        The size of the buffer
+     */
+    static void allocated(int bytes)
+    {
+        allocatedBuffers.increment();
+        allocatedBytes.add(bytes);
+    }
+
+    /**
+     * Count a reused read buffer
+     */
+    static void reused()
+    {
+        reusedBuffers.increment();
+    }
+
+    /**
+     * Count a pooled buffer that went back to the pool after the app was done
+     * with it
+     */
+    static void pooledReturned()
+    {
+        pooledReturned.increment();
+    }
+
+    /**
+     * Count a pooled buffer that was detached from the pool
+     *
+     * @param bytes
+     *        The size of the buffer
+     */
+    static void pooledDetached(int bytes)
+    {
+        pooledDetached.increment();
+        pooledDetachedBytes.add(bytes);
+    }
+
+    /**
+     * Clear the counters
+     */
+    public static void reset()
+    {
+        readBytes.reset();
+        allocatedBuffers.reset();
+        allocatedBytes.reset();
+        reusedBuffers.reset();
+        pooledReturned.reset();
+        pooledDetached.reset();
+        pooledDetachedBytes.reset();
+    }
+
+    /**
+     * Get the counters
+     *
+     * @return A JSON object with the counters and the bytes allocated per byte
+     *         read
+     */
+    public static JSONObject toJSON()
+    {
+        JSONObject json = new JSONObject();
+
+        try {
+            long read = readBytes.sum();
+            long allocated = allocatedBytes.sum();
+            long detached = pooledDetachedBytes.sum();
+
+            json.put("readBytes", read);
+            json.put("allocatedBuffers", allocatedBuffers.sum());
+            json.put("allocatedBytes", allocated);
+            json.put("reusedBuffers", reusedBuffers.sum());
+            json.put("pooledReturned", pooledReturned.sum());
+            json.put("pooledDetached", pooledDetached.sum());
+            json.put("pooledDetachedBytes", detached);
+            json.put("allocatedBytesPerReadByte", (read == 0 ? 0 : (double) (allocated + detached) / read));
+        } catch (Exception e) {
+            logger.warn("Error generating TCP read buffer stats", e);
+        }
+
+        return json;
+    }
+}
@@ -7,6 +7,7 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
@@ -72,6 +73,22 @@ public class UvmContextImpl extends UvmContextBase implements UvmContext
     private static String applianceModel = null;
     private static int threadNumber = 1;
 
+    /* Thread.ofVirtual() and Thread.Builder methods, null if virtual threads are not supported by this JVM */
+    private static Method virtualThreadBuilder = null;
+    private static Method virtualThreadName = null;
+    private static Method virtualThreadUnstarted = null;
+
+    static {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            virtualThreadName = builderClass.getMethod("name", String.class);
+            virtualThreadUnstarted = builderClass.getMethod("unstarted", Runnable.class);
+            virtualThreadBuilder = Thread.class.getMethod("ofVirtual");
+        } catch (Exception exn) {
+            /* Virtual threads are not available in this JVM */
+        }
+    }
+
     private UvmState state;
     private AdminManagerImpl adminManager;
     private LoggingManagerImpl loggingManager;
@@ -567,7 +584,48 @@ public class UvmContextImpl extends UvmContextBase implements UvmContext
      */
     public Thread newThread(final Runnable runnable, final String name)
     {
-        Runnable task = new Runnable()
+        return new Thread(wrapThreadTask(runnable), name);
+    }
+
+    /**
+     * newVirtualThread creates a new virtual thread.
+     * If the JVM does not support virtual threads a normal thread is returned.
+     * @param runnable
+     * @param name
+     * @return Thread
+     */
+    public Thread newVirtualThread(final Runnable runnable, final String name)
+    {
+        if (virtualThreadBuilder == null)
+            return newThread(runnable, name);
+
+        try {
+            Object builder = virtualThreadBuilder.invoke(null);
+            builder = virtualThreadName.invoke(builder, name);
+            return (Thread) virtualThreadUnstarted.invoke(builder, wrapThreadTask(runnable));
+        } catch (Exception exn) {
+            logger.warn("Unable to create virtual thread, using a normal thread: " + name, exn);
+            return newThread(runnable, name);
+        }
+    }
+
+    /**
+     * isVirtualThreadSupported
+     * @return true if the JVM supports virtual threads
+     */
+    public static boolean isVirtualThreadSupported()
+    {
+        return (virtualThreadBuilder != null);
+    }
+
+    /**
+     * wrapThreadTask wraps a runnable to log any uncaught exceptions
+     * @param runnable
+     * @return Runnable
+     */
+    private Runnable wrapThreadTask(final Runnable runnable)
+    {
+        return new Runnable()
         {
             /** run */
             public void run()
@@ -581,7 +639,6 @@ public class UvmContextImpl extends UvmContextBase implements UvmContext
                 }
             }
         };
-        return new Thread(task, name);
     }
 
     /**
@@ -0,0 +1,226 @@
+/**
+ * $Id$
+ */
+package com.untangle.uvm;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+import com.untangle.jvector.Vector;
+import com.untangle.jvector.VectorSelector;
+
+/**
+ * VirtualSessionRunner runs the vector of each session on its own virtual thread.
+ *
+ * A virtual thread can't block inside the native Vector.vector() call without pinning
+ * its carrier thread, so the session thread instead calls Vector.poll() and parks
+ * whenever the vector is idle.  A single waker thread watches the vectors of all of the
+ * parked sessions and unparks a session when its vector has events.
+ *
+ * Enabled with uvm.session.virtualthreads (requires a JVM with virtual threads).
+ */
+public class VirtualSessionRunner implements Runnable
+{
+    private static final Logger logger = Logger.getLogger( VirtualSessionRunner.class );
+
+    private static final boolean ENABLED = ( System.getProperty( "uvm.session.virtualthreads" ) != null );
+
+    /* Maximum number of ready vectors handled per select */
+    private static final int MAX_READY = 256;
+
+    private static VirtualSessionRunner INSTANCE = null;
+
+    private final VectorSelector selector = new VectorSelector();
+    private final ConcurrentHashMap<Long,Waiter> waiters = new ConcurrentHashMap<>();
+    private final AtomicInteger sessionCount = new AtomicInteger( 0 );
+
+    /**
+     * VirtualSessionRunner
+     */
+    private VirtualSessionRunner()
+    {
+        UvmContextFactory.context().newThread( this, "VirtualSessionWaker" ).start();
+    }
+
+    /**
+     * isEnabled
+     * @return true if session vectors should run on virtual threads
+     */
+    public static boolean isEnabled()
+    {
+        return ENABLED && UvmContextImpl.isVirtualThreadSupported();
+    }
+
+    /**
+     * Get the VirtualSessionRunner singleton, the waker thread is started on first use
+     * @return VirtualSessionRunner
+     */
+    public static synchronized VirtualSessionRunner getInstance()
+    {
+        if ( INSTANCE == null ) {
+            if ( ENABLED && !UvmContextImpl.isVirtualThreadSupported())
+                logger.warn( "uvm.session.virtualthreads is set, but virtual threads are not supported by this JVM" );
+
+            INSTANCE = new VirtualSessionRunner();
+        }
+
+        return INSTANCE;
+    }
+
+    /**
+     * Run a session on a new virtual thread, the vector must already be started.
+     * The virtual thread calls NetcapHook.vectorFinished() once the vector is done.
+     * @param hook - the hook of the session
+     */
+    public void start( final NetcapHook hook )
+    {
+        long sessionId = hook.sessionGlobalState.id();
+
+        sessionCount.incrementAndGet();
+        UvmContextImpl.getInstance().newVirtualThread( new Runnable()
+        {
+            /** run */
+            public void run()
+            {
+                try {
+                    vector( hook );
+                } finally {
+                    sessionCount.decrementAndGet();
+                    hook.vectorFinished();
+                }
+            }
+        }, "Session " + sessionId ).start();
+    }
+
+    /**
+     * getSessionCount
+     * @return the number of sessions currently running on virtual threads
+     */
+    public int getSessionCount()
+    {
+        return sessionCount.get();
+    }
+
+    /**
+     * Waker loop
+     */
+    public void run()
+    {
+        long[] ready = new long[MAX_READY];
+
+        while ( true ) {
+            try {
+                int count = selector.select( ready, -1 );
+
+                for ( int c = 0 ; c < count ; c++ ) {
+                    Waiter waiter = waiters.get( ready[c] );
+                    if ( waiter != null ) waiter.wake();
+                }
+            } catch ( Exception e ) {
+                logger.error( "Exception in virtual session waker", e );
+            }
+        }
+    }
+
+    /**
+     * Run the vector of a session until it is done, this is the non-blocking
+     * equivalent of Vector.vector()
+     * @param hook - the hook of the session
+     */
+    private void vector( NetcapHook hook )
+    {
+        Vector vector = hook.getVector();
+        long sessionId = hook.sessionGlobalState.id();
+        Waiter waiter = new Waiter( Thread.currentThread());
+        long lastActivity = System.currentTimeMillis();
+
+        waiters.put( sessionId, waiter );
+
+        try {
+            selector.registerOneShot( vector, sessionId );
+
+            while ( true ) {
+                int ret = vector.poll();
+
+                if ( ret == Vector.POLL_DONE ) {
+                    /* The vector already cleaned up (and closed its fd) */
+                    return;
+                }
+
+                if ( ret == Vector.POLL_CONTINUE ) {
+                    lastActivity = System.currentTimeMillis();
+                    continue;
+                }
+
+                waiter.ready = false;
+                selector.rearm( vector, sessionId );
+
+                if ( !waiter.await( lastActivity, vector.getTimeout())) {
+                    if ( logger.isDebugEnabled()) logger.debug( "Session timeout: " + hook.sessionGlobalState );
+                    selector.unregister( vector );
+                    vector.stop();
+                    return;
+                }
+            }
+        } catch ( Exception e ) {
+            logger.error( "Exception inside netcap hook: " + hook.sessionGlobalState, e );
+            vector.stop();
+        } finally {
+            waiters.remove( sessionId );
+        }
+    }
+
+    /**
+     * A session thread waiting for its vector to be ready
+     */
+    private static class Waiter
+    {
+        final Thread thread;
+        volatile boolean ready = false;
+
+        /**
+         * Waiter
+         * @param thread
+         */
+        Waiter( Thread thread )
+        {
+            this.thread = thread;
+        }
+
+        /**
+         * Wake the session thread, called by the waker thread
+         */
+        void wake()
+        {
+            ready = true;
+            LockSupport.unpark( thread );
+        }
+
+        /**
+         * Park until the vector is ready
+         * @param lastActivity - time of the last event on the vector
+         * @param timeout - vector timeout in msec, -1 to wait forever
+         * @return true if the vector is ready, false if it timed out
+         */
+        boolean await( long lastActivity, int timeout )
+        {
+            while ( !ready ) {
+                if ( timeout < 0 ) {
+                    LockSupport.park( this );
+                    continue;
+                }
+
+                long remaining = lastActivity + timeout - System.currentTimeMillis();
+                if ( remaining <= 0 ) return false;
+
+                LockSupport.parkNanos( this, TimeUnit.MILLISECONDS.toNanos( remaining ));
+            }
+
+            return true;
+        }
+    }
+}
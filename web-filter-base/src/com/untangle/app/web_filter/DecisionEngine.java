@@ -22,6 +22,7 @@ import com.untangle.uvm.vnet.AppSession;
 import com.untangle.uvm.util.UrlMatchingUtil;
 import com.untangle.uvm.util.I18nUtil;
 import com.untangle.uvm.app.GenericRule;
+import com.untangle.uvm.app.RuleProfiler;
 import com.untangle.app.http.RequestLineToken;
 import com.untangle.app.http.HeaderToken;
 
@@ -60,6 +61,11 @@ public abstract class DecisionEngine
      */
     private final Map<InetAddress, HashSet<String>> unblockedDomains = new HashMap<InetAddress, HashSet<String>>();
 
+    /**
+     * The rule profiler keys of the filter rules
+     */
+    private final RuleProfiler.RuleKeyCache<WebFilterRule> filterRuleKeys;
+
     /**
      * Constructor
      * 
@@ -69,6 +75,7 @@ public abstract class DecisionEngine
     public DecisionEngine(WebFilterBase app)
     {
         this.app = app;
+        this.filterRuleKeys = new RuleProfiler.RuleKeyCache<>(rule -> new RuleProfiler.RuleKey(app, "WebFilterRule", rule.getRuleId(), rule.getDescription()));
     }
 
     /**
@@ -683,12 +690,18 @@ public abstract class DecisionEngine
 
         if (ruleList == null) return null;
 
+        RuleProfiler.RuleKey[] ruleKeys = (RuleProfiler.ENABLED ? filterRuleKeys.get(ruleList) : null);
+        int ruleIndex = -1;
+
         for (WebFilterRule filterRule : ruleList) {
             Boolean result;
 
+            ruleIndex++;
             if (!filterRule.getEnabled()) continue;
 
+            long start = (ruleKeys != null ? RuleProfiler.start() : RuleProfiler.NOT_SAMPLED);
             result = filterRule.matches(sess);
+            if (ruleKeys != null) RuleProfiler.recordRule(ruleKeys[ruleIndex], result, start);
 
             if (result == true) {
                 logger.debug(checkCaller + " MATCHED WebFilterRule \"" + filterRule.getDescription() + "\"");